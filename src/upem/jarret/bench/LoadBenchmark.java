@@ -0,0 +1,265 @@
+package upem.jarret.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import upem.jarret.job.Task;
+
+/**
+ * Measures a server holding many connections at once. All the connections are opened first,
+ * then each of them requests a task and posts an answer for it, in a loop. The measure starts
+ * once every connection got its first response, so that all of them were accepted and are
+ * served, and lasts for the given time. The throughput and the latency percentiles of the
+ * requests are printed at the end.
+ *
+ * The server must run a job with enough tasks. Beyond 25000 connections to a loopback address,
+ * the connections are bound to 127.0.0.2, 127.0.0.3... to get enough local ports.
+ */
+public class LoadBenchmark {
+	private static final Charset charsetASCII = Charset.forName("ASCII");
+	private static final Charset charsetUTF8 = Charset.forName("utf-8");
+	private static final byte[] ANSWER = "{\"Benchmark\":true}".getBytes(charsetUTF8);
+	private static final int CONNECTIONS_PER_ADDRESS = 25_000;
+	private static final long WARM_UP_MILLIS = 120_000;
+
+	private final InetSocketAddress server;
+	private final Selector selector;
+	private long[] latencies = new long[1 << 16];
+	private int requests;
+	private long errors;
+	private long comeBacks;
+	private int served;
+	private boolean measuring;
+
+	/**
+	 * The state of a connection: the request being sent and the response being read
+	 */
+	private static class Connection {
+		private final ByteBuffer in = ByteBuffer.allocate(1024);
+		private ByteBuffer out;
+		private boolean postingAnswer;
+		private long sentAt;
+		private boolean served;
+	}
+
+	private LoadBenchmark(InetSocketAddress server) throws IOException {
+		this.server = server;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Opens the connections and waits until they are all established
+	 *
+	 * @param count
+	 * @return the number of connections established
+	 * @throws IOException
+	 */
+	private int connect(int count) throws IOException {
+		boolean loopback = server.getAddress().isLoopbackAddress() && count > CONNECTIONS_PER_ADDRESS;
+		for (int i = 0; i < count; i++) {
+			SocketChannel sc = SocketChannel.open();
+			sc.configureBlocking(false);
+			if (loopback) {
+				byte[] local = { 127, 0, 0, (byte) (2 + i / CONNECTIONS_PER_ADDRESS) };
+				sc.bind(new InetSocketAddress(InetAddress.getByAddress(local), 0));
+			}
+			sc.connect(server);
+			sc.register(selector, SelectionKey.OP_CONNECT, new Connection());
+		}
+		int connected = 0;
+		int pending = count;
+		while (pending > 0 && selector.select(10_000) > 0) {
+			for (SelectionKey key : selector.selectedKeys()) {
+				pending--;
+				try {
+					((SocketChannel) key.channel()).finishConnect();
+					key.interestOps(0);
+					connected++;
+				} catch (IOException e) {
+					key.cancel();
+					key.channel().close();
+				}
+			}
+			selector.selectedKeys().clear();
+		}
+		return connected;
+	}
+
+	/**
+	 * Runs the request loop of every connection until all of them were served once, then for the
+	 * given time
+	 *
+	 * @param connected
+	 * @param millis
+	 * @return the time it took to serve every connection once
+	 * @throws IOException
+	 */
+	private long run(int connected, long millis) throws IOException {
+		for (SelectionKey key : selector.keys()) {
+			if (key.isValid()) {
+				requestTask(key);
+			}
+		}
+		long start = System.currentTimeMillis();
+		long end = start + WARM_UP_MILLIS;
+		long warmUp = -1;
+		while (System.currentTimeMillis() < end) {
+			if (!measuring && (served == connected || System.currentTimeMillis() >= start + WARM_UP_MILLIS - millis)) {
+				measuring = true;
+				warmUp = System.currentTimeMillis() - start;
+				end = System.currentTimeMillis() + millis;
+			}
+			selector.select(100);
+			for (SelectionKey key : selector.selectedKeys()) {
+				try {
+					if (key.isValid() && key.isWritable()) {
+						write(key);
+					}
+					if (key.isValid() && key.isReadable()) {
+						read(key);
+					}
+				} catch (IOException e) {
+					errors++;
+					key.cancel();
+					key.channel().close();
+				}
+			}
+			selector.selectedKeys().clear();
+		}
+		measuring = false;
+		return warmUp;
+	}
+
+	private void requestTask(SelectionKey key) {
+		Connection connection = (Connection) key.attachment();
+		connection.out = charsetASCII.encode("GET Task HTTP/1.1\r\nHost: " + server.getHostString() + "\r\n\r\n");
+		connection.postingAnswer = false;
+		connection.sentAt = System.nanoTime();
+		key.interestOps(SelectionKey.OP_WRITE);
+	}
+
+	private void postAnswer(SelectionKey key, Task task) {
+		Connection connection = (Connection) key.attachment();
+		String header = "POST Answer64 HTTP/1.1\r\nHost: " + server.getHostString()
+				+ "\r\nContent-Type: application/json\r\nContent-Length: " + (2 * Long.BYTES + ANSWER.length)
+				+ "\r\n\r\n";
+		ByteBuffer request = ByteBuffer.allocate(header.length() + 2 * Long.BYTES + ANSWER.length);
+		request.put(charsetASCII.encode(header)).putLong(task.getJobId()).putLong(task.getTask()).put(ANSWER);
+		request.flip();
+		connection.out = request;
+		connection.postingAnswer = true;
+		connection.sentAt = System.nanoTime();
+		key.interestOps(SelectionKey.OP_WRITE);
+	}
+
+	private void write(SelectionKey key) throws IOException {
+		Connection connection = (Connection) key.attachment();
+		((SocketChannel) key.channel()).write(connection.out);
+		if (!connection.out.hasRemaining()) {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	private void read(SelectionKey key) throws IOException {
+		Connection connection = (Connection) key.attachment();
+		if (((SocketChannel) key.channel()).read(connection.in) == -1) {
+			throw new IOException("Connection closed by the server");
+		}
+		String received = new String(connection.in.array(), 0, connection.in.position(), charsetASCII);
+		int headerEnd = received.indexOf("\r\n\r\n");
+		if (headerEnd == -1) {
+			return;
+		}
+		int contentLength = 0;
+		for (String line : received.substring(0, headerEnd).split("\r\n")) {
+			if (line.startsWith("Content-Length: ")) {
+				contentLength = Integer.parseInt(line.substring("Content-Length: ".length()).trim());
+			}
+		}
+		int responseLength = headerEnd + 4 + contentLength;
+		if (connection.in.position() < responseLength) {
+			return;
+		}
+		record(System.nanoTime() - connection.sentAt);
+		if (!connection.served) {
+			connection.served = true;
+			served++;
+		}
+		int code = Integer.parseInt(received.substring(9, 12));
+		String content = new String(connection.in.array(), headerEnd + 4, contentLength, charsetUTF8);
+		connection.in.clear();
+		if (code == 503) {
+			throw new IOException("Service unavailable");
+		}
+		if (code != 200) {
+			errors++;
+			requestTask(key);
+			return;
+		}
+		if (connection.postingAnswer) {
+			requestTask(key);
+			return;
+		}
+		Task task = Task.parseJSON(content);
+		if (task.getComeBackInSeconds() >= 0) {
+			comeBacks++;
+			requestTask(key);
+			return;
+		}
+		postAnswer(key, task);
+	}
+
+	private void record(long nanos) {
+		if (!measuring) {
+			return;
+		}
+		if (requests == latencies.length) {
+			latencies = Arrays.copyOf(latencies, requests * 2);
+		}
+		latencies[requests++] = nanos;
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.2f ms", nanos / 1e6);
+	}
+
+	private void report(int connected, long connectMillis, long warmUpMillis, long seconds) {
+		long[] sorted = Arrays.copyOf(latencies, requests);
+		Arrays.sort(sorted);
+		System.out.println("Connections: " + connected + " established in " + connectMillis + " ms, " + served
+				+ " served once in " + warmUpMillis + " ms");
+		System.out.println("Requests: " + requests + " in " + seconds + " s, " + requests / seconds + " requests/s, "
+				+ comeBacks + " come-backs, " + errors + " errors");
+		if (requests > 0) {
+			System.out.println("Latency: p50 " + millis(sorted[requests / 2]) + " - p99 "
+					+ millis(sorted[(int) (requests * 0.99)]) + " - p99.9 " + millis(sorted[(int) (requests * 0.999)])
+					+ " - max " + millis(sorted[requests - 1]));
+		}
+	}
+
+	private static void usage() {
+		System.out.println("LoadBenchmark host port connections seconds");
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 4) {
+			usage();
+			return;
+		}
+		int count = Integer.parseInt(args[2]);
+		long seconds = Long.parseLong(args[3]);
+		LoadBenchmark benchmark = new LoadBenchmark(new InetSocketAddress(args[0], Integer.parseInt(args[1])));
+		long start = System.currentTimeMillis();
+		int connected = benchmark.connect(count);
+		long connectMillis = System.currentTimeMillis() - start;
+		long warmUpMillis = benchmark.run(connected, seconds * 1000);
+		benchmark.report(connected, connectMillis, warmUpMillis, seconds);
+	}
+}
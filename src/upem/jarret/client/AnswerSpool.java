@@ -0,0 +1,267 @@
+package upem.jarret.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Write-ahead spool of the answers computed by a client. The answers of every lease are appended
+ * to the spool file before they are sent, so that they survive an outage of the server or a
+ * restart of the client, and they are sent in bulk straight from the file.
+ *
+ * A record holds the answers of a lease as the worker wrote them, in the format the server reads
+ * in a POST AnswerBatches request: the job id, the first task, the number of tasks and of answers,
+ * then the index in the lease, the length and the bytes of every answer. It is preceded by its
+ * length as an int, so that the records form the content of a POST AnswerBatches request as they
+ * are. The offset of the first record the server did not acknowledge is saved in a second
+ * file, and the spool is truncated once every record is acknowledged. The offset 0 is forced to
+ * the disk before the spool is truncated, so that an offset written before cannot point into a
+ * record appended after. An answer may be sent twice after a crash, the server keeps the first
+ * one. The records the server refuses are moved to a third file, for an operator to look at.
+ */
+public class AnswerSpool implements Closeable {
+	// the job id, the first task, the number of tasks and the number of answers
+	private static final int MIN_RECORD_BYTES = 2 * Long.BYTES + 2 * Integer.BYTES;
+
+	private final Path spoolPath;
+	private final Path rejectedPath;
+	private final FileChannel spool;
+	private final FileChannel ack;
+	private final ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+	private final ByteBuffer offset = ByteBuffer.allocate(Long.BYTES);
+	private long acknowledged;
+	private long end;
+	private int pendingRecords;
+
+	/**
+	 * Opens the spool of a client, with the answers it did not send before it stopped
+	 *
+	 * @param directory
+	 * @param clientId
+	 * @throws IOException if the spool cannot be opened or is used by another client
+	 */
+	public AnswerSpool(Path directory, String clientId) throws IOException {
+		Files.createDirectories(directory);
+		this.spoolPath = directory.resolve(clientId + ".spool");
+		this.rejectedPath = directory.resolve(clientId + ".rejected");
+		this.spool = FileChannel.open(spoolPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		FileLock lock;
+		try {
+			lock = spool.tryLock();
+		} catch (OverlappingFileLockException e) {
+			lock = null;
+		}
+		if (lock == null) {
+			spool.close();
+			throw new IOException(spoolPath + " is used by another client");
+		}
+		this.ack = FileChannel.open(directory.resolve(clientId + ".ack"), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if (ack.read(offset, 0) == Long.BYTES) {
+			acknowledged = Math.max(0, Math.min(offset.getLong(0), spool.size()));
+		}
+		recover();
+	}
+
+	/**
+	 * Counts the records not acknowledged, and drops the last one if the client stopped while it
+	 * was written
+	 */
+	private void recover() throws IOException {
+		long position = acknowledged;
+		long size = spool.size();
+		while (position < size) {
+			long next = next(position);
+			if (next > size) {
+				break;
+			}
+			position = next;
+			pendingRecords++;
+		}
+		end = position;
+		if (end < size) {
+			spool.truncate(end);
+		}
+	}
+
+	/**
+	 * Returns the offset of the record following the one at position
+	 */
+	private long next(long position) throws IOException {
+		length.clear();
+		while (length.hasRemaining()) {
+			if (spool.read(length, position + length.position()) == -1) {
+				return Long.MAX_VALUE;
+			}
+		}
+		int recordLength = length.getInt(0);
+		if (recordLength < MIN_RECORD_BYTES) {
+			throw new IOException("Corrupted spool " + spoolPath + " at " + position);
+		}
+		return position + Integer.BYTES + recordLength;
+	}
+
+	/**
+	 * Appends the answers of a lease. They are on disk once sync is called.
+	 *
+	 * @param content the record of the lease, without its length
+	 * @throws IOException
+	 */
+	public void append(ByteBuffer content) throws IOException {
+		length.clear();
+		length.putInt(content.remaining()).flip();
+		ByteBuffer[] record = { length, content };
+		long written = 0;
+		long total = length.remaining() + content.remaining();
+		while (written < total) {
+			spool.position(end + written);
+			written += spool.write(record);
+		}
+		end += total;
+		pendingRecords++;
+	}
+
+	/**
+	 * Forces the records appended to the disk
+	 *
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		spool.force(false);
+	}
+
+	/**
+	 * Returns the number of records the server did not acknowledge
+	 *
+	 * @return
+	 */
+	public int getPendingRecords() {
+		return pendingRecords;
+	}
+
+	/**
+	 * Returns the end of the records following the ones acknowledged, at most maxBytes long but at
+	 * least one record long
+	 *
+	 * @param maxBytes
+	 * @return the end of the batch, or the end of the acknowledged records if there is none
+	 * @throws IOException
+	 */
+	public long nextBatch(long maxBytes) throws IOException {
+		long batchEnd = acknowledged;
+		while (batchEnd < end) {
+			long next = next(batchEnd);
+			if (batchEnd > acknowledged && next - acknowledged > maxBytes) {
+				break;
+			}
+			batchEnd = next;
+		}
+		return batchEnd;
+	}
+
+	/**
+	 * Returns the number of bytes of a batch
+	 *
+	 * @param batchEnd
+	 * @return
+	 */
+	public long getBatchLength(long batchEnd) {
+		return batchEnd - acknowledged;
+	}
+
+	/**
+	 * Returns the number of records of a batch
+	 *
+	 * @param batchEnd
+	 * @return
+	 * @throws IOException
+	 */
+	public int getBatchRecords(long batchEnd) throws IOException {
+		int records = 0;
+		for (long position = acknowledged; position < batchEnd; position = next(position)) {
+			records++;
+		}
+		return records;
+	}
+
+	/**
+	 * Writes the records of a batch to a channel, without copying them in memory
+	 *
+	 * @param batchEnd
+	 * @param channel
+	 * @throws IOException
+	 */
+	public void transferTo(long batchEnd, WritableByteChannel channel) throws IOException {
+		long position = acknowledged;
+		while (position < batchEnd) {
+			position += spool.transferTo(position, batchEnd - position, channel);
+		}
+	}
+
+	/**
+	 * Drops the records of a batch the server acknowledged. The spool is truncated once every
+	 * record is acknowledged.
+	 *
+	 * @param batchEnd
+	 * @throws IOException
+	 */
+	public void acknowledge(long batchEnd) throws IOException {
+		pendingRecords -= getBatchRecords(batchEnd);
+		acknowledged = batchEnd;
+		if (acknowledged == end) {
+			writeOffset(0);
+			ack.force(false);
+			spool.truncate(0);
+			acknowledged = 0;
+			end = 0;
+		} else {
+			writeOffset(acknowledged);
+		}
+	}
+
+	private void writeOffset(long value) throws IOException {
+		offset.clear();
+		offset.putLong(value).flip();
+		while (offset.hasRemaining()) {
+			ack.write(offset, offset.position());
+		}
+	}
+
+	/**
+	 * Moves the records of a batch the server refused to the rejected file, then drops them from
+	 * the spool
+	 *
+	 * @param batchEnd
+	 * @return the rejected file
+	 * @throws IOException
+	 */
+	public Path reject(long batchEnd) throws IOException {
+		try (FileChannel rejected = FileChannel.open(rejectedPath, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			long position = acknowledged;
+			while (position < batchEnd) {
+				position += spool.transferTo(position, batchEnd - position, rejected);
+			}
+			rejected.force(false);
+		}
+		acknowledge(batchEnd);
+		return rejectedPath;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			ack.close();
+		} finally {
+			spool.close();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package upem.jarret.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import upem.jarret.http.HTTPHeader;
+import upem.jarret.http.HTTPReader;
+
+/**
+ * Downloads the answers of a job to a range of tasks with a GET Answers request, and writes
+ * them to a file as they arrive, one JSON answer per line
+ */
+public class AnswersDownload {
+	private static final Charset charsetASCII = Charset.forName("ASCII");
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private AnswersDownload() {
+	}
+
+	/**
+	 * Downloads the answers of a job
+	 *
+	 * @param server
+	 * @param jobId
+	 * @param from the first task, inclusive
+	 * @param to the last task, exclusive
+	 * @param out
+	 * @return the number of bytes written to out
+	 * @throws IOException
+	 */
+	public static long download(InetSocketAddress server, long jobId, long from, long to, FileChannel out)
+	        throws IOException {
+		try (SocketChannel sc = SocketChannel.open(server)) {
+			String request = "GET Answers/" + jobId + "?from=" + from + "&to=" + to + " HTTP/1.1\r\nHost: "
+			        + server.getHostString() + "\r\n\r\n";
+			sc.write(charsetASCII.encode(request));
+			HTTPReader reader = new HTTPReader(sc, ByteBuffer.allocateDirect(BUFFER_SIZE));
+			HTTPHeader header = reader.readHeader();
+			if (header.getCode() != 200) {
+				throw new IOException("Wrong http code: " + header.getCode());
+			}
+			if (!"chunked".equals(header.getFields().get("Transfer-Encoding"))) {
+				throw new IOException("The answers are not chunked");
+			}
+			return reader.readChunks(bytes -> {
+				while (bytes.hasRemaining()) {
+					out.write(bytes);
+				}
+			});
+		}
+	}
+
+	private static void usage() {
+		System.out.println("AnswersDownload serverAddress port jobId file [fromTask toTask]");
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 4 && args.length != 6) {
+			usage();
+			return;
+		}
+		InetSocketAddress server = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+		long from = args.length == 6 ? Long.parseLong(args[4]) : 0;
+		long to = args.length == 6 ? Long.parseLong(args[5]) : Long.MAX_VALUE;
+		try (FileChannel out = FileChannel.open(Paths.get(args[3]), StandardOpenOption.CREATE,
+		        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long length = download(server, Long.parseLong(args[2]), from, to, out);
+			System.out.println(length + " bytes of answers written to " + args[3]);
+		}
+	}
+}
@@ -1,169 +1,417 @@
 package upem.jarret.client;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.rmi.UnexpectedException;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
+import upem.jarret.client.ClientMetrics.Phase;
+import upem.jarret.events.AnswerSendEvent;
+import upem.jarret.events.ComputeEvent;
+import upem.jarret.events.SpoolDrainEvent;
+import upem.jarret.events.TaskRequestEvent;
 import upem.jarret.http.HTTPException;
 import upem.jarret.http.HTTPHeader;
 import upem.jarret.http.HTTPReader;
 import upem.jarret.job.Task;
+import upem.jarret.worker.AnswerSink;
+import upem.jarret.worker.RangeWorker;
 import upem.jarret.worker.Worker;
 import upem.jarret.worker.WorkerFactory;
-import util.JsonTools;
+import upem.jarret.worker.WorkerPool;
 
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
 
 public class Client {
 	private static final Charset charsetASCII = Charset.forName("ASCII");
 	private static final Charset charsetUTF8 = Charset.forName("utf-8");
+	private static final int TASK_BATCH = 256;
+	private static final int MAX_REDIRECTS = 4;
+	private static final int REDIRECT_COME_BACK_SECONDS = 5;
+	private static final long MAX_BACKOFF_MILLIS = 60_000;
+	private static final long SPOOL_BATCH_BYTES = 1024 * 1024;
+	private static final int RESPONSE_BUFFER_SIZE = 4096;
 
 	private final String id;
-	private final InetSocketAddress sa;
+	private InetSocketAddress sa;
 	private final HashMap<String, Worker> workers = new HashMap<>();
+	private final AnswerSink sink = new AnswerSink();
+	// the tasks of the lease answered in the sink, and the record of their answers
+	private final BitSet answered = new BitSet();
+	private ByteBuffer batchBuffer = ByteBuffer.allocate(RESPONSE_BUFFER_SIZE);
+	private final AnswerSpool spool;
+	private final WorkerPool workerPool;
+	private final ClientMetrics metrics;
+	// holds a whole task response, reused by the reader of every connection
+	private final ByteBuffer responseBuffer = ByteBuffer.allocateDirect(RESPONSE_BUFFER_SIZE);
 	private SocketChannel sc;
+	private HTTPReader reader;
+	private int redirects;
+	private int backoffs;
 
-	public Client(String id, String serverAddress, int port) throws IOException {
+	/**
+	 * @param id
+	 * @param serverAddress
+	 * @param port
+	 * @param spoolDirectory the directory of the spool of the answers not acknowledged yet
+	 * @param config
+	 * @throws IOException if the spool cannot be opened, the worker processes cannot be started or
+	 *         the metrics port cannot be bound
+	 */
+	public Client(String id, String serverAddress, int port, Path spoolDirectory, ClientConfig config)
+			throws IOException {
 		this.id = id;
 		sa = new InetSocketAddress(serverAddress, port);
+		spool = new AnswerSpool(spoolDirectory, id);
+		workerPool = config.getWorkerProcesses() == 0 ? null
+				: new WorkerPool(config.getWorkerProcesses(), config.getWorkerJavaOptions(),
+						config.getWorkerMaxHeapBytes(), config.getWorkerMaxTaskMillis());
+		metrics = new ClientMetrics(id, config);
+		// the client only stops when it is killed
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				metrics.close();
+				if (workerPool != null) {
+					workerPool.close();
+				}
+			} catch (IOException e) {
+				//
+			}
+		}));
+	}
+
+	/**
+	 * Connects to the shard a dry server redirects to. The answers of the next task are sent to
+	 * this shard, which becomes the server of the client. After MAX_REDIRECTS redirections in a
+	 * row, the client comes back later.
+	 * 
+	 * @param header the 307 response
+	 * @return true if the client connected to the shard, false if it should come back later
+	 * @throws IOException
+	 */
+	private boolean followRedirect(HTTPHeader header) throws IOException {
+		String location = header.getFields().get("Location");
+		if (location == null || ++redirects > MAX_REDIRECTS) {
+			redirects = 0;
+			return false;
+		}
+		URI uri;
+		try {
+			uri = new URI(location);
+		} catch (URISyntaxException e) {
+			throw new HTTPException("Invalid Location: " + location);
+		}
+		if (uri.getHost() == null || uri.getPort() == -1) {
+			throw new HTTPException("Invalid Location: " + location);
+		}
+		System.out.println("Redirected to " + uri.getHost() + ":" + uri.getPort());
+		sa = new InetSocketAddress(uri.getHost(), uri.getPort());
+		connect();
+		return true;
+	}
+
+	/**
+	 * Waits before retrying a request the overloaded server rejected: Retry-After seconds, doubled
+	 * for each rejection in a row, with a random jitter so that rejected clients do not come back
+	 * all at once
+	 * 
+	 * @param header the 503 response
+	 * @throws InterruptedIOException
+	 */
+	private void backOff(HTTPHeader header) throws InterruptedIOException {
+		long retryAfter = 1;
+		String value = header.getFields().get("Retry-After");
+		if (value != null) {
+			try {
+				retryAfter = Math.max(1, Long.parseLong(value));
+			} catch (NumberFormatException e) {
+				// keep the default
+			}
+		}
+		long delay = Math.min(MAX_BACKOFF_MILLIS, (retryAfter * 1000) << Math.min(backoffs, 6));
+		backoffs++;
+		delay = ThreadLocalRandom.current().nextLong(delay / 2, delay + 1);
+		System.out.println("Server overloaded, retrying in " + delay + " ms");
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
 	}
 
 	/**
 	 * Requests a task to do
 	 * 
+	 * @param batch the largest number of consecutive tasks the client accepts in one lease, the server
+	 *        sizes the lease from the throughput it measured for this client
 	 * @return task data
 	 * @throws HTTPException 
 	 * @throws IOException
 	 */
-	private Task requestTask() throws HTTPException, IOException {
-		// send the request
-		String request = "GET Task HTTP/1.1\r\n" + "Host: " + sa.getHostName() + "\r\n" + "\r\n";
-		sc.write(charsetASCII.encode(request));
+	private Task requestTask(int batch) throws HTTPException, IOException {
+		// retried after a redirection or a rejection, on the new connection
+		while (true) {
+			TaskRequestEvent event = new TaskRequestEvent();
+			event.begin();
+			long start = System.nanoTime();
+			// send the request
+			String request = "GET Task HTTP/1.1\r\n" + "Host: " + sa.getHostName() + "\r\n" + "Client-Id: " + id
+			        + "\r\n";
+			if (batch > 1) {
+				request += "Task-Batch: " + batch + "\r\n";
+			}
+			request += "\r\n";
+			sc.write(charsetASCII.encode(request));
 
-		// read the response
-		ByteBuffer bb = ByteBuffer.allocate(50);
-		HTTPReader reader = new HTTPReader(sc, bb);
-		HTTPHeader header = reader.readHeader();
-		
-		if (header.getCode() == 400) {
-			throw new IllegalArgumentException("Bad request: " + request);
-		} else if (header.getCode() != 200) {
-			throw new UnexpectedException("Wrong http code: " + header.getCode());
-		}
-		ByteBuffer content = reader.readBytes(header.getContentLength());
+			// read the response
+			HTTPHeader header = reader.readHeader();
+			if (header.getCode() != 200) {
+				metrics.record(Phase.TASK_REQUEST, start);
+				commit(event, header.getCode(), null, 0);
+			}
+
+			if (header.getCode() == 400) {
+				throw new IllegalArgumentException("Bad request: " + request);
+			} else if (header.getCode() == 307) {
+				if (!followRedirect(header)) {
+					return Task.comeBack(REDIRECT_COME_BACK_SECONDS);
+				}
+				continue;
+			} else if (header.getCode() == 503) {
+				backOff(header);
+				connect();
+				continue;
+			} else if (header.getCode() != 200) {
+				throw new UnexpectedException("Wrong http code: " + header.getCode());
+			}
+			redirects = 0;
+			backoffs = 0;
+			ByteBuffer content = reader.readBytes(header.getContentLength());
+			metrics.record(Phase.TASK_REQUEST, start);
 
-		// parse json
-		content.flip();
-		return Task.parseJSON(charsetUTF8.decode(content).toString());
+			// parse json
+			content.flip();
+			Task task = Task.parseJSON(charsetUTF8.decode(content).toString());
+			commit(event, 200, task, header.getContentLength());
+			return task;
+		}
 	}
 
-	private void checkCode() throws IOException {
-		ByteBuffer bb = ByteBuffer.allocate(50);
-		HTTPReader reader = new HTTPReader(sc, bb);
-		HTTPHeader header = reader.readHeader();
-		System.out.println("Answer from server : " + header.getCode());
-		
-		if(!(header.getCode() == 200)) {
-			throw new IllegalArgumentException();
-		} 
-    }
+	private static void commit(TaskRequestEvent event, int code, Task task, int bytes) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.code = code;
+			event.bytes = bytes;
+			if (task != null && task.getComeBackInSeconds() >= 0) {
+				event.comeBack = task.getComeBackInSeconds();
+			} else if (task != null) {
+				event.jobId = task.getJobId();
+				event.task = task.getTask();
+				event.taskCount = task.getTaskCount();
+			}
+			event.commit();
+		}
+	}
 
 	/**
-	 * Tests if there are errors in the answer
+	 * Appends the answers of the lease to the spool, in one record holding the bytes the worker
+	 * wrote in the sink. The server checks them and reports the tasks without an answer as
+	 * computation errors.
 	 * 
-	 * @param answer String to test
-	 * @return	the error message
-	 * @throws JsonParseException if the parsing went wrong
-	 * @throws IOException if something went wrong
+	 * @param task
+	 * @throws IOException
 	 */
-	private String checkError(String answer) throws JsonParseException, IOException {
-		if (answer == null) {
-			return "Computation error";
+	private void spoolAnswers(Task task) throws IOException {
+		AnswerSendEvent event = new AnswerSendEvent();
+		event.begin();
+		long from = task.getTask();
+		int count = task.getTaskCount();
+		int length = 2 * Long.BYTES + 2 * Integer.BYTES;
+		for (int i = 0; i < sink.size(); i++) {
+			length += 2 * Integer.BYTES + sink.getAnswerLength(i);
 		}
-
-		if (!JsonTools.isJSON(answer)) {
-			return "Answer is not valid JSON";
+		if (batchBuffer.capacity() < length) {
+			batchBuffer = ByteBuffer.allocate(Math.max(length, batchBuffer.capacity() * 2));
 		}
-
-		if (JsonTools.isNested(answer)) {
-			return "Answer is nested";
+		batchBuffer.clear();
+		batchBuffer.putLong(task.getJobId()).putLong(from).putInt(count).putInt(0);
+		answered.clear();
+		for (int i = 0; i < sink.size(); i++) {
+			// the first answer of a task wins, like on the server
+			long index = sink.getTask(i) - from;
+			if (index < 0 || index >= count || answered.get((int) index)) {
+				continue;
+			}
+			answered.set((int) index);
+			batchBuffer.putInt((int) index);
+			sink.writeAnswer(i, batchBuffer);
+		}
+		int answers = answered.cardinality();
+		batchBuffer.putInt(2 * Long.BYTES + Integer.BYTES, answers);
+		batchBuffer.flip();
+		int bytes = Integer.BYTES + batchBuffer.remaining();
+		spool.append(batchBuffer);
+		event.end();
+		if (event.shouldCommit()) {
+			event.jobId = task.getJobId();
+			event.task = from;
+			event.taskCount = count;
+			event.bytes = bytes;
+			event.error = answers == count ? null : (count - answers) + " tasks without an answer";
+			event.commit();
 		}
-
-		return null;
 	}
 
 	/**
-	 * Creates the string answer to POST
+	 * Sends the answers of the spool in bulk, in POST AnswerBatches requests of at most
+	 * SPOOL_BATCH_BYTES, and drops them from the spool as the server acknowledges them. The leases
+	 * of a request the server refuses are sent again one by one, and the ones it still refuses are
+	 * moved out of the spool, so that a bad record does not block the next ones.
 	 * 
-	 * @param task the task the client work on
-	 * @param answer the answer the worker calculates
-	 * @param error the error message is there is one
-	 * @return the request
-	 * @throws IOException if something went wrong
+	 * @return true if the spool is empty, false if the server cannot be reached
+	 * @throws IOException if the server answers with an unexpected code or the spool cannot be read
 	 */
-	private ByteBuffer createRequest(Task task, String answer, String error) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		JsonFactory jf = new JsonFactory();
-		JsonGenerator jg = jf.createGenerator(baos);
-
-		jg.writeStartObject();
-
-		jg.writeStringField("JobId", String.valueOf(task.getJobId()));
-		jg.writeStringField("WorkerVersion", task.getWorkerVersion());
-		jg.writeStringField("WorkerURL", task.getWorkerURL());
-		jg.writeStringField("WorkerClassName", task.getWorkerClassName());
-		jg.writeStringField("Task", String.valueOf(task.getTask()));
-		jg.writeStringField("ClientId", id);
-
-		if (error == null) {
-			jg.writeFieldName("Answer");
-			jg.writeRawValue(answer);
-		} else {
-			jg.writeStringField("Error", error);
+	private boolean drainSpool() throws IOException {
+		// the number of leases to send one by one, to find the ones the server refuses
+		int singles = 0;
+		// a connection kept since the previous lease may have been closed by the server meanwhile
+		boolean retried = false;
+		while (spool.getPendingRecords() > 0) {
+			if ((sc == null || !sc.isOpen()) && !tryConnect()) {
+				return false;
+			}
+			SpoolDrainEvent event = new SpoolDrainEvent();
+			event.begin();
+			int pending = spool.getPendingRecords();
+			long batchEnd = spool.nextBatch(singles > 0 ? 0 : SPOOL_BATCH_BYTES);
+			long length = spool.getBatchLength(batchEnd);
+			HTTPHeader header;
+			try {
+				long start = System.nanoTime();
+				ByteBuffer bb = charsetASCII.encode("POST AnswerBatches HTTP/1.1\r\nHost: " + sa.getHostName()
+						+ "\r\nClient-Id: " + id + "\r\nContent-Type: application/json\r\nContent-Length: "
+						+ length + "\r\n\r\n");
+				while (bb.hasRemaining()) {
+					sc.write(bb);
+				}
+				spool.transferTo(batchEnd, sc);
+				metrics.record(Phase.POST, start);
+				start = System.nanoTime();
+				header = reader.readHeader();
+				if (header.getCode() == 200) {
+					reader.readBytes(header.getContentLength());
+				}
+				metrics.record(Phase.ACK_WAIT, start);
+			} catch (IOException e) {
+				sc.close();
+				if (!retried) {
+					retried = true;
+					continue;
+				}
+				System.out.println("Connection lost while sending the spooled answers");
+				return false;
+			}
+			if (header.getCode() == 503) {
+				// the server closed the connection without reading the answers
+				sc.close();
+				backOff(header);
+				continue;
+			}
+			if (header.getCode() == 400) {
+				// the server may not have read the whole request
+				sc.close();
+				int records = spool.getBatchRecords(batchEnd);
+				if (singles == 0 && records > 1) {
+					singles = records;
+					continue;
+				}
+				System.out.println("The server refused " + records + " spooled answer batches, moved to "
+						+ spool.reject(batchEnd));
+				singles = Math.max(0, singles - 1);
+				continue;
+			}
+			if (header.getCode() != 200) {
+				throw new UnexpectedException("Wrong http code: " + header.getCode());
+			}
+			backoffs = 0;
+			singles = Math.max(0, singles - 1);
+			spool.acknowledge(batchEnd);
+			event.end();
+			if (event.shouldCommit()) {
+				event.batches = pending - spool.getPendingRecords();
+				event.bytes = length;
+				event.pendingBatches = spool.getPendingRecords();
+				event.commit();
+			}
+			System.out.println("Sent " + (pending - spool.getPendingRecords()) + " spooled answer batches");
 		}
-
-		jg.writeEndObject();
-		jg.close();
-		
-		String json = baos.toString();
-		ByteBuffer jsonBuffer = charsetUTF8.encode(json);
-		
-		return jsonBuffer;
+		return true;
 	}
-	
+
 	/**
-	 * Sends the answer to the server
+	 * Computes every task of the lease into the sink, with a single computeRange call if the
+	 * worker supports it and one compute call per task otherwise. The tasks whose computation
+	 * failed have no answer in the sink.
 	 * 
+	 * @param worker
 	 * @param task
-	 * @param answer
-	 * @throws IOException
 	 */
-	private void sendAnswer(Task task, String answer) throws IOException {
-		ByteBuffer jsonBuffer = createRequest(task, answer, checkError(answer));
-		ByteBuffer content = ByteBuffer.allocate(Long.BYTES + Integer.BYTES);
-		
-		content.putLong(task.getJobId()).putInt(task.getTask());
-		content.flip();
-		if(content.remaining() + jsonBuffer.remaining() > 4096) {
-			jsonBuffer = createRequest(task, answer, "Too Long");
+	private void compute(Worker worker, Task task) {
+		ComputeEvent event = new ComputeEvent();
+		event.begin();
+		long start = System.nanoTime();
+		computeAnswers(worker, task);
+		metrics.record(Phase.COMPUTE, start);
+		event.end();
+		if (event.shouldCommit()) {
+			event.jobId = task.getJobId();
+			event.task = task.getTask();
+			event.taskCount = task.getTaskCount();
+			event.failed = Math.max(0, task.getTaskCount() - sink.size());
+			event.workerClassName = task.getWorkerClassName();
+			event.range = worker instanceof RangeWorker;
+			event.commit();
+		}
+	}
+
+	private void computeAnswers(Worker worker, Task task) {
+		sink.clear();
+		int count = task.getTaskCount();
+		if (task.getTask() + count > Integer.MAX_VALUE) {
+			// workers take int task numbers, these tasks cannot be computed by this worker
+			return;
+		}
+		int from = (int) task.getTask();
+		if (worker instanceof RangeWorker) {
+			try {
+				((RangeWorker) worker).computeRange(from, from + count, sink);
+			} catch (Exception e) {
+				// tasks missing from the sink are reported as computation errors
+			}
+			return;
+		}
+		for (int i = 0; i < count; i++) {
+			try {
+				String answer = worker.compute(from + i);
+				if (answer != null) {
+					sink.put(from + i, answer);
+				}
+			} catch (Exception e) {
+				// reported as a computation error
+			}
 		}
-		
-		int contentLength = content.remaining() + jsonBuffer.remaining();
-		String header = "POST Answer HTTP/1.1\r\nHost: " + sa.getHostName() + "\r\nContent-Type: application/json\r\nContent-Length: " + contentLength + "\r\n\r\n";
-		
-		ByteBuffer bb = charsetASCII.encode(header);
-		
-		sc.write(bb);
-		sc.write(content);
-		sc.write(jsonBuffer);
 	}
 
 	/**
@@ -177,87 +425,63 @@ public class Client {
 	 */
 	public void interact() throws IOException, InterruptedException, ClassNotFoundException, IllegalAccessException,
 	        InstantiationException {
-		Task task = new Task();
+		Task task = null;
 		Worker worker = null;
 		do {
-			connect();
+			// the connection is kept from one lease to the next
+			if (sc == null || !sc.isOpen()) {
+				connect();
+			}
+			// answers left by an outage or a previous run of the client
+			if (!drainSpool()) {
+				continue;
+			}
 			while (true) {
 				try {
 					System.out.println("Requesting task");
-					task = requestTask();
+					task = requestTask(TASK_BATCH);
 				} catch(IllegalArgumentException e) {
 					System.err.println(e.getMessage());
-					task.setComeBackInSeconds(300);
+					task = Task.comeBack(300);
 				} catch(IOException e) {
 					connect();
 					continue;
 				}
-				try {
-					Thread.sleep(task.getComeBackInSeconds());
-				} catch (IllegalArgumentException e) {
+				if (task.getComeBackInSeconds() < 0) {
 					break;
 				}
+				Thread.sleep(task.getComeBackInSeconds() * 1000L);
 			}
 			System.out.println("Task received: "+task.toJSON());
 			System.out.println("Retrieving worker");
 			if (worker == null ||  (task.getWorkerClassName() != worker.getClass().getName() && task.getWorkerVersion() != worker.getVersion())) {
 				worker = workers.get(task.getWorkerClassName());
 				if(worker == null || task.getWorkerVersion() != worker.getVersion()) {
-					worker = WorkerFactory.getWorker(task.getWorkerURL(), task.getWorkerClassName());
+					long start = System.nanoTime();
+					worker = workerPool != null ? workerPool.getWorker(task.getWorkerURL(), task.getWorkerClassName())
+							: WorkerFactory.getWorker(task.getWorkerURL(), task.getWorkerClassName());
+					metrics.record(Phase.WORKER_LOAD, start);
 					workers.put(task.getWorkerClassName(), worker);
 				}
 			}
-			String answer;
-			try {
-				System.out.println("Starting computation");
-				answer = worker.compute(task.getTask());
-			} catch (Exception e) {
-				answer = null;
-			}
-			while(true) {
-				while(true) {
-					try{
-						System.out.println("Sending answer");
-						sendAnswer(task, answer);
-						break;
-					} catch(IOException e) {
-						connect();
-					}
-				}
-				try{
-					checkCode();
-					break;
-				} catch(IOException e) {
-					//connect();
-				} catch(IllegalArgumentException e) {
-					System.out.println("Server does not reply with 200");
-				}
-			}
-			try{
-				sc.close();
-			} catch(Exception e) {
-				//
+			System.out.println("Starting computation");
+			compute(worker, task);
+			long start = System.nanoTime();
+			spoolAnswers(task);
+			spool.sync();
+			metrics.record(Phase.SERIALIZE, start);
+			System.out.println("Sending answers");
+			if (!drainSpool()) {
+				System.out.println(spool.getPendingRecords() + " answer batches spooled until the server is back");
 			}
 			System.out.println("\n--------------------------------------\n");
 		} while (true);
 	}
 
 	private void connect() {
-		try{
-			sc.close();
-		} catch(Exception e) {
-			//
-		}
 		while(true) {
-			System.out.println("Trying to connect with server...");
-			try {
-				sc = SocketChannel.open();
-				sc.connect(sa);
+			if (tryConnect()) {
 				return;
-			} catch(ConnectException e) {
-				//
-			} catch(IOException e) {
-				//
 			}
 			try {
 				Thread.sleep(300);
@@ -269,19 +493,50 @@ public class Client {
 		}
 	}
 
+	/**
+	 * Opens a new connection to the server
+	 * 
+	 * @return false if the server cannot be reached
+	 */
+	private boolean tryConnect() {
+		try{
+			sc.close();
+		} catch(Exception e) {
+			//
+		}
+		System.out.println("Trying to connect with server...");
+		try {
+			long start = System.nanoTime();
+			sc = SocketChannel.open();
+			sc.connect(sa);
+			metrics.record(Phase.CONNECT, start);
+			// the bytes left by the previous connection are dropped
+			responseBuffer.clear();
+			reader = new HTTPReader(sc, responseBuffer);
+			return true;
+		} catch(ConnectException e) {
+			//
+		} catch(IOException e) {
+			//
+		}
+		return false;
+	}
+
 	private static void usage() {
-		System.out.println("ClientJarRet clientId serverAddress serverPort");
+		System.out.println("ClientJarRet clientId serverAddress serverPort [spoolDirectory [configFile]]");
 	}
 	
 	public static void main(String[] args) throws JsonParseException, IOException, ClassNotFoundException,
 	        IllegalAccessException, InstantiationException, InterruptedException {
 		
-		if (args.length != 3) {
+		if (args.length < 3 || args.length > 5) {
 			usage();
 			return;
 		}
 		
-		Client client = new Client(args[0], args[1], Integer.valueOf(args[2]));
+		Path spoolDirectory = Paths.get(args.length >= 4 ? args[3] : "spool");
+		ClientConfig config = ClientConfig.read(Paths.get(args.length == 5 ? args[4] : "config/JarRetClientConfig.json"));
+		Client client = new Client(args[0], args[1], Integer.valueOf(args[2]), spoolDirectory, config);
 		client.interact();
 	}
 
@@ -0,0 +1,135 @@
+package upem.jarret.client;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * The settings of a client, read from an optional JSON file. A missing file or field keeps the
+ * default value.
+ */
+public class ClientConfig {
+	private int workerProcesses = 0;
+	private List<String> workerJavaOptions = Collections.emptyList();
+	private long workerMaxHeapBytes = 0;
+	private long workerMaxTaskMillis = 0;
+	private Path metricsDirectory = null;
+	private int metricsIntervalSeconds = 60;
+	private int metricsPort = 0;
+
+	private ClientConfig() {
+	}
+
+	/**
+	 * Reads the settings of a client
+	 *
+	 * @param path
+	 * @return the settings, the default ones if the file does not exist
+	 * @throws IOException
+	 */
+	public static ClientConfig read(Path path) throws IOException {
+		ClientConfig config = new ClientConfig();
+		if (!Files.exists(path)) {
+			return config;
+		}
+		JsonFactory jf = new JsonFactory();
+		try (JsonParser jp = jf.createParser(Files.newBufferedReader(path))) {
+			jp.nextToken();
+			while (jp.nextToken() != JsonToken.END_OBJECT) {
+				String fieldName = jp.getCurrentName();
+				jp.nextToken();
+				switch (fieldName) {
+				case "WorkerProcesses":
+					config.workerProcesses = jp.getIntValue();
+					break;
+				case "WorkerJavaOptions":
+					List<String> options = new ArrayList<>();
+					while (jp.nextToken() != JsonToken.END_ARRAY) {
+						options.add(jp.getText());
+					}
+					config.workerJavaOptions = options;
+					break;
+				case "WorkerMaxHeapMB":
+					config.workerMaxHeapBytes = jp.getLongValue() * 1024 * 1024;
+					break;
+				case "WorkerMaxTaskMillis":
+					config.workerMaxTaskMillis = jp.getLongValue();
+					break;
+				case "MetricsDirectory":
+					config.metricsDirectory = Paths.get(jp.getText());
+					break;
+				case "MetricsIntervalSeconds":
+					config.metricsIntervalSeconds = jp.getIntValue();
+					break;
+				case "MetricsPort":
+					config.metricsPort = jp.getIntValue();
+					break;
+				default:
+					System.err.println("Unknown Field");
+					jp.skipChildren();
+				}
+			}
+		}
+		if (config.workerProcesses < 0) {
+			throw new IllegalArgumentException("WorkerProcesses must not be negative");
+		}
+		if (config.metricsIntervalSeconds <= 0) {
+			throw new IllegalArgumentException("MetricsIntervalSeconds must be positive");
+		}
+		if (config.metricsPort < 0 || config.metricsPort > 65535) {
+			throw new IllegalArgumentException("Invalid MetricsPort " + config.metricsPort);
+		}
+		return config;
+	}
+
+	/**
+	 * Returns the number of child JVMs running the workers, 0 to run them in the client JVM
+	 *
+	 * @return
+	 */
+	public int getWorkerProcesses() {
+		return workerProcesses;
+	}
+
+	public List<String> getWorkerJavaOptions() {
+		return workerJavaOptions;
+	}
+
+	public long getWorkerMaxHeapBytes() {
+		return workerMaxHeapBytes;
+	}
+
+	public long getWorkerMaxTaskMillis() {
+		return workerMaxTaskMillis;
+	}
+
+	/**
+	 * Returns the directory the latency histograms are written to, null to keep them in memory
+	 *
+	 * @return
+	 */
+	public Path getMetricsDirectory() {
+		return metricsDirectory;
+	}
+
+	public int getMetricsIntervalSeconds() {
+		return metricsIntervalSeconds;
+	}
+
+	/**
+	 * Returns the loopback port serving the latency histograms, 0 for none
+	 *
+	 * @return
+	 */
+	public int getMetricsPort() {
+		return metricsPort;
+	}
+}
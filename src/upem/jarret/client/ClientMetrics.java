@@ -0,0 +1,233 @@
+package upem.jarret.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Latency histograms of the phases of a client, to tell where its wall time goes. A client whose
+ * time goes to connect, request tasks, POST answers and wait for the acknowledgement is bound by
+ * the network rather than by its CPU.
+ *
+ * Every histogram has one bucket per power of two of microseconds, so that recording a latency
+ * neither allocates nor sorts. The histograms are written as JSON to [clientId].json in
+ * MetricsDirectory every MetricsIntervalSeconds if it is set, and served to GET requests on the
+ * loopback MetricsPort if it is set.
+ */
+public class ClientMetrics implements Closeable {
+	private static final Charset charsetUTF8 = Charset.forName("utf-8");
+	private static final int BUCKETS = 40;
+	private static final double[] PERCENTILES = { 0.5, 0.9, 0.99 };
+	private static final String[] PERCENTILE_NAMES = { "P50Millis", "P90Millis", "P99Millis" };
+
+	/**
+	 * The phases of a client
+	 */
+	public enum Phase {
+		CONNECT("Connect", true), TASK_REQUEST("TaskRequest", true), WORKER_LOAD("WorkerLoad", false), COMPUTE(
+				"Compute", false), SERIALIZE("Serialize", false), POST("Post", true), ACK_WAIT("AckWait", true);
+
+		private final String label;
+		private final boolean network;
+
+		private Phase(String label, boolean network) {
+			this.label = label;
+			this.network = network;
+		}
+	}
+
+	private final String clientId;
+	private final long[][] buckets = new long[Phase.values().length][BUCKETS];
+	private final long[] counts = new long[Phase.values().length];
+	private final long[] totalNanos = new long[Phase.values().length];
+	private final long[] maxNanos = new long[Phase.values().length];
+	private final long startMillis = System.currentTimeMillis();
+	private final Path file;
+	private final Thread dumper;
+	private final ServerSocketChannel listener;
+
+	/**
+	 * @param clientId
+	 * @param config the MetricsDirectory, MetricsIntervalSeconds and MetricsPort settings
+	 * @throws IOException if the directory cannot be created or the metrics port cannot be bound
+	 */
+	public ClientMetrics(String clientId, ClientConfig config) throws IOException {
+		this.clientId = clientId;
+		if (config.getMetricsDirectory() != null) {
+			Files.createDirectories(config.getMetricsDirectory());
+			file = config.getMetricsDirectory().resolve(clientId + ".json");
+			long intervalMillis = config.getMetricsIntervalSeconds() * 1000L;
+			dumper = new Thread(() -> {
+				try {
+					while (true) {
+						Thread.sleep(intervalMillis);
+						dump();
+					}
+				} catch (InterruptedException e) {
+					// closed
+				}
+			}, "metrics-dump");
+			dumper.setDaemon(true);
+			dumper.start();
+		} else {
+			file = null;
+			dumper = null;
+		}
+		if (config.getMetricsPort() != 0) {
+			listener = ServerSocketChannel.open();
+			listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), config.getMetricsPort()));
+			Thread responder = new Thread(this::serve, "metrics-port");
+			responder.setDaemon(true);
+			responder.start();
+		} else {
+			listener = null;
+		}
+	}
+
+	/**
+	 * Records the latency of a phase
+	 *
+	 * @param phase
+	 * @param startNanos the System.nanoTime() the phase started at
+	 */
+	public synchronized void record(Phase phase, long startNanos) {
+		long nanos = Math.max(0, System.nanoTime() - startNanos);
+		int index = phase.ordinal();
+		int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos / 1000));
+		buckets[index][bucket]++;
+		counts[index]++;
+		totalNanos[index] += nanos;
+		maxNanos[index] = Math.max(maxNanos[index], nanos);
+	}
+
+	/**
+	 * Returns the histograms as JSON: for every phase, the count, the total, mean, percentiles and
+	 * maximum in milliseconds, and the non-empty buckets keyed by their upper bound in
+	 * microseconds. The percentiles are the upper bounds of their buckets. NetworkShare is the
+	 * part of the time recorded spent on the network.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized String toJSON() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		JsonGenerator jg = new JsonFactory().createGenerator(baos);
+		long network = 0;
+		long total = 0;
+		jg.writeStartObject();
+		jg.writeStringField("ClientId", clientId);
+		jg.writeNumberField("UptimeSeconds", (System.currentTimeMillis() - startMillis) / 1000);
+		jg.writeObjectFieldStart("Phases");
+		for (Phase phase : Phase.values()) {
+			int index = phase.ordinal();
+			total += totalNanos[index];
+			if (phase.network) {
+				network += totalNanos[index];
+			}
+			jg.writeObjectFieldStart(phase.label);
+			jg.writeNumberField("Count", counts[index]);
+			jg.writeNumberField("TotalMillis", millis(totalNanos[index]));
+			jg.writeNumberField("MeanMillis", counts[index] == 0 ? 0 : millis(totalNanos[index] / counts[index]));
+			for (int i = 0; i < PERCENTILES.length; i++) {
+				jg.writeNumberField(PERCENTILE_NAMES[i], millis(percentile(index, PERCENTILES[i])));
+			}
+			jg.writeNumberField("MaxMillis", millis(maxNanos[index]));
+			jg.writeObjectFieldStart("Buckets");
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				if (buckets[index][bucket] != 0) {
+					jg.writeNumberField(String.valueOf(1L << bucket), buckets[index][bucket]);
+				}
+			}
+			jg.writeEndObject();
+			jg.writeEndObject();
+		}
+		jg.writeEndObject();
+		jg.writeNumberField("NetworkShare", total == 0 ? 0 : Math.round(network * 1000.0 / total) / 1000.0);
+		jg.writeEndObject();
+		jg.close();
+		return baos.toString();
+	}
+
+	/**
+	 * Returns the upper bound of the bucket holding a percentile, at most the maximum
+	 */
+	private long percentile(int index, double percentile) {
+		long rank = (long) Math.ceil(counts[index] * percentile);
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += buckets[index][bucket];
+			if (seen >= rank && seen > 0) {
+				return Math.min(maxNanos[index], (1L << bucket) * 1000);
+			}
+		}
+		return 0;
+	}
+
+	private static double millis(long nanos) {
+		return Math.round(nanos / 1000.0) / 1000.0;
+	}
+
+	/**
+	 * Writes the histograms to the metrics file, replacing it at once so that a reader never sees
+	 * half of it
+	 */
+	private void dump() {
+		try {
+			Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			Files.write(tmp, toJSON().getBytes(charsetUTF8));
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Cannot write the metrics to " + file + ": " + e);
+		}
+	}
+
+	/**
+	 * Answers every request on the metrics port with the histograms, one request per connection
+	 */
+	private void serve() {
+		ByteBuffer request = ByteBuffer.allocate(1024);
+		while (listener.isOpen()) {
+			try (SocketChannel sc = listener.accept()) {
+				request.clear();
+				sc.read(request);
+				ByteBuffer json = charsetUTF8.encode(toJSON());
+				ByteBuffer response = charsetUTF8.encode("HTTP/1.1 200 OK\r\nContent-Type: application/json; charset=utf-8\r\n"
+						+ "Content-Length: " + json.remaining() + "\r\nConnection: close\r\n\r\n");
+				while (response.hasRemaining()) {
+					sc.write(response);
+				}
+				while (json.hasRemaining()) {
+					sc.write(json);
+				}
+			} catch (IOException e) {
+				// the request is lost, or the port was closed
+			}
+		}
+	}
+
+	/**
+	 * Stops the dump and the metrics port, after a last dump
+	 */
+	@Override
+	public void close() throws IOException {
+		if (dumper != null) {
+			dumper.interrupt();
+			dump();
+		}
+		if (listener != null) {
+			listener.close();
+		}
+	}
+}
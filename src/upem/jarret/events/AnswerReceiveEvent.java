@@ -0,0 +1,36 @@
+package upem.jarret.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded by the server for every complete POST Answer: the decoding and the JSON validation of
+ * the answer, then its persistence and its folding
+ */
+@Name("upem.jarret.AnswerReceive")
+@Label("Answer Receive")
+@Category({ "JarRet", "Server" })
+@Description("Validation, persistence and folding of an answer")
+public class AnswerReceiveEvent extends Event {
+	@Label("Job Id")
+	public long jobId;
+
+	@Label("Task")
+	public long task;
+
+	@Label("Answer Size")
+	@DataAmount
+	public int bytes;
+
+	@Label("Valid")
+	@Description("The answer is JSON")
+	public boolean valid;
+
+	@Label("Duplicate")
+	@Description("An answer was already folded for the task")
+	public boolean duplicate;
+}
@@ -0,0 +1,30 @@
+package upem.jarret.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded by the server for every answer written to the answer store
+ */
+@Name("upem.jarret.AnswerSave")
+@Label("Answer Save")
+@Category({ "JarRet", "Server" })
+@Description("Write of an answer to the answer store")
+public class AnswerSaveEvent extends Event {
+	@Label("Job Id")
+	public long jobId;
+
+	@Label("Task")
+	public long task;
+
+	@Label("Answer Size")
+	@DataAmount
+	public int bytes;
+
+	@Label("Failed")
+	public boolean failed;
+}
@@ -0,0 +1,35 @@
+package upem.jarret.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded by the client for every lease it computes, from the copy of its answers to the end of
+ * their append to the spool. The answers are then sent in bulk, see SpoolDrainEvent.
+ */
+@Name("upem.jarret.AnswerSend")
+@Label("Answer Send")
+@Category({ "JarRet", "Client" })
+@Description("Encoding and spooling of an answer")
+public class AnswerSendEvent extends Event {
+	@Label("Job Id")
+	public long jobId;
+
+	@Label("First Task")
+	public long task;
+
+	@Label("Task Count")
+	public int taskCount;
+
+	@Label("Record Size")
+	@DataAmount
+	public int bytes;
+
+	@Label("Error")
+	@Description("The tasks sent without an answer, if any")
+	public String error;
+}
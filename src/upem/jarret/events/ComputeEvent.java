@@ -0,0 +1,35 @@
+package upem.jarret.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded by the client for the computation of every lease by a worker
+ */
+@Name("upem.jarret.Compute")
+@Label("Compute")
+@Category({ "JarRet", "Client" })
+@Description("Computation of the tasks of a lease")
+public class ComputeEvent extends Event {
+	@Label("Job Id")
+	public long jobId;
+
+	@Label("First Task")
+	public long task;
+
+	@Label("Task Count")
+	public int taskCount;
+
+	@Label("Failed Tasks")
+	public int failed;
+
+	@Label("Worker Class")
+	public String workerClassName;
+
+	@Label("Range Worker")
+	@Description("The lease was computed with a single computeRange call")
+	public boolean range;
+}
@@ -0,0 +1,23 @@
+package upem.jarret.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded by the server for every iteration of the selector loop: the work done between two
+ * selects, without the wait in select
+ */
+@Name("upem.jarret.SelectorIteration")
+@Label("Selector Iteration")
+@Category({ "JarRet", "Server" })
+@Description("Processing of the selected keys, the timers and the parked requests")
+public class SelectorIterationEvent extends Event {
+	@Label("Selected Keys")
+	public int selectedKeys;
+
+	@Label("Registered Keys")
+	public int registeredKeys;
+}
@@ -0,0 +1,30 @@
+package upem.jarret.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded by the client for every POST AnswerBatches request it sends from its spool, from the write
+ * of the request to the acknowledgement of the server
+ */
+@Name("upem.jarret.SpoolDrain")
+@Label("Spool Drain")
+@Category({ "JarRet", "Client" })
+@Description("Bulk send of spooled answers")
+public class SpoolDrainEvent extends Event {
+	@Label("Batches")
+	@Description("The leases whose answers were sent")
+	public int batches;
+
+	@Label("Content Size")
+	@DataAmount
+	public long bytes;
+
+	@Label("Pending Batches")
+	@Description("The leases whose answers are left in the spool")
+	public int pendingBatches;
+}
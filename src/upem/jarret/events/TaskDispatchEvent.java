@@ -0,0 +1,38 @@
+package upem.jarret.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded by the server for every GET Task response: the scheduling of the lease and the
+ * encoding of the response
+ */
+@Name("upem.jarret.TaskDispatch")
+@Label("Task Dispatch")
+@Category({ "JarRet", "Server" })
+@Description("Lease of tasks, redirection or come back sent to a client")
+public class TaskDispatchEvent extends Event {
+	@Label("Job Id")
+	public long jobId = -1;
+
+	@Label("First Task")
+	public long task = -1;
+
+	@Label("Task Count")
+	public int taskCount;
+
+	@Label("Client Id")
+	public String clientId;
+
+	@Label("Outcome")
+	@Description("lease, redirect or comeBack")
+	public String outcome;
+
+	@Label("Response Size")
+	@DataAmount
+	public int bytes;
+}
@@ -0,0 +1,38 @@
+package upem.jarret.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Recorded by the client for every GET Task it sends, from the request to the parsed response
+ */
+@Name("upem.jarret.TaskRequest")
+@Label("Task Request")
+@Category({ "JarRet", "Client" })
+@Description("Request of a lease to the server")
+public class TaskRequestEvent extends Event {
+	@Label("Job Id")
+	public long jobId = -1;
+
+	@Label("First Task")
+	public long task = -1;
+
+	@Label("Task Count")
+	public int taskCount;
+
+	@Label("Response Code")
+	public int code;
+
+	@Label("Content Size")
+	@DataAmount
+	public int bytes;
+
+	@Label("Come Back In")
+	@Timespan(Timespan.SECONDS)
+	public long comeBack = -1;
+}
@@ -0,0 +1,25 @@
+package upem.jarret.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded by the client for every worker it loads from a jar
+ */
+@Name("upem.jarret.WorkerLoad")
+@Label("Worker Load")
+@Category({ "JarRet", "Client" })
+@Description("Download and instantiation of a worker")
+public class WorkerLoadEvent extends Event {
+	@Label("Worker URL")
+	public String workerURL;
+
+	@Label("Worker Class")
+	public String workerClassName;
+
+	@Label("Failed")
+	public boolean failed;
+}
@@ -3,16 +3,36 @@ package upem.jarret.http;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
 
+/**
+ * Reads HTTP responses, or requests, from a blocking SocketChannel through a buffer. The bytes
+ * read past a response stay in the buffer for the next one, so a client keeps the same reader, and
+ * the same buffer, for every request on a persistent connection. Lines and headers are found by
+ * scanning the buffer in place, the socket is only read when it does not hold them yet.
+ */
 public class HTTPReader {
 
+    /**
+     * Size of the blocks holding the content of a chunked response, at least
+     */
+    private static final int CHUNK_BLOCK_SIZE = 64 * 1024;
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] CRLFCRLF = { '\r', '\n', '\r', '\n' };
+
     private final SocketChannel sc;
     private final ByteBuffer buff;
+    private final List<ByteBuffer> chunkBlocks = new ArrayList<>();
 
+    /**
+     * @param sc
+     * @param buff the buffer in write-mode, a direct one to save the copy of every read; the bytes
+     *             it holds are the next ones of the connection
+     */
     public HTTPReader(SocketChannel sc, ByteBuffer buff) {
         this.sc = sc;
         this.buff = buff;
@@ -22,58 +42,132 @@ public class HTTPReader {
      * @return The ASCII string terminated by CRLF
      * <p>
      * The method assume that buff is in write mode and leave it in write-mode
-     * The method never reads from the socket as long as the buffer is not empty
+     * The method never reads from the socket as long as the buffer holds a whole line
      * @throws IOException HTTPException if the connection is closed before a line could be read
      */
     public String readLineCRLF() throws IOException {
-        buff.flip();
-        
-        boolean lastChar = false;
-        StringBuilder line = new StringBuilder();
+        StringBuilder start = null;
         do {
-            if(!buff.hasRemaining()) {
-                buff.clear();
-                if(sc.read(buff) == -1) {
-                    throw new HTTPException();
-                }
-                buff.flip();
-            }
-            char b = (char)buff.get();
-            if(b == '\n' && lastChar) {
-                buff.compact();
-                return line.toString();
+            int end = indexOf(buff, CRLF, 0);
+            if(end != -1) {
+                String line = decode(buff, 0, end);
+                consume(end + CRLF.length);
+                return start == null ? line : start.append(line).toString();
             }
-            if(b == '\r') {
-                lastChar = true;
+            // the line is longer than the buffer, or not read yet; a CR ending the buffer may start the CRLF
+            int length = buff.position();
+            if(length > 0 && buff.get(length - 1) == '\r') {
+                length--;
             }
-            else {
-                if(lastChar) {
-                    line.append("\r");
+            if(length > 0 && !buff.hasRemaining()) {
+                if(start == null) {
+                    start = new StringBuilder();
                 }
-                lastChar = false;
-                line.append(b);
+                start.append(decode(buff, 0, length));
+                consume(length);
+            }
+            if(sc.read(buff) == -1) {
+                throw new HTTPException();
             }
         } while(true);
     }
 
+    /**
+     * @return the index of the first occurrence of bytes in the bytes of the buffer in write-mode,
+     *         at from or after, -1 if there is none
+     */
+    private static int indexOf(ByteBuffer buffer, byte[] bytes, int from) {
+        int last = buffer.position() - bytes.length;
+        for(int i = from; i <= last; i++) {
+            if(buffer.get(i) == bytes[0]) {
+                int j = 1;
+                while(j < bytes.length && buffer.get(i + j) == bytes[j]) {
+                    j++;
+                }
+                if(j == bytes.length) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the ISO-8859-1 string of the bytes between from and to of the buffer, with a single copy
+     */
+    private static String decode(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Drops the first count bytes of the buffer in write-mode
+     */
+    private void consume(int count) {
+        buff.flip();
+        buff.position(count);
+        buff.compact();
+    }
+
+    /**
+     * Blocks until some bytes not read yet are in the buffer
+     * @throws IOException HTTPException if the connection is closed before
+     */
+    public void waitForBytes() throws IOException {
+        if(buff.position() == 0 && sc.read(buff) == -1) {
+            throw new HTTPException();
+        }
+    }
+
     /**
      * @return The HTTPHeader object corresponding to the header read
      * @throws IOException HTTPException if the connection is closed before a header could be read
      *                     if the header is ill-formed
      */
     public HTTPHeader readHeader() throws IOException {
+        int scanned = 0;
+        int end;
+        while((end = indexOf(buff, CRLFCRLF, scanned)) == -1) {
+            if(!buff.hasRemaining()) {
+                // the header is longer than the buffer
+                return readHeaderLines();
+            }
+            scanned = Math.max(0, buff.position() - CRLFCRLF.length + 1);
+            if(sc.read(buff) == -1) {
+                throw new HTTPException();
+            }
+        }
+        String[] header = decode(buff, 0, end).split("\r\n");
+        consume(end + CRLFCRLF.length);
+        HashMap<String, String> lines = new HashMap<>();
+        for(int i = 1; i < header.length; i++) {
+            addField(lines, header[i]);
+        }
+        return HTTPHeader.create(header[0], lines);
+    }
+
+    /**
+     * Reads a header one line at a time, when it does not fit in the buffer
+     */
+    private HTTPHeader readHeaderLines() throws IOException {
         String firstLine = readLineCRLF();
         HashMap<String, String> lines = new HashMap<>();
         String line;
         while(!(line = readLineCRLF()).equals("")) {
-            String[] token = line.split(": ");
-            String key = token[0];
-            String value = token[1];
-            lines.merge(key, value, (v1,v2) -> v1+"; "+v2);
+            addField(lines, line);
         }
         return HTTPHeader.create(firstLine, lines);
     }
 
+    private static void addField(HashMap<String, String> lines, String line) throws HTTPException {
+        int colon = line.indexOf(':');
+        if(colon == -1) {
+            throw new HTTPException("Invalid header field: " + line);
+        }
+        lines.merge(line.substring(0, colon), line.substring(colon + 1).trim(), (v1,v2) -> v1+"; "+v2);
+    }
+
     /**
      * @param size
      * @return a ByteBuffer in write-mode containing size bytes read on the socket
@@ -81,11 +175,30 @@ public class HTTPReader {
      */
     public ByteBuffer readBytes(int size) throws IOException {
         ByteBuffer bb = ByteBuffer.allocate(size);
-        buff.flip();
-        bb.put(buff);
-        readFully(bb, sc);
+        if(!readInto(bb, size)) {
+            throw new HTTPException("Connection closed before " + size + " bytes could be read");
+        }
         return bb;
     }
+
+    /**
+     * Puts the next count bytes of the connection in dest: the ones in the buffer, then the others
+     * straight from the socket
+     * @return false if the connection is closed before
+     */
+    private boolean readInto(ByteBuffer dest, int count) throws IOException {
+        int destLimit = dest.limit();
+        dest.limit(dest.position() + count);
+        buff.flip();
+        int limit = buff.limit();
+        buff.limit(buff.position() + Math.min(count, buff.remaining()));
+        dest.put(buff);
+        buff.limit(limit);
+        buff.compact();
+        boolean read = !dest.hasRemaining() || readFully(dest, sc);
+        dest.limit(destLimit);
+        return read;
+    }
     
     static boolean readFully(ByteBuffer bb, SocketChannel sc) throws IOException {
         while(sc.read(bb) != -1) {
@@ -97,26 +210,98 @@ public class HTTPReader {
     }
     
     /**
-     * @return a ByteBuffer in write-mode containing a content read in chunks mode
+     * Receives the bytes of a content read in chunks mode as they arrive
+     */
+    @FunctionalInterface
+    public interface ChunkConsumer {
+        /**
+         * @param bytes a buffer in read-mode, only valid during the call
+         * @throws IOException
+         */
+        void accept(ByteBuffer bytes) throws IOException;
+    }
+
+    /**
+     * Reads a content in chunks mode and hands its bytes to the consumer without holding them,
+     * at most the capacity of the buffer of the reader at a time
+     * @param consumer
+     * @return the length of the content
      * @throws IOException HTTPException if the connection is closed before the end of the chunks
      *                     if chunks are ill-formed
      */
-
-    public ByteBuffer readChunks() throws IOException {
-        int totalSize = 0;
-        int size;
-        List<ByteBuffer> buffers = new ArrayList<>();
-        while((size = Integer.parseInt(readLineCRLF(), 16)) != 0) {
+    public long readChunks(ChunkConsumer consumer) throws IOException {
+        long totalSize = 0;
+        long size;
+        while((size = chunkSize(readLineCRLF())) != 0) {
             totalSize += size;
-            ByteBuffer bb = readBytes(size);
-            bb.flip();
-            buffers.add(bb);
+            while(size > 0) {
+                buff.flip();
+                if(!buff.hasRemaining()) {
+                    buff.clear();
+                    if(sc.read(buff) == -1) {
+                        throw new HTTPException("Connection closed inside a chunk");
+                    }
+                    continue;
+                }
+                int limit = buff.limit();
+                int count = (int)Math.min(size, buff.remaining());
+                buff.limit(buff.position() + count);
+                consumer.accept(buff.slice());
+                buff.position(buff.limit()).limit(limit);
+                buff.compact();
+                size -= count;
+            }
+            readLineCRLF();
+        }
+        while(!readLineCRLF().equals("")) {/** skip the trailers **/}
+        return totalSize;
+    }
+
+    private static long chunkSize(String line) throws HTTPException {
+        int extension = line.indexOf(';');
+        try {
+            return Long.parseLong((extension == -1 ? line : line.substring(0, extension)).trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new HTTPException("Invalid chunk size: " + line);
+        }
+    }
+
+    /**
+     * Reads a content in chunks mode into direct blocks of CHUNK_BLOCK_SIZE bytes, the bytes of
+     * consecutive chunks following each other in a block. Each byte is copied once, from the buffer
+     * of the reader or straight from the socket for the bytes of a chunk not read yet. The blocks
+     * are kept by the reader and reused by the next call, whatever the chunk sizes sent.
+     * @return the blocks in read-mode, which form the content once gathered, by a
+     *         GatheringByteChannel for instance; they are valid until the next call
+     * @throws IOException HTTPException if the connection is closed before the end of the chunks
+     *                     if chunks are ill-formed
+     */
+    public ByteBuffer[] readChunks() throws IOException {
+        int blocks = 0;
+        ByteBuffer block = null;
+        long size;
+        while((size = chunkSize(readLineCRLF())) != 0) {
+            while(size > 0) {
+                if(block == null || !block.hasRemaining()) {
+                    if(blocks == chunkBlocks.size()) {
+                        chunkBlocks.add(ByteBuffer.allocateDirect(CHUNK_BLOCK_SIZE));
+                    }
+                    block = chunkBlocks.get(blocks++);
+                    block.clear();
+                }
+                int count = (int)Math.min(size, block.remaining());
+                if(!readInto(block, count)) {
+                    throw new HTTPException("Connection closed inside a chunk");
+                }
+                size -= count;
+            }
             readLineCRLF();
         }
-        ByteBuffer total = ByteBuffer.allocate(totalSize);
-        for(ByteBuffer bb: buffers) {
-            total.put(bb);
+        while(!readLineCRLF().equals("")) {/** skip the trailers **/}
+        ByteBuffer[] view = new ByteBuffer[blocks];
+        for(int i = 0; i < view.length; i++) {
+            view[i] = chunkBlocks.get(i).flip();
         }
-        return total;
+        return view;
     }
 }
@@ -65,13 +65,19 @@ public class HTTPReaderServer extends HTTPReader {
 			currentAnswer = ByteBuffer.allocate(size);
 		}
 		in.flip();
+		int limit = in.limit();
+		in.limit(in.position() + Math.min(currentAnswer.remaining(), in.remaining()));
 		currentAnswer.put(in);
+		in.limit(limit);
 		if(currentAnswer.position() != currentAnswer.capacity()) {
 			in.clear();
 			throw new IllegalStateException();
 		}
-		
-		return currentAnswer;
+		in.compact();
+		// the next request gets a new buffer, even if it has the same size
+		ByteBuffer answer = currentAnswer;
+		currentAnswer = null;
+		return answer;
 	}
 
 }
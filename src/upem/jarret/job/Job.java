@@ -1,48 +1,92 @@
 package upem.jarret.job;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
 
+import upem.jarret.reducer.JobResult;
+import upem.jarret.reducer.Reducer;
+import upem.jarret.reducer.Reducers;
+
+import com.fasterxml.jackson.core.JsonLocation;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 
 public class Job {
-	private final String jobId;
-	private final String jobTaskNumber;
+	private final long jobId;
+	private final long jobTaskNumber;
 	private final String jobDescription;
-	private final String jobPriority;
+	private int jobPriority;
 	private final String workerVersion;
 	private final String workerURL;
 	private final String workerClassName;
-	private int currentTask;
-	private boolean isFinished = false;
+	private long currentTask;
+	private long endTask;
+	private long sliceStart;
+	private long sliceEnd;
+	private boolean sliced;
+	// the ranges owned beyond [sliceStart, endTask): stolen from the other shards, or offered to them and not taken yet
+	private final ArrayList<long[]> ownedRanges = new ArrayList<>();
+	private final TreeMap<Long, Lease> leases = new TreeMap<>();
+	private final PriorityQueue<Lease> leaseDeadlines = new PriorityQueue<>(
+	        Comparator.comparingLong(Lease::getDeadline));
+	private final ArrayDeque<long[]> retries = new ArrayDeque<>();
+	private final JobResult result;
+	// the complete leases whose speculated tasks may still be answered a second time, until their deadline
+	private final TreeMap<Long, Lease> speculatedLeases = new TreeMap<>();
+	private long speculativeTasks;
+	private long duplicatedAnswers;
+	private long tailSavedMillis;
+	private long dispatchedTasks;
+	private long outstandingTasks;
+	// moving average of the answers per second started from 0, and the weight of its samples
+	private double answerRate;
+	private double answerRateWeight;
+	private long rateSampledAt = -1;
+	private long rateSampledAnswers;
 
-	private Job(String jobId, String jobTaskNumber, String jobDescription, String jobPriority, String workerVersion,
-	        String workerURL, String workerClassName, int currentTask) {
-		this.jobId = Objects.requireNonNull(jobId);
-		this.jobTaskNumber = Objects.requireNonNull(jobTaskNumber);
+	private Job(long jobId, long jobTaskNumber, String jobDescription, int jobPriority, String workerVersion,
+	        String workerURL, String workerClassName, long currentTask, List<Reducer> reducers) {
+		if (jobTaskNumber < 0) {
+			throw new IllegalArgumentException("JobTaskNumber must not be negative: " + jobTaskNumber);
+		}
+		if (jobPriority < 0) {
+			throw new IllegalArgumentException("JobPriority must not be negative: " + jobPriority);
+		}
+		this.jobId = jobId;
+		this.jobTaskNumber = jobTaskNumber;
 		this.jobDescription = Objects.requireNonNull(jobDescription);
-		this.jobPriority = Objects.requireNonNull(jobPriority);
+		this.jobPriority = jobPriority;
 		this.workerVersion = Objects.requireNonNull(workerVersion);
 		this.workerURL = Objects.requireNonNull(workerURL);
 		this.workerClassName = Objects.requireNonNull(workerClassName);
-		this.currentTask = Objects.requireNonNull(currentTask);
+		this.currentTask = currentTask;
+		this.endTask = jobTaskNumber;
+		this.sliceEnd = jobTaskNumber;
+		this.result = new JobResult(jobId, reducers);
 	}
 
 	/**
 	 * Functions used by the JSON parser
 	 */
 	
-	public int getCurrentTask() {
+	public long getCurrentTask() {
 		return currentTask;
 	}
 
-	public String getJobId() {
+	public long getJobId() {
 		return jobId;
 	}
 
-	public String getJobTaskNumber() {
+	public long getJobTaskNumber() {
 		return jobTaskNumber;
 	}
 
@@ -50,10 +94,17 @@ public class Job {
 		return jobDescription;
 	}
 
-	public String getJobPriority() {
+	public int getJobPriority() {
 		return jobPriority;
 	}
 
+	public void setJobPriority(int jobPriority) {
+		if (jobPriority < 0) {
+			throw new IllegalArgumentException("JobPriority must not be negative: " + jobPriority);
+		}
+		this.jobPriority = jobPriority;
+	}
+
 	public String getWorkerVersion() {
 		return workerVersion;
 	}
@@ -65,21 +116,369 @@ public class Job {
 	public String getWorkerClassName() {
 		return workerClassName;
 	}
+
+	/**
+	 * Returns the running result of the job, folded with its answers
+	 * 
+	 * @return
+	 */
+	public JobResult getResult() {
+		return result;
+	}
 	
+	/**
+	 * Returns true when every task was dispatched and answered
+	 * 
+	 * @return
+	 */
 	public boolean isFinished() {
-	    return isFinished;
+	    return !hasTask() && leases.isEmpty();
     }
 
 	/**
-	 * Parses a json object to get the job
+	 * Returns true if a task can be dispatched now, either a new one or one from an expired lease
+	 * 
+	 * @return
+	 */
+	public boolean hasTask() {
+		skipCompleted();
+		return !retries.isEmpty() || currentTask < endTask;
+	}
+
+	/**
+	 * Restricts the job to the slice of its tasks owned by a shard. Must be called before any task
+	 * is dispatched.
+	 * 
+	 * @param index the index of the shard
+	 * @param count the number of shards
+	 */
+	public void setSlice(int index, int count) {
+		if (count < 1 || index < 0 || index >= count) {
+			throw new IllegalArgumentException("Invalid shard " + index + " of " + count);
+		}
+		currentTask = jobTaskNumber * index / count;
+		endTask = jobTaskNumber * (index + 1) / count;
+		sliceStart = currentTask;
+		sliceEnd = endTask;
+		sliced = true;
+		saveOwnedRanges();
+	}
+
+	/**
+	 * Returns the ranges [from, to) of tasks this shard owns: the part of its slice it did not give
+	 * away first, then the ranges stolen from the other shards and the ranges offered to them and
+	 * not taken yet
+	 * 
+	 * @return
+	 */
+	public List<long[]> getOwnedRanges() {
+		List<long[]> ranges = new ArrayList<>();
+		ranges.add(new long[] { sliceStart, endTask });
+		for (long[] range : ownedRanges) {
+			ranges.add(range.clone());
+		}
+		return ranges;
+	}
+
+	/**
+	 * Restores the ranges saved in the checkpoint of a shard, in the order of
+	 * {@link #getOwnedRanges}, instead of the slice set by setSlice. The ranges beyond the slice
+	 * are dispatched before the new tasks.
+	 * 
+	 * @param ranges
+	 */
+	public void restoreOwnedRanges(List<long[]> ranges) {
+		if (!sliced || ranges.isEmpty()) {
+			throw new IllegalArgumentException("No slice to restore for job " + jobId);
+		}
+		for (long[] range : ranges) {
+			if (range[0] < 0 || range[1] > jobTaskNumber || range[0] > range[1]) {
+				throw new IllegalArgumentException("Invalid range [" + range[0] + ", " + range[1] + ") of job " + jobId);
+			}
+		}
+		sliceStart = ranges.get(0)[0];
+		currentTask = sliceStart;
+		endTask = ranges.get(0)[1];
+		ownedRanges.clear();
+		retries.clear();
+		for (long[] range : ranges.subList(1, ranges.size())) {
+			ownedRanges.add(range.clone());
+			if (range[0] < range[1]) {
+				retries.add(new long[] { range[0], range[1] - range[0] });
+			}
+		}
+		saveOwnedRanges();
+	}
+
+	/**
+	 * Records a range of tasks given by another shard as owned by this one, so that it is saved
+	 * with the next checkpoint. It is dispatched once added with addRange.
+	 * 
+	 * @param from
+	 * @param to exclusive
+	 */
+	public void own(long from, long to) {
+		if (from < 0 || to > jobTaskNumber || from >= to) {
+			throw new IllegalArgumentException("Invalid range [" + from + ", " + to + ") of job " + jobId);
+		}
+		ownedRanges.add(new long[] { from, to });
+		saveOwnedRanges();
+	}
+
+	/**
+	 * Forgets a range returned by split or recorded by own, once another shard owns it
+	 * 
+	 * @param from
+	 * @param to exclusive
+	 * @return false if the range was not owned
+	 */
+	public boolean disown(long from, long to) {
+		for (int i = 0; i < ownedRanges.size(); i++) {
+			long[] range = ownedRanges.get(i);
+			if (range[0] == from && range[1] == to) {
+				ownedRanges.remove(i);
+				saveOwnedRanges();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Tells whether the tasks [from, to) are all owned by this shard, which owns every task of the
+	 * job if it is not sharded
+	 * 
+	 * @param from
+	 * @param to exclusive
+	 * @return
+	 */
+	public boolean owns(long from, long to) {
+		if (from < 0 || to > jobTaskNumber || from > to) {
+			return false;
+		}
+		// the owned ranges may be adjacent, as a slice and the offer split from it
+		long next = from;
+		boolean extended = true;
+		while (next < to && extended) {
+			extended = false;
+			if (sliceStart <= next && next < endTask) {
+				next = endTask;
+				extended = true;
+			}
+			for (long[] range : ownedRanges) {
+				if (range[0] <= next && next < range[1]) {
+					next = range[1];
+					extended = true;
+				}
+			}
+		}
+		return next >= to;
+	}
+
+	/**
+	 * Hands the owned ranges to the result, saved with its checkpoint
+	 */
+	private void saveOwnedRanges() {
+		if (sliced) {
+			result.setOwnedRanges(getOwnedRanges());
+		}
+	}
+
+	/**
+	 * Returns the first task of the slice of this shard, 0 if the job is not sharded
+	 * 
+	 * @return
+	 */
+	public long getSliceStart() {
+		return sliceStart;
+	}
+
+	/**
+	 * Returns the end of the slice of this shard, exclusive
+	 * 
+	 * @return
+	 */
+	public long getSliceEnd() {
+		return sliceEnd;
+	}
+
+	/**
+	 * Returns the number of tasks which can be dispatched now, not counting the outstanding leases
+	 * 
+	 * @return
+	 */
+	public long getAvailableTasks() {
+		skipCompleted();
+		long available = endTask - currentTask;
+		for (long[] retry : retries) {
+			available += retry[1];
+		}
+		return available;
+	}
+
+	/**
+	 * Takes the second half of the tasks not dispatched yet out of the dispatch, to offer it to
+	 * another shard. The range stays owned by this shard until disown is called once the other shard
+	 * took it, and goes back to the dispatch with addRange if it does not.
+	 * 
+	 * @param min the minimum number of tasks to give away
+	 * @return the range [from, to) offered, or null if less than 2 * min tasks are left
+	 */
+	public long[] split(long min) {
+		skipCompleted();
+		long remaining = endTask - currentTask;
+		if (remaining < 2 * min) {
+			return null;
+		}
+		long[] range = { currentTask + remaining / 2, endTask };
+		endTask = range[0];
+		ownedRanges.add(range.clone());
+		saveOwnedRanges();
+		return range;
+	}
+
+	/**
+	 * Adds a range of owned tasks to the dispatch, before the new tasks: a range given by another
+	 * shard, or an offer it did not take
+	 * 
+	 * @param from
+	 * @param to exclusive
+	 */
+	public void addRange(long from, long to) {
+		if (from < 0 || to > jobTaskNumber || from >= to) {
+			throw new IllegalArgumentException("Invalid range [" + from + ", " + to + ") of job " + jobId);
+		}
+		retries.add(new long[] { from, to - from });
+	}
+
+	/**
+	 * Drops the tasks which already have an answer from the head of the dispatch queue: the tasks
+	 * restored from a checkpoint or recovered from the answers, and the late answers of expired leases
+	 */
+	private void skipCompleted() {
+		TaskSet done = result.getFoldedTasks();
+		long[] retry;
+		while ((retry = retries.peek()) != null) {
+			long next = Math.min(done.nextAbsent(retry[0]), retry[0] + retry[1]);
+			retry[1] -= next - retry[0];
+			retry[0] = next;
+			if (retry[1] > 0) {
+				break;
+			}
+			retries.poll();
+		}
+		if (currentTask < endTask) {
+			currentTask = Math.min(done.nextAbsent(currentTask), endTask);
+		}
+	}
+
+	/**
+	 * Returns the number of leases waiting for answers
+	 * 
+	 * @return
+	 */
+	public int getOutstandingLeases() {
+		return leases.size();
+	}
+
+	/**
+	 * Returns the number of leased tasks waiting for an answer
+	 * 
+	 * @return
+	 */
+	public long getOutstandingTasks() {
+		return outstandingTasks;
+	}
+
+	/**
+	 * Returns the number of tasks dispatched in leases, counting the tasks dispatched again after
+	 * their lease expired but not the speculative copies
+	 * 
+	 * @return
+	 */
+	public long getDispatchedTasks() {
+		return dispatchedTasks;
+	}
+
+	/**
+	 * Returns the number of tasks which have an answer
+	 * 
+	 * @return
+	 */
+	public long getAnsweredTasks() {
+		return result.getFoldedTasks().size();
+	}
+
+	/**
+	 * Updates the exponentially weighted moving average of the answer rate with the answers
+	 * received since the previous sample. The weight of a sample grows with the time it covers,
+	 * so that the average forgets about windowMillis whatever the sampling period. The average
+	 * starts from 0 and is divided by the weight of the samples taken, which keeps the first
+	 * estimates from being biased towards 0.
+	 * 
+	 * @param now the current time in milliseconds
+	 * @param windowMillis the time constant of the average
+	 */
+	public void sampleAnswerRate(long now, long windowMillis) {
+		long answered = getAnsweredTasks();
+		if (rateSampledAt >= 0 && now > rateSampledAt) {
+			double sample = (answered - rateSampledAnswers) * 1000.0 / (now - rateSampledAt);
+			double alpha = 1 - Math.exp(-(double) (now - rateSampledAt) / windowMillis);
+			answerRate = alpha * sample + (1 - alpha) * answerRate;
+			answerRateWeight = alpha + (1 - alpha) * answerRateWeight;
+		}
+		rateSampledAt = now;
+		rateSampledAnswers = answered;
+	}
+
+	/**
+	 * Returns the average number of answers received per second
+	 * 
+	 * @return the rate, or -1 if it was not sampled yet
+	 */
+	public double getAnswerRate() {
+		return answerRateWeight == 0 ? -1 : answerRate / answerRateWeight;
+	}
+
+	/**
+	 * Returns the number of tasks handed out a second time while their lease was outstanding
+	 * 
+	 * @return
+	 */
+	public long getSpeculativeTasks() {
+		return speculativeTasks;
+	}
+
+	/**
+	 * Returns the number of speculated tasks for which both copies were answered
+	 * 
+	 * @return
+	 */
+	public long getDuplicatedAnswers() {
+		return duplicatedAnswers;
+	}
+
+	/**
+	 * Returns the sum, over the speculated tasks answered twice, of the time between the first
+	 * and the second answer: the time the job would have waited for the slower copy
+	 * 
+	 * @return
+	 */
+	public long getTailSavedMillis() {
+		return tailSavedMillis;
+	}
+
+	/**
+	 * Parses a json object to get the job. Numeric fields are validated here, once.
 	 * 
 	 * @param jp
 	 * @return
-	 * @throws JsonParseException
+	 * @throws JsonParseException if a field is missing or is not a valid number
 	 * @throws IOException
 	 */
 	public static Job parseJSON(JsonParser jp) throws JsonParseException, IOException {
-	
+		JsonLocation location = jp.getCurrentLocation();
+
 		String jobId = null;
 		String jobTaskNumber = null;
 		String jobDescription = null;
@@ -87,6 +486,7 @@ public class Job {
 		String workerVersion = null;
 		String workerURL = null;
 		String workerClassName = null;
+		List<Reducer> reducers = Collections.emptyList();
 
 		while (jp.nextToken() != JsonToken.END_OBJECT) {
 			String fieldName = jp.getCurrentName();
@@ -113,12 +513,25 @@ public class Job {
 			case "WorkerClassName":
 				workerClassName = jp.getText();
 				break;
+			case "Reducers":
+				reducers = Reducers.parseJSON(jp);
+				break;
 			default:
 				System.err.println("Unknown Field");
+				jp.skipChildren();
 			}
 		}
 
-		return new Job(jobId, jobTaskNumber, jobDescription, jobPriority, workerVersion, workerURL, workerClassName, 0);
+		if (jobId == null || jobTaskNumber == null || jobDescription == null || jobPriority == null
+		        || workerVersion == null || workerURL == null || workerClassName == null) {
+			throw new JsonParseException("Incomplete job", location);
+		}
+		try {
+			return new Job(Long.parseLong(jobId.trim()), Long.parseLong(jobTaskNumber.trim()), jobDescription,
+			        Integer.parseInt(jobPriority.trim()), workerVersion, workerURL, workerClassName, 0, reducers);
+		} catch (IllegalArgumentException e) {
+			throw new JsonParseException("Invalid job " + jobId + ": " + e.getMessage(), location);
+		}
 	}
 
 	/**
@@ -128,20 +541,181 @@ public class Job {
 	 * @throws IOException
 	 */
 	public Task nextTask() throws IOException {
-		Task task = new Task(jobId, workerVersion, workerURL, workerClassName, currentTask);
-		updateCurrentTask();
-		return task;
+		return nextTask(1, Long.MAX_VALUE);
 	}
-	
+
 	/**
-	 * Increments currentTask or set isFinished to true if all the tasks are done
+	 * Creates a task leasing at most max consecutive tasks of the job until deadline.
+	 * Tasks of expired leases are handed out again before new ones, and tasks which already
+	 * have an answer are skipped: a lease stops before the first of them.
+	 * 
+	 * @param max the maximum number of tasks to lease
+	 * @param deadline the time in milliseconds after which the unanswered tasks are dispatched again
+	 * @return
+	 * @throws IOException
 	 */
-	private void updateCurrentTask() {
-	    currentTask++;
-	    if(currentTask > Integer.parseInt(jobTaskNumber)) {
-	    	isFinished = true;
-	    }
-    }
+	public Task nextTask(int max, long deadline) throws IOException {
+		if (max < 1) {
+			throw new IllegalArgumentException("max must be positive: " + max);
+		}
+		skipCompleted();
+		TaskSet done = result.getFoldedTasks();
+		long from;
+		int count;
+		long[] retry = retries.peek();
+		if (retry != null) {
+			from = retry[0];
+			count = (int) (done.nextPresent(from, from + Math.min(max, retry[1])) - from);
+			if (count == retry[1]) {
+				retries.poll();
+			} else {
+				retry[0] += count;
+				retry[1] -= count;
+			}
+		} else {
+			if (currentTask >= endTask) {
+				throw new IllegalStateException("No task available for job " + jobId);
+			}
+			from = currentTask;
+			count = (int) (done.nextPresent(from, from + Math.min(max, endTask - currentTask)) - from);
+			currentTask += count;
+		}
+		Lease lease = new Lease(from, count, deadline);
+		leases.put(from, lease);
+		leaseDeadlines.add(lease);
+		dispatchedTasks += count;
+		outstandingTasks += count;
+		return new Task(jobId, workerVersion, workerURL, workerClassName, from, count);
+	}
+
+	/**
+	 * Tests if some outstanding tasks were not handed out speculatively yet, while the job has
+	 * no other task to dispatch
+	 * 
+	 * @return
+	 */
+	public boolean canSpeculate() {
+		if (hasTask()) {
+			return false;
+		}
+		for (Lease lease : leases.values()) {
+			if (lease.canSpeculate()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Hands out again the oldest outstanding tasks of the job, for an idle client in the endgame.
+	 * The first answer of a task wins. No new lease is created: if the original lease expires,
+	 * its tasks are dispatched again as usual.
+	 * 
+	 * @param max the maximum number of tasks
+	 * @return the task or null if every outstanding task was already handed out twice
+	 */
+	public Task nextSpeculativeTask(int max) {
+		if (max < 1) {
+			throw new IllegalArgumentException("max must be positive: " + max);
+		}
+		Lease oldest = null;
+		for (Lease lease : leases.values()) {
+			if (lease.canSpeculate() && (oldest == null || lease.getDeadline() < oldest.getDeadline())) {
+				oldest = lease;
+			}
+		}
+		if (oldest == null || hasTask()) {
+			return null;
+		}
+		int[] run = oldest.speculate(max);
+		long from = oldest.getFrom() + run[0];
+		int count = run[1] - run[0];
+		speculativeTasks += count;
+		return new Task(jobId, workerVersion, workerURL, workerClassName, from, count);
+	}
+
+	/**
+	 * Records the answer of a task
+	 * 
+	 * @param task
+	 * @param now the current time in milliseconds
+	 * @return true if the task was leased and not answered yet
+	 */
+	public boolean acknowledge(long task, long now) {
+		Lease lease = find(leases, task);
+		if (lease == null) {
+			lease = find(speculatedLeases, task);
+			if (lease == null) {
+				return false;
+			}
+		}
+		if (!lease.answer(task, now)) {
+			long firstAnswer = lease.takeFirstAnswer(task);
+			if (firstAnswer != -1) {
+				duplicatedAnswers++;
+				tailSavedMillis += now - firstAnswer;
+				if (lease.isComplete() && !lease.hasSpeculatedTasks()) {
+					speculatedLeases.remove(lease.getFrom());
+				}
+			}
+			return false;
+		}
+		outstandingTasks--;
+		if (lease.isComplete()) {
+			leases.remove(lease.getFrom());
+			if (lease.hasSpeculatedTasks()) {
+				speculatedLeases.put(lease.getFrom(), lease);
+			}
+		}
+		return true;
+	}
+
+	private static Lease find(TreeMap<Long, Lease> leases, long task) {
+		Map.Entry<Long, Lease> entry = leases.floorEntry(task);
+		if (entry == null || !entry.getValue().contains(task)) {
+			return null;
+		}
+		return entry.getValue();
+	}
+
+	/**
+	 * Returns the earliest deadline of the leases of the job, complete or not
+	 * 
+	 * @return the time in milliseconds, or Long.MAX_VALUE if there is none
+	 */
+	public long getNextLeaseDeadline() {
+		Lease lease = leaseDeadlines.peek();
+		return lease == null ? Long.MAX_VALUE : lease.getDeadline();
+	}
+
+	/**
+	 * Puts the unanswered tasks of the leases whose deadline is passed back in the dispatch queue
+	 * 
+	 * @param now the current time in milliseconds
+	 * @return the number of tasks to dispatch again
+	 */
+	public int expireLeases(long now) {
+		int expired = 0;
+		Lease lease;
+		while ((lease = leaseDeadlines.peek()) != null && lease.getDeadline() <= now) {
+			leaseDeadlines.poll();
+			if (lease.isComplete()) {
+				// the speculative copies not answered by now are not waited for anymore
+				speculatedLeases.remove(lease.getFrom(), lease);
+				continue;
+			}
+			leases.remove(lease.getFrom());
+			int start = lease.nextUnanswered(0);
+			while (start != -1) {
+				int end = lease.nextAnswered(start);
+				retries.add(new long[] { lease.getFrom() + start, end - start });
+				expired += end - start;
+				outstandingTasks -= end - start;
+				start = end < lease.getCount() ? lease.nextUnanswered(end) : -1;
+			}
+		}
+		return expired;
+	}
 
 	@Override
     public String toString() {
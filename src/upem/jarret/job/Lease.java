@@ -0,0 +1,162 @@
+package upem.jarret.job;
+
+import java.util.BitSet;
+
+/**
+ * A range of consecutive tasks handed out to a client, which must be answered before its deadline
+ */
+public class Lease {
+	private final long from;
+	private final int count;
+	private final long deadline;
+	private final BitSet answered;
+	private int remaining;
+	private int speculated;
+	// the tasks handed out twice whose second answer is still expected, and the time of their
+	// first answer, allocated by the first speculation
+	private BitSet speculatedTasks;
+	private long[] firstAnswers;
+
+	Lease(long from, int count, long deadline) {
+		this.from = from;
+		this.count = count;
+		this.deadline = deadline;
+		this.answered = new BitSet(count);
+		this.remaining = count;
+	}
+
+	public long getFrom() {
+		return from;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Tests if the task belongs to this lease
+	 * 
+	 * @param task
+	 * @return
+	 */
+	public boolean contains(long task) {
+		return task >= from && task - from < count;
+	}
+
+	/**
+	 * Marks the task as answered
+	 * 
+	 * @param task
+	 * @param now the current time in milliseconds
+	 * @return true if it is the first answer for this task
+	 */
+	boolean answer(long task, long now) {
+		int index = (int) (task - from);
+		if (answered.get(index)) {
+			return false;
+		}
+		answered.set(index);
+		remaining--;
+		if (speculatedTasks != null && speculatedTasks.get(index)) {
+			firstAnswers[index] = now;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the time of the first answer of a task handed out twice, on its second answer. The
+	 * task is then forgotten, so that a third answer is not counted.
+	 * 
+	 * @param task
+	 * @return the time in milliseconds, or -1 if the task was not handed out twice or is not
+	 *         answered yet
+	 */
+	long takeFirstAnswer(long task) {
+		int index = (int) (task - from);
+		if (speculatedTasks == null || !speculatedTasks.get(index) || !answered.get(index)) {
+			return -1;
+		}
+		speculatedTasks.clear(index);
+		return firstAnswers[index];
+	}
+
+	/**
+	 * Tests if the second answer of some tasks handed out twice is still expected
+	 * 
+	 * @return
+	 */
+	boolean hasSpeculatedTasks() {
+		return speculatedTasks != null && !speculatedTasks.isEmpty();
+	}
+
+	/**
+	 * Returns the number of tasks of the lease not answered yet
+	 * 
+	 * @return
+	 */
+	public int getRemaining() {
+		return remaining;
+	}
+
+	/**
+	 * Tests if some unanswered tasks of the lease were not handed out speculatively yet
+	 * 
+	 * @return
+	 */
+	boolean canSpeculate() {
+		return nextUnanswered(speculated) != -1;
+	}
+
+	/**
+	 * Hands out the next run of unanswered tasks not handed out speculatively yet
+	 * 
+	 * @param max the maximum number of tasks of the run
+	 * @return the run [start, end), relative to from
+	 */
+	int[] speculate(int max) {
+		int start = nextUnanswered(speculated);
+		int end = (int) Math.min(nextAnswered(start), (long) start + max);
+		speculated = end;
+		if (speculatedTasks == null) {
+			speculatedTasks = new BitSet(count);
+			firstAnswers = new long[count];
+		}
+		speculatedTasks.set(start, end);
+		return new int[] { start, end };
+	}
+
+	/**
+	 * Returns true if all the tasks of the lease are answered
+	 * 
+	 * @return
+	 */
+	public boolean isComplete() {
+		return remaining == 0;
+	}
+
+	/**
+	 * Returns the index, relative to from, of the next unanswered task at or after index
+	 * 
+	 * @param index
+	 * @return the index or -1 if there is none
+	 */
+	int nextUnanswered(int index) {
+		int next = answered.nextClearBit(index);
+		return next < count ? next : -1;
+	}
+
+	/**
+	 * Returns the index, relative to from, of the next answered task at or after index
+	 * 
+	 * @param index
+	 * @return the index or count if there is none
+	 */
+	int nextAnswered(int index) {
+		int next = answered.nextSetBit(index);
+		return next == -1 ? count : Math.min(next, count);
+	}
+}
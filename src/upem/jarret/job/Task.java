@@ -2,6 +2,7 @@ package upem.jarret.job;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Objects;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
@@ -9,140 +10,186 @@ import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 
-public class Task {
-	private String _JobId;
-	private String _WorkerVersion;
-	private String _WorkerURL;
-	private String _WorkerClassName;
-	private String _Task;
-	private int _ComeBackInSeconds = 300;
-
-	public Task() {}
-	
-	public Task(String jobId, String workerVersion, String workerURL, String workerClassName, int task) {
-		this._JobId = jobId;
-		this._WorkerVersion = workerVersion;
-		this._WorkerURL = workerURL;
-		this._WorkerClassName = workerClassName;
-		this._Task = String.valueOf(task);
-		_ComeBackInSeconds = -1;
+/**
+ * Immutable description of a lease sent to a client: either a range of tasks of a job,
+ * or a delay after which the client should come back
+ */
+public final class Task {
+	private static final JsonFactory jf = new JsonFactory();
+
+	private final long jobId;
+	private final String workerVersion;
+	private final String workerURL;
+	private final String workerClassName;
+	private final long task;
+	private final int taskCount;
+	private final int comeBackInSeconds;
+
+	private Task(long jobId, String workerVersion, String workerURL, String workerClassName, long task,
+	        int taskCount, int comeBackInSeconds) {
+		this.jobId = jobId;
+		this.workerVersion = workerVersion;
+		this.workerURL = workerURL;
+		this.workerClassName = workerClassName;
+		this.task = task;
+		this.taskCount = taskCount;
+		this.comeBackInSeconds = comeBackInSeconds;
+	}
+
+	public Task(long jobId, String workerVersion, String workerURL, String workerClassName, long task) {
+		this(jobId, workerVersion, workerURL, workerClassName, task, 1);
+	}
+
+	public Task(long jobId, String workerVersion, String workerURL, String workerClassName, long task, int taskCount) {
+		this(jobId, Objects.requireNonNull(workerVersion), Objects.requireNonNull(workerURL),
+		        Objects.requireNonNull(workerClassName), task, taskCount, -1);
+		if (task < 0) {
+			throw new IllegalArgumentException("task must not be negative: " + task);
+		}
+		if (taskCount < 1) {
+			throw new IllegalArgumentException("taskCount must be positive: " + taskCount);
+		}
+	}
+
+	/**
+	 * Creates a task telling the client to come back later
+	 *
+	 * @param comeBackInSeconds
+	 * @return
+	 */
+	public static Task comeBack(int comeBackInSeconds) {
+		if (comeBackInSeconds < 0) {
+			throw new IllegalArgumentException("comeBackInSeconds must not be negative: " + comeBackInSeconds);
+		}
+		return new Task(-1, null, null, null, -1, 0, comeBackInSeconds);
 	}
-	
+
 	/**
 	 * Functions used by the JSON parser
 	 */
-	
+
 	public long getJobId() {
-		return Long.parseLong(_JobId);
+		return jobId;
 	}
 
 	public String getWorkerVersion() {
-		return _WorkerVersion;
+		return workerVersion;
 	}
 
 	public String getWorkerURL() {
-		return _WorkerURL;
+		return workerURL;
 	}
 
 	public String getWorkerClassName() {
-		return _WorkerClassName;
+		return workerClassName;
 	}
 
-	public int getTask() {
-		return Integer.parseInt(_Task);
-	}
-
-	public int getComeBackInSeconds() {
-		return _ComeBackInSeconds;
-	}
-
-	public void setJobId(String jobId) {
-		_JobId = jobId;
-	}
-
-	public void setWorkerVersion(String wv) {
-		_WorkerVersion = wv;
-	}
-
-	public void setWorkerURL(String wURL) {
-		_WorkerURL = wURL;
-	}
-
-	public void setWorkerClassName(String wcn) {
-		_WorkerClassName = wcn;
+	public long getTask() {
+		return task;
 	}
 
-	public void setTask(String t) {
-		_Task = t;
+	/**
+	 * Returns the number of consecutive tasks leased, starting at getTask()
+	 *
+	 * @return
+	 */
+	public int getTaskCount() {
+		return taskCount;
 	}
 
-	public void setComeBackInSeconds(int cbis) {
-		_ComeBackInSeconds = cbis;
-	}
-	
-	public boolean checkFull() {
-		return _JobId != null && _WorkerVersion != null && _WorkerClassName != null && _WorkerURL != null && _Task != null;
+	/**
+	 * Returns the delay before asking for a task again, -1 if this is a real task
+	 *
+	 * @return
+	 */
+	public int getComeBackInSeconds() {
+		return comeBackInSeconds;
 	}
 
 	/**
-	 * Parses buffer content with Jackson Streaming API
-	 * 
-	 * @param content JSOn to parse
+	 * Parses buffer content with Jackson Streaming API. Numeric fields are validated here, once.
+	 *
+	 * @param json JSON to parse
 	 * @return task data parsed
 	 * @throws IOException
-	 * @throws JsonParseException
+	 * @throws JsonParseException if a field is unknown, missing or not a valid number
 	 */
 	public static Task parseJSON(String json) throws JsonParseException, IOException {
-		Task task = new Task();
-		JsonFactory jf = new JsonFactory();
-		JsonParser jp = jf.createParser(json);
-		jp.nextToken();
-		while (jp.nextToken() != JsonToken.END_OBJECT) {
-			String fieldname = jp.getCurrentName();
+		String jobId = null;
+		String workerVersion = null;
+		String workerURL = null;
+		String workerClassName = null;
+		String task = null;
+		String taskCount = "1";
+		int comeBackInSeconds = -1;
+
+		try (JsonParser jp = jf.createParser(json)) {
 			jp.nextToken();
-			if ("ComeBackInSeconds".equals(fieldname)) {
-				task.setComeBackInSeconds(jp.getIntValue());
-			} else if ("JobId".equals(fieldname)) {
-				task.setJobId(jp.getText());
-				task.setComeBackInSeconds(-1);
-			} else if ("WorkerVersion".equals(fieldname)) {
-				task.setWorkerVersion(jp.getText());
-			} else if ("WorkerURL".equals(fieldname)) {
-				task.setWorkerURL(jp.getText());
-			} else if ("WorkerClassName".equals(fieldname)) {
-				task.setWorkerClassName(jp.getText());
-			} else if ("Task".equals(fieldname)) {
-				task.setTask(jp.getText());
-			} else {
-				throw new IllegalStateException("Unrecognized field name: " + fieldname);
+			while (jp.nextToken() != JsonToken.END_OBJECT) {
+				String fieldname = jp.getCurrentName();
+				jp.nextToken();
+				if ("ComeBackInSeconds".equals(fieldname)) {
+					comeBackInSeconds = jp.getIntValue();
+				} else if ("JobId".equals(fieldname)) {
+					jobId = jp.getText();
+				} else if ("WorkerVersion".equals(fieldname)) {
+					workerVersion = jp.getText();
+				} else if ("WorkerURL".equals(fieldname)) {
+					workerURL = jp.getText();
+				} else if ("WorkerClassName".equals(fieldname)) {
+					workerClassName = jp.getText();
+				} else if ("Task".equals(fieldname)) {
+					task = jp.getText();
+				} else if ("TaskCount".equals(fieldname)) {
+					taskCount = jp.getText();
+				} else {
+					throw new IllegalStateException("Unrecognized field name: " + fieldname);
+				}
+			}
+
+			if (jobId == null) {
+				return comeBack(comeBackInSeconds < 0 ? 300 : comeBackInSeconds);
+			}
+			if (workerVersion == null || workerURL == null || workerClassName == null || task == null) {
+				throw new JsonParseException("Incomplete task", jp.getCurrentLocation());
+			}
+			try {
+				return new Task(Long.parseLong(jobId), workerVersion, workerURL, workerClassName,
+				        Long.parseLong(task), Integer.parseInt(taskCount));
+			} catch (IllegalArgumentException e) {
+				throw new JsonParseException("Invalid task: " + e.getMessage(), jp.getCurrentLocation());
 			}
 		}
-		jp.close();
-		return task;
 	}
-	
+
 	/**
-	 * Creates a JSOn String 
-	 * 
+	 * Creates a JSON String
+	 *
 	 * @return
 	 * @throws IOException
 	 */
 	public String toJSON() throws IOException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		JsonFactory jf = new JsonFactory();
 		JsonGenerator jg = jf.createGenerator(baos);
 
 		jg.writeStartObject();
 
-		jg.writeStringField("JobId", _JobId);
-		jg.writeStringField("WorkerVersion", _WorkerVersion);
-		jg.writeStringField("WorkerURL", _WorkerURL);
-		jg.writeStringField("WorkerClassName", _WorkerClassName);
-		jg.writeStringField("Task", _Task);
+		if (comeBackInSeconds >= 0) {
+			jg.writeNumberField("ComeBackInSeconds", comeBackInSeconds);
+		} else {
+			jg.writeStringField("JobId", String.valueOf(jobId));
+			jg.writeStringField("WorkerVersion", workerVersion);
+			jg.writeStringField("WorkerURL", workerURL);
+			jg.writeStringField("WorkerClassName", workerClassName);
+			jg.writeStringField("Task", String.valueOf(task));
+			if (taskCount > 1) {
+				jg.writeStringField("TaskCount", String.valueOf(taskCount));
+			}
+		}
 
 		jg.writeEndObject();
 		jg.close();
-		
+
 		return baos.toString();
 	}
 }
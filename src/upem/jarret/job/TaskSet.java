@@ -0,0 +1,171 @@
+package upem.jarret.job;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Set of task numbers, stored as a sparse bitmap of fixed size pages so that jobs with
+ * more than Integer.MAX_VALUE tasks are supported
+ */
+public class TaskSet {
+	private static final int PAGE_BITS = 16;
+	private static final int PAGE_WORDS = 1 << (PAGE_BITS - 6);
+	private static final long PAGE_MASK = (1L << PAGE_BITS) - 1;
+
+	private final HashMap<Long, long[]> pages = new HashMap<>();
+	private long size;
+
+	/**
+	 * Adds a task to the set
+	 * 
+	 * @param task
+	 * @return true if the task was not in the set
+	 */
+	public boolean add(long task) {
+		long[] page = pages.computeIfAbsent(task >>> PAGE_BITS, k -> new long[PAGE_WORDS]);
+		int bit = (int) (task & PAGE_MASK);
+		long mask = 1L << bit;
+		if ((page[bit >>> 6] & mask) != 0) {
+			return false;
+		}
+		page[bit >>> 6] |= mask;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Tests if a task is in the set
+	 * 
+	 * @param task
+	 * @return
+	 */
+	public boolean contains(long task) {
+		long[] page = pages.get(task >>> PAGE_BITS);
+		if (page == null) {
+			return false;
+		}
+		int bit = (int) (task & PAGE_MASK);
+		return (page[bit >>> 6] & (1L << bit)) != 0;
+	}
+
+	/**
+	 * Adds all the tasks of another set
+	 * 
+	 * @param other
+	 */
+	public void addAll(TaskSet other) {
+		for (Map.Entry<Long, long[]> entry : other.pages.entrySet()) {
+			long[] source = entry.getValue();
+			long[] page = pages.computeIfAbsent(entry.getKey(), k -> new long[PAGE_WORDS]);
+			for (int i = 0; i < PAGE_WORDS; i++) {
+				size += Long.bitCount(source[i] & ~page[i]);
+				page[i] |= source[i];
+			}
+		}
+	}
+
+	/**
+	 * Returns the first task at or after from which is not in the set
+	 * 
+	 * @param from
+	 * @return
+	 */
+	public long nextAbsent(long from) {
+		long task = from;
+		while (true) {
+			long[] page = pages.get(task >>> PAGE_BITS);
+			if (page == null) {
+				return task;
+			}
+			int bit = (int) (task & PAGE_MASK);
+			for (int word = bit >>> 6; word < PAGE_WORDS; word++) {
+				long free = ~page[word];
+				if (word == bit >>> 6) {
+					free &= -1L << bit;
+				}
+				if (free != 0) {
+					return (task & ~PAGE_MASK) + (word << 6) + Long.numberOfTrailingZeros(free);
+				}
+			}
+			task = (task | PAGE_MASK) + 1;
+		}
+	}
+
+	/**
+	 * Returns the first task of [from, to) which is in the set
+	 * 
+	 * @param from
+	 * @param to
+	 * @return the task, or to if there is none
+	 */
+	public long nextPresent(long from, long to) {
+		long task = from;
+		while (task < to) {
+			long[] page = pages.get(task >>> PAGE_BITS);
+			if (page != null) {
+				int bit = (int) (task & PAGE_MASK);
+				for (int word = bit >>> 6; word < PAGE_WORDS; word++) {
+					long used = page[word];
+					if (word == bit >>> 6) {
+						used &= -1L << bit;
+					}
+					if (used != 0) {
+						return Math.min(to, (task & ~PAGE_MASK) + (word << 6) + Long.numberOfTrailingZeros(used));
+					}
+				}
+			}
+			task = (task | PAGE_MASK) + 1;
+		}
+		return to;
+	}
+
+	/**
+	 * Returns the number of tasks in the set
+	 * 
+	 * @return
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Writes the set
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(pages.size());
+		for (Map.Entry<Long, long[]> entry : pages.entrySet()) {
+			out.writeLong(entry.getKey());
+			for (long word : entry.getValue()) {
+				out.writeLong(word);
+			}
+		}
+	}
+
+	/**
+	 * Reads a set written by writeTo
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static TaskSet readFrom(DataInput in) throws IOException {
+		TaskSet set = new TaskSet();
+		int pageCount = in.readInt();
+		for (int i = 0; i < pageCount; i++) {
+			long[] page = new long[PAGE_WORDS];
+			long index = in.readLong();
+			for (int j = 0; j < PAGE_WORDS; j++) {
+				page[j] = in.readLong();
+				set.size += Long.bitCount(page[j]);
+			}
+			set.pages.put(index, page);
+		}
+		return set;
+	}
+}
@@ -0,0 +1,64 @@
+package upem.jarret.reducer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Counts the answers, or only the answers whose field is true or a non zero number
+ */
+class CountReducer implements Reducer {
+	private final String name;
+	private final String field;
+	private long count;
+
+	CountReducer(String name, String field) {
+		this.name = name;
+		this.field = field;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void fold(Map<String, String> answer) {
+		if (field == null) {
+			count++;
+			return;
+		}
+		double value = Reducers.toNumber(answer.get(field));
+		if (!Double.isNaN(value) && value != 0) {
+			count++;
+		}
+	}
+
+	@Override
+	public Reducer newEmpty() {
+		return new CountReducer(name, field);
+	}
+
+	@Override
+	public void merge(Reducer other) {
+		count += ((CountReducer) other).count;
+	}
+
+	@Override
+	public void writeJSON(JsonGenerator jg) throws IOException {
+		jg.writeNumber(count);
+	}
+
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		out.writeLong(count);
+	}
+
+	@Override
+	public void readState(DataInput in) throws IOException {
+		count = in.readLong();
+	}
+}
@@ -0,0 +1,108 @@
+package upem.jarret.reducer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Counts the answers per value of a field. With a bucket width, numeric values are grouped
+ * in buckets [k * width, (k + 1) * width) named by their lower bound.
+ */
+class HistogramReducer implements Reducer {
+	private static final int MAX_BUCKETS = 1024;
+	private static final String OTHER = "other";
+
+	private final String name;
+	private final String field;
+	private final double bucketWidth;
+	private final TreeMap<String, Long> buckets = new TreeMap<>();
+	private long other;
+
+	HistogramReducer(String name, String field, double bucketWidth) {
+		this.name = name;
+		this.field = field;
+		this.bucketWidth = bucketWidth;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void fold(Map<String, String> answer) {
+		String value = answer.get(field);
+		if (value == null) {
+			return;
+		}
+		if (bucketWidth > 0) {
+			double number = Reducers.toNumber(value);
+			if (Double.isNaN(number)) {
+				other++;
+				return;
+			}
+			double bucket = Math.floor(number / bucketWidth) * bucketWidth;
+			value = bucket == (long) bucket ? String.valueOf((long) bucket) : String.valueOf(bucket);
+		}
+		add(value, 1);
+	}
+
+	private void add(String value, long n) {
+		Long count = buckets.get(value);
+		if (count == null && buckets.size() >= MAX_BUCKETS) {
+			other += n;
+			return;
+		}
+		buckets.put(value, count == null ? n : count + n);
+	}
+
+	@Override
+	public Reducer newEmpty() {
+		return new HistogramReducer(name, field, bucketWidth);
+	}
+
+	@Override
+	public void merge(Reducer other) {
+		HistogramReducer histogram = (HistogramReducer) other;
+		for (Map.Entry<String, Long> bucket : histogram.buckets.entrySet()) {
+			add(bucket.getKey(), bucket.getValue());
+		}
+		this.other += histogram.other;
+	}
+
+	@Override
+	public void writeJSON(JsonGenerator jg) throws IOException {
+		jg.writeStartObject();
+		for (Map.Entry<String, Long> bucket : buckets.entrySet()) {
+			jg.writeNumberField(bucket.getKey(), bucket.getValue());
+		}
+		if (other > 0) {
+			jg.writeNumberField(OTHER, other);
+		}
+		jg.writeEndObject();
+	}
+
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		out.writeInt(buckets.size());
+		for (Map.Entry<String, Long> bucket : buckets.entrySet()) {
+			out.writeUTF(bucket.getKey());
+			out.writeLong(bucket.getValue());
+		}
+		out.writeLong(other);
+	}
+
+	@Override
+	public void readState(DataInput in) throws IOException {
+		buckets.clear();
+		int size = in.readInt();
+		for (int i = 0; i < size; i++) {
+			buckets.put(in.readUTF(), in.readLong());
+		}
+		other = in.readLong();
+	}
+}
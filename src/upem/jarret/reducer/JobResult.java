@@ -0,0 +1,326 @@
+package upem.jarret.reducer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+
+import upem.jarret.job.TaskSet;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Result of a job: its reducers folded with the first answer of each task, and the set of
+ * the tasks already folded. Both are saved together in a checkpoint file, with the ranges of
+ * tasks owned by the shard when the server is sharded.
+ */
+public class JobResult {
+	private static final int CHECKPOINT_MAGIC_V1 = 0x4A524331;
+	private static final int CHECKPOINT_MAGIC = 0x4A524332;
+	private static final JsonFactory jf = new JsonFactory();
+
+	private final long jobId;
+	private final List<Reducer> reducers;
+	private TaskSet folded = new TaskSet();
+	private long errors;
+	private List<long[]> ownedRanges;
+	private boolean dirty;
+
+	/**
+	 * The flat fields of the Answer object of an answer, parsed apart from the result so that
+	 * they can be folded later
+	 */
+	public static final class ParsedAnswer {
+		private final HashMap<String, String> fields = new HashMap<>();
+		private boolean error;
+	}
+
+	public JobResult(long jobId, List<Reducer> reducers) {
+		this.jobId = jobId;
+		this.reducers = Collections.unmodifiableList(new ArrayList<>(reducers));
+	}
+
+	/**
+	 * Returns the reducers of the job
+	 * 
+	 * @return
+	 */
+	public List<Reducer> getReducers() {
+		return reducers;
+	}
+
+	/**
+	 * Returns the set of the tasks whose answer was folded
+	 * 
+	 * @return
+	 */
+	public TaskSet getFoldedTasks() {
+		return folded;
+	}
+
+	/**
+	 * Returns true if the result changed since the last checkpoint
+	 * 
+	 * @return
+	 */
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	/**
+	 * Returns the ranges of tasks owned by the shard, as saved by the job
+	 * 
+	 * @return the ranges, or null if the job is not sharded
+	 */
+	public List<long[]> getOwnedRanges() {
+		return ownedRanges;
+	}
+
+	/**
+	 * Sets the ranges of tasks owned by the shard, saved with the next checkpoint
+	 * 
+	 * @param ranges
+	 */
+	public void setOwnedRanges(List<long[]> ranges) {
+		ownedRanges = new ArrayList<>(ranges);
+		dirty = true;
+	}
+
+	/**
+	 * Folds the answer of a task into the reducers, unless an answer was already folded for this task
+	 * 
+	 * @param task
+	 * @param answer the JSON object posted by the client, with the worker answer in its Answer field
+	 * @return true if the answer was folded
+	 * @throws IOException if the answer is not valid JSON
+	 */
+	public boolean fold(long task, String answer) throws IOException {
+		if (folded.contains(task)) {
+			return false;
+		}
+		return fold(task, parse(answer));
+	}
+
+	/**
+	 * Folds an answer parsed by {@link #parse}, unless an answer was already folded for this task
+	 * 
+	 * @param task
+	 * @param answer
+	 * @return true if the answer was folded
+	 */
+	public boolean fold(long task, ParsedAnswer answer) {
+		if (folded.contains(task)) {
+			return false;
+		}
+		folded.add(task);
+		dirty = true;
+		if (answer.error) {
+			errors++;
+			return true;
+		}
+		for (Reducer reducer : reducers) {
+			reducer.fold(answer.fields);
+		}
+		return true;
+	}
+
+	/**
+	 * Creates an empty result with the same reducers, to fold answers apart before merging them
+	 * 
+	 * @return
+	 */
+	public JobResult newPartial() {
+		List<Reducer> empty = new ArrayList<>();
+		for (Reducer reducer : reducers) {
+			empty.add(reducer.newEmpty());
+		}
+		return new JobResult(jobId, empty);
+	}
+
+	/**
+	 * Adds the answers folded by a result created by newPartial. The tasks of the partial result
+	 * must not have been folded in this result.
+	 * 
+	 * @param partial
+	 */
+	public void merge(JobResult partial) {
+		if (partial.folded.size() == 0) {
+			return;
+		}
+		for (int i = 0; i < reducers.size(); i++) {
+			reducers.get(i).merge(partial.reducers.get(i));
+		}
+		errors += partial.errors;
+		folded.addAll(partial.folded);
+		dirty = true;
+	}
+
+	/**
+	 * Reads the flat fields of the Answer object, and whether the client reported an error instead
+	 * of an answer
+	 * 
+	 * @param answer the JSON object posted by the client
+	 * @return
+	 * @throws IOException if the answer is not valid JSON
+	 */
+	public static ParsedAnswer parse(String answer) throws IOException {
+		ParsedAnswer parsed = new ParsedAnswer();
+		HashMap<String, String> fields = parsed.fields;
+		try (JsonParser jp = jf.createParser(answer)) {
+			jp.nextToken();
+			while (jp.nextToken() == JsonToken.FIELD_NAME) {
+				String fieldName = jp.getCurrentName();
+				JsonToken token = jp.nextToken();
+				if (fieldName.equals("Error")) {
+					parsed.error = true;
+				}
+				if (!fieldName.equals("Answer") || token != JsonToken.START_OBJECT) {
+					jp.skipChildren();
+					continue;
+				}
+				while (jp.nextToken() == JsonToken.FIELD_NAME) {
+					String name = jp.getCurrentName();
+					if (jp.nextToken().isScalarValue()) {
+						fields.put(name, jp.getText());
+					} else {
+						jp.skipChildren();
+					}
+				}
+			}
+		}
+		return parsed;
+	}
+
+	/**
+	 * Creates the JSON String of the current result
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public String toJSON() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		JsonGenerator jg = jf.createGenerator(baos);
+
+		jg.writeStartObject();
+		jg.writeStringField("JobId", String.valueOf(jobId));
+		jg.writeNumberField("Answers", folded.size());
+		jg.writeNumberField("Errors", errors);
+		jg.writeObjectFieldStart("Results");
+		for (Reducer reducer : reducers) {
+			jg.writeFieldName(reducer.getName());
+			reducer.writeJSON(jg);
+		}
+		jg.writeEndObject();
+		jg.writeEndObject();
+		jg.close();
+
+		return baos.toString();
+	}
+
+	/**
+	 * Writes the checkpoint file and forces it to the disk, atomically replacing the previous one
+	 * 
+	 * @param path
+	 * @throws IOException
+	 */
+	public void saveCheckpoint(Path path) throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+		        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeLong(jobId);
+			out.writeLong(errors);
+			out.writeInt(reducers.size());
+			for (Reducer reducer : reducers) {
+				ByteArrayOutputStream state = new ByteArrayOutputStream();
+				reducer.writeState(new DataOutputStream(state));
+				out.writeUTF(reducer.getName());
+				out.writeInt(state.size());
+				state.writeTo(out);
+			}
+			folded.writeTo(out);
+			if (ownedRanges == null) {
+				out.writeInt(-1);
+			} else {
+				out.writeInt(ownedRanges.size());
+				for (long[] range : ownedRanges) {
+					out.writeLong(range[0]);
+					out.writeLong(range[1]);
+				}
+			}
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		dirty = false;
+	}
+
+	/**
+	 * Restores the result from a checkpoint file. The states of reducers which are not
+	 * configured anymore are ignored.
+	 * 
+	 * @param path
+	 * @throws IOException if the file is not a checkpoint of this job
+	 */
+	public void loadCheckpoint(Path path) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			int magic = in.readInt();
+			if ((magic != CHECKPOINT_MAGIC && magic != CHECKPOINT_MAGIC_V1) || in.readLong() != jobId) {
+				throw new IOException("Not a checkpoint of job " + jobId + ": " + path);
+			}
+			errors = in.readLong();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				byte[] state = new byte[in.readInt()];
+				in.readFully(state);
+				for (Reducer reducer : reducers) {
+					if (reducer.getName().equals(name)) {
+						reducer.readState(new DataInputStream(new ByteArrayInputStream(state)));
+					}
+				}
+			}
+			folded = TaskSet.readFrom(in);
+			// without ranges in the file, the ones set by the job are kept
+			int ranges = magic == CHECKPOINT_MAGIC ? in.readInt() : -1;
+			if (ranges >= 0) {
+				ownedRanges = new ArrayList<>();
+				for (int i = 0; i < ranges; i++) {
+					ownedRanges.add(new long[] { in.readLong(), in.readLong() });
+				}
+			}
+		}
+		dirty = false;
+	}
+
+	@Override
+	public String toString() {
+		return "JobResult [jobId=" + jobId + ", answers=" + folded.size() + ", errors=" + errors + "]";
+	}
+
+	/**
+	 * Returns the checkpoint path of a job
+	 * 
+	 * @param directory
+	 * @param jobId
+	 * @return
+	 */
+	public static Path checkpointPath(Path directory, long jobId) {
+		return Objects.requireNonNull(directory).resolve(jobId + ".checkpoint");
+	}
+}
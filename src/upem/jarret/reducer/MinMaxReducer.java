@@ -0,0 +1,74 @@
+package upem.jarret.reducer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Keeps the minimum or the maximum of a numeric field
+ */
+class MinMaxReducer implements Reducer {
+	private final String name;
+	private final String field;
+	private final boolean min;
+	private double value = Double.NaN;
+
+	MinMaxReducer(String name, String field, boolean min) {
+		this.name = name;
+		this.field = field;
+		this.min = min;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void fold(Map<String, String> answer) {
+		double v = Reducers.toNumber(answer.get(field));
+		if (Double.isNaN(v)) {
+			return;
+		}
+		if (Double.isNaN(value) || (min ? v < value : v > value)) {
+			value = v;
+		}
+	}
+
+	@Override
+	public Reducer newEmpty() {
+		return new MinMaxReducer(name, field, min);
+	}
+
+	@Override
+	public void merge(Reducer other) {
+		double v = ((MinMaxReducer) other).value;
+		if (!Double.isNaN(v) && (Double.isNaN(value) || (min ? v < value : v > value))) {
+			value = v;
+		}
+	}
+
+	@Override
+	public void writeJSON(JsonGenerator jg) throws IOException {
+		if (Double.isNaN(value)) {
+			jg.writeNull();
+		} else if (value == (long) value) {
+			jg.writeNumber((long) value);
+		} else {
+			jg.writeNumber(value);
+		}
+	}
+
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		out.writeDouble(value);
+	}
+
+	@Override
+	public void readState(DataInput in) throws IOException {
+		value = in.readDouble();
+	}
+}
@@ -0,0 +1,35 @@
+package upem.jarret.reducer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Running aggregate of a job, updated with each answer as it arrives
+ */
+public interface Reducer {
+
+	// Return the name of the aggregate in the job result, unique in a job
+	public String getName();
+
+	// Fold an answer, given as its flat fields with their textual values
+	public void fold(Map<String, String> answer);
+
+	// Write the current value of the aggregate
+	public void writeJSON(JsonGenerator jg) throws IOException;
+
+	// Write the state of the aggregate for a checkpoint
+	public void writeState(DataOutput out) throws IOException;
+
+	// Restore a state written by writeState
+	public void readState(DataInput in) throws IOException;
+
+	// Create an empty aggregate with the same definition, to fold answers apart
+	public Reducer newEmpty();
+
+	// Add the answers folded by an aggregate created by newEmpty, over other tasks
+	public void merge(Reducer other);
+}
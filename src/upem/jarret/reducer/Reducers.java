@@ -0,0 +1,124 @@
+package upem.jarret.reducer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Creates the reducers described in the jobs config file, for instance
+ * "Reducers" : [ { "Type" : "count", "Field" : "isPrime" }, { "Type" : "histogram", "Field" : "size" } ]
+ */
+public class Reducers {
+
+	private Reducers() {
+	}
+
+	/**
+	 * Parses a json array of reducers
+	 * 
+	 * @param jp a parser positioned on the START_ARRAY token
+	 * @return
+	 * @throws JsonParseException if a reducer is invalid or two reducers have the same name
+	 * @throws IOException
+	 */
+	public static List<Reducer> parseJSON(JsonParser jp) throws JsonParseException, IOException {
+		if (jp.getCurrentToken() != JsonToken.START_ARRAY) {
+			throw new JsonParseException("Reducers must be an array", jp.getCurrentLocation());
+		}
+		List<Reducer> reducers = new ArrayList<>();
+		HashSet<String> names = new HashSet<>();
+		while (jp.nextToken() != JsonToken.END_ARRAY) {
+			Reducer reducer = parseReducer(jp);
+			if (!names.add(reducer.getName())) {
+				throw new JsonParseException("Duplicate reducer " + reducer.getName(), jp.getCurrentLocation());
+			}
+			reducers.add(reducer);
+		}
+		return reducers;
+	}
+
+	private static Reducer parseReducer(JsonParser jp) throws JsonParseException, IOException {
+		JsonLocation location = jp.getCurrentLocation();
+		String type = null;
+		String field = null;
+		String name = null;
+		double bucketWidth = 0;
+
+		while (jp.nextToken() != JsonToken.END_OBJECT) {
+			String fieldName = jp.getCurrentName();
+			jp.nextToken();
+			switch (fieldName) {
+			case "Type":
+				type = jp.getText();
+				break;
+			case "Field":
+				field = jp.getText();
+				break;
+			case "Name":
+				name = jp.getText();
+				break;
+			case "BucketWidth":
+				bucketWidth = Double.parseDouble(jp.getText());
+				break;
+			default:
+				throw new JsonParseException("Unknown reducer field " + fieldName, jp.getCurrentLocation());
+			}
+		}
+		if (type == null) {
+			throw new JsonParseException("Reducer without Type", location);
+		}
+		if (field == null && !type.equals("count")) {
+			throw new JsonParseException("Reducer " + type + " needs a Field", location);
+		}
+		if (name == null) {
+			name = field == null ? type : type + "(" + field + ")";
+		}
+		switch (type) {
+		case "count":
+			return new CountReducer(name, field);
+		case "sum":
+			return new SumReducer(name, field);
+		case "min":
+			return new MinMaxReducer(name, field, true);
+		case "max":
+			return new MinMaxReducer(name, field, false);
+		case "histogram":
+			if (bucketWidth < 0) {
+				throw new JsonParseException("BucketWidth must not be negative", location);
+			}
+			return new HistogramReducer(name, field, bucketWidth);
+		default:
+			throw new JsonParseException("Unknown reducer type " + type, location);
+		}
+	}
+
+	/**
+	 * Converts a textual answer value to a number, booleans counting as 0 and 1
+	 * 
+	 * @param value
+	 * @return the number, or NaN if the value is missing or is not a number
+	 */
+	static double toNumber(String value) {
+		if (value == null) {
+			return Double.NaN;
+		}
+		switch (value) {
+		case "true":
+			return 1;
+		case "false":
+			return 0;
+		default:
+			try {
+				return Double.parseDouble(value);
+			} catch (NumberFormatException e) {
+				return Double.NaN;
+			}
+		}
+	}
+}
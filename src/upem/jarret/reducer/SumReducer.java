@@ -0,0 +1,80 @@
+package upem.jarret.reducer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Sums a numeric field. Integral values are summed exactly as long as no fractional value is seen.
+ */
+class SumReducer implements Reducer {
+	private final String name;
+	private final String field;
+	private long longSum;
+	private double doubleSum;
+	private boolean integral = true;
+
+	SumReducer(String name, String field) {
+		this.name = name;
+		this.field = field;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void fold(Map<String, String> answer) {
+		String text = answer.get(field);
+		double value = Reducers.toNumber(text);
+		if (Double.isNaN(value)) {
+			return;
+		}
+		if (value == (long) value && !text.contains(".")) {
+			longSum += (long) value;
+		} else {
+			integral = false;
+			doubleSum += value;
+		}
+	}
+
+	@Override
+	public Reducer newEmpty() {
+		return new SumReducer(name, field);
+	}
+
+	@Override
+	public void merge(Reducer other) {
+		SumReducer sum = (SumReducer) other;
+		longSum += sum.longSum;
+		doubleSum += sum.doubleSum;
+		integral &= sum.integral;
+	}
+
+	@Override
+	public void writeJSON(JsonGenerator jg) throws IOException {
+		if (integral) {
+			jg.writeNumber(longSum);
+		} else {
+			jg.writeNumber(longSum + doubleSum);
+		}
+	}
+
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		out.writeLong(longSum);
+		out.writeDouble(doubleSum);
+		out.writeBoolean(integral);
+	}
+
+	@Override
+	public void readState(DataInput in) throws IOException {
+		longSum = in.readLong();
+		doubleSum = in.readDouble();
+		integral = in.readBoolean();
+	}
+}
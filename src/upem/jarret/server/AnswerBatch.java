@@ -0,0 +1,169 @@
+package upem.jarret.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+
+import upem.jarret.job.Job;
+import util.JsonTools;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * The answers of a lease, sent by a client in one record of a POST AnswerBatches request: the job
+ * id, the first task and the number of tasks of the lease, the number of answers, then the answers
+ * as the worker wrote them, each one made of the index of its task in the lease, its length and
+ * its UTF-8 bytes. The tasks without an answer are computation errors.
+ *
+ * The answers are checked here, once, and wrapped in the JSON the server saves, with the error
+ * instead of the answer if it is not valid.
+ */
+final class AnswerBatch {
+	static final int HEADER_BYTES = 2 * Long.BYTES + 2 * Integer.BYTES;
+	// the longest answer saved, wrapper included, as a POST Answer64 request could hold it
+	static final int MAX_ANSWER_BYTES = 4096 - 2 * Long.BYTES;
+	private static final Charset charsetUTF8 = Charset.forName("utf-8");
+	private static final JsonFactory jf = new JsonFactory();
+
+	/**
+	 * Receives the wrapped answers of a batch, with the length of the answer of the worker
+	 */
+	@FunctionalInterface
+	interface AnswerConsumer {
+		void accept(long task, String answer, int bytes) throws IOException;
+	}
+
+	private final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+	private byte[] bytes = new byte[4096];
+
+	/**
+	 * Checks the structure of a record, not its answers
+	 *
+	 * @param record
+	 * @return the number of tasks of the lease
+	 * @throws IllegalArgumentException if the record is ill-formed
+	 */
+	static int check(ByteBuffer record) {
+		int position = record.position();
+		int limit = record.limit();
+		if (limit - position < HEADER_BYTES) {
+			throw new IllegalArgumentException("Truncated answer batch");
+		}
+		long from = record.getLong(position + Long.BYTES);
+		int count = record.getInt(position + 2 * Long.BYTES);
+		int answers = record.getInt(position + 2 * Long.BYTES + Integer.BYTES);
+		if (from < 0 || count < 0 || answers < 0 || answers > count) {
+			throw new IllegalArgumentException("Invalid answer batch of " + count + " tasks from " + from);
+		}
+		position += HEADER_BYTES;
+		for (int i = 0; i < answers; i++) {
+			if (limit - position < 2 * Integer.BYTES) {
+				throw new IllegalArgumentException("Truncated answer batch");
+			}
+			int index = record.getInt(position);
+			int length = record.getInt(position + Integer.BYTES);
+			position += 2 * Integer.BYTES;
+			if (index < 0 || index >= count || length < 0 || length > limit - position) {
+				throw new IllegalArgumentException("Invalid answer in a batch");
+			}
+			position += length;
+		}
+		if (position != limit) {
+			throw new IllegalArgumentException("Trailing bytes after an answer batch");
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the job of a record
+	 *
+	 * @param record
+	 * @return
+	 */
+	static long getJobId(ByteBuffer record) {
+		return record.getLong(record.position());
+	}
+
+	/**
+	 * Returns the first task of the lease of a record
+	 *
+	 * @param record
+	 * @return
+	 */
+	static long getFrom(ByteBuffer record) {
+		return record.getLong(record.position() + Long.BYTES);
+	}
+
+	/**
+	 * Checks and wraps the answers of a record already checked by {@link #check}, the first
+	 * answer of a task winning, then reports the tasks without an answer as computation errors
+	 *
+	 * @param record
+	 * @param job the job of the record
+	 * @param clientId the client which computed the answers
+	 * @param consumer receives the wrapped answers
+	 * @throws IOException
+	 */
+	void accept(ByteBuffer record, Job job, String clientId, AnswerConsumer consumer) throws IOException {
+		ByteBuffer bb = record.duplicate();
+		bb.position(bb.position() + Long.BYTES);
+		long from = bb.getLong();
+		int count = bb.getInt();
+		int answers = bb.getInt();
+		BitSet answered = new BitSet(count);
+		for (int i = 0; i < answers; i++) {
+			int index = bb.getInt();
+			int length = bb.getInt();
+			if (length > bytes.length) {
+				bytes = new byte[Math.max(length, bytes.length * 2)];
+			}
+			bb.get(bytes, 0, length);
+			if (answered.get(index)) {
+				continue;
+			}
+			answered.set(index);
+			String error = JsonTools.answerError(bytes, 0, length);
+			String answer = error == null ? new String(bytes, 0, length, charsetUTF8) : null;
+			String json = wrap(job, from + index, clientId, answer, error);
+			if (json == null) {
+				json = wrap(job, from + index, clientId, null, "Too Long");
+			}
+			consumer.accept(from + index, json, length);
+		}
+		for (int index = answered.nextClearBit(0); index < count; index = answered.nextClearBit(index + 1)) {
+			consumer.accept(from + index, wrap(job, from + index, clientId, null, "Computation error"), 0);
+		}
+	}
+
+	/**
+	 * Creates the JSON saved for a task, the one a client used to POST
+	 *
+	 * @return the JSON, or null if it is longer than MAX_ANSWER_BYTES
+	 */
+	private String wrap(Job job, long task, String clientId, String answer, String error) throws IOException {
+		baos.reset();
+		try (JsonGenerator jg = jf.createGenerator(baos)) {
+			jg.writeStartObject();
+			jg.writeStringField("JobId", String.valueOf(job.getJobId()));
+			jg.writeStringField("WorkerVersion", job.getWorkerVersion());
+			jg.writeStringField("WorkerURL", job.getWorkerURL());
+			jg.writeStringField("WorkerClassName", job.getWorkerClassName());
+			jg.writeStringField("Task", String.valueOf(task));
+			jg.writeStringField("ClientId", clientId);
+			if (error == null) {
+				jg.writeFieldName("Answer");
+				jg.writeRawValue(answer);
+			} else {
+				jg.writeStringField("Error", error);
+			}
+			jg.writeEndObject();
+		}
+		if (baos.size() > MAX_ANSWER_BYTES) {
+			return null;
+		}
+		return baos.toString("utf-8");
+	}
+}
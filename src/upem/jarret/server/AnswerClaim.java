@@ -0,0 +1,182 @@
+package upem.jarret.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import upem.jarret.events.AnswerReceiveEvent;
+import upem.jarret.job.Job;
+import upem.jarret.reducer.JobResult;
+import util.JsonTools;
+
+/**
+ * The answers of a POST Answer, Answer64 or AnswerBatches request, taken through the steps which
+ * let the blocking engine hold its lock only to update the jobs: the request is parsed here,
+ * without the lock; its tasks are claimed under the lock by {@link Server#claim}, so that no
+ * other connection saves them too; the answers are saved and parsed without the lock by
+ * {@link Server#save}, then folded under the lock by {@link Server#fold}. The selector engine
+ * takes the same steps on its thread.
+ */
+final class AnswerClaim {
+	private static final Charset charsetUTF8 = Charset.forName("utf-8");
+
+	/**
+	 * The tasks [from, from + count) of a job answered by the request, and the ones it claimed
+	 */
+	static final class Range {
+		final long jobId;
+		final long from;
+		final int count;
+		// the record of an AnswerBatches request, null for a single answer
+		final ByteBuffer record;
+		final BitSet claimed;
+		Job job;
+
+		private Range(long jobId, long from, int count, ByteBuffer record) {
+			this.jobId = jobId;
+			this.from = from;
+			this.count = count;
+			this.record = record;
+			this.claimed = new BitSet(count);
+		}
+	}
+
+	/**
+	 * An answer saved, waiting to be folded
+	 */
+	static final class Saved {
+		final Job job;
+		final long task;
+		final String answer;
+		final JobResult.ParsedAnswer parsed;
+		final AnswerReceiveEvent event;
+		final int bytes;
+
+		Saved(Job job, long task, String answer, JobResult.ParsedAnswer parsed, AnswerReceiveEvent event, int bytes) {
+			this.job = job;
+			this.task = task;
+			this.answer = answer;
+			this.parsed = parsed;
+			this.event = event;
+			this.bytes = bytes;
+		}
+	}
+
+	private final ArrayList<Range> ranges = new ArrayList<>();
+	private final ArrayList<Saved> saved = new ArrayList<>();
+	private final String clientId;
+	private final String answer;
+	private final AnswerReceiveEvent event;
+	private final int bytes;
+	private int tasks;
+
+	private AnswerClaim(String clientId, String answer, AnswerReceiveEvent event, int bytes) {
+		this.clientId = clientId;
+		this.answer = answer;
+		this.event = event;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Decodes and checks the answer of a POST Answer or Answer64 request
+	 *
+	 * @param content the job id, the task as an int if legacy is true or as a long otherwise, and
+	 *        the answer
+	 * @param legacy
+	 * @return
+	 * @throws IOException
+	 */
+	static AnswerClaim ofAnswer(ByteBuffer content, boolean legacy) throws IOException {
+		int bytes = content.remaining();
+		long jobId = content.getLong();
+		long task = legacy ? content.getInt() : content.getLong();
+		AnswerReceiveEvent event = new AnswerReceiveEvent();
+		event.begin();
+		String answer = charsetUTF8.decode(content).toString();
+		event.valid = JsonTools.isJSON(answer);
+		AnswerClaim claim = new AnswerClaim(null, answer, event, bytes);
+		claim.ranges.add(new Range(jobId, task, 1, null));
+		claim.tasks = 1;
+		return claim;
+	}
+
+	/**
+	 * Checks the records of a POST AnswerBatches request, all of them before the first one is
+	 * accepted
+	 *
+	 * @param content records made of their length, then an {@link AnswerBatch}
+	 * @param clientId the client which computed the answers
+	 * @return
+	 * @throws IllegalArgumentException if a record is ill-formed
+	 */
+	static AnswerClaim ofBatches(ByteBuffer content, String clientId) {
+		AnswerClaim claim = new AnswerClaim(clientId, null, null, content.remaining());
+		for (int position = content.position(); position < content.limit();) {
+			if (content.limit() - position < Integer.BYTES) {
+				throw new IllegalArgumentException("Truncated answer batches");
+			}
+			int length = content.getInt(position);
+			if (length < AnswerBatch.HEADER_BYTES || length > content.limit() - position - Integer.BYTES) {
+				throw new IllegalArgumentException("Truncated answer batches");
+			}
+			ByteBuffer record = content.duplicate();
+			record.position(position + Integer.BYTES).limit(position + Integer.BYTES + length);
+			record = record.slice();
+			int count = AnswerBatch.check(record);
+			claim.ranges.add(new Range(AnswerBatch.getJobId(record), AnswerBatch.getFrom(record), count, record));
+			claim.tasks += count;
+			position += Integer.BYTES + length;
+		}
+		return claim;
+	}
+
+	List<Range> getRanges() {
+		return ranges;
+	}
+
+	List<Saved> getSaved() {
+		return saved;
+	}
+
+	void add(Saved answer) {
+		saved.add(answer);
+	}
+
+	String getClientId() {
+		return clientId;
+	}
+
+	/**
+	 * Returns the answer of a POST Answer or Answer64 request, null for AnswerBatches
+	 *
+	 * @return
+	 */
+	String getAnswer() {
+		return answer;
+	}
+
+	/**
+	 * Returns the event of a POST Answer or Answer64 request, begun before its answer was decoded
+	 *
+	 * @return
+	 */
+	AnswerReceiveEvent getEvent() {
+		return event;
+	}
+
+	int getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns the number of tasks answered by the request
+	 *
+	 * @return
+	 */
+	int getTasks() {
+		return tasks;
+	}
+}
@@ -0,0 +1,230 @@
+package upem.jarret.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ring buffer of the last answers accepted for a job, pushed to the subscribers of the job. An
+ * answer is encoded once as an HTTP chunk, shared by all the subscribers, each one reading the
+ * ring through its own cursor.
+ * Publishing never waits for a subscriber: a subscriber left more than capacity answers behind
+ * skips forward to the oldest answer held, and is sent {"Skipped":n} instead of the n answers it
+ * missed.
+ *
+ * Thread safe: the answers are published by the selector thread or under the lock of the blocking
+ * engine, and the connection threads of the blocking engine read the ring concurrently. The ring
+ * has its own lock, so that a virtual thread waiting for answers releases its carrier thread.
+ */
+class AnswerRing {
+	private static final Charset charsetUTF8 = Charset.forName("utf-8");
+	private static final int CURSOR_BATCH = 64;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition answerPublished = lock.newCondition();
+	private final long jobId;
+	private final ByteBuffer[] chunks;
+	private long published;
+	private int subscribers;
+	private long skipped;
+
+	/**
+	 * The position of a subscriber in the ring and the chunks it is writing
+	 */
+	class Cursor {
+		private long next;
+		private final ByteBuffer[] batch = new ByteBuffer[CURSOR_BATCH];
+		private int from;
+		private int to;
+
+		private Cursor(long next) {
+			this.next = next;
+		}
+
+		AnswerRing getRing() {
+			return AnswerRing.this;
+		}
+
+		/**
+		 * Tests if answers were published since the last write
+		 *
+		 * @return
+		 */
+		boolean hasNext() {
+			lock.lock();
+			try {
+				return from < to || next < published;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Writes the answers published, until the channel cannot take more bytes
+		 *
+		 * @param channel
+		 * @return true if all the answers published were written
+		 * @throws IOException
+		 */
+		boolean writeTo(GatheringByteChannel channel) throws IOException {
+			while (true) {
+				while (from < to) {
+					long n = channel.write(batch, from, to - from);
+					while (from < to && !batch[from].hasRemaining()) {
+						batch[from++] = null;
+					}
+					if (n == 0 && from < to) {
+						return false;
+					}
+				}
+				if (!fill(this)) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Waits until an answer is published
+		 *
+		 * @param millis the longest wait
+		 * @throws InterruptedException
+		 */
+		void await(long millis) throws InterruptedException {
+			lock.lock();
+			try {
+				if (from == to && next == published) {
+					answerPublished.await(millis, TimeUnit.MILLISECONDS);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @param jobId
+	 * @param capacity the number of answers held
+	 */
+	AnswerRing(long jobId, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+		this.jobId = jobId;
+		this.chunks = new ByteBuffer[capacity];
+	}
+
+	long getJobId() {
+		return jobId;
+	}
+
+	/**
+	 * Adds an answer, overwriting the oldest one if the ring is full
+	 *
+	 * @param answer
+	 */
+	void publish(String answer) {
+		ByteBuffer chunk = chunk(answer);
+		lock.lock();
+		try {
+			chunks[(int) (published % chunks.length)] = chunk;
+			published++;
+			answerPublished.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Creates a cursor reading the answers published from now on
+	 *
+	 * @return
+	 */
+	Cursor subscribe() {
+		lock.lock();
+		try {
+			subscribers++;
+			return new Cursor(published);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Forgets a cursor
+	 *
+	 * @return the number of subscribers left
+	 */
+	int unsubscribe() {
+		lock.lock();
+		try {
+			return --subscribers;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int getSubscribers() {
+		lock.lock();
+		try {
+			return subscribers;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of answers the subscribers skipped because they were too slow
+	 *
+	 * @return
+	 */
+	long getSkipped() {
+		lock.lock();
+		try {
+			return skipped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Hands the next chunks to a cursor which wrote its previous ones
+	 *
+	 * @return false if the cursor read every answer published
+	 */
+	private boolean fill(Cursor cursor) {
+		lock.lock();
+		try {
+			int count = 0;
+			long oldest = published - chunks.length;
+			if (cursor.next < oldest) {
+				skipped += oldest - cursor.next;
+				cursor.batch[count++] = chunk("{\"Skipped\":" + (oldest - cursor.next) + "}");
+				cursor.next = oldest;
+			}
+			while (cursor.next < published && count < cursor.batch.length) {
+				cursor.batch[count++] = chunks[(int) (cursor.next++ % chunks.length)].duplicate();
+			}
+			cursor.from = 0;
+			cursor.to = count;
+			return count > 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Encodes an answer line as an HTTP chunk
+	 */
+	private static ByteBuffer chunk(String answer) {
+		byte[] line = (answer + '\n').getBytes(charsetUTF8);
+		byte[] size = (Integer.toHexString(line.length) + "\r\n").getBytes(charsetUTF8);
+		ByteBuffer chunk = ByteBuffer.allocate(size.length + line.length + 2);
+		chunk.put(size).put(line).put((byte) '\r').put((byte) '\n');
+		chunk.flip();
+		return chunk.asReadOnlyBuffer();
+	}
+}
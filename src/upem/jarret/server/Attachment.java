@@ -1,11 +1,20 @@
 package upem.jarret.server;
 
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 
 import upem.jarret.http.HTTPReaderServer;
+import upem.jarret.storage.AnswerStream;
 
 public class Attachment {
+	/**
+	 * The deadlines enforced on a connection, by phase of the request
+	 */
+	public enum Deadline {
+		HEADER, BODY, IDLE
+	}
+
 	private HTTPReaderServer reader;
 	private boolean requestingTask = false;
 	private boolean sendingPost = false;
@@ -16,6 +25,17 @@ public class Attachment {
 	private String answer = null;
 	private final ByteBuffer in;
 	private int contentLength;
+	private int taskBatch = 1;
+	private String clientId;
+	private String adminToken;
+	private ByteBuffer response = null;
+	private boolean closeAfterResponse = false;
+	private AnswerStream answerStream;
+	private AnswerRing.Cursor subscription;
+	private boolean inFlight = false;
+	private int pendingAnswerBytes = 0;
+	private TimingWheel.Timer<SelectionKey> timer;
+	private Deadline deadline;
 
 	public Attachment(SocketChannel sc) {
 		in = ByteBuffer.allocate(1024);
@@ -156,4 +176,149 @@ public class Attachment {
 		contentLength = length;
 	}
 
+	/**
+	 * Returns the number of tasks the client accepts in one lease
+	 * 
+	 * @return
+	 */
+	public int getTaskBatch() {
+		return taskBatch;
+	}
+
+	public void setTaskBatch(int taskBatch) {
+		this.taskBatch = taskBatch;
+	}
+
+	/**
+	 * Returns the id the client sent with its task request, null if it did not send one
+	 * 
+	 * @return
+	 */
+	public String getClientId() {
+		return clientId;
+	}
+
+	public void setClientId(String clientId) {
+		this.clientId = clientId;
+	}
+
+	/**
+	 * Returns the Admin-Token header of an admin request, null if it did not send one
+	 * 
+	 * @return
+	 */
+	public String getAdminToken() {
+		return adminToken;
+	}
+
+	public void setAdminToken(String adminToken) {
+		this.adminToken = adminToken;
+	}
+
+	/**
+	 * Returns the response prepared while parsing the request, null if the response
+	 * is built when writing
+	 * 
+	 * @return
+	 */
+	public ByteBuffer getResponse() {
+		return response;
+	}
+
+	public void setResponse(ByteBuffer response) {
+		this.response = response;
+	}
+
+	/**
+	 * Returns the answers streamed after the prepared response, null if there are none
+	 * 
+	 * @return
+	 */
+	public AnswerStream getAnswerStream() {
+		return answerStream;
+	}
+
+	public void setAnswerStream(AnswerStream answerStream) {
+		this.answerStream = answerStream;
+	}
+
+	/**
+	 * Returns the cursor of a connection subscribed to the answers of a job, null if it is not
+	 * a subscriber
+	 * 
+	 * @return
+	 */
+	AnswerRing.Cursor getSubscription() {
+		return subscription;
+	}
+
+	void setSubscription(AnswerRing.Cursor subscription) {
+		this.subscription = subscription;
+	}
+
+	/**
+	 * Returns true if the connection is closed once the prepared response is written
+	 * 
+	 * @return
+	 */
+	public boolean isCloseAfterResponse() {
+		return closeAfterResponse;
+	}
+
+	public void setCloseAfterResponse(boolean closeAfterResponse) {
+		this.closeAfterResponse = closeAfterResponse;
+	}
+
+	/**
+	 * Returns true if a request was read and its response is not written yet
+	 * 
+	 * @return
+	 */
+	public boolean isInFlight() {
+		return inFlight;
+	}
+
+	public void setInFlight(boolean inFlight) {
+		this.inFlight = inFlight;
+	}
+
+	/**
+	 * Returns the size of the answer being received, counted in the pending answer bytes
+	 * 
+	 * @return
+	 */
+	public int getPendingAnswerBytes() {
+		return pendingAnswerBytes;
+	}
+
+	public void setPendingAnswerBytes(int pendingAnswerBytes) {
+		this.pendingAnswerBytes = pendingAnswerBytes;
+	}
+
+	/**
+	 * Returns the timer of the connection in the reaper wheel
+	 * 
+	 * @return
+	 */
+	public TimingWheel.Timer<SelectionKey> getTimer() {
+		return timer;
+	}
+
+	public void setTimer(TimingWheel.Timer<SelectionKey> timer) {
+		this.timer = timer;
+	}
+
+	/**
+	 * Returns the deadline the timer is scheduled for, null if the connection has none
+	 * 
+	 * @return
+	 */
+	public Deadline getDeadline() {
+		return deadline;
+	}
+
+	public void setDeadline(Deadline deadline) {
+		this.deadline = deadline;
+	}
+
 }
@@ -0,0 +1,683 @@
+package upem.jarret.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import upem.jarret.http.HTTPException;
+import upem.jarret.http.HTTPReader;
+import upem.jarret.storage.AnswerStream;
+
+/**
+ * Serves the clients with one thread per connection doing blocking reads, instead of the
+ * selector loop. Virtual threads are used when the JVM has them, platform threads otherwise.
+ *
+ * The scheduler, the jobs and the rest of the state of the server are shared with the
+ * selector engine: connection threads only use them holding the lock of the engine, and read
+ * and write their socket, parse and save the answers without it. A housekeeping thread does,
+ * under the same lock, what the selector loop does between two selects.
+ *
+ * The lock is a ReentrantLock, not the monitor of the server, so that a virtual thread parked on
+ * it, or waiting for tasks on its condition, releases its carrier thread.
+ */
+class BlockingEngine {
+	private static final long TICK_MILLIS = 100;
+
+	private final Server server;
+	private final ServerSocketChannel ssc;
+	private final ExecutorService connections = newConnectionExecutor();
+	private final Semaphore connectionSlots;
+	private final Set<Connection> open = ConcurrentHashMap.newKeySet();
+	private final long longPollMillis;
+	private final int maxParkedClients;
+	private final long headerTimeoutMillis;
+	private final long bodyTimeoutMillis;
+	private final long idleTimeoutMillis;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	// signaled when tasks may be available to the parked requests
+	private final Condition tasksAvailable = lock.newCondition();
+	// guarded by the lock
+	private final TimingWheel<Connection> reaper = new TimingWheel<>(TICK_MILLIS, 1024, System.currentTimeMillis());
+	private int parkedRequests;
+
+	/**
+	 * A connection and the deadline of the phase of its request
+	 */
+	private static class Connection {
+		private final SocketChannel sc;
+		private final String address;
+		private final TimingWheel.Timer<Connection> timer;
+		private Attachment.Deadline deadline;
+		// wraps the answers of the AnswerBatches requests of the connection
+		private final AnswerBatch answerBatch = new AnswerBatch();
+
+		Connection(SocketChannel sc) throws IOException {
+			this.sc = sc;
+			this.address = String.valueOf(sc.getRemoteAddress());
+			this.timer = new TimingWheel.Timer<>(this);
+		}
+	}
+
+	BlockingEngine(Server server, ServerSocketChannel ssc, int maxConnections, long longPollMillis,
+			int maxParkedClients, long headerTimeoutMillis, long bodyTimeoutMillis, long idleTimeoutMillis) {
+		this.server = server;
+		this.ssc = ssc;
+		this.connectionSlots = new Semaphore(maxConnections);
+		this.longPollMillis = longPollMillis;
+		this.maxParkedClients = maxParkedClients;
+		this.headerTimeoutMillis = headerTimeoutMillis;
+		this.bodyTimeoutMillis = bodyTimeoutMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/**
+	 * Creates an executor starting a virtual thread per task if the JVM has virtual threads, a
+	 * cached pool of daemon threads otherwise
+	 *
+	 * @return
+	 */
+	static ExecutorService newConnectionExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			AtomicInteger count = new AtomicInteger();
+			return Executors.newCachedThreadPool(r -> {
+				Thread thread = new Thread(null, r, "Connection-" + count.incrementAndGet(), 64 * 1024);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/**
+	 * Accepts and serves the clients until the server shuts down
+	 *
+	 * @throws IOException
+	 */
+	void run() throws IOException {
+		Thread housekeeper = new Thread(this::housekeeping, "Housekeeper");
+		housekeeper.setDaemon(true);
+		housekeeper.start();
+
+		while (true) {
+			if (!connectionSlots.tryAcquire()) {
+				server.saveLog("Accept paused: " + open.size() + " connections open");
+				connectionSlots.acquireUninterruptibly();
+				server.saveLog("Accept resumed: " + open.size() + " connections open");
+			}
+			SocketChannel sc;
+			try {
+				sc = ssc.accept();
+			} catch (ClosedChannelException e) {
+				connectionSlots.release();
+				break;
+			}
+			Connection connection = new Connection(sc);
+			server.saveLog("New connection from " + connection.address);
+			server.countClient(1);
+			open.add(connection);
+			connections.execute(() -> serve(connection));
+		}
+
+		connections.shutdown();
+		try {
+			while (!connections.awaitTermination(1, TimeUnit.SECONDS)) {
+				// the reaper closes the idle connections
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		lock.lock();
+		try {
+			server.stop();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops accepting clients, and closes the connections if now is true
+	 *
+	 * @param now
+	 */
+	void shutdown(boolean now) {
+		try {
+			ssc.close();
+		} catch (IOException e) {
+			//
+		}
+		lock.lock();
+		try {
+			tasksAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if (now) {
+			for (Connection connection : open) {
+				close(connection);
+			}
+		}
+	}
+
+	/**
+	 * Wakes the parked task requests up, after tasks were added or leases expired
+	 */
+	void wakeParkedRequests() {
+		lock.lock();
+		try {
+			tasksAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int getParkedRequests() {
+		lock.lock();
+		try {
+			return parkedRequests;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Runs the timers of the server, closes the connections whose deadline passed and wakes up
+	 * the parked requests when tasks are available
+	 */
+	private void housekeeping() {
+		while (true) {
+			try {
+				Thread.sleep(TICK_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			lock.lock();
+			try {
+				server.runTimers();
+				reaper.advance(System.currentTimeMillis(), connection -> {
+					server.countReaped(connection.deadline);
+					server.saveLog("Reaped connection of client " + connection.address + ": " + connection.deadline
+							+ " deadline passed");
+					close(connection);
+				});
+				if (parkedRequests > 0 && server.hasTask()) {
+					tasksAvailable.signalAll();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Serves the requests of a connection until it is closed
+	 *
+	 * @param connection
+	 */
+	private void serve(Connection connection) {
+		HTTPReader reader = new HTTPReader(connection.sc, ByteBuffer.allocate(1024));
+		try {
+			while (serveRequest(connection, reader)) {
+				// keep-alive
+			}
+		} catch (HTTPException e) {
+			server.saveLog("Client " + connection.address + " closed the connection");
+		} catch (ClosedChannelException e) {
+			// reaped or shut down
+		} catch (IOException | RuntimeException e) {
+			server.saveLog("Connection lost with client " + connection.address);
+		} finally {
+			lock.lock();
+			try {
+				setDeadline(connection, null);
+			} finally {
+				lock.unlock();
+			}
+			close(connection);
+			open.remove(connection);
+			server.countClient(-1);
+			connectionSlots.release();
+		}
+	}
+
+	/**
+	 * Reads a request and writes its response
+	 *
+	 * @param connection
+	 * @param reader
+	 * @return false if the connection must be closed
+	 * @throws IOException
+	 */
+	private boolean serveRequest(Connection connection, HTTPReader reader) throws IOException {
+		lock.lock();
+		try {
+			setDeadline(connection, Attachment.Deadline.IDLE);
+		} finally {
+			lock.unlock();
+		}
+		reader.waitForBytes();
+		lock.lock();
+		try {
+			setDeadline(connection, Attachment.Deadline.HEADER);
+		} finally {
+			lock.unlock();
+		}
+		String[] token = reader.readLineCRLF().split(" ");
+		HashMap<String, String> headers = new HashMap<>();
+		String line;
+		while (!(line = reader.readLineCRLF()).equals("")) {
+			String[] header = line.split(": ", 2);
+			if (header.length == 2) {
+				headers.put(header[0], header[1].trim());
+			}
+		}
+		if (token.length != 3 || !token[2].equals("HTTP/1.1")) {
+			write(connection, Server.charsetUTF8.encode(Server.badRequest));
+			return false;
+		}
+
+		boolean admitted;
+		lock.lock();
+		try {
+			setDeadline(connection, null);
+			admitted = server.beginRequest();
+		} finally {
+			lock.unlock();
+		}
+		if (!admitted) {
+			write(connection, server.serviceUnavailable());
+			return false;
+		}
+		try {
+			ByteBuffer response;
+			if (token[0].equals("GET") && token[1].equals("Task")) {
+				response = task(connection, headers);
+			} else if (token[0].equals("GET") && token[1].startsWith("Result/")) {
+				long jobId = Long.parseLong(token[1].substring("Result/".length()));
+				lock.lock();
+				try {
+					response = server.resultResponse(jobId);
+				} finally {
+					lock.unlock();
+				}
+			} else if (token[0].equals("GET") && token[1].startsWith("Answers/")) {
+				AnswerStream stream;
+				lock.lock();
+				try {
+					stream = server.answerStream(token[1]);
+				} finally {
+					lock.unlock();
+				}
+				if (stream == null) {
+					response = Server.charsetUTF8.encode(Server.notFound);
+				} else {
+					server.saveLog("Client " + connection.address + " is downloading " + token[1]);
+					try {
+						streamAnswers(connection, stream);
+					} finally {
+						stream.close();
+					}
+					return true;
+				}
+			} else if (token[0].equals("GET") && token[1].equals("Progress")) {
+				lock.lock();
+				try {
+					response = server.progressResponse();
+				} finally {
+					lock.unlock();
+				}
+			} else if (token[0].equals("GET") && token[1].startsWith("Subscribe/")) {
+				long jobId = Long.parseLong(token[1].substring("Subscribe/".length()));
+				AnswerRing.Cursor cursor;
+				lock.lock();
+				try {
+					cursor = server.subscribe(jobId);
+				} finally {
+					lock.unlock();
+				}
+				if (cursor == null) {
+					response = Server.charsetUTF8.encode(Server.notFound);
+				} else {
+					server.saveLog("Client " + connection.address + " subscribed to the answers of job " + jobId);
+					try {
+						pushAnswers(connection, cursor);
+					} finally {
+						lock.lock();
+						try {
+							server.unsubscribe(cursor);
+						} finally {
+							lock.unlock();
+						}
+					}
+					return false;
+				}
+			} else if (token[0].equals("GET") && token[1].equals("Steal") && server.isSharded()) {
+				server.saveLog("Shard " + connection.address + " is stealing tasks");
+				lock.lock();
+				try {
+					response = server.stealResponse(headers.getOrDefault("Steal-Jobs", ""));
+				} finally {
+					lock.unlock();
+				}
+			} else if (token[0].equals("GET") && token[1].equals("StealCommit") && server.isSharded()) {
+				lock.lock();
+				try {
+					response = server.stealCommitResponse(headers.getOrDefault("Steal-Offer", ""));
+				} finally {
+					lock.unlock();
+				}
+			} else if (token[0].equals("POST") && token[1].startsWith("Admin/")) {
+				response = admin(connection, reader, token[1], headers);
+				if (response == null) {
+					write(connection, Server.charsetUTF8.encode(Server.forbidden));
+					return false;
+				}
+			} else if (token[0].equals("POST")
+			        && (token[1].equals("Answer") || token[1].equals("Answer64") || token[1].equals("AnswerBatches"))) {
+				response = answer(connection, reader, headers, token[1]);
+				if (response == null) {
+					return false;
+				}
+			} else {
+				write(connection, Server.charsetUTF8.encode(Server.badRequest));
+				return false;
+			}
+			write(connection, response);
+			return true;
+		} catch (IllegalArgumentException e) {
+			write(connection, Server.charsetUTF8.encode(Server.badRequest));
+			return false;
+		} finally {
+			lock.lock();
+			try {
+				server.endRequest();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Leases tasks to a client, waiting for them up to longPollMillis if none is available
+	 *
+	 * @param connection
+	 * @param headers
+	 * @return
+	 * @throws IOException
+	 */
+	private ByteBuffer task(Connection connection, HashMap<String, String> headers) throws IOException {
+		server.saveLog("Client " + connection.address + " is requesting a task");
+		int batch = 1;
+		if (headers.containsKey("Task-Batch")) {
+			batch = Math.max(1, Math.min(Integer.parseInt(headers.get("Task-Batch")), Server.MAX_TASK_BATCH));
+		}
+		String clientId = headers.get("Client-Id");
+		lock.lock();
+		try {
+			batch = server.leaseSize(clientId, batch);
+			if (longPollMillis > 0 && !server.isShutdown() && !server.hasTask() && parkedRequests < maxParkedClients) {
+				server.requestSteal();
+				long deadline = System.currentTimeMillis() + longPollMillis;
+				parkedRequests++;
+				try {
+					long left;
+					while (!server.hasTask() && !server.isShutdown()
+							&& (left = deadline - System.currentTimeMillis()) > 0) {
+						tasksAvailable.await(left, TimeUnit.MILLISECONDS);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					parkedRequests--;
+				}
+			}
+			return server.taskResponse(batch, clientId);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads an answer, or the answers of a POST AnswerBatches request, and saves them
+	 *
+	 * @param connection
+	 * @param reader
+	 * @param headers
+	 * @param requested Answer, Answer64 or AnswerBatches
+	 * @return the response, or null if the answers were rejected and the connection must be closed
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the content type or length is invalid
+	 */
+	private ByteBuffer answer(Connection connection, HTTPReader reader, HashMap<String, String> headers,
+			String requested) throws IOException {
+		boolean batches = requested.equals("AnswerBatches");
+		boolean legacy = requested.equals("Answer");
+		server.saveLog("Client " + connection.address + (batches ? " is posting answer batches" : " is posting an answer"));
+		if (!"application/json".equals(headers.get("Content-Type"))) {
+			throw new IllegalArgumentException("Invalid content type " + headers.get("Content-Type"));
+		}
+		int length = Integer.parseInt(headers.getOrDefault("Content-Length", "-1"));
+		if (length < (batches ? 0 : legacy ? Long.BYTES + Integer.BYTES : 2 * Long.BYTES)) {
+			throw new IllegalArgumentException("Invalid content length " + length);
+		}
+		if (server.isTooLarge(length)) {
+			write(connection, Server.charsetUTF8.encode(Server.payloadTooLarge));
+			return null;
+		}
+		boolean admitted;
+		lock.lock();
+		try {
+			admitted = server.reserveAnswerBytes(length);
+			if (admitted) {
+				setDeadline(connection, Attachment.Deadline.BODY);
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (!admitted) {
+			write(connection, server.serviceUnavailable());
+			return null;
+		}
+		ByteBuffer content;
+		try {
+			content = reader.readBytes(length);
+		} finally {
+			lock.lock();
+			try {
+				setDeadline(connection, null);
+				server.releaseAnswerBytes(length);
+			} finally {
+				lock.unlock();
+			}
+		}
+		content.flip();
+		AnswerClaim claim = batches ? AnswerClaim.ofBatches(content, headers.get("Client-Id"))
+		        : AnswerClaim.ofAnswer(content, legacy);
+		lock.lock();
+		try {
+			server.claim(claim);
+		} finally {
+			lock.unlock();
+		}
+		try {
+			server.save(claim, connection.answerBatch);
+		} finally {
+			lock.lock();
+			try {
+				server.fold(claim);
+			} finally {
+				lock.unlock();
+			}
+		}
+		return batches ? Server.answersResponse(claim.getTasks()) : Server.checkCodeResponse(claim.getAnswer());
+	}
+
+	/**
+	 * Reads a request of the admin API and applies it, if the client connects from this host
+	 *
+	 * @param connection
+	 * @param reader
+	 * @param requested
+	 * @param headers
+	 * @return the response, or null if the client is not allowed to use the admin API
+	 * @throws IOException
+	 */
+	private ByteBuffer admin(Connection connection, HTTPReader reader, String requested,
+			HashMap<String, String> headers) throws IOException {
+		if (!Server.isLoopback(connection.sc.getRemoteAddress())) {
+			server.saveLog("Refused admin request " + requested + " from " + connection.address);
+			return null;
+		}
+		if (!server.isAdminToken(headers.get("Admin-Token"))) {
+			server.saveLog("Refused admin request " + requested + " without the admin token");
+			return null;
+		}
+		int length = Integer.parseInt(headers.getOrDefault("Content-Length", "0"));
+		if (length < 0 || length > Server.MAX_ADMIN_CONTENT) {
+			return Server.charsetUTF8.encode(Server.badRequest);
+		}
+		lock.lock();
+		try {
+			setDeadline(connection, Attachment.Deadline.BODY);
+		} finally {
+			lock.unlock();
+		}
+		ByteBuffer content;
+		try {
+			content = reader.readBytes(length);
+		} finally {
+			lock.lock();
+			try {
+				setDeadline(connection, null);
+			} finally {
+				lock.unlock();
+			}
+		}
+		content.flip();
+		lock.lock();
+		try {
+			return server.adminResponse(requested, content);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the answers streamed to a client chunk by chunk. The client has bodyTimeoutMillis to
+	 * take each chunk.
+	 *
+	 * @param connection
+	 * @param stream
+	 * @throws IOException
+	 */
+	private void streamAnswers(Connection connection, AnswerStream stream) throws IOException {
+		write(connection, Server.charsetUTF8.encode(Server.chunkedAnswers));
+		boolean finished;
+		do {
+			lock.lock();
+			try {
+				setDeadline(connection, Attachment.Deadline.BODY);
+			} finally {
+				lock.unlock();
+			}
+			finished = stream.writeTo(connection.sc);
+		} while (!finished);
+		lock.lock();
+		try {
+			setDeadline(connection, null);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the answers published for a job to a subscriber as they come, until the server shuts
+	 * down. The subscriber has bodyTimeoutMillis to take the answers of each write.
+	 *
+	 * @param connection
+	 * @param cursor
+	 * @throws IOException
+	 */
+	private void pushAnswers(Connection connection, AnswerRing.Cursor cursor) throws IOException {
+		write(connection, Server.charsetUTF8.encode(Server.chunkedAnswers));
+		while (!server.isShutdown()) {
+			if (cursor.hasNext()) {
+				lock.lock();
+				try {
+					setDeadline(connection, Attachment.Deadline.BODY);
+				} finally {
+					lock.unlock();
+				}
+				cursor.writeTo(connection.sc);
+				lock.lock();
+				try {
+					setDeadline(connection, null);
+				} finally {
+					lock.unlock();
+				}
+			}
+			try {
+				cursor.await(TICK_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		cursor.writeTo(connection.sc);
+		write(connection, Server.charsetUTF8.encode("0\r\n\r\n"));
+	}
+
+	private static void write(Connection connection, ByteBuffer response) throws IOException {
+		while (response.hasRemaining()) {
+			connection.sc.write(response);
+		}
+	}
+
+	/**
+	 * Schedules the deadline of the current phase of a connection, or cancels it if deadline is
+	 * null. Must be called holding the lock.
+	 *
+	 * @param connection
+	 * @param deadline
+	 */
+	private void setDeadline(Connection connection, Attachment.Deadline deadline) {
+		connection.deadline = deadline;
+		if (deadline == null) {
+			reaper.cancel(connection.timer);
+			return;
+		}
+		long timeout;
+		switch (deadline) {
+		case HEADER:
+			timeout = headerTimeoutMillis;
+			break;
+		case BODY:
+			timeout = bodyTimeoutMillis;
+			break;
+		default:
+			timeout = idleTimeoutMillis;
+		}
+		reaper.schedule(connection.timer, System.currentTimeMillis() + timeout);
+	}
+
+	private static void close(Connection connection) {
+		try {
+			connection.sc.close();
+		} catch (IOException e) {
+			//
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package upem.jarret.server;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import upem.jarret.job.Job;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Watches the jobs config file and hands every new version of its content to a listener.
+ * The file is parsed on the watching thread, so the listener only has to apply the jobs.
+ */
+public class JobsReloader {
+	private static final long SETTLE_MILLIS = 200;
+
+	private final Path jobsConfigPath;
+	private final Consumer<List<Job>> listener;
+	private final Consumer<String> log;
+	private final Thread thread = new Thread(this::watch, "JobsReloader");
+
+	public JobsReloader(Path jobsConfigPath, Consumer<List<Job>> listener, Consumer<String> log) {
+		this.jobsConfigPath = jobsConfigPath.toAbsolutePath();
+		this.listener = Objects.requireNonNull(listener);
+		this.log = Objects.requireNonNull(log);
+	}
+
+	/**
+	 * Reads all the jobs of a jobs config file
+	 * 
+	 * @param jobsConfigPath
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Job> readJobs(Path jobsConfigPath) throws IOException {
+		List<Job> jobs = new ArrayList<>();
+		JsonFactory jf = new JsonFactory();
+		try (JsonParser jp = jf.createParser(Files.newBufferedReader(jobsConfigPath))) {
+			JsonToken current = jp.nextToken();
+			while (current != null) {
+				switch (current) {
+				case START_OBJECT:
+					jobs.add(Job.parseJSON(jp));
+					break;
+				default:
+					break;
+				}
+				current = jp.nextToken();
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * Starts watching the file on a daemon thread
+	 */
+	public void start() {
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void watch() {
+		Path directory = jobsConfigPath.getParent();
+		try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+			directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			while (!Thread.currentThread().isInterrupted()) {
+				WatchKey key = watcher.take();
+				boolean changed = containsJobsConfig(key);
+				key.reset();
+				if (!changed) {
+					continue;
+				}
+				// editors often write a file in several steps, wait for the writes to settle
+				Thread.sleep(SETTLE_MILLIS);
+				while ((key = watcher.poll()) != null) {
+					key.pollEvents();
+					key.reset();
+				}
+				reload();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// stop watching
+		} catch (IOException e) {
+			log.accept("Cannot watch " + jobsConfigPath + ": " + e);
+		}
+	}
+
+	private boolean containsJobsConfig(WatchKey key) {
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW
+			        || jobsConfigPath.getFileName().equals(event.context())) {
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private void reload() {
+		List<Job> jobs;
+		try {
+			jobs = readJobs(jobsConfigPath);
+		} catch (IOException | RuntimeException e) {
+			log.accept("Ignoring invalid " + jobsConfigPath + ": " + e);
+			return;
+		}
+		listener.accept(jobs);
+	}
+}
@@ -0,0 +1,90 @@
+package upem.jarret.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Chooses the number of tasks leased to a client from its measured throughput, so that every
+ * client comes back after about the same time whatever its speed. The throughput of a client is
+ * an exponentially weighted moving average of the tasks of its last lease divided by the time
+ * between the dispatch of the lease and the next request of the client.
+ *
+ * Used by the selector thread, or under the lock of the blocking engine.
+ */
+class LeaseSizer {
+	private static final double ALPHA = 0.3;
+	private static final int MAX_CLIENTS = 100_000;
+
+	private final long targetMillis;
+	private final int maxLeaseSize;
+	private final LinkedHashMap<String, Rate> rates = new LinkedHashMap<String, Rate>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Rate> eldest) {
+			return size() > MAX_CLIENTS;
+		}
+	};
+
+	private static class Rate {
+		private double tasksPerSecond = -1;
+		private long leasedAt;
+		private int leased;
+	}
+
+	/**
+	 * @param targetMillis the time a lease should take to a client
+	 * @param maxLeaseSize the largest lease
+	 */
+	public LeaseSizer(long targetMillis, int maxLeaseSize) {
+		if (targetMillis <= 0 || maxLeaseSize < 1) {
+			throw new IllegalArgumentException("targetMillis and maxLeaseSize must be positive");
+		}
+		this.targetMillis = targetMillis;
+		this.maxLeaseSize = maxLeaseSize;
+	}
+
+	/**
+	 * Records a task request of a client, which completes its previous lease, and returns the
+	 * size of its next lease
+	 *
+	 * @param clientId
+	 * @param batch the largest lease the client accepts
+	 * @param now
+	 * @return
+	 */
+	public int requested(String clientId, int batch, long now) {
+		Rate rate = rates.computeIfAbsent(clientId, id -> new Rate());
+		if (rate.leased > 0) {
+			double sample = rate.leased * 1000.0 / Math.max(1, now - rate.leasedAt);
+			rate.tasksPerSecond = rate.tasksPerSecond < 0 ? sample
+					: ALPHA * sample + (1 - ALPHA) * rate.tasksPerSecond;
+			rate.leased = 0;
+		}
+		if (rate.tasksPerSecond < 0) {
+			// first lease, measures the client with a single task
+			return 1;
+		}
+		long size = Math.round(rate.tasksPerSecond * targetMillis / 1000.0);
+		return (int) Math.max(1, Math.min(size, Math.min(batch, maxLeaseSize)));
+	}
+
+	/**
+	 * Records the dispatch of a lease to a client
+	 *
+	 * @param clientId
+	 * @param taskCount
+	 * @param now
+	 */
+	public void leased(String clientId, int taskCount, long now) {
+		Rate rate = rates.get(clientId);
+		if (rate != null) {
+			rate.leased = taskCount;
+			rate.leasedAt = now;
+		}
+	}
+
+	public int size() {
+		return rates.size();
+	}
+}
@@ -0,0 +1,412 @@
+package upem.jarret.server;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import upem.jarret.job.Job;
+import upem.jarret.job.Task;
+
+/**
+ * Hands out the tasks of the jobs in rotation, each job appearing in the rotation as many
+ * times as its priority.
+ *
+ * A client is given tasks of the worker it ran last when possible, so that it does not load
+ * another worker: a job with this worker may be served before its turn, at most affinitySlack
+ * times, and each of its later turns in the rotation is skipped to pay this back.
+ */
+public class Scheduler {
+	private static final int MAX_CLIENTS = 100_000;
+
+	private final ArrayDeque<Job> jobs = new ArrayDeque<Job>();
+	private final HashMap<Long, Job> jobsById = new HashMap<>();
+	private final HashSet<Long> retired = new HashSet<>();
+	private final HashSet<Long> paused = new HashSet<>();
+	private final long endgameTasks;
+	private final int affinitySlack;
+	// jobId -> number of leases served before the turn of the job
+	private final HashMap<Long, Integer> ahead = new HashMap<>();
+	private final LinkedHashMap<String, String> lastWorkers = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_CLIENTS;
+		}
+	};
+	private long leases;
+	private long workerSwitches;
+
+	/**
+	 * @param endgameTasks the number of outstanding tasks under which a job without tasks to
+	 *        dispatch hands its outstanding tasks out again to idle clients, 0 to never do it
+	 * @param affinitySlack the number of leases a job may be served ahead of its turn to keep a
+	 *        client on the same worker, 0 to never do it
+	 */
+	public Scheduler(long endgameTasks, int affinitySlack) {
+		if (endgameTasks < 0) {
+			throw new IllegalArgumentException("endgameTasks must not be negative: " + endgameTasks);
+		}
+		if (affinitySlack < 0) {
+			throw new IllegalArgumentException("affinitySlack must not be negative: " + affinitySlack);
+		}
+		this.endgameTasks = endgameTasks;
+		this.affinitySlack = affinitySlack;
+	}
+
+	/**
+	 * Adds a job to the rotation
+	 * 
+	 * @param job
+	 */
+	public void add(Job job) {
+		Objects.requireNonNull(job);
+		jobsById.put(job.getJobId(), job);
+		for (int i = 0; i < job.getJobPriority(); i++) {
+			jobs.add(job);
+		}
+	}
+
+	/**
+	 * Changes the number of times a job appears in the rotation. A paused job stays out of the
+	 * rotation until it is resumed.
+	 * 
+	 * @param jobId
+	 * @param priority
+	 */
+	public void setPriority(long jobId, int priority) {
+		Job job = jobsById.get(jobId);
+		if (job == null) {
+			throw new IllegalArgumentException("Unknown job " + jobId);
+		}
+		jobs.removeIf(j -> j == job);
+		job.setJobPriority(priority);
+		retired.remove(jobId);
+		if (paused.contains(jobId)) {
+			return;
+		}
+		for (int i = 0; i < priority; i++) {
+			jobs.add(job);
+		}
+	}
+
+	/**
+	 * Takes a job out of the rotation until it is resumed. Unlike a retired job, a paused job is
+	 * not put back in the rotation when its priority changes, and answers for its leased tasks
+	 * are still accepted.
+	 * 
+	 * @param jobId
+	 */
+	public void pause(long jobId) {
+		Job job = jobsById.get(jobId);
+		if (job == null) {
+			throw new IllegalArgumentException("Unknown job " + jobId);
+		}
+		jobs.removeIf(j -> j == job);
+		ahead.remove(jobId);
+		paused.add(jobId);
+	}
+
+	/**
+	 * Puts a paused job back in the rotation, unless it was retired in the meantime
+	 * 
+	 * @param jobId
+	 */
+	public void resume(long jobId) {
+		Job job = jobsById.get(jobId);
+		if (job == null) {
+			throw new IllegalArgumentException("Unknown job " + jobId);
+		}
+		if (!paused.remove(jobId) || retired.contains(jobId)) {
+			return;
+		}
+		for (int i = 0; i < job.getJobPriority(); i++) {
+			jobs.add(job);
+		}
+	}
+
+	/**
+	 * Tests if a job is paused
+	 * 
+	 * @param jobId
+	 * @return
+	 */
+	public boolean isPaused(long jobId) {
+		return paused.contains(jobId);
+	}
+
+	/**
+	 * Removes a job from the rotation. Answers for its leased tasks are still accepted.
+	 * 
+	 * @param jobId
+	 */
+	public void retire(long jobId) {
+		Job job = jobsById.get(jobId);
+		if (job == null) {
+			throw new IllegalArgumentException("Unknown job " + jobId);
+		}
+		jobs.removeIf(j -> j == job);
+		ahead.remove(jobId);
+		retired.add(jobId);
+	}
+
+	/**
+	 * Adds a range of tasks given away by another shard to a job, and puts the job back in the
+	 * rotation if it left it when it was finished and is not paused
+	 * 
+	 * @param jobId
+	 * @param from
+	 * @param to exclusive
+	 */
+	public void addRange(long jobId, long from, long to) {
+		Job job = jobsById.get(jobId);
+		if (job == null || retired.contains(jobId)) {
+			throw new IllegalArgumentException("Unknown job " + jobId);
+		}
+		job.addRange(from, to);
+		if (!paused.contains(jobId) && !jobs.contains(job)) {
+			for (int i = 0; i < job.getJobPriority(); i++) {
+				jobs.add(job);
+			}
+		}
+	}
+
+	/**
+	 * Tests if a job was removed from the rotation
+	 * 
+	 * @param jobId
+	 * @return
+	 */
+	public boolean isRetired(long jobId) {
+		return retired.contains(jobId);
+	}
+
+	/**
+	 * Returns the job with this id, even if it is not in the rotation anymore
+	 * 
+	 * @param jobId
+	 * @return the job or null if it is unknown
+	 */
+	public Job getJob(long jobId) {
+		return jobsById.get(jobId);
+	}
+
+	/**
+	 * Returns all the known jobs
+	 * 
+	 * @return
+	 */
+	public Collection<Job> getJobs() {
+		return Collections.unmodifiableCollection(jobsById.values());
+	}
+
+	/**
+	 * Returns the job at the head of the rotation
+	 * 
+	 * @return the job or null if there is none
+	 */
+	public Job peek() {
+		return jobs.peek();
+	}
+
+	/**
+	 * Tests if a task can be dispatched now, speculatively or not
+	 * 
+	 * @return
+	 */
+	public boolean hasTask() {
+		for (Job job : jobs) {
+			if (job.hasTask()) {
+				return true;
+			}
+		}
+		return endgameJob() != null;
+	}
+
+	/**
+	 * Returns a job of the rotation whose outstanding tasks can be handed out speculatively,
+	 * preferably one with the given worker
+	 * 
+	 * @param worker the worker of the client, or null
+	 * @return the job or null if there is none
+	 */
+	private Job endgameJob(String worker) {
+		if (endgameTasks == 0) {
+			return null;
+		}
+		Job found = null;
+		for (Job job : jobs) {
+			if (job.canSpeculate() && job.getOutstandingTasks() <= endgameTasks) {
+				if (worker == null || worker.equals(workerOf(job))) {
+					return job;
+				}
+				if (found == null) {
+					found = job;
+				}
+			}
+		}
+		return found;
+	}
+
+	private Job endgameJob() {
+		return endgameJob(null);
+	}
+
+	/**
+	 * Returns a job of the rotation with the given worker which has a task to dispatch and may
+	 * still be served ahead of its turn
+	 * 
+	 * @param worker
+	 * @return the job or null if there is none
+	 */
+	private Job affineJob(String worker) {
+		if (affinitySlack == 0) {
+			return null;
+		}
+		for (Job job : jobs) {
+			if (worker.equals(workerOf(job)) && ahead.getOrDefault(job.getJobId(), 0) < affinitySlack
+					&& !job.isFinished() && job.hasTask()) {
+				return job;
+			}
+		}
+		return null;
+	}
+
+	private static String workerOf(Job job) {
+		return job.getWorkerClassName() + " " + job.getWorkerVersion();
+	}
+
+	/**
+	 * Leases the next task of the rotation. Finished jobs leave the rotation, jobs waiting for
+	 * their last answers are skipped. When no job has a task to dispatch, the outstanding tasks
+	 * of a job in its endgame are handed out speculatively.
+	 * 
+	 * @param batch the maximum number of consecutive tasks to lease
+	 * @param deadline the time in milliseconds at which the lease expires
+	 * @return the task or null if no task can be dispatched now
+	 * @throws IOException
+	 */
+	public Task nextTask(int batch, long deadline) throws IOException {
+		return nextTask(batch, deadline, null);
+	}
+
+	/**
+	 * Leases the next task for a client, from a job with the worker the client ran last if it
+	 * may be served ahead of its turn, from the job whose turn it is otherwise
+	 * 
+	 * @param batch the maximum number of consecutive tasks to lease
+	 * @param deadline the time in milliseconds at which the lease expires
+	 * @param clientId the id of the client, or null if it is unknown
+	 * @return the task or null if no task can be dispatched now
+	 * @throws IOException
+	 */
+	public Task nextTask(int batch, long deadline, String clientId) throws IOException {
+		String worker = clientId == null ? null : lastWorkers.get(clientId);
+		Job inTurn = null;
+		Job skipped = null;
+		for (int i = jobs.size(); i > 0 && inTurn == null; i--) {
+			Job job = jobs.poll();
+			if (job.isFinished()) {
+				ahead.remove(job.getJobId());
+				continue;
+			}
+			jobs.addLast(job);
+			if (!job.hasTask()) {
+				continue;
+			}
+			Integer served = ahead.get(job.getJobId());
+			if (served == null) {
+				inTurn = job;
+			} else {
+				// this turn was used by a lease served ahead
+				if (served == 1) {
+					ahead.remove(job.getJobId());
+				} else {
+					ahead.put(job.getJobId(), served - 1);
+				}
+				if (skipped == null) {
+					skipped = job;
+				}
+			}
+		}
+		Job job = inTurn != null ? inTurn : skipped;
+		if (job != null && worker != null && !worker.equals(workerOf(job))) {
+			Job affine = affineJob(worker);
+			if (affine != null) {
+				if (job == inTurn) {
+					// the job keeps its turn
+					jobs.pollLast();
+					jobs.addFirst(inTurn);
+				}
+				ahead.merge(affine.getJobId(), 1, Integer::sum);
+				job = affine;
+			}
+		}
+		Task task;
+		if (job != null) {
+			task = job.nextTask(batch, deadline);
+		} else {
+			job = endgameJob(worker);
+			task = job == null ? null : job.nextSpeculativeTask(batch);
+		}
+		if (task != null && clientId != null) {
+			leases++;
+			String previous = lastWorkers.put(clientId, workerOf(job));
+			if (previous != null && !previous.equals(workerOf(job))) {
+				workerSwitches++;
+			}
+		}
+		return task;
+	}
+
+	/**
+	 * Returns the number of leases given to clients with a known id
+	 * 
+	 * @return
+	 */
+	public long getLeases() {
+		return leases;
+	}
+
+	/**
+	 * Returns the number of these leases whose worker differs from the previous lease of the client
+	 * 
+	 * @return
+	 */
+	public long getWorkerSwitches() {
+		return workerSwitches;
+	}
+
+	/**
+	 * Expires the leases whose deadline is passed
+	 * 
+	 * @param now the current time in milliseconds
+	 * @return the number of tasks to dispatch again
+	 */
+	public int expireLeases(long now) {
+		int expired = 0;
+		for (Job job : jobsById.values()) {
+			expired += job.expireLeases(now);
+		}
+		return expired;
+	}
+
+	/**
+	 * Returns the earliest deadline of the leases
+	 * 
+	 * @return the time in milliseconds, or Long.MAX_VALUE if no lease is outstanding
+	 */
+	public long getNextLeaseDeadline() {
+		long deadline = Long.MAX_VALUE;
+		for (Job job : jobsById.values()) {
+			deadline = Math.min(deadline, job.getNextLeaseDeadline());
+		}
+		return deadline;
+	}
+}
@@ -1,30 +1,66 @@
 package upem.jarret.server;
 
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
-import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Objects;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import upem.jarret.events.AnswerReceiveEvent;
+import upem.jarret.events.AnswerSaveEvent;
+import upem.jarret.events.SelectorIterationEvent;
+import upem.jarret.events.TaskDispatchEvent;
 import upem.jarret.http.HTTPReaderServer;
 import upem.jarret.job.Job;
+import upem.jarret.job.Task;
+import upem.jarret.job.TaskSet;
+import upem.jarret.reducer.JobResult;
+import upem.jarret.storage.AnswerStore;
+import upem.jarret.storage.AnswerStream;
+import upem.jarret.storage.ColumnarExporter;
+import upem.jarret.storage.Recovery;
+import upem.jarret.storage.SortedSegments;
 import util.JsonTools;
 
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
@@ -34,6 +70,20 @@ public class Server {
 	static final Charset charsetASCII = Charset.forName("ASCII");
 	static final Charset charsetUTF8 = Charset.forName("utf-8");
 	static final String badRequest = "HTTP/1.1 400 Bad Request\r\n\r\n";
+	static final String notFound = "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n";
+	static final String noContent = "HTTP/1.1 204 No Content\r\n\r\n";
+	static final String forbidden = "HTTP/1.1 403 Forbidden\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+	static final String conflict = "HTTP/1.1 409 Conflict\r\nContent-Length: 0\r\n\r\n";
+	static final String payloadTooLarge = "HTTP/1.1 413 Payload Too Large\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+	static final String chunkedAnswers = "HTTP/1.1 200 OK\r\nContent-Type: application/x-ndjson; charset=utf-8\r\n"
+			+ "Transfer-Encoding: chunked\r\n\r\n";
+	private static final int STREAM_CHUNKS_PER_WRITE = 16;
+	static final int MAX_TASK_BATCH = 1024;
+	private static final int ACCEPT_BACKLOG = 4096;
+	private static final long SELECT_MILLIS = 300;
+	private static final long RATE_SAMPLE_MILLIS = 1000;
+	private static final long RATE_WINDOW_MILLIS = 60_000;
+	static final int MAX_ADMIN_CONTENT = 64 * 1024;
 
 	private final ServerSocketChannel ssc;
 	private final Selector selector;
@@ -41,21 +91,77 @@ public class Server {
 
 	private final String logPath;
 	private final String answersPath;
-	private final long maxFileSize;
+	private final AnswerStore answerStore;
+	private final AnswerBatch answerBatch = new AnswerBatch();
+	private final boolean exportFinishedJobs;
+	private final HashSet<Long> exportedJobs = new HashSet<>();
+	// the tasks whose answer is being saved, by job, claimed by a connection of the blocking engine
+	private final HashMap<Long, HashSet<Long>> savingTasks = new HashMap<>();
+	private final ExecutorService exporter = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "ColumnarExporter");
+		thread.setDaemon(true);
+		return thread;
+	});
 	private final int comeBackInSeconds;
-	private final ArrayDeque<Job> jobs = new ArrayDeque<Job>();
+	private final long leaseMillis;
+	private final long checkpointMillis;
+	private long nextCheckpoint;
+	private long nextRateSample;
+	private final long longPollMillis;
+	private final int maxParkedClients;
+	private final Scheduler scheduler;
+	private final ArrayDeque<ParkedRequest> parkedRequests = new ArrayDeque<>();
+	private final ConcurrentLinkedQueue<Runnable> pendingCommands = new ConcurrentLinkedQueue<>();
+	private final Path jobsConfigPath;
+	private final Shards shards;
 	private final Object clientMonitor = new Object();
 	//private final PrintWriter log;
 
-	private boolean shutdown = false;
+	private volatile boolean shutdown = false;
 	private SelectionKey acceptKey;
 	private int nbClients = 0;
 	private int nbAnswers = 0;
+	private final int maxConnections;
+	private final int maxInFlightRequests;
+	private final long maxPendingAnswerBytes;
+	private final ByteBuffer serviceUnavailable;
+	private boolean acceptPaused = false;
+	private int inFlightRequests = 0;
+	private long pendingAnswerBytes = 0;
+	private long nbRejected = 0;
+	private long nbDuplicates = 0;
+	private final long headerTimeoutMillis;
+	private final long bodyTimeoutMillis;
+	private final long idleTimeoutMillis;
+	private final TimingWheel<SelectionKey> reaper = new TimingWheel<>(100, 1024, System.currentTimeMillis());
+	private final long[] reaped = new long[Attachment.Deadline.values().length];
+	private final LeaseSizer leaseSizer;
+	private final BlockingEngine blockingEngine;
+	private final int subscriptionBufferSize;
+	private final HashMap<Long, AnswerRing> rings = new HashMap<>();
+	private final List<SelectionKey> subscribers = new ArrayList<>();
+	private long nbSkipped = 0;
+	// jobs added through the admin API, which a reload of the jobs config file does not retire
+	// saved in the answers directory, so that they are added again by the next run
+	private final LinkedHashMap<Long, String> submittedJobs = new LinkedHashMap<>();
+	private final byte[] adminToken;
+	// the ranges offered to other shards and not committed yet, by offer id
+	private final HashMap<Long, StealOffer> stealOffers = new HashMap<>();
+	private boolean draining = false;
 
 	private final Thread consoleThread = new Thread(() -> {
 		try (Scanner scanner = new Scanner(System.in)) {
 			while (scanner.hasNextLine()) {
-				switch (scanner.nextLine()) {
+				String command = scanner.nextLine();
+				if (command.startsWith("EXPORT ")) {
+					export(command.substring("EXPORT ".length()).trim());
+					continue;
+				}
+				if (command.startsWith("ANSWER ")) {
+					findAnswer(command.substring("ANSWER ".length()).trim());
+					continue;
+				}
+				switch (command) {
 				case "SHUTDOWN":
 					shutdown();
 					break;
@@ -73,17 +179,166 @@ public class Server {
 		}
 	});
 
-	private Server(int port, String logPath, String answersPath, long maxFileSize, int comeBackInSeconds)
-			throws IOException {
+	/**
+	 * A GET Task request waiting for a task to be available
+	 */
+	private static class ParkedRequest {
+		private final SelectionKey key;
+		private final long deadline;
+
+		ParkedRequest(SelectionKey key, long deadline) {
+			this.key = key;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * A range of tasks offered to another shard, still owned by this one until the offer is committed
+	 */
+	private static class StealOffer {
+		private final Job job;
+		private final long from;
+		private final long to;
+		private final long deadline;
+
+		StealOffer(Job job, long from, long to, long deadline) {
+			this.job = job;
+			this.from = from;
+			this.to = to;
+			this.deadline = deadline;
+		}
+	}
+
+	private Server(int port, String logPath, String answersPath, String jobsPath, long maxFileSize,
+			boolean compressSegments, boolean orderedAnswers, long reorderBufferBytes, int reorderGapSeconds,
+			boolean exportFinishedJobs,
+			int comeBackInSeconds, int leaseSeconds, int longPollSeconds, int maxParkedClients, int checkpointSeconds,
+			int shardIndex, List<String> shardAddresses, long minStealTasks, int maxConnections,
+			int maxInFlightRequests, long maxPendingAnswerBytes, int retryAfterSeconds, int headerTimeoutSeconds,
+			int bodyTimeoutSeconds, int idleTimeoutSeconds, int targetLeaseSeconds, int maxLeaseSize,
+			long endgameTasks, int affinitySlack, int subscriptionBufferSize, boolean blockingEngine,
+			String adminTokenPath) throws IOException {
+		if (subscriptionBufferSize < 1) {
+			throw new IllegalArgumentException("SubscriptionBufferSize must be positive");
+		}
 		this.logPath = logPath;
+		this.subscriptionBufferSize = subscriptionBufferSize;
+		this.leaseSizer = new LeaseSizer(targetLeaseSeconds * 1000L, maxLeaseSize);
+		this.scheduler = new Scheduler(endgameTasks, affinitySlack);
+		this.headerTimeoutMillis = headerTimeoutSeconds * 1000L;
+		this.bodyTimeoutMillis = bodyTimeoutSeconds * 1000L;
+		this.idleTimeoutMillis = idleTimeoutSeconds * 1000L;
+		this.maxConnections = maxConnections;
+		this.maxInFlightRequests = maxInFlightRequests;
+		this.maxPendingAnswerBytes = maxPendingAnswerBytes;
+		byte[] unavailable = ("HTTP/1.1 503 Service Unavailable\r\nRetry-After: " + retryAfterSeconds
+				+ "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(charsetASCII);
+		this.serviceUnavailable = ByteBuffer.allocateDirect(unavailable.length).put(unavailable);
+		this.serviceUnavailable.flip();
+		this.jobsConfigPath = Paths.get(jobsPath);
+		this.shards = shardAddresses.isEmpty() ? null
+				: new Shards(shardIndex, shardAddresses, minStealTasks, this::saveLog);
 		this.answersPath = answersPath;
-		this.maxFileSize = maxFileSize;
+		this.answerStore = new AnswerStore(Paths.get(answersPath), maxFileSize, compressSegments, orderedAnswers,
+				reorderBufferBytes, reorderGapSeconds * 1000L, this::saveLog);
+		this.exportFinishedJobs = exportFinishedJobs;
 		this.comeBackInSeconds = comeBackInSeconds;
+		this.leaseMillis = leaseSeconds * 1000L;
+		this.longPollMillis = longPollSeconds * 1000L;
+		this.maxParkedClients = maxParkedClients;
+		this.checkpointMillis = checkpointSeconds * 1000L;
+		this.nextCheckpoint = System.currentTimeMillis() + checkpointMillis;
+		this.adminToken = loadAdminToken(Paths.get(adminTokenPath)).getBytes(charsetASCII);
 
 		ssc = ServerSocketChannel.open();
-		ssc.bind(new InetSocketAddress(port));
+		// a connection the accept queue has no room for waits for SYN retransmissions
+		ssc.bind(new InetSocketAddress(port), Math.min(maxConnections, ACCEPT_BACKLOG));
 		selector = Selector.open();
 		selectedKeys = selector.selectedKeys();
+		this.blockingEngine = blockingEngine ? new BlockingEngine(this, ssc, maxConnections, longPollMillis,
+				maxParkedClients, headerTimeoutMillis, bodyTimeoutMillis, idleTimeoutMillis) : null;
+	}
+
+	/**
+	 * Tests if a task can be dispatched now. The next functions are used by the blocking engine,
+	 * which calls them holding its lock.
+	 * 
+	 * @return
+	 */
+	boolean hasTask() {
+		return !draining && scheduler.hasTask();
+	}
+
+	boolean isShutdown() {
+		return shutdown;
+	}
+
+	boolean isSharded() {
+		return shards != null;
+	}
+
+	/**
+	 * Counts a request whose response is not written yet, unless too many requests are in flight
+	 * 
+	 * @return false if the request must be rejected
+	 */
+	boolean beginRequest() {
+		if (inFlightRequests >= maxInFlightRequests) {
+			nbRejected++;
+			return false;
+		}
+		inFlightRequests++;
+		return true;
+	}
+
+	void endRequest() {
+		inFlightRequests--;
+	}
+
+	/**
+	 * Counts the bytes of an answer being received, unless it would exceed maxPendingAnswerBytes
+	 * 
+	 * @param length
+	 * @return false if the answer must be rejected
+	 */
+	boolean reserveAnswerBytes(int length) {
+		if (pendingAnswerBytes + length > maxPendingAnswerBytes) {
+			nbRejected++;
+			return false;
+		}
+		pendingAnswerBytes += length;
+		return true;
+	}
+
+	void releaseAnswerBytes(int length) {
+		pendingAnswerBytes -= length;
+	}
+
+	/**
+	 * @param length
+	 * @return true if an answer of this length could never be admitted
+	 */
+	boolean isTooLarge(int length) {
+		return length > maxPendingAnswerBytes;
+	}
+
+	/**
+	 * Returns the pre-encoded 503 response
+	 * 
+	 * @return
+	 */
+	ByteBuffer serviceUnavailable() {
+		return serviceUnavailable.duplicate();
+	}
+
+	void countClient(int delta) {
+		synchronized (clientMonitor) {
+			nbClients += delta;
+		}
+	}
+
+	void countReaped(Attachment.Deadline deadline) {
+		reaped[deadline.ordinal()]++;
 	}
 
 	/**
@@ -94,8 +349,96 @@ public class Server {
 		synchronized (clientMonitor) {
 			System.out.println("Connected clients: "+nbClients);
 		}
-		System.out.println("Next task: - jobId: "+jobs.getFirst().getJobId()+" - task: "+jobs.getFirst().getCurrentTask());
+		Job next = scheduler.peek();
+		if (next != null) {
+			System.out.println("Next task: - jobId: "+next.getJobId()+" - task: "+next.getCurrentTask());
+		}
+		System.out.println("Parked task requests: "+(parkedRequests.size()
+				+(blockingEngine == null ? 0 : blockingEngine.getParkedRequests())));
 		System.out.println("Answers received: "+nbAnswers);
+		System.out.println("Duplicate answers dropped: "+nbDuplicates);
+		long speculative = 0;
+		long duplicated = 0;
+		long tailSaved = 0;
+		for (Job job : scheduler.getJobs()) {
+			speculative += job.getSpeculativeTasks();
+			duplicated += job.getDuplicatedAnswers();
+			tailSaved += job.getTailSavedMillis();
+		}
+		System.out.println("Tasks handed out speculatively: "+speculative+" - answered twice: "+duplicated
+				+" - tail time saved at most: "+tailSaved+" ms");
+		System.out.println("Clients with a measured throughput: "+leaseSizer.size());
+		long leases = scheduler.getLeases();
+		System.out.println("Worker switches: "+scheduler.getWorkerSwitches()+" in "+leases+" leases"
+				+(leases == 0 ? "" : String.format(" (%.1f%%)", 100.0 * scheduler.getWorkerSwitches() / leases)));
+		int subscriptions = 0;
+		long skipped = nbSkipped;
+		for (AnswerRing ring : rings.values()) {
+			subscriptions += ring.getSubscribers();
+			skipped += ring.getSkipped();
+		}
+		System.out.println("Answer subscriptions: "+subscriptions+" to "+rings.size()+" jobs - answers skipped by slow subscribers: "+skipped);
+		System.out.println("Requests rejected with 503: "+nbRejected+(acceptPaused ? " - accept paused" : ""));
+		System.out.println("Connections reaped: header "+reaped[Attachment.Deadline.HEADER.ordinal()]+" - body "
+				+reaped[Attachment.Deadline.BODY.ordinal()]+" - idle "+reaped[Attachment.Deadline.IDLE.ordinal()]);
+		if (answerStore.isOrdered()) {
+			System.out.println("Answers waiting for an earlier task: "+answerStore.getReorderedCount());
+		}
+	}
+
+	/**
+	 * Prints the answer of a task, found by binary search in the segments written in task order
+	 * 
+	 * @param arguments the job id and the task
+	 */
+	private void findAnswer(String arguments) {
+		if (!answerStore.isOrdered()) {
+			System.out.println("ANSWER needs OrderedAnswers");
+			return;
+		}
+		String[] tokens = arguments.split("\\s+");
+		long jobId;
+		long task;
+		try {
+			jobId = Long.parseLong(tokens[0]);
+			task = Long.parseLong(tokens[1]);
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			System.out.println("WRONG COMMAND");
+			return;
+		}
+		exporter.execute(() -> {
+			try {
+				String answer = SortedSegments.find(Paths.get(answersPath), jobId, task);
+				System.out.println(answer == null ? "No answer to task " + task + " of job " + jobId : answer);
+			} catch (IOException e) {
+				System.out.println("Cannot read the answers of job " + jobId + ": " + e);
+			}
+		});
+	}
+
+	/**
+	 * Exports the answers of a job in columns, on a background thread
+	 * 
+	 * @param jobId
+	 */
+	private void export(String jobId) {
+		long id;
+		try {
+			id = Long.parseLong(jobId);
+		} catch (NumberFormatException e) {
+			System.out.println("WRONG COMMAND");
+			return;
+		}
+		exporter.execute(() -> {
+			try {
+				long start = System.nanoTime();
+				long rows = ColumnarExporter.export(Paths.get(answersPath), id);
+				saveLog("Exported " + rows + " answers of job " + id + " in columns in "
+						+ (System.nanoTime() - start) / 1_000_000 + " ms");
+			} catch (IOException e) {
+				saveLog("Cannot export job " + id + ": " + e);
+			}
+		});
 	}
 
 	/**
@@ -104,12 +447,16 @@ public class Server {
 	private void shutdown() {
 		System.out.println("SHUTDOWN");
 
+		shutdown = true;
+		if (blockingEngine != null) {
+			blockingEngine.shutdown(false);
+			return;
+		}
 		try {
 			close(acceptKey);
 		} catch (IOException e) {
 			//
 		}
-		shutdown = true;
 	}
 
 	/**
@@ -117,6 +464,11 @@ public class Server {
 	 */
 	private void shutdownNow() {
 		System.out.println("SHUTDOWN NOW");
+		if (blockingEngine != null) {
+			shutdown = true;
+			blockingEngine.shutdown(true);
+			return;
+		}
 		try {
 			close(acceptKey);
 		} catch (IOException e) {
@@ -142,17 +494,119 @@ public class Server {
 		consoleThread.setDaemon(true);
 		consoleThread.start();
 
+		if (blockingEngine != null) {
+			saveLog("Server launched on port " + ssc.getLocalAddress() + " with a thread per connection");
+			loadJobs();
+			new JobsReloader(jobsConfigPath, jobs -> post(() -> reloadJobs(jobs)), this::saveLog).start();
+			blockingEngine.run();
+			return;
+		}
+
 		ssc.configureBlocking(false);
 		acceptKey = ssc.register(selector, SelectionKey.OP_ACCEPT);
 		saveLog("Server launched on port " + ssc.getLocalAddress());
 		Set<SelectionKey> selectedKeys = selector.selectedKeys();
 
 		loadJobs();
+		new JobsReloader(jobsConfigPath, jobs -> post(() -> reloadJobs(jobs)), this::saveLog).start();
 
 		while (!selector.keys().isEmpty() || !shutdown) {
-			selector.select(300);
+			selector.select(selectTimeout());
+			SelectorIterationEvent event = new SelectorIterationEvent();
+			event.begin();
+			int selected = selectedKeys.size();
 			processSelectedKeys();
 			selectedKeys.clear();
+			runTimers();
+			reapConnections();
+			processParkedRequests();
+			wakeSubscribers();
+			event.end();
+			if (event.shouldCommit()) {
+				event.selectedKeys = selected;
+				event.registeredKeys = selector.keys().size();
+				event.commit();
+			}
+		}
+		stop();
+	}
+
+	/**
+	 * Returns how long the selector may wait: at most SELECT_MILLIS, and no later than the next
+	 * lease deadline, so that the expired tasks go to the parked requests at once
+	 * 
+	 * @return
+	 */
+	private long selectTimeout() {
+		long untilDeadline = scheduler.getNextLeaseDeadline() - System.currentTimeMillis();
+		return Math.max(1, Math.min(SELECT_MILLIS, untilDeadline));
+	}
+
+	/**
+	 * Wakes the parked task requests up after tasks were added or leases expired, instead of
+	 * leaving them to the next turn of the engine
+	 */
+	private void wakeParkedRequests() {
+		if (blockingEngine != null) {
+			blockingEngine.wakeParkedRequests();
+		} else {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Runs the commands posted by the other threads, expires the leases and saves the checkpoints
+	 * when it is time. Shuts the server down once a drain is finished.
+	 */
+	void runTimers() {
+		runPendingCommands();
+		expireLeases();
+		long now = System.currentTimeMillis();
+		expireStealOffers(now);
+		if (now >= nextCheckpoint) {
+			try {
+				answerStore.skipGaps(now);
+			} catch (IOException e) {
+				saveLog("Cannot write the answers held behind a gap: " + e);
+			}
+			saveCheckpoints();
+		}
+		if (now >= nextRateSample) {
+			for (Job job : scheduler.getJobs()) {
+				job.sampleAnswerRate(now, RATE_WINDOW_MILLIS);
+			}
+			nextRateSample = now + RATE_SAMPLE_MILLIS;
+		}
+		if (draining && !shutdown && isDrained()) {
+			saveLog("Drain finished: every leased task was answered or expired");
+			shutdown();
+		}
+	}
+
+	/**
+	 * Saves the results and closes the answer files, once no client is served anymore
+	 * 
+	 * @throws IOException
+	 */
+	void stop() throws IOException {
+		saveCheckpoints();
+		answerStore.close();
+	}
+
+	/**
+	 * Returns the engine selected by the Engine key of the config file
+	 * 
+	 * @param engine
+	 * @return true for the thread per connection engine, false for the selector loop
+	 */
+	private static boolean parseEngine(String engine) {
+		switch (engine) {
+		case "selector":
+			return false;
+		case "blocking":
+			return true;
+		default:
+			throw new IllegalArgumentException("Unknown engine " + engine + ", expected selector or blocking");
 		}
 	}
 
@@ -163,28 +617,269 @@ public class Server {
 	 * @throws IOException
 	 */
 	private void loadJobs() throws JsonParseException, IOException {
-		Path jobsConfigPath = Paths.get("config/JarRetJobs.json");
+		List<Job> jobs = JobsReloader.readJobs(jobsConfigPath);
+		loadSubmittedJobs(jobs);
+		for (Job job : jobs) {
+			setSlice(job);
+			loadCheckpoint(job);
+			restoreSlice(job);
+		}
+		recoverAnswers(jobs);
+		for (Job job : jobs) {
+			scheduler.add(job);
+		}
 
+		for (Job job : scheduler.getJobs()) {
+			System.out.println(job);
+		}
+	}
+
+	/**
+	 * Adds the jobs submitted through the admin API by the previous runs to the jobs of the config
+	 * file, unless the config file defines them now
+	 * 
+	 * @param jobs the jobs of the config file
+	 * @throws IOException
+	 */
+	private void loadSubmittedJobs(List<Job> jobs) throws IOException {
+		Path path = submittedJobsPath();
+		if (!Files.exists(path)) {
+			return;
+		}
+		HashSet<Long> configured = new HashSet<>();
+		for (Job job : jobs) {
+			configured.add(job.getJobId());
+		}
 		JsonFactory jf = new JsonFactory();
-		JsonParser jp = jf.createParser(Files.newBufferedReader(jobsConfigPath));
-
-		JsonToken current = jp.nextToken();
-		while (current != null) {
-			switch (current) {
-			case START_OBJECT:
-				Job job = Job.parseJSON(jp);
-				for (int i = 0; i < Integer.parseInt(job.getJobPriority()); i++) {
-					jobs.add(job);
-				}
-				break;
-			default:
-				break;
+		for (String json : Files.readAllLines(path, charsetUTF8)) {
+			if (json.isEmpty()) {
+				continue;
+			}
+			Job job;
+			try (JsonParser jp = jf.createParser(json)) {
+				jp.nextToken();
+				job = Job.parseJSON(jp);
+			}
+			submittedJobs.put(job.getJobId(), json);
+			if (configured.add(job.getJobId())) {
+				jobs.add(job);
+				saveLog("Restored job " + job.getJobId() + " submitted through the admin API");
 			}
-			current = jp.nextToken();
 		}
+	}
 
+	/**
+	 * Applies a new version of the jobs config file to the running scheduler: adds the new jobs,
+	 * updates the priorities and retires the jobs which were removed, except the ones submitted
+	 * through the admin API. Jobs keep their progress.
+	 * Must be called from the selector thread.
+	 * 
+	 * @param jobs the jobs read from the config file
+	 */
+	private void reloadJobs(List<Job> jobs) {
+		HashSet<Long> reloaded = new HashSet<>();
 		for (Job job : jobs) {
-			System.out.println(job);
+			long jobId = job.getJobId();
+			if (!reloaded.add(jobId)) {
+				saveLog("Reload: job " + jobId + " is defined twice, keeping the first definition");
+				continue;
+			}
+			Job current = scheduler.getJob(jobId);
+			if (current == null) {
+				addJob(job);
+				saveLog("Reload: added job " + jobId + " with priority " + job.getJobPriority());
+				continue;
+			}
+			if (scheduler.isRetired(jobId)) {
+				scheduler.setPriority(jobId, job.getJobPriority());
+				wakeParkedRequests();
+				saveLog("Reload: restored job " + jobId + " with priority " + job.getJobPriority());
+			} else if (current.getJobPriority() != job.getJobPriority()) {
+				int old = current.getJobPriority();
+				scheduler.setPriority(jobId, job.getJobPriority());
+				saveLog("Reload: job " + jobId + " priority " + old + " -> " + job.getJobPriority());
+			}
+			if (current.getJobTaskNumber() != job.getJobTaskNumber()
+					|| !current.getWorkerVersion().equals(job.getWorkerVersion())
+					|| !current.getWorkerURL().equals(job.getWorkerURL())
+					|| !current.getWorkerClassName().equals(job.getWorkerClassName())) {
+				saveLog("Reload: job " + jobId + " changed its tasks or worker, restart the server to apply it");
+			}
+		}
+		for (Job job : scheduler.getJobs()) {
+			long jobId = job.getJobId();
+			if (!reloaded.contains(jobId) && !submittedJobs.containsKey(jobId) && !scheduler.isRetired(jobId)) {
+				scheduler.retire(jobId);
+				saveLog("Reload: retired job " + jobId);
+			}
+		}
+	}
+
+	/**
+	 * Adds a job which is not running yet to the scheduler, with the answers it already has
+	 * 
+	 * @param job
+	 */
+	private void addJob(Job job) {
+		setSlice(job);
+		loadCheckpoint(job);
+		restoreSlice(job);
+		recoverAnswers(Collections.singletonList(job));
+		scheduler.add(job);
+		wakeParkedRequests();
+	}
+
+	/**
+	 * Restricts a new job to the slice of its tasks owned by this shard
+	 * 
+	 * @param job
+	 */
+	private void setSlice(Job job) {
+		if (shards == null) {
+			return;
+		}
+		job.setSlice(shards.getIndex(), shards.getCount());
+	}
+
+	/**
+	 * Restores the ranges of tasks a new job owned when its checkpoint was saved, which differ from
+	 * its slice once tasks were stolen or given away, then declares the tasks of the other shards
+	 * skipped, so that the answers of this one are not held for them
+	 * 
+	 * @param job
+	 */
+	private void restoreSlice(Job job) {
+		if (shards == null) {
+			return;
+		}
+		List<long[]> ranges = job.getResult().getOwnedRanges();
+		long sliceStart = job.getSliceStart();
+		long sliceEnd = job.getSliceEnd();
+		try {
+			job.restoreOwnedRanges(ranges);
+		} catch (IllegalArgumentException e) {
+			saveLog("Cannot restore the tasks owned by job " + job.getJobId() + ", using its slice: " + e.getMessage());
+			job.setSlice(shards.getIndex(), shards.getCount());
+		}
+		ranges = job.getOwnedRanges();
+		if (ranges.size() > 1 || ranges.get(0)[0] != sliceStart || ranges.get(0)[1] != sliceEnd) {
+			StringBuilder sb = new StringBuilder();
+			for (long[] range : ranges) {
+				sb.append(" [").append(range[0]).append(", ").append(range[1]).append(")");
+			}
+			saveLog("Job " + job.getJobId() + " owns the tasks" + sb + " of its checkpoint");
+		}
+		try {
+			answerStore.skip(job.getJobId(), 0, job.getJobTaskNumber());
+			for (long[] range : ranges) {
+				answerStore.expect(job.getJobId(), range[0], range[1]);
+			}
+		} catch (IOException e) {
+			saveLog("Cannot read the answers of job " + job.getJobId() + ": " + e);
+		}
+	}
+
+	/**
+	 * Restores the result of a job from its checkpoint, if there is one
+	 * 
+	 * @param job
+	 */
+	private void loadCheckpoint(Job job) {
+		Path checkpoint = JobResult.checkpointPath(Paths.get(answersPath), job.getJobId());
+		if (!Files.exists(checkpoint)) {
+			return;
+		}
+		try {
+			job.getResult().loadCheckpoint(checkpoint);
+			saveLog("Restored " + job.getResult());
+		} catch (IOException e) {
+			saveLog("Cannot restore checkpoint " + checkpoint + ": " + e);
+		}
+	}
+
+	/**
+	 * Folds the answers saved for jobs but missing from their checkpoint, so that only the tasks
+	 * without an answer are dispatched
+	 * 
+	 * @param jobs jobs which were not added to the scheduler yet
+	 */
+	private void recoverAnswers(List<Job> jobs) {
+		HashMap<Long, JobResult> results = new HashMap<>();
+		for (Job job : jobs) {
+			results.put(job.getJobId(), job.getResult());
+		}
+		try {
+			Recovery.recover(Paths.get(answersPath), results, this::saveLog);
+		} catch (IOException e) {
+			saveLog("Cannot recover the answers: " + e);
+		}
+	}
+
+	/**
+	 * Saves the checkpoint of the jobs whose result changed
+	 */
+	private void saveCheckpoints() {
+		nextCheckpoint = System.currentTimeMillis() + checkpointMillis;
+		try {
+			// a checkpoint must not count answers which are not on the disk yet
+			answerStore.sync();
+		} catch (IOException e) {
+			saveLog("Cannot sync the answers, checkpoints postponed: " + e);
+			return;
+		}
+		for (Job job : scheduler.getJobs()) {
+			JobResult result = job.getResult();
+			if (!result.isDirty()) {
+				continue;
+			}
+			try {
+				result.saveCheckpoint(JobResult.checkpointPath(Paths.get(answersPath), job.getJobId()));
+			} catch (IOException e) {
+				saveLog("Cannot save checkpoint of job " + job.getJobId() + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Saves the checkpoint of a job now, after a change of the tasks it owns
+	 * 
+	 * @param job
+	 * @return true if the checkpoint was saved
+	 */
+	private boolean saveCheckpoint(Job job) {
+		try {
+			answerStore.sync();
+			job.getResult().saveCheckpoint(JobResult.checkpointPath(Paths.get(answersPath), job.getJobId()));
+			return true;
+		} catch (IOException e) {
+			saveLog("Cannot save checkpoint of job " + job.getJobId() + ": " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Runs a command on the selector thread
+	 * 
+	 * @param command
+	 */
+	private void post(Runnable command) {
+		pendingCommands.add(command);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs the commands posted by the other threads. A failing command is logged, so that it does
+	 * not stop the selector loop.
+	 */
+	private void runPendingCommands() {
+		Runnable command;
+		while ((command = pendingCommands.poll()) != null) {
+			try {
+				command.run();
+			} catch (RuntimeException e) {
+				saveLog("A posted command failed: " + e);
+				e.printStackTrace();
+			}
 		}
 	}
 
@@ -209,10 +904,7 @@ public class Server {
 				} catch (IOException e) {
 					SocketChannel sc = (SocketChannel) key.channel();
 					saveLog("Connection lost with client "+sc.getRemoteAddress());
-					close(key);
-					synchronized (clientMonitor) {
-						nbClients--;
-					}
+					closeClient(key);
 				}
 			}
 			if (key.isValid() && key.isReadable()) {
@@ -221,10 +913,7 @@ public class Server {
 				} catch (IOException e) {
 					SocketChannel sc = (SocketChannel) key.channel();
 					saveLog("Connection lost with client "+sc.getRemoteAddress());
-					close(key);
-					synchronized (clientMonitor) {
-						nbClients--;
-					}
+					closeClient(key);
 				}
 			}
 		}
@@ -242,26 +931,114 @@ public class Server {
 			return;
 		}
 		sc.configureBlocking(false);
-		sc.register(selector, SelectionKey.OP_READ, new Attachment(sc));
+		Attachment attachment = new Attachment(sc);
+		SelectionKey clientKey = sc.register(selector, SelectionKey.OP_READ, attachment);
+		attachment.setTimer(new TimingWheel.Timer<>(clientKey));
+		setDeadline(attachment, Attachment.Deadline.IDLE);
 		saveLog("New connection from " + sc.getRemoteAddress());
 		synchronized(clientMonitor) {
 			nbClients++;
+			if (nbClients >= maxConnections && !acceptPaused) {
+				acceptKey.interestOps(0);
+				acceptPaused = true;
+				saveLog("Accept paused: " + nbClients + " connections open");
+			}
 		}
 	}
 
 	/**
-	 * reads from the channel of the key
+	 * Closes the connection of a client and releases what its request held. Accepting resumes
+	 * when the number of connections falls below the limit.
 	 * 
 	 * @param key
-	 * @throws IOException
 	 */
-	private void doRead(SelectionKey key) throws IOException {
-		SocketChannel sc = (SocketChannel) key.channel();
+	private void closeClient(SelectionKey key) {
 		Attachment attachment = (Attachment) key.attachment();
-		HTTPReaderServer reader = attachment.getReader();
-
-		sc.read(attachment.getIn());
-
+		endRequest(attachment);
+		clearDeadline(attachment);
+		pendingAnswerBytes -= attachment.getPendingAnswerBytes();
+		attachment.setPendingAnswerBytes(0);
+		try {
+			if (attachment.getAnswerStream() != null) {
+				attachment.getAnswerStream().close();
+				attachment.setAnswerStream(null);
+			}
+			if (attachment.getSubscription() != null) {
+				unsubscribe(attachment.getSubscription());
+				attachment.setSubscription(null);
+				subscribers.remove(key);
+			}
+			close(key);
+		} catch (IOException e) {
+			//
+		}
+		synchronized (clientMonitor) {
+			nbClients--;
+			if (acceptPaused && nbClients < maxConnections && acceptKey.isValid()) {
+				acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+				acceptPaused = false;
+				saveLog("Accept resumed: " + nbClients + " connections open");
+			}
+		}
+	}
+
+	/**
+	 * Answers a request with the pre-encoded 503 response and closes the connection once it is
+	 * written, the rest of the request being unread
+	 * 
+	 * @param attachment
+	 */
+	private void reject(Attachment attachment) {
+		attachment.setResponse(serviceUnavailable.duplicate());
+		attachment.setCloseAfterResponse(true);
+		nbRejected++;
+	}
+
+	/**
+	 * Counts a request whose response is not written yet
+	 * 
+	 * @param attachment
+	 */
+	private void beginRequest(Attachment attachment) {
+		if (!attachment.isInFlight()) {
+			attachment.setInFlight(true);
+			inFlightRequests++;
+		}
+	}
+
+	private void endRequest(Attachment attachment) {
+		if (attachment.isInFlight()) {
+			attachment.setInFlight(false);
+			inFlightRequests--;
+		}
+	}
+
+	/**
+	 * reads from the channel of the key
+	 * 
+	 * @param key
+	 * @throws IOException
+	 */
+	private void doRead(SelectionKey key) throws IOException {
+		SocketChannel sc = (SocketChannel) key.channel();
+		Attachment attachment = (Attachment) key.attachment();
+		HTTPReaderServer reader = attachment.getReader();
+
+		if (sc.read(attachment.getIn()) == -1) {
+			saveLog("Client " + sc.getRemoteAddress() + " closed the connection");
+			closeClient(key);
+			return;
+		}
+		if (attachment.getSubscription() != null) {
+			// a subscriber sends no more requests, reading only tells when it leaves
+			attachment.getIn().clear();
+			return;
+		}
+		if (attachment.getDeadline() == Attachment.Deadline.IDLE) {
+			// first bytes of a request
+			setDeadline(attachment, Attachment.Deadline.HEADER);
+		}
+
 		if(attachment.isReadingRequest()) {
 			try{
 				attachment.setRequest(reader.readLineCRLF());
@@ -269,18 +1046,30 @@ public class Server {
 			} catch(IllegalStateException e) {
 				return;
 			}
+			if (inFlightRequests >= maxInFlightRequests) {
+				clearDeadline(attachment);
+				reject(attachment);
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
 		}
 
 		try {
 			parseRequest(attachment, sc);
 		} catch(IllegalStateException e) {
-			System.out.println("resuqesting task !");
+			if (attachment.isReadingAnswer() && attachment.getDeadline() != Attachment.Deadline.BODY) {
+				setDeadline(attachment, Attachment.Deadline.BODY);
+			}
 			return;
 		} catch (Exception e) {
 			sc.write(charsetUTF8.encode(badRequest));
 			return;
 		}
 
+		clearDeadline(attachment);
+		if (!attachment.isCloseAfterResponse()) {
+			beginRequest(attachment);
+		}
 		key.interestOps(SelectionKey.OP_WRITE);
 	}
 
@@ -303,63 +1092,423 @@ public class Server {
 		if (cmd.equals("GET") && requested.equals("Task") && protocol.equals("HTTP/1.1")) {
 			if(!attachment.isParsingRequest()){
 				saveLog("Client "+sc.getRemoteAddress()+ " is requesting a task");
+				attachment.setTaskBatch(1);
+				attachment.setClientId(null);
 			}
 			attachment.requestTask();
 			attachment.setParsingRequest(true);
 			if (attachment.isParsingRequest()) { 
-				while(!attachment.getReader().readLineCRLF().equals("")){/** read useless parameters og GET request **/}
+				String line;
+				while(!(line = attachment.getReader().readLineCRLF()).equals("")){
+					String[] header = line.split(": ");
+					if (header[0].equals("Task-Batch")) {
+						int batch = Integer.parseInt(header[1].trim());
+						attachment.setTaskBatch(Math.max(1, Math.min(batch, MAX_TASK_BATCH)));
+					} else if (header[0].equals("Client-Id") && header.length > 1) {
+						attachment.setClientId(header[1].trim());
+					}
+				}
+				attachment.setTaskBatch(leaseSize(attachment.getClientId(), attachment.getTaskBatch()));
 				attachment.setParsingRequest(false);
 			}
-		} else if (cmd.equals("POST") && requested.equals("Answer") && protocol.equals("HTTP/1.1")) {
+		} else if (cmd.equals("GET") && requested.startsWith("Result/") && protocol.equals("HTTP/1.1")) {
+			while(!attachment.getReader().readLineCRLF().equals("")){/** read useless parameters of GET request **/}
+			attachment.setResponse(resultResponse(Long.parseLong(requested.substring("Result/".length()))));
+		} else if (cmd.equals("GET") && requested.startsWith("Answers/") && protocol.equals("HTTP/1.1")) {
+			while(!attachment.getReader().readLineCRLF().equals("")){/** read useless parameters of GET request **/}
+			AnswerStream stream = answerStream(requested);
+			if (stream == null) {
+				attachment.setResponse(charsetUTF8.encode(notFound));
+			} else {
+				saveLog("Client " + sc.getRemoteAddress() + " is downloading " + requested);
+				attachment.setResponse(charsetASCII.encode(chunkedAnswers));
+				attachment.setAnswerStream(stream);
+			}
+		} else if (cmd.equals("GET") && requested.equals("Progress") && protocol.equals("HTTP/1.1")) {
+			while(!attachment.getReader().readLineCRLF().equals("")){/** read useless parameters of GET request **/}
+			attachment.setResponse(progressResponse());
+		} else if (cmd.equals("GET") && requested.startsWith("Subscribe/") && protocol.equals("HTTP/1.1")) {
+			while(!attachment.getReader().readLineCRLF().equals("")){/** read useless parameters of GET request **/}
+			AnswerRing.Cursor cursor = subscribe(Long.parseLong(requested.substring("Subscribe/".length())));
+			if (cursor == null) {
+				attachment.setResponse(charsetUTF8.encode(notFound));
+			} else {
+				saveLog("Client " + sc.getRemoteAddress() + " subscribed to the answers of job " + cursor.getRing().getJobId());
+				attachment.setResponse(charsetASCII.encode(chunkedAnswers));
+				attachment.setSubscription(cursor);
+				subscribers.add(sc.keyFor(selector));
+			}
+		} else if (cmd.equals("GET") && requested.equals("Steal") && protocol.equals("HTTP/1.1") && shards != null) {
+			String line;
+			String jobIds = "";
+			while(!(line = attachment.getReader().readLineCRLF()).equals("")){
+				String[] header = line.split(": ");
+				if (header[0].equals("Steal-Jobs") && header.length > 1) {
+					jobIds = header[1].trim();
+				}
+			}
+			saveLog("Shard "+sc.getRemoteAddress()+" is stealing tasks");
+			attachment.setResponse(stealResponse(jobIds));
+		} else if (cmd.equals("GET") && requested.equals("StealCommit") && protocol.equals("HTTP/1.1") && shards != null) {
+			String line;
+			String offer = "";
+			while(!(line = attachment.getReader().readLineCRLF()).equals("")){
+				String[] header = line.split(": ");
+				if (header[0].equals("Steal-Offer") && header.length > 1) {
+					offer = header[1].trim();
+				}
+			}
+			attachment.setResponse(stealCommitResponse(offer));
+		} else if (cmd.equals("POST") && requested.startsWith("Admin/") && protocol.equals("HTTP/1.1")) {
+			if (!isLoopback(sc.getRemoteAddress())) {
+				saveLog("Refused admin request " + requested + " from " + sc.getRemoteAddress());
+				attachment.setResponse(charsetUTF8.encode(forbidden));
+				attachment.setCloseAfterResponse(true);
+				return;
+			}
+			if (!attachment.isParsingRequest()) {
+				attachment.setContentLength(0);
+				attachment.setAdminToken(null);
+			}
+			attachment.setParsingRequest(true);
+			ByteBuffer content = readContent(attachment);
+			attachment.setParsingRequest(false);
+			if (!isAdminToken(attachment.getAdminToken())) {
+				saveLog("Refused admin request " + requested + " without the admin token");
+				attachment.setResponse(charsetUTF8.encode(forbidden));
+				attachment.setCloseAfterResponse(true);
+				return;
+			}
+			attachment.setResponse(adminResponse(requested, content));
+		} else if (cmd.equals("POST") && (requested.equals("Answer") || requested.equals("Answer64"))
+		        && protocol.equals("HTTP/1.1")) {
 			if(!attachment.isParsingRequest()) {
 				saveLog("Client "+sc.getRemoteAddress() + " is posting an answer");
+				attachment.setContentLength(-1);
+			}
+			attachment.setParsingRequest(true);
+			ByteBuffer content = parsePOST(attachment);
+			attachment.setParsingRequest(false);
+			if (content == null && attachment.isCloseAfterResponse()) {
+				return;
+			}
+			Objects.requireNonNull(content);
+			attachment.requestAnswer(requested.equals("Answer") ? acceptLegacyAnswer(content) : acceptAnswer(content));
+		} else if (cmd.equals("POST") && requested.equals("AnswerBatches") && protocol.equals("HTTP/1.1")) {
+			if(!attachment.isParsingRequest()) {
+				saveLog("Client "+sc.getRemoteAddress() + " is posting answer batches");
+				attachment.setContentLength(-1);
+				attachment.setClientId(null);
 			}
 			attachment.setParsingRequest(true);
-			String answer = parsePOST(attachment);
-			Objects.requireNonNull(answer);
-			attachment.requestAnswer(answer);
+			ByteBuffer content = parsePOST(attachment);
 			attachment.setParsingRequest(false);
+			if (content == null && attachment.isCloseAfterResponse()) {
+				return;
+			}
+			Objects.requireNonNull(content);
+			attachment.setResponse(answersResponse(acceptAnswerBatches(content, attachment.getClientId())));
 		} else {
 			throw new IllegalArgumentException();
 		}
 	}
 
 	/**
-	 * Parses a POST request
+	 * Parses a POST request. The answers are rejected before the content is read if the answers
+	 * being received would exceed maxPendingAnswerBytes, with a 413 if they alone exceed it.
 	 * 
 	 * @param attachment
-	 * @return
+	 * @return the content, or null if it was rejected
 	 * @throws IOException
+	 * @throws IllegalArgumentException if the content length is missing or negative
 	 */
-	private String parsePOST(Attachment attachment) throws IOException {
+	private ByteBuffer parsePOST(Attachment attachment) throws IOException {
 		HTTPReaderServer reader = attachment.getReader();
 		if(!attachment.isReadingAnswer()) {
 			String line;
 			while (!(line = reader.readLineCRLF()).equals("")) {
 				String[] token = line.split(": ");
 				if (token[0].equals("Content-Length")) {
-					attachment.setContentLength(Integer.parseInt(token[1]));
+					attachment.setContentLength(Integer.parseInt(token[1].trim()));
 				}
 				if (token[0].equals("Content-Type")) {
 					if (!token[1].equals("application/json")) {
 						throw new IllegalArgumentException();
 					}
 				}
+				if (token[0].equals("Client-Id") && token.length > 1) {
+					attachment.setClientId(token[1].trim());
+				}
+			}
+			if (attachment.getContentLength() < 0) {
+				throw new IllegalArgumentException("Invalid content length " + attachment.getContentLength());
+			}
+			if (isTooLarge(attachment.getContentLength())) {
+				attachment.setResponse(charsetUTF8.encode(payloadTooLarge));
+				attachment.setCloseAfterResponse(true);
+				return null;
+			}
+			if (pendingAnswerBytes + attachment.getContentLength() > maxPendingAnswerBytes) {
+				reject(attachment);
+				return null;
+			}
+			pendingAnswerBytes += attachment.getContentLength();
+			attachment.setPendingAnswerBytes(attachment.getContentLength());
+			attachment.setReadingAnswer(true);
+		}
+		ByteBuffer bb = reader.readBytes(attachment.getContentLength());
+		attachment.setReadingAnswer(false);
+		pendingAnswerBytes -= attachment.getPendingAnswerBytes();
+		attachment.setPendingAnswerBytes(0);
+		bb.flip();
+		return bb;
+	}
+
+	/**
+	 * Saves and folds the answers of a POST AnswerBatches request, sent in bulk by a client from
+	 * its spool, one record per lease. The records are all checked before the first one is
+	 * accepted; the answers are checked once, by {@link AnswerBatch}, and wrapped in the JSON saved
+	 * for each task.
+	 * 
+	 * @param content records made of their length, then an {@link AnswerBatch}
+	 * @param clientId the client which computed the answers
+	 * @return the number of tasks answered
+	 * @throws IOException
+	 * @throws IllegalArgumentException if a record is ill-formed, or its tasks are not owned by
+	 *         this shard
+	 */
+	int acceptAnswerBatches(ByteBuffer content, String clientId) throws IOException {
+		AnswerClaim claim = AnswerClaim.ofBatches(content, clientId);
+		accept(claim);
+		return claim.getTasks();
+	}
+
+	/**
+	 * Creates the response of a POST AnswerBatches request
+	 * 
+	 * @param count the number of tasks answered
+	 * @return
+	 */
+	static ByteBuffer answersResponse(int count) {
+		return jsonResponse(charsetUTF8.encode("{\"Answers\":" + count + "}"));
+	}
+
+	/**
+	 * Reads the content of a request whose header is not read yet
+	 * 
+	 * @param attachment
+	 * @return the content, empty if the request has none
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the content is longer than MAX_ADMIN_CONTENT
+	 */
+	private ByteBuffer readContent(Attachment attachment) throws IOException {
+		HTTPReaderServer reader = attachment.getReader();
+		if (!attachment.isReadingAnswer()) {
+			String line;
+			while (!(line = reader.readLineCRLF()).equals("")) {
+				String[] token = line.split(": ");
+				if (token[0].equals("Content-Length")) {
+					attachment.setContentLength(Integer.parseInt(token[1].trim()));
+				} else if (token[0].equals("Admin-Token") && token.length > 1) {
+					attachment.setAdminToken(token[1].trim());
+				}
+			}
+			if (attachment.getContentLength() < 0 || attachment.getContentLength() > MAX_ADMIN_CONTENT) {
+				throw new IllegalArgumentException("Invalid content length " + attachment.getContentLength());
 			}
 			attachment.setReadingAnswer(true);
 		}
 		ByteBuffer bb = reader.readBytes(attachment.getContentLength());
 		attachment.setReadingAnswer(false);
 		bb.flip();
-		long jobId = bb.getLong();
-		int task = bb.getInt();
-		String answer = charsetUTF8.decode(bb).toString();
-		if (answer != null && JsonTools.isJSON(answer)) {
-			saveAnswer(jobId, task, answer);
+		return bb;
+	}
+
+	/**
+	 * Saves and folds the answer of a POST Answer request, whose task is an int. The clients
+	 * older than the 64-bit task numbers still send it.
+	 * 
+	 * @param content the job id, the task as an int and the answer
+	 * @return the answer
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the task is not owned by this shard
+	 */
+	String acceptLegacyAnswer(ByteBuffer content) throws IOException {
+		AnswerClaim claim = AnswerClaim.ofAnswer(content, true);
+		accept(claim);
+		return claim.getAnswer();
+	}
+
+	/**
+	 * Saves and folds an answer, unless an answer was already folded for its task
+	 * 
+	 * @param content the job id, the task as a long and the answer of a POST Answer64 request
+	 * @return the answer
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the task is not owned by this shard
+	 */
+	String acceptAnswer(ByteBuffer content) throws IOException {
+		AnswerClaim claim = AnswerClaim.ofAnswer(content, false);
+		accept(claim);
+		return claim.getAnswer();
+	}
+
+	private void accept(AnswerClaim claim) throws IOException {
+		claim(claim);
+		try {
+			save(claim, answerBatch);
+		} finally {
+			fold(claim);
+		}
+	}
+
+	/**
+	 * Claims the tasks of answers parsed, unless an answer of the task was already folded or is
+	 * being saved by another connection: such an answer is a duplicate, dropped. Called under the
+	 * lock of the blocking engine.
+	 * 
+	 * @param claim
+	 * @throws IllegalArgumentException if a job is unknown, or a task is not owned by this shard
+	 */
+	void claim(AnswerClaim claim) {
+		// no task is claimed before every range is checked
+		for (AnswerClaim.Range range : claim.getRanges()) {
+			range.job = answeredJob(range.jobId, range.from, range.from + range.count);
+		}
+		AnswerReceiveEvent single = claim.getEvent();
+		if (single != null && !single.valid) {
+			AnswerClaim.Range range = claim.getRanges().get(0);
+			commit(single, range.jobId, range.from, claim.getBytes());
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (AnswerClaim.Range range : claim.getRanges()) {
+			TaskSet folded = range.job.getResult().getFoldedTasks();
+			HashSet<Long> saving = savingTasks.computeIfAbsent(range.jobId, jobId -> new HashSet<>());
+			for (int i = 0; i < range.count; i++) {
+				long task = range.from + i;
+				if (!folded.contains(task) && saving.add(task)) {
+					range.claimed.set(i);
+					continue;
+				}
+				// the first answer won, the task was leased twice
+				range.job.acknowledge(task, now);
+				nbDuplicates++;
+				AnswerReceiveEvent event = single;
+				if (event == null) {
+					event = new AnswerReceiveEvent();
+					event.begin();
+				}
+				event.valid = true;
+				event.duplicate = true;
+				commit(event, range.jobId, task, single == null ? 0 : claim.getBytes());
+			}
+			if (saving.isEmpty()) {
+				savingTasks.remove(range.jobId);
+			}
+		}
+	}
+
+	/**
+	 * Saves the answers of the tasks claimed, and parses them to be folded. Called without the
+	 * lock of the blocking engine.
+	 * 
+	 * @param claim
+	 * @param batch wraps the answers of an AnswerBatches request, used by one thread at a time
+	 * @throws IOException
+	 */
+	void save(AnswerClaim claim, AnswerBatch batch) throws IOException {
+		for (AnswerClaim.Range range : claim.getRanges()) {
+			if (range.claimed.isEmpty()) {
+				continue;
+			}
+			if (range.record == null) {
+				save(claim, range.job, range.from, claim.getAnswer(), claim.getEvent(), claim.getBytes());
+				continue;
+			}
+			batch.accept(range.record, range.job, claim.getClientId(), (task, answer, bytes) -> {
+				if (range.claimed.get((int) (task - range.from))) {
+					AnswerReceiveEvent event = new AnswerReceiveEvent();
+					event.begin();
+					event.valid = true;
+					save(claim, range.job, task, answer, event, bytes);
+				}
+			});
+		}
+	}
+
+	private void save(AnswerClaim claim, Job job, long task, String answer, AnswerReceiveEvent event, int bytes)
+	        throws IOException {
+		saveAnswer(job.getJobId(), task, answer);
+		claim.add(new AnswerClaim.Saved(job, task, answer, JobResult.parse(answer), event, bytes));
+	}
+
+	/**
+	 * Folds the answers saved, and releases the tasks claimed, saved or not. Called under the lock
+	 * of the blocking engine.
+	 * 
+	 * @param claim
+	 */
+	void fold(AnswerClaim claim) {
+		long now = System.currentTimeMillis();
+		for (AnswerClaim.Saved saved : claim.getSaved()) {
+			Job job = saved.job;
+			long jobId = job.getJobId();
 			nbAnswers++;
+			AnswerRing ring = rings.get(jobId);
+			if (ring != null) {
+				ring.publish(saved.answer);
+			}
+			job.acknowledge(saved.task, now);
+			job.getResult().fold(saved.task, saved.parsed);
+			if (exportFinishedJobs && job.isFinished() && exportedJobs.add(jobId)) {
+				export(String.valueOf(jobId));
+			}
+			commit(saved.event, jobId, saved.task, saved.bytes);
 		}
+		for (AnswerClaim.Range range : claim.getRanges()) {
+			HashSet<Long> saving = savingTasks.get(range.jobId);
+			if (saving == null) {
+				continue;
+			}
+			for (int i = range.claimed.nextSetBit(0); i >= 0; i = range.claimed.nextSetBit(i + 1)) {
+				saving.remove(range.from + i);
+			}
+			if (saving.isEmpty()) {
+				savingTasks.remove(range.jobId);
+			}
+		}
+	}
+
+	/**
+	 * Returns the job of answers, once checked that this shard owns their tasks
+	 * 
+	 * @param jobId
+	 * @param from the first task answered
+	 * @param to exclusive
+	 * @return
+	 * @throws IllegalArgumentException if the job is unknown, or a task is out of the job or owned
+	 *         by another shard
+	 */
+	private Job answeredJob(long jobId, long from, long to) {
+		Job job = scheduler.getJob(jobId);
+		if (job == null) {
+			throw new IllegalArgumentException("Answers of the unknown job " + jobId);
+		}
+		if (!job.owns(from, to)) {
+			throw new IllegalArgumentException("Answers of tasks [" + from + ", " + to + ") not owned for job " + jobId);
+		}
+		return job;
+	}
 
-		return answer;
+	private static void commit(AnswerReceiveEvent event, long jobId, long task, int bytes) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.jobId = jobId;
+			event.task = task;
+			event.bytes = bytes;
+			event.commit();
+		}
 	}
 
 	/**
@@ -367,7 +1516,7 @@ public class Server {
 	 * 
 	 * @param log
 	 */
-	private void saveLog(String log) {
+	void saveLog(String log) {
 		System.out.println(log);
 		Path logFilePath = Paths.get(logPath+"log");
 
@@ -387,27 +1536,22 @@ public class Server {
 	 * @param answer
 	 * @throws IOException 
 	 */
-	private void saveAnswer(long jobId, int task, String answer) throws IOException {
-		int fileNumber = 1;
-		long size = 0;
-		Path answerFilePath;
-		answer += '\n';
-
-		do {
-			answerFilePath = Paths.get(answersPath + jobId + "_" + fileNumber++);
-			if (Files.exists(answerFilePath, LinkOption.NOFOLLOW_LINKS)) {
-				size = Files.size(answerFilePath);
-			} else {
-				break;
-			}
-		} while (size > maxFileSize);
-
-		try (BufferedWriter writer = Files.newBufferedWriter(answerFilePath, StandardOpenOption.APPEND,
-		        StandardOpenOption.CREATE); PrintWriter out = new PrintWriter(writer)) {
-			out.println(answer);
+	private void saveAnswer(long jobId, long task, String answer) throws IOException {
+		AnswerSaveEvent event = new AnswerSaveEvent();
+		event.begin();
+		try {
+			answerStore.save(jobId, task, answer);
 		} catch (IOException e) {
+			event.failed = true;
 			System.err.println(e);
 		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.jobId = jobId;
+			event.task = task;
+			event.bytes = answer.getBytes(charsetUTF8).length;
+			event.commit();
+		}
 	}
 
 	/**
@@ -417,14 +1561,39 @@ public class Server {
 	 * @throws JsonParseException
 	 * @throws IOException
 	 */
-	private static Server create() throws JsonParseException, IOException {
-		Path serverConfigPath = Paths.get("config/JarRetConfig.json");
-
+	private static Server create(Path serverConfigPath) throws JsonParseException, IOException {
 		int port = 8080;
 		String logPath = "log/";
 		String answersPath = "answers/";
-		long maxFileSize = 0;
+		String jobsPath = "config/JarRetJobs.json";
+		long maxFileSize = 16 * 1024 * 1024;
+		boolean compressSegments = false;
+		boolean orderedAnswers = false;
+		long reorderBufferBytes = 16 * 1024 * 1024;
+		int reorderGapSeconds = 1200;
+		boolean exportFinishedJobs = false;
 		int comeBackInSeconds = 300;
+		int leaseSeconds = 600;
+		int longPollSeconds = 0;
+		int maxParkedClients = 1000;
+		int checkpointSeconds = 10;
+		int shardIndex = 0;
+		List<String> shardAddresses = new ArrayList<>();
+		long minStealTasks = 64;
+		int maxConnections = 10000;
+		int maxInFlightRequests = 1000;
+		long maxPendingAnswerBytes = 64 * 1024 * 1024;
+		int retryAfterSeconds = 1;
+		int headerTimeoutSeconds = 10;
+		int bodyTimeoutSeconds = 30;
+		int idleTimeoutSeconds = 300;
+		int targetLeaseSeconds = 5;
+		int maxLeaseSize = MAX_TASK_BATCH;
+		long endgameTasks = MAX_TASK_BATCH;
+		int affinitySlack = 8;
+		int subscriptionBufferSize = 1024;
+		String engine = "selector";
+		String adminTokenPath = "admin.token";
 
 		JsonFactory jf = new JsonFactory();
 		JsonParser jp = jf.createParser(Files.newBufferedReader(serverConfigPath));
@@ -442,99 +1611,979 @@ public class Server {
 			case "AnswersDirectory":
 				answersPath = jp.getText();
 				break;
+			case "JobsFile":
+				jobsPath = jp.getText();
+				break;
 			case "MaxFileSize":
 				maxFileSize = jp.getLongValue();
 				break;
+			case "CompressSegments":
+				compressSegments = jp.getBooleanValue();
+				break;
+			case "OrderedAnswers":
+				orderedAnswers = jp.getBooleanValue();
+				break;
+			case "ReorderBufferBytes":
+				reorderBufferBytes = jp.getLongValue();
+				break;
+			case "ReorderGapSeconds":
+				reorderGapSeconds = jp.getIntValue();
+				break;
+			case "ExportFinishedJobs":
+				exportFinishedJobs = jp.getBooleanValue();
+				break;
 			case "ComeBackInSeconds":
 				comeBackInSeconds = jp.getIntValue();
 				break;
+			case "LeaseSeconds":
+				leaseSeconds = jp.getIntValue();
+				break;
+			case "LongPollSeconds":
+				longPollSeconds = jp.getIntValue();
+				break;
+			case "MaxParkedClients":
+				maxParkedClients = jp.getIntValue();
+				break;
+			case "CheckpointSeconds":
+				checkpointSeconds = jp.getIntValue();
+				break;
+			case "ShardIndex":
+				shardIndex = jp.getIntValue();
+				break;
+			case "Shards":
+				while (jp.nextToken() != JsonToken.END_ARRAY) {
+					shardAddresses.add(jp.getText());
+				}
+				break;
+			case "MinStealTasks":
+				minStealTasks = jp.getLongValue();
+				break;
+			case "MaxConnections":
+				maxConnections = jp.getIntValue();
+				break;
+			case "MaxInFlightRequests":
+				maxInFlightRequests = jp.getIntValue();
+				break;
+			case "MaxPendingAnswerBytes":
+				maxPendingAnswerBytes = jp.getLongValue();
+				break;
+			case "RetryAfterSeconds":
+				retryAfterSeconds = jp.getIntValue();
+				break;
+			case "HeaderTimeoutSeconds":
+				headerTimeoutSeconds = jp.getIntValue();
+				break;
+			case "BodyTimeoutSeconds":
+				bodyTimeoutSeconds = jp.getIntValue();
+				break;
+			case "IdleTimeoutSeconds":
+				idleTimeoutSeconds = jp.getIntValue();
+				break;
+			case "TargetLeaseSeconds":
+				targetLeaseSeconds = jp.getIntValue();
+				break;
+			case "MaxLeaseSize":
+				maxLeaseSize = jp.getIntValue();
+				break;
+			case "EndgameTasks":
+				endgameTasks = jp.getLongValue();
+				break;
+			case "AffinitySlack":
+				affinitySlack = jp.getIntValue();
+				break;
+			case "SubscriptionBufferSize":
+				subscriptionBufferSize = jp.getIntValue();
+				break;
+			case "Engine":
+				engine = jp.getText();
+				break;
+			case "AdminTokenFile":
+				adminTokenPath = jp.getText();
+				break;
 			default:
 				System.err.println("Unknown Field");
 			}
 		}
 
-		return new Server(port, logPath, answersPath, maxFileSize, comeBackInSeconds);
+		return new Server(port, logPath, answersPath, jobsPath, maxFileSize, compressSegments, orderedAnswers,
+				reorderBufferBytes, reorderGapSeconds, exportFinishedJobs, comeBackInSeconds, leaseSeconds, longPollSeconds,
+				maxParkedClients, checkpointSeconds, shardIndex, shardAddresses, minStealTasks, maxConnections,
+				maxInFlightRequests, maxPendingAnswerBytes, retryAfterSeconds, headerTimeoutSeconds, bodyTimeoutSeconds,
+				idleTimeoutSeconds, targetLeaseSeconds, maxLeaseSize, endgameTasks, affinitySlack,
+				subscriptionBufferSize, parseEngine(engine), adminTokenPath);
 
 	}
 
 	/**
-	 * Sends the task to the client
+	 * Sends the task to the client, leasing at most batch consecutive tasks
 	 * 
 	 * @param sc
+	 * @param batch
+	 * @param clientId the id of the client whose throughput sizes the lease, null if unknown
 	 * @throws IOException
 	 */
-	private void sendTask(SocketChannel sc) throws IOException {
-		Job job = jobs.poll();
-		ByteBuffer jsonBuffer;
-		if (job == null) {
-			jsonBuffer = charsetUTF8.encode("\"ComeBackInSeconds\":" + comeBackInSeconds);
-		} else {
-			while (job.isFinished()) {
-				job = jobs.poll();
-			}
-			String json = job.nextTask().toJSON();
-			jsonBuffer = Server.charsetUTF8.encode(json);
-		}
-
-		String header = "HTTP/1.1 200 OK\r\n" + "Content-Type: application/json; charset=utf-8\r\n"
-				+ "Content-Length: " + jsonBuffer.remaining() + "\r\n\r\n";
-		ByteBuffer headerBuffer = Server.charsetUTF8.encode(header);
-
-		while (headerBuffer.hasRemaining()) {
-			sc.write(headerBuffer);
+	private void sendTask(SocketChannel sc, int batch, String clientId) throws IOException {
+		ByteBuffer response = taskResponse(batch, clientId);
+		while (response.hasRemaining()) {
+			sc.write(response);
 		}
+	}
 
-		while (jsonBuffer.hasRemaining()) {
-			sc.write(jsonBuffer);
+	/**
+	 * Creates the response of a GET Task request: a lease of at most batch consecutive tasks, a
+	 * redirection to another shard or a delay after which the client comes back
+	 * 
+	 * @param batch
+	 * @param clientId the id of the client whose throughput sizes the lease, null if unknown
+	 * @return
+	 * @throws IOException
+	 */
+	ByteBuffer taskResponse(int batch, String clientId) throws IOException {
+		TaskDispatchEvent event = new TaskDispatchEvent();
+		event.begin();
+		long now = System.currentTimeMillis();
+		Task task = draining ? null : scheduler.nextTask(batch, now + leaseMillis, clientId);
+		ByteBuffer response;
+		if (task == null) {
+			if (!draining) {
+				requestSteal();
+			}
+			InetSocketAddress peer = shards == null || draining ? null : shards.getRedirect();
+			if (peer != null) {
+				response = charsetASCII.encode(Shards.redirectResponse(peer));
+				event.outcome = "redirect";
+			} else {
+				response = jsonResponse(charsetUTF8.encode(Task.comeBack(comeBackInSeconds).toJSON()));
+				event.outcome = "comeBack";
+			}
+		} else {
+			if (clientId != null) {
+				leaseSizer.leased(clientId, task.getTaskCount(), now);
+			}
+			response = jsonResponse(charsetUTF8.encode(task.toJSON()));
+			event.outcome = "lease";
 		}
-		if (!job.isFinished()) {
-			jobs.addLast(job);
+		event.end();
+		if (event.shouldCommit()) {
+			if (task != null) {
+				event.jobId = task.getJobId();
+				event.task = task.getTask();
+				event.taskCount = task.getTaskCount();
+			}
+			event.clientId = clientId;
+			event.bytes = response.remaining();
+			event.commit();
 		}
+		return response;
 	}
 
 	/**
-	 * Write on the channel of the key
+	 * Returns the number of tasks to lease to a client
 	 * 
-	 * @param key
-	 * @throws IOException
+	 * @param clientId the id the client sent, or null
+	 * @param batch the largest lease the client accepts
+	 * @return
 	 */
-	private void doWrite(SelectionKey key) throws IOException {
-		Attachment attachment = (Attachment) key.attachment();
-
-		if (attachment.isRequestingTask()) {
-			attachment.setRequestingTask(false);
-			sendTask((SocketChannel) key.channel());
-			key.interestOps(SelectionKey.OP_READ);
-		} else if (attachment.isSendingPost()) {
-			sendCheckCode(key);
-			key.interestOps(SelectionKey.OP_READ);
-		}
+	int leaseSize(String clientId, int batch) {
+		return clientId == null ? batch : leaseSizer.requested(clientId, batch, System.currentTimeMillis());
+	}
 
-		attachment.setReadingRequest(true);
+	/**
+	 * Creates the header of a 200 response with a JSON content
+	 * 
+	 * @param contentLength
+	 * @return
+	 */
+	private static ByteBuffer jsonHeader(int contentLength) {
+		String header = "HTTP/1.1 200 OK\r\n" + "Content-Type: application/json; charset=utf-8\r\n"
+				+ "Content-Length: " + contentLength + "\r\n\r\n";
+		return Server.charsetUTF8.encode(header);
 	}
 
 	/**
-	 * Sends the check code to the client
+	 * Creates a 200 response with a JSON content
 	 * 
-	 * @param key
-	 * @throws IOException
+	 * @param json
+	 * @return
 	 */
-	private void sendCheckCode(SelectionKey key) throws IOException {
-		Attachment attachment = (Attachment) key.attachment();
+	private static ByteBuffer jsonResponse(ByteBuffer json) {
+		ByteBuffer header = jsonHeader(json.remaining());
+		ByteBuffer response = ByteBuffer.allocate(header.remaining() + json.remaining());
+		response.put(header).put(json);
+		response.flip();
+		return response;
+	}
+
+	/**
+	 * Creates the response of a GET Result request
+	 * 
+	 * @param jobId
+	 * @return
+	 * @throws IOException
+	 */
+	ByteBuffer resultResponse(long jobId) throws IOException {
+		Job job = scheduler.getJob(jobId);
+		if (job == null) {
+			return charsetUTF8.encode(notFound);
+		}
+		return jsonResponse(charsetUTF8.encode(job.getResult().toJSON()));
+	}
+
+	/**
+	 * Opens the answers of a GET Answers/[jobId]?from=[task]&to=[task] request, from being 0 and
+	 * to the end of the job when they are missing
+	 * 
+	 * @param requested the requested resource
+	 * @return the stream, or null if the job is unknown and has no answers
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the request is ill-formed
+	 */
+	AnswerStream answerStream(String requested) throws IOException {
+		String[] resource = requested.substring("Answers/".length()).split("\\?", 2);
+		long jobId = Long.parseLong(resource[0]);
+		long from = 0;
+		long to = Long.MAX_VALUE;
+		if (resource.length == 2) {
+			for (String parameter : resource[1].split("&")) {
+				String[] token = parameter.split("=", 2);
+				if (token[0].equals("from") && token.length == 2) {
+					from = Long.parseLong(token[1]);
+				} else if (token[0].equals("to") && token.length == 2) {
+					to = Long.parseLong(token[1]);
+				}
+			}
+		}
+		AnswerStream stream = new AnswerStream(answerStore.getDirectory(), jobId, from, to, answerStore.isOrdered());
+		if (stream.getSegmentCount() == 0 && scheduler.getJob(jobId) == null) {
+			stream.close();
+			return null;
+		}
+		return stream;
+	}
+
+	/**
+	 * Creates the response of a GET Progress request: for every job, the tasks dispatched,
+	 * answered, outstanding and not dispatched yet, the average answer rate over the last minute
+	 * and the time left at this rate. The values are read from counters, nothing is computed from
+	 * the leases or the answers.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	ByteBuffer progressResponse() throws IOException {
+		List<Job> jobs = new ArrayList<>(scheduler.getJobs());
+		jobs.sort(Comparator.comparingLong(Job::getJobId));
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		JsonGenerator jg = new JsonFactory().createGenerator(baos);
+		jg.writeStartObject();
+		jg.writeArrayFieldStart("Jobs");
+		for (Job job : jobs) {
+			long remaining = job.getAvailableTasks();
+			long left = remaining + job.getOutstandingTasks();
+			double rate = job.getAnswerRate();
+			jg.writeStartObject();
+			jg.writeStringField("JobId", String.valueOf(job.getJobId()));
+			jg.writeStringField("JobDescription", job.getJobDescription());
+			jg.writeNumberField("JobPriority", job.getJobPriority());
+			jg.writeNumberField("JobTaskNumber", job.getJobTaskNumber());
+			jg.writeNumberField("Dispatched", job.getDispatchedTasks());
+			jg.writeNumberField("Answered", job.getAnsweredTasks());
+			jg.writeNumberField("Outstanding", job.getOutstandingTasks());
+			jg.writeNumberField("Remaining", remaining);
+			jg.writeBooleanField("Retired", scheduler.isRetired(job.getJobId()));
+			jg.writeBooleanField("Paused", scheduler.isPaused(job.getJobId()));
+			if (rate >= 0) {
+				jg.writeNumberField("AnswersPerSecond", Math.round(rate * 100) / 100.0);
+			} else {
+				jg.writeNullField("AnswersPerSecond");
+			}
+			if (left == 0) {
+				jg.writeNumberField("EtaSeconds", 0);
+			} else if (rate > 0) {
+				jg.writeNumberField("EtaSeconds", (long) Math.ceil(left / rate));
+			} else {
+				jg.writeNullField("EtaSeconds");
+			}
+			jg.writeEndObject();
+		}
+		jg.writeEndArray();
+		jg.writeEndObject();
+		jg.close();
+		return jsonResponse(charsetUTF8.encode(baos.toString()));
+	}
+
+	/**
+	 * Tests if a client connects from this host, the only place the admin API is served to
+	 * 
+	 * @param remote
+	 * @return
+	 */
+	static boolean isLoopback(SocketAddress remote) {
+		return remote instanceof InetSocketAddress && ((InetSocketAddress) remote).getAddress() != null
+				&& ((InetSocketAddress) remote).getAddress().isLoopbackAddress();
+	}
+
+	/**
+	 * Tests the Admin-Token header of an admin request. A web page cannot send the header to the
+	 * server without a preflight request, nor read the token file, so that a browser running on
+	 * this host cannot be used to reach the admin API.
+	 * 
+	 * @param token the header, null if it is missing
+	 * @return
+	 */
+	boolean isAdminToken(String token) {
+		return token != null && MessageDigest.isEqual(token.getBytes(charsetASCII), adminToken);
+	}
+
+	/**
+	 * Reads the token of the admin API from its file, or creates the file, readable by its owner
+	 * only, with a random token
+	 * 
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	private static String loadAdminToken(Path path) throws IOException {
+		if (Files.exists(path)) {
+			String token = new String(Files.readAllBytes(path), charsetASCII).trim();
+			if (!token.isEmpty()) {
+				return token;
+			}
+		}
+		byte[] random = new byte[16];
+		new SecureRandom().nextBytes(random);
+		StringBuilder token = new StringBuilder();
+		for (byte b : random) {
+			token.append(String.format("%02x", b));
+		}
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		Files.deleteIfExists(tmp);
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			Files.createFile(tmp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		}
+		Files.write(tmp, (token + "\n").getBytes(charsetASCII));
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		System.out.println("Admin token written to " + path);
+		return token.toString();
+	}
+
+	/**
+	 * Applies a request of the admin API:
+	 * POST Admin/Job with a job as content, in the format of the jobs config file,
+	 * POST Admin/Priority/[jobId]?priority=[n], POST Admin/Pause/[jobId], POST Admin/Resume/[jobId],
+	 * POST Admin/Drain and POST Admin/Shutdown.
+	 * Called from the selector thread or holding the lock of the blocking engine, so that the
+	 * scheduler sees each change whole between two leases.
+	 * 
+	 * @param requested the requested resource
+	 * @param content the content of the request
+	 * @return the response
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the request is ill-formed
+	 */
+	ByteBuffer adminResponse(String requested, ByteBuffer content) throws IOException {
+		String[] resource = requested.substring("Admin/".length()).split("\\?", 2);
+		String[] path = resource[0].split("/");
+		switch (path[0]) {
+		case "Job":
+			return submitJob(charsetUTF8.decode(content).toString());
+		case "Drain":
+			if (!draining && !shutdown) {
+				draining = true;
+				saveLog("Admin: draining, no task is leased anymore");
+			}
+			return charsetUTF8.encode(noContent);
+		case "Shutdown":
+			saveLog("Admin: shutdown");
+			if (!shutdown) {
+				shutdown();
+			}
+			return charsetUTF8.encode(noContent);
+		default:
+			break;
+		}
+		if (path.length != 2) {
+			throw new IllegalArgumentException("Unknown admin request " + requested);
+		}
+		long jobId = Long.parseLong(path[1]);
+		if (scheduler.getJob(jobId) == null) {
+			return charsetUTF8.encode(notFound);
+		}
+		switch (path[0]) {
+		case "Priority":
+			int priority = -1;
+			if (resource.length == 2) {
+				for (String parameter : resource[1].split("&")) {
+					String[] token = parameter.split("=", 2);
+					if (token[0].equals("priority") && token.length == 2) {
+						priority = Integer.parseInt(token[1]);
+					}
+				}
+			}
+			if (priority < 0) {
+				throw new IllegalArgumentException("Missing or negative priority");
+			}
+			int old = scheduler.getJob(jobId).getJobPriority();
+			scheduler.setPriority(jobId, priority);
+			saveLog("Admin: job " + jobId + " priority " + old + " -> " + priority);
+			break;
+		case "Pause":
+			scheduler.pause(jobId);
+			saveLog("Admin: paused job " + jobId);
+			break;
+		case "Resume":
+			scheduler.resume(jobId);
+			wakeParkedRequests();
+			saveLog("Admin: resumed job " + jobId);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown admin request " + requested);
+		}
+		return charsetUTF8.encode(noContent);
+	}
+
+	/**
+	 * Adds a job submitted through the admin API, once it is saved with the other submitted jobs
+	 * 
+	 * @param json the job
+	 * @return 204 once the job is running, 409 if a job with this id is already known
+	 * @throws IllegalArgumentException if the job is invalid
+	 */
+	private ByteBuffer submitJob(String json) throws IOException {
+		Job job;
+		try (JsonParser jp = new JsonFactory().createParser(json)) {
+			if (jp.nextToken() != JsonToken.START_OBJECT) {
+				throw new IllegalArgumentException("A job must be a JSON object");
+			}
+			job = Job.parseJSON(jp);
+			if (jp.nextToken() != null) {
+				throw new IllegalArgumentException("Trailing data after the job");
+			}
+		} catch (JsonParseException e) {
+			saveLog("Admin: invalid job: " + e.getOriginalMessage());
+			throw new IllegalArgumentException(e);
+		}
+		long jobId = job.getJobId();
+		if (scheduler.getJob(jobId) != null) {
+			saveLog("Admin: job " + jobId + " already exists");
+			return charsetUTF8.encode(conflict);
+		}
+		// a line break of a JSON object is white space
+		submittedJobs.put(jobId, json.trim().replace('\r', ' ').replace('\n', ' '));
+		try {
+			saveSubmittedJobs();
+		} catch (IOException e) {
+			submittedJobs.remove(jobId);
+			throw e;
+		}
+		addJob(job);
+		saveLog("Admin: added job " + jobId + " with priority " + job.getJobPriority());
+		return charsetUTF8.encode(noContent);
+	}
+
+	/**
+	 * Returns the file of the jobs submitted through the admin API, one JSON job per line
+	 * 
+	 * @return
+	 */
+	private Path submittedJobsPath() {
+		return Paths.get(answersPath).resolve("submitted.json");
+	}
+
+	/**
+	 * Writes the jobs submitted through the admin API, atomically replacing the previous file
+	 * 
+	 * @throws IOException
+	 */
+	private void saveSubmittedJobs() throws IOException {
+		Path path = submittedJobsPath();
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+			for (String json : submittedJobs.values()) {
+				out.write(json.getBytes(charsetUTF8));
+				out.write('\n');
+			}
+			out.getFD().sync();
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Tests if no task of a job is leased anymore
+	 * 
+	 * @return
+	 */
+	private boolean isDrained() {
+		for (Job job : scheduler.getJobs()) {
+			if (job.getOutstandingTasks() > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates the response of a GET Steal request: offers the second half of the tasks not
+	 * dispatched yet of the job, among the ones requested, which has the most tasks left. The range
+	 * is given away once the offer is committed by a GET StealCommit request.
+	 * 
+	 * @param jobIds the comma separated ids of the jobs the other shard runs
+	 * @return
+	 * @throws IOException
+	 */
+	ByteBuffer stealResponse(String jobIds) throws IOException {
+		List<Job> candidates = new ArrayList<>();
+		long available = 0;
+		for (String jobId : jobIds.split(",")) {
+			Job job;
+			try {
+				job = scheduler.getJob(Long.parseLong(jobId.trim()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			if (job != null && !scheduler.isRetired(job.getJobId()) && !scheduler.isPaused(job.getJobId())) {
+				candidates.add(job);
+				available += job.getAvailableTasks();
+			}
+		}
+		candidates.sort(Comparator.comparingLong(Job::getAvailableTasks).reversed());
+		String json = Shards.toJSON(-1, null, 0, available);
+		for (Job job : candidates) {
+			long[] range = job.split(shards.getMinStealTasks());
+			if (range != null) {
+				long offer;
+				do {
+					offer = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+				} while (stealOffers.containsKey(offer));
+				stealOffers.put(offer, new StealOffer(job, range[0], range[1],
+						System.currentTimeMillis() + Shards.OFFER_TIMEOUT_MILLIS));
+				saveLog("Offered tasks [" + range[0] + ", " + range[1] + ") of job " + job.getJobId() + " to another shard");
+				json = Shards.toJSON(job.getJobId(), range, offer, available - (range[1] - range[0]));
+				break;
+			}
+		}
+		return jsonResponse(charsetUTF8.encode(json));
+	}
+
+	/**
+	 * Creates the response of a GET StealCommit request: gives the range of an offer away, and
+	 * saves it in the checkpoint of the job before answering
+	 * 
+	 * @param offerId the id of the offer
+	 * @return 200, or 404 if the offer is unknown or expired
+	 */
+	ByteBuffer stealCommitResponse(String offerId) {
+		StealOffer offer;
+		try {
+			offer = stealOffers.remove(Long.parseLong(offerId));
+		} catch (NumberFormatException e) {
+			offer = null;
+		}
+		if (offer == null) {
+			return charsetUTF8.encode(notFound);
+		}
+		long jobId = offer.job.getJobId();
+		offer.job.disown(offer.from, offer.to);
+		try {
+			answerStore.skip(jobId, offer.from, offer.to);
+		} catch (IOException e) {
+			saveLog("Cannot read the answers of job " + jobId + ": " + e);
+		}
+		saveCheckpoint(offer.job);
+		saveLog("Gave tasks [" + offer.from + ", " + offer.to + ") of job " + jobId + " to another shard");
+		return jsonResponse(charsetUTF8.encode("{}"));
+	}
+
+	/**
+	 * Dispatches again the ranges offered to other shards which did not commit them in time
+	 * 
+	 * @param now
+	 */
+	private void expireStealOffers(long now) {
+		if (stealOffers.isEmpty()) {
+			return;
+		}
+		for (Iterator<StealOffer> it = stealOffers.values().iterator(); it.hasNext();) {
+			StealOffer offer = it.next();
+			if (now < offer.deadline) {
+				continue;
+			}
+			it.remove();
+			long jobId = offer.job.getJobId();
+			try {
+				scheduler.addRange(jobId, offer.from, offer.to);
+				wakeParkedRequests();
+				saveLog("Took back tasks [" + offer.from + ", " + offer.to + ") of job " + jobId
+						+ ": the offer was not committed");
+			} catch (IllegalArgumentException e) {
+				// still owned, dispatched again after a restart
+				saveLog("Cannot take back tasks [" + offer.from + ", " + offer.to + ") of job " + jobId + ": "
+						+ e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Asks the other shards for tasks when this one runs dry
+	 */
+	void requestSteal() {
+		if (shards == null) {
+			return;
+		}
+		List<Long> jobIds = new ArrayList<>();
+		for (Job job : scheduler.getJobs()) {
+			if (!scheduler.isRetired(job.getJobId()) && !scheduler.isPaused(job.getJobId())) {
+				jobIds.add(job.getJobId());
+			}
+		}
+		shards.steal(jobIds, this::keepStolenRange, result -> post(() -> applySteal(result)));
+	}
+
+	/**
+	 * Saves a range offered by another shard as owned by this one, on the selector thread, before
+	 * the offer is committed. Called on the stealer thread.
+	 * 
+	 * @param result
+	 * @return true if the range was saved in the checkpoint of its job
+	 */
+	private boolean keepStolenRange(Shards.StealResult result) {
+		CompletableFuture<Boolean> kept = new CompletableFuture<>();
+		post(() -> kept.complete(ownStolenRange(result)));
+		try {
+			return kept.get(Shards.OFFER_TIMEOUT_MILLIS / 2, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException | ExecutionException | TimeoutException e) {
+			// not committed, the range is disowned by applySteal
+			return false;
+		}
+	}
+
+	private boolean ownStolenRange(Shards.StealResult result) {
+		Job job = scheduler.getJob(result.getJobId());
+		if (job == null || scheduler.isRetired(result.getJobId())) {
+			saveLog("Refused tasks [" + result.getFrom() + ", " + result.getTo() + ") of unknown job "
+					+ result.getJobId() + " offered by shard " + result.getPeer());
+			return false;
+		}
+		try {
+			job.own(result.getFrom(), result.getTo());
+		} catch (IllegalArgumentException e) {
+			saveLog("Refused tasks offered by shard " + result.getPeer() + ": " + e.getMessage());
+			return false;
+		}
+		return saveCheckpoint(job);
+	}
+
+	/**
+	 * Applies the result of a steal request on the selector thread: dispatches the range if the
+	 * offer was committed, else forgets it
+	 * 
+	 * @param result
+	 */
+	private void applySteal(Shards.StealResult result) {
+		shards.stealDone(result);
+		if (result == null || !result.hasRange()) {
+			return;
+		}
+		Job job = scheduler.getJob(result.getJobId());
+		if (!result.isCommitted()) {
+			if (job != null && job.disown(result.getFrom(), result.getTo())) {
+				saveLog("Left tasks [" + result.getFrom() + ", " + result.getTo() + ") of job " + result.getJobId()
+						+ " to shard " + result.getPeer() + ": the offer was not committed");
+			}
+			return;
+		}
+		try {
+			scheduler.addRange(result.getJobId(), result.getFrom(), result.getTo());
+			answerStore.expect(result.getJobId(), result.getFrom(), result.getTo());
+			wakeParkedRequests();
+			saveLog("Stole tasks [" + result.getFrom() + ", " + result.getTo() + ") of job " + result.getJobId()
+					+ " from shard " + result.getPeer());
+		} catch (IllegalArgumentException e) {
+			// still owned, dispatched again after a restart
+			saveLog("Cannot dispatch tasks [" + result.getFrom() + ", " + result.getTo() + ") of job "
+					+ result.getJobId() + " stolen from shard " + result.getPeer() + ": " + e.getMessage());
+		} catch (IOException e) {
+			saveLog("Cannot read the answers of job " + result.getJobId() + ": " + e);
+		}
+	}
+
+	/**
+	 * Answers a GET Task request, or parks it until a task is available when long polling is enabled
+	 * 
+	 * @param key
+	 * @throws IOException
+	 */
+	private void serveTask(SelectionKey key) throws IOException {
+		Attachment attachment = (Attachment) key.attachment();
+		if (longPollMillis > 0 && !shutdown && !hasTask() && parkedRequests.size() < maxParkedClients) {
+			requestSteal();
+			key.interestOps(0);
+			parkedRequests.add(new ParkedRequest(key, System.currentTimeMillis() + longPollMillis));
+			return;
+		}
+		attachment.setRequestingTask(false);
+		sendTask((SocketChannel) key.channel(), attachment.getTaskBatch(), attachment.getClientId());
+		attachment.setReadingRequest(true);
+		setDeadline(attachment, Attachment.Deadline.IDLE);
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Dispatches tasks to the parked requests in arrival order while tasks are available, and
+	 * answers the ones whose long poll timed out
+	 */
+	private void processParkedRequests() {
+		long now = System.currentTimeMillis();
+		ParkedRequest parked;
+		while ((parked = parkedRequests.peek()) != null && (hasTask() || parked.deadline <= now || shutdown)) {
+			parkedRequests.poll();
+			if (!parked.key.isValid()) {
+				continue;
+			}
+			Attachment attachment = (Attachment) parked.key.attachment();
+			try {
+				attachment.setRequestingTask(false);
+				sendTask((SocketChannel) parked.key.channel(), attachment.getTaskBatch(), attachment.getClientId());
+				attachment.setReadingRequest(true);
+				setDeadline(attachment, Attachment.Deadline.IDLE);
+				parked.key.interestOps(SelectionKey.OP_READ);
+			} catch (IOException e) {
+				saveLog("Connection lost with a parked client");
+				closeClient(parked.key);
+			}
+		}
+	}
+
+	/**
+	 * Puts the tasks of the expired leases back in the dispatch queue
+	 */
+	private void expireLeases() {
+		int expired = scheduler.expireLeases(System.currentTimeMillis());
+		if (expired > 0) {
+			saveLog(expired + " leased tasks expired and will be dispatched again");
+			wakeParkedRequests();
+		}
+	}
+
+	/**
+	 * Write on the channel of the key
+	 * 
+	 * @param key
+	 * @throws IOException
+	 */
+	private void doWrite(SelectionKey key) throws IOException {
+		Attachment attachment = (Attachment) key.attachment();
+		endRequest(attachment);
+
+		if (attachment.getResponse() != null || attachment.getAnswerStream() != null) {
+			ByteBuffer response = attachment.getResponse();
+			while (response != null && response.hasRemaining()) {
+				((SocketChannel) key.channel()).write(response);
+			}
+			attachment.setResponse(null);
+			if (attachment.isCloseAfterResponse()) {
+				closeClient(key);
+				return;
+			}
+			if (attachment.getAnswerStream() != null && !streamAnswers(key, attachment)) {
+				return;
+			}
+			key.interestOps(SelectionKey.OP_READ);
+			if (attachment.getSubscription() != null) {
+				pushAnswers(key, attachment);
+				return;
+			}
+		} else if (attachment.getSubscription() != null) {
+			pushAnswers(key, attachment);
+			return;
+		} else if (attachment.isRequestingTask()) {
+			serveTask(key);
+			return;
+		} else if (attachment.isSendingPost()) {
+			sendCheckCode(key);
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		attachment.setReadingRequest(true);
+		setDeadline(attachment, Attachment.Deadline.IDLE);
+	}
+
+	/**
+	 * Writes the next chunks of the answers streamed to a client, until its socket is full. The
+	 * next chunk is read from the segments only once the socket took the previous one, and the
+	 * client has bodyTimeoutMillis to take more bytes.
+	 * 
+	 * @param key
+	 * @param attachment
+	 * @return true once the stream is written
+	 * @throws IOException
+	 */
+	private boolean streamAnswers(SelectionKey key, Attachment attachment) throws IOException {
+		AnswerStream stream = attachment.getAnswerStream();
+		SocketChannel sc = (SocketChannel) key.channel();
+		for (int i = 0; i < STREAM_CHUNKS_PER_WRITE; i++) {
+			long written = stream.getWritten();
+			if (stream.writeTo(sc)) {
+				stream.close();
+				attachment.setAnswerStream(null);
+				return true;
+			}
+			if (stream.getWritten() == written) {
+				break;
+			}
+		}
+		setDeadline(attachment, Attachment.Deadline.BODY);
+		return false;
+	}
+
+	/**
+	 * Writes the answers published since the last write to a subscriber, until its socket is full.
+	 * The subscriber then has bodyTimeoutMillis to take more bytes. Once it wrote every answer, the
+	 * subscriber waits for the next ones reading only, and its stream ends when the server shuts
+	 * down.
+	 * 
+	 * @param key
+	 * @param attachment
+	 * @throws IOException
+	 */
+	private void pushAnswers(SelectionKey key, Attachment attachment) throws IOException {
+		SocketChannel sc = (SocketChannel) key.channel();
+		if (!attachment.getSubscription().writeTo(sc)) {
+			setDeadline(attachment, Attachment.Deadline.BODY);
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			return;
+		}
+		clearDeadline(attachment);
+		if (shutdown) {
+			ByteBuffer last = charsetASCII.encode("0\r\n\r\n");
+			while (last.hasRemaining() && sc.write(last) > 0) {
+				// a full socket is not waited for at shutdown
+			}
+			closeClient(key);
+			return;
+		}
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Makes the subscribers with answers to write wait for their socket to be writable, once per
+	 * iteration of the selector loop rather than once per answer
+	 */
+	private void wakeSubscribers() {
+		for (SelectionKey key : subscribers) {
+			if (key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+				Attachment attachment = (Attachment) key.attachment();
+				if (shutdown || attachment.getSubscription().hasNext()) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Subscribes to the answers accepted from now on for a job
+	 * 
+	 * @param jobId
+	 * @return the cursor of the subscriber, or null if the job is unknown
+	 */
+	AnswerRing.Cursor subscribe(long jobId) {
+		if (scheduler.getJob(jobId) == null) {
+			return null;
+		}
+		return rings.computeIfAbsent(jobId, id -> new AnswerRing(id, subscriptionBufferSize)).subscribe();
+	}
+
+	/**
+	 * Forgets a subscriber, and the ring of its job if it was the last one
+	 * 
+	 * @param cursor
+	 */
+	void unsubscribe(AnswerRing.Cursor cursor) {
+		AnswerRing ring = cursor.getRing();
+		if (ring.unsubscribe() == 0) {
+			rings.remove(ring.getJobId());
+			nbSkipped += ring.getSkipped();
+		}
+	}
+
+	/**
+	 * Schedules the deadline of the current phase of a connection
+	 * 
+	 * @param attachment
+	 * @param deadline
+	 */
+	private void setDeadline(Attachment attachment, Attachment.Deadline deadline) {
+		long timeout;
+		switch (deadline) {
+		case HEADER:
+			timeout = headerTimeoutMillis;
+			break;
+		case BODY:
+			timeout = bodyTimeoutMillis;
+			break;
+		default:
+			timeout = idleTimeoutMillis;
+		}
+		attachment.setDeadline(deadline);
+		reaper.schedule(attachment.getTimer(), System.currentTimeMillis() + timeout);
+	}
+
+	/**
+	 * Removes the deadline of a connection while the server handles its request
+	 * 
+	 * @param attachment
+	 */
+	private void clearDeadline(Attachment attachment) {
+		attachment.setDeadline(null);
+		reaper.cancel(attachment.getTimer());
+	}
+
+	/**
+	 * Closes the connections whose deadline passed
+	 */
+	private void reapConnections() {
+		reaper.advance(System.currentTimeMillis(), key -> {
+			Attachment attachment = (Attachment) key.attachment();
+			reaped[attachment.getDeadline().ordinal()]++;
+			try {
+				saveLog("Reaped connection of client " + ((SocketChannel) key.channel()).getRemoteAddress() + ": "
+						+ attachment.getDeadline() + " deadline passed");
+			} catch (IOException e) {
+				//
+			}
+			closeClient(key);
+		});
+	}
+
+	/**
+	 * Sends the check code to the client
+	 * 
+	 * @param key
+	 * @throws IOException
+	 */
+	private void sendCheckCode(SelectionKey key) throws IOException {
+		Attachment attachment = (Attachment) key.attachment();
 		SocketChannel sc = (SocketChannel) key.channel();
 		String answer = attachment.getAnswer();
 		if (answer == null) {
 			throw new IllegalArgumentException("No answer");
 		}
-		if (JsonTools.isJSON(answer)) {
-			sc.write(Server.charsetUTF8.encode(HTTP_1_1_200_OK));
-		} else {
-			sc.write(Server.charsetUTF8.encode(badRequest));
-		}
+		sc.write(checkCodeResponse(answer));
 
 		attachment.clean(sc);
 	}
 
+	/**
+	 * Creates the response of a POST Answer or POST Answer64 request
+	 * 
+	 * @param answer
+	 * @return 200 if the answer is valid JSON, 400 otherwise
+	 * @throws IOException
+	 */
+	static ByteBuffer checkCodeResponse(String answer) throws IOException {
+		return Server.charsetUTF8.encode(JsonTools.isJSON(answer) ? HTTP_1_1_200_OK : badRequest);
+	}
+
 	/**
 	 * Close the key
 	 * 
@@ -551,17 +2600,17 @@ public class Server {
 	}
 
 	private static void usage() {
-		System.out.println("ServerJarRet");
+		System.out.println("ServerJarRet [configFile]");
 	}
 	
 	public static void main(String[] args) throws NumberFormatException, IOException {
 		
-		if (args.length != 0) {
+		if (args.length > 1) {
 			usage();
 			return;
 		}
 		
-		Server.create().launch();
+		Server.create(Paths.get(args.length == 1 ? args[0] : "config/JarRetConfig.json")).launch();
 	}
 
 }
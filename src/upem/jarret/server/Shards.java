@@ -0,0 +1,409 @@
+package upem.jarret.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import upem.jarret.http.HTTPHeader;
+import upem.jarret.http.HTTPReader;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * The servers of a sharded deployment. Each server owns a slice of the tasks of every job.
+ * A server which runs dry asks its peers, on a background thread, to give it the second half
+ * of the tasks they did not dispatch yet, and remembers a peer which still has tasks so that
+ * its clients can be redirected there.
+ * A range changes hands in two steps, so that it is owned by a shard at any time: the peer offers
+ * it and keeps owning it, the thief saves it in its checkpoint then commits the offer, and the peer
+ * saves that it gave it away. An offer which is not committed in time is dispatched by the peer
+ * again.
+ */
+public class Shards {
+	private static final Charset charsetASCII = Charset.forName("ASCII");
+	private static final Charset charsetUTF8 = Charset.forName("utf-8");
+	private static final JsonFactory jf = new JsonFactory();
+	private static final long STEAL_INTERVAL_MILLIS = 1000;
+	private static final long REDIRECT_MILLIS = 10_000;
+	private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+	private static final long READ_TIMEOUT_MILLIS = 5000;
+	// longer than a steal takes, from the offer to the commit
+	static final long OFFER_TIMEOUT_MILLIS = 30_000;
+
+	private final int index;
+	private final int count;
+	private final List<InetSocketAddress> peers;
+	private final long minStealTasks;
+	private final Consumer<String> log;
+	private final ExecutorService stealer = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "Stealer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "Steal-watchdog");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// used by the selector thread only
+	private boolean stealing;
+	private long nextSteal;
+	private InetSocketAddress redirect;
+	private long redirectDeadline;
+
+	/**
+	 * Tasks given away by a peer, or the number of tasks it has left
+	 */
+	public static class StealResult {
+		private final InetSocketAddress peer;
+		private final long jobId;
+		private final long from;
+		private final long to;
+		private final long available;
+		private final long offer;
+		private boolean committed;
+
+		StealResult(InetSocketAddress peer, long jobId, long from, long to, long available, long offer) {
+			this.peer = peer;
+			this.jobId = jobId;
+			this.from = from;
+			this.to = to;
+			this.available = available;
+			this.offer = offer;
+		}
+
+		public long getJobId() {
+			return jobId;
+		}
+
+		public long getFrom() {
+			return from;
+		}
+
+		public long getTo() {
+			return to;
+		}
+
+		/**
+		 * Returns true if the peer gave a range of tasks
+		 * 
+		 * @return
+		 */
+		public boolean hasRange() {
+			return from < to;
+		}
+
+		public InetSocketAddress getPeer() {
+			return peer;
+		}
+
+		/**
+		 * Returns true if the range is owned by this server: the peer accepted the commit of its
+		 * offer, or could not be asked and may have
+		 * 
+		 * @return
+		 */
+		public boolean isCommitted() {
+			return committed;
+		}
+	}
+
+	/**
+	 * @param index the index of this server in addresses
+	 * @param addresses the host:port of all the servers, this one included
+	 * @param minStealTasks the minimum number of tasks given away at once
+	 * @param log
+	 */
+	public Shards(int index, List<String> addresses, long minStealTasks, Consumer<String> log) {
+		if (index < 0 || index >= addresses.size()) {
+			throw new IllegalArgumentException("ShardIndex " + index + " is not in Shards " + addresses);
+		}
+		if (minStealTasks < 1) {
+			throw new IllegalArgumentException("MinStealTasks must be positive: " + minStealTasks);
+		}
+		this.index = index;
+		this.count = addresses.size();
+		List<InetSocketAddress> peers = new ArrayList<>();
+		for (int i = 0; i < addresses.size(); i++) {
+			if (i != index) {
+				peers.add(parseAddress(addresses.get(i)));
+			}
+		}
+		this.peers = Collections.unmodifiableList(peers);
+		this.minStealTasks = minStealTasks;
+		this.log = Objects.requireNonNull(log);
+	}
+
+	private static InetSocketAddress parseAddress(String address) {
+		int colon = address.lastIndexOf(':');
+		if (colon == -1) {
+			throw new IllegalArgumentException("Shard address must be host:port: " + address);
+		}
+		return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public long getMinStealTasks() {
+		return minStealTasks;
+	}
+
+	/**
+	 * Asks the peers for tasks of the given jobs, unless a request is running or was made less than
+	 * a second ago. Must be called from the selector thread.
+	 * 
+	 * @param jobIds the jobs this server can run
+	 * @param keep called on the background thread with a range offered by a peer, before it is
+	 *        committed; it must save the range as owned by this server and return true, or return
+	 *        false to leave it to the peer
+	 * @param onResult called on the background thread with the result, or null if no peer answered;
+	 *        it must hand the result to {@link #stealDone} on the selector thread
+	 */
+	public void steal(Collection<Long> jobIds, Predicate<StealResult> keep, Consumer<StealResult> onResult) {
+		long now = System.currentTimeMillis();
+		if (stealing || now < nextSteal || peers.isEmpty() || jobIds.isEmpty()) {
+			return;
+		}
+		stealing = true;
+		String jobs = jobIds.toString();
+		String header = jobs.substring(1, jobs.length() - 1).replace(" ", "");
+		stealer.execute(() -> {
+			StealResult result = null;
+			try {
+				result = askPeers(header);
+				if (result != null && result.hasRange() && keep.test(result)) {
+					result.committed = commit(result);
+				}
+			} finally {
+				onResult.accept(result);
+			}
+		});
+	}
+
+	/**
+	 * Records the result of a steal request. Must be called from the selector thread.
+	 * 
+	 * @param result
+	 */
+	public void stealDone(StealResult result) {
+		stealing = false;
+		nextSteal = System.currentTimeMillis() + STEAL_INTERVAL_MILLIS;
+		if (result != null && result.available > 0) {
+			redirect = result.peer;
+			redirectDeadline = System.currentTimeMillis() + REDIRECT_MILLIS;
+		}
+	}
+
+	/**
+	 * Returns a peer which had tasks left a few seconds ago. Must be called from the selector thread.
+	 * 
+	 * @return the peer, or null if none is known
+	 */
+	public InetSocketAddress getRedirect() {
+		if (redirect != null && System.currentTimeMillis() > redirectDeadline) {
+			redirect = null;
+		}
+		return redirect;
+	}
+
+	/**
+	 * Creates the 307 response sending a client to another server
+	 * 
+	 * @param peer
+	 * @return
+	 */
+	public static String redirectResponse(InetSocketAddress peer) {
+		return "HTTP/1.1 307 Temporary Redirect\r\nLocation: http://" + peer.getHostString() + ":" + peer.getPort()
+		        + "/Task\r\nContent-Length: 0\r\n\r\n";
+	}
+
+	/**
+	 * Asks the peers in turn, until one gives a range of tasks
+	 * 
+	 * @return the range given, else the answer of the peer with the most tasks left, or null
+	 */
+	private StealResult askPeers(String jobIds) {
+		StealResult best = null;
+		for (InetSocketAddress peer : peers) {
+			try {
+				StealResult result = ask(peer, jobIds);
+				if (result.hasRange()) {
+					return result;
+				}
+				if (best == null || result.available > best.available) {
+					best = result;
+				}
+			} catch (IOException | UnresolvedAddressException e) {
+				log.accept("Cannot steal tasks from shard " + peer + ": " + e);
+			}
+		}
+		return best;
+	}
+
+	private StealResult ask(InetSocketAddress peer, String jobIds) throws IOException {
+		try (SocketChannel sc = SocketChannel.open()) {
+			sc.socket().connect(peer, CONNECT_TIMEOUT_MILLIS);
+			ScheduledFuture<?> deadline = watch(sc);
+			try {
+				HTTPReader reader = send(sc, "GET Steal HTTP/1.1\r\nHost: " + peer.getHostString()
+				        + "\r\nSteal-Jobs: " + jobIds + "\r\n\r\n");
+				HTTPHeader header = reader.readHeader();
+				if (header.getCode() != 200) {
+					throw new IOException("Wrong http code: " + header.getCode());
+				}
+				ByteBuffer content = reader.readBytes(header.getContentLength());
+				content.flip();
+				return parseJSON(peer, charsetUTF8.decode(content).toString());
+			} finally {
+				deadline.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Commits the offer of a range, once the range is saved as owned by this server
+	 * 
+	 * @param result
+	 * @return true if this server owns the range: the peer gave it away, or could not be asked and
+	 *         may have, false if the offer expired and the peer kept it
+	 */
+	private boolean commit(StealResult result) {
+		InetSocketAddress peer = result.peer;
+		try (SocketChannel sc = SocketChannel.open()) {
+			sc.socket().connect(peer, CONNECT_TIMEOUT_MILLIS);
+			ScheduledFuture<?> deadline = watch(sc);
+			try {
+				HTTPReader reader = send(sc, "GET StealCommit HTTP/1.1\r\nHost: " + peer.getHostString()
+				        + "\r\nSteal-Offer: " + result.offer + "\r\n\r\n");
+				HTTPHeader header = reader.readHeader();
+				if (header.getCode() == 404) {
+					return false;
+				}
+				if (header.getCode() != 200) {
+					throw new IOException("Wrong http code: " + header.getCode());
+				}
+				return true;
+			} finally {
+				deadline.cancel(false);
+			}
+		} catch (IOException | UnresolvedAddressException e) {
+			// the tasks may be computed twice, but not lost
+			log.accept("Cannot commit the tasks [" + result.from + ", " + result.to + ") of job " + result.jobId
+			        + " offered by shard " + peer + ", keeping them: " + e);
+			return true;
+		}
+	}
+
+	/**
+	 * Closes a connection to a peer which does not answer in time, failing the read of its answer
+	 * 
+	 * @param sc
+	 * @return the close, to cancel once the peer answered
+	 */
+	private ScheduledFuture<?> watch(SocketChannel sc) {
+		return watchdog.schedule(() -> {
+			try {
+				sc.close();
+			} catch (IOException e) {
+				//
+			}
+		}, READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	private static HTTPReader send(SocketChannel sc, String request) throws IOException {
+		ByteBuffer bb = charsetASCII.encode(request);
+		while (bb.hasRemaining()) {
+			sc.write(bb);
+		}
+		return new HTTPReader(sc, ByteBuffer.allocate(256));
+	}
+
+	private static StealResult parseJSON(InetSocketAddress peer, String json) throws IOException {
+		long jobId = -1;
+		long from = 0;
+		long to = 0;
+		long available = 0;
+		long offer = 0;
+		try (JsonParser jp = jf.createParser(json)) {
+			jp.nextToken();
+			while (jp.nextToken() == JsonToken.FIELD_NAME) {
+				String fieldName = jp.getCurrentName();
+				jp.nextToken();
+				switch (fieldName) {
+				case "JobId":
+					jobId = Long.parseLong(jp.getText());
+					break;
+				case "From":
+					from = Long.parseLong(jp.getText());
+					break;
+				case "To":
+					to = Long.parseLong(jp.getText());
+					break;
+				case "Available":
+					available = Long.parseLong(jp.getText());
+					break;
+				case "Offer":
+					offer = Long.parseLong(jp.getText());
+					break;
+				default:
+					jp.skipChildren();
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid steal response: " + json);
+		}
+		return new StealResult(peer, jobId, from, to, available, offer);
+	}
+
+	/**
+	 * Creates the JSON answer to a steal request
+	 * 
+	 * @param jobId the job whose tasks are given away, -1 if none
+	 * @param range the range offered, null if none
+	 * @param offer the id committing the offer
+	 * @param available the number of tasks left to dispatch
+	 * @return
+	 * @throws IOException
+	 */
+	public static String toJSON(long jobId, long[] range, long offer, long available) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		JsonGenerator jg = jf.createGenerator(baos);
+		jg.writeStartObject();
+		if (range != null) {
+			jg.writeStringField("JobId", String.valueOf(jobId));
+			jg.writeStringField("From", String.valueOf(range[0]));
+			jg.writeStringField("To", String.valueOf(range[1]));
+			jg.writeStringField("Offer", String.valueOf(offer));
+		}
+		jg.writeStringField("Available", String.valueOf(available));
+		jg.writeEndObject();
+		jg.close();
+		return baos.toString();
+	}
+}
@@ -0,0 +1,134 @@
+package upem.jarret.server;
+
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel: timers are kept in slots of tickMillis, scheduling and cancelling are
+ * constant time and a sweep only visits the slots whose time has passed. A timer further than
+ * one turn of the wheel stays in its slot until its turn comes. Not thread safe.
+ * 
+ * @param <T> the type of the owners of the timers
+ */
+public class TimingWheel<T> {
+	private final long tickMillis;
+	private final Timer<T>[] slots;
+	private long currentTick;
+	private int size;
+
+	/**
+	 * A timer of the wheel, reused for the successive deadlines of its owner
+	 */
+	public static final class Timer<T> {
+		private final T owner;
+		private long deadline;
+		private int slot = -1;
+		private Timer<T> previous;
+		private Timer<T> next;
+
+		public Timer(T owner) {
+			this.owner = Objects.requireNonNull(owner);
+		}
+
+		public boolean isScheduled() {
+			return slot != -1;
+		}
+
+		public long getDeadline() {
+			return deadline;
+		}
+	}
+
+	/**
+	 * @param tickMillis the duration of a slot
+	 * @param slotCount the number of slots of the wheel
+	 * @param now the current time in milliseconds
+	 */
+	@SuppressWarnings("unchecked")
+	public TimingWheel(long tickMillis, int slotCount, long now) {
+		if (tickMillis <= 0 || slotCount <= 0) {
+			throw new IllegalArgumentException("tickMillis and slotCount must be positive");
+		}
+		this.tickMillis = tickMillis;
+		this.slots = (Timer<T>[]) new Timer<?>[slotCount];
+		this.currentTick = now / tickMillis;
+	}
+
+	/**
+	 * Returns the number of scheduled timers
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Schedules a timer, replacing its previous deadline
+	 * 
+	 * @param timer
+	 * @param deadline the time in milliseconds
+	 */
+	public void schedule(Timer<T> timer, long deadline) {
+		cancel(timer);
+		timer.deadline = deadline;
+		// the slot of a deadline is the first tick at or after it, so that the sweep of that tick
+		// expires it; a deadline already passed is swept with the next tick
+		long tick = Math.max((deadline + tickMillis - 1) / tickMillis, currentTick + 1);
+		int slot = (int) (tick % slots.length);
+		timer.slot = slot;
+		timer.next = slots[slot];
+		if (timer.next != null) {
+			timer.next.previous = timer;
+		}
+		slots[slot] = timer;
+		size++;
+	}
+
+	/**
+	 * Cancels a timer, if it is scheduled
+	 * 
+	 * @param timer
+	 */
+	public void cancel(Timer<T> timer) {
+		if (timer.slot == -1) {
+			return;
+		}
+		if (timer.previous != null) {
+			timer.previous.next = timer.next;
+		} else {
+			slots[timer.slot] = timer.next;
+		}
+		if (timer.next != null) {
+			timer.next.previous = timer.previous;
+		}
+		timer.previous = null;
+		timer.next = null;
+		timer.slot = -1;
+		size--;
+	}
+
+	/**
+	 * Sweeps the slots up to now and hands the owners of the expired timers to a consumer.
+	 * The expired timers are not scheduled anymore when the consumer is called.
+	 * 
+	 * @param now the current time in milliseconds
+	 * @param expired
+	 */
+	public void advance(long now, Consumer<? super T> expired) {
+		long nowTick = now / tickMillis;
+		long ticks = Math.min(nowTick - currentTick, slots.length);
+		for (long i = 1; i <= ticks; i++) {
+			Timer<T> timer = slots[(int) ((currentTick + i) % slots.length)];
+			while (timer != null) {
+				Timer<T> next = timer.next;
+				if (timer.deadline <= now) {
+					cancel(timer);
+					expired.accept(timer.owner);
+				}
+				timer = next;
+			}
+		}
+		currentTick = Math.max(currentTick, nowTick);
+	}
+}
@@ -0,0 +1,365 @@
+package upem.jarret.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Appends the answers of the jobs to their segments. A segment is closed once it reaches
+ * maxFileSize bytes and, if compression is enabled, sealed by a background thread so that
+ * compression never delays save.
+ * In ordered mode, the answers received ahead of the next task of their job are held in a
+ * reorder buffer and written once the gap is filled, so that the segments are sorted by task
+ * and can be searched with {@link SortedSegments}. The buffer of a job spills to
+ * answers/[jobId].reorder beyond reorderBufferBytes and before every checkpoint, and is kept there
+ * between two runs. A gap the buffer waits for longer than reorderGapMillis is skipped, and the
+ * answers which arrive after their task was skipped are appended to answers/[jobId].late, see
+ * {@link Segments#latePath}.
+ * Thread safe, so that the connections of the blocking engine save their answers without holding
+ * the lock of the engine. A ReentrantLock, unlike a monitor, lets a virtual thread blocked on it
+ * release its carrier thread.
+ */
+public class AnswerStore implements Closeable {
+	private static final Charset charsetUTF8 = Charset.forName("utf-8");
+
+	private final Path directory;
+	private final long maxFileSize;
+	private final SegmentCompressor compressor;
+	private final HashMap<Long, OpenSegment> openSegments = new HashMap<>();
+	private final boolean ordered;
+	private final long reorderBufferBytes;
+	private final long reorderGapMillis;
+	private final Consumer<String> log;
+	private final HashMap<Long, ReorderBuffer> reorderBuffers = new HashMap<>();
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * The segment of a job currently written
+	 */
+	private static class OpenSegment {
+		private final int number;
+		private final Path path;
+		private final FileChannel channel;
+		private long size;
+
+		OpenSegment(int number, Path path) throws IOException {
+			this.number = number;
+			this.path = path;
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			        StandardOpenOption.APPEND);
+			this.size = channel.size();
+		}
+	}
+
+	/**
+	 * @param directory the answers directory
+	 * @param maxFileSize the size from which a segment is closed
+	 * @param compress true to seal the closed segments in compressed blocks
+	 * @param log where the errors of the background compression are reported
+	 */
+	public AnswerStore(Path directory, long maxFileSize, boolean compress, Consumer<String> log) {
+		this(directory, maxFileSize, compress, false, 0, 0, log);
+	}
+
+	/**
+	 * @param directory the answers directory
+	 * @param maxFileSize the size from which a segment is closed, at least one block if compression
+	 *        is enabled
+	 * @param compress true to seal the closed segments in compressed blocks
+	 * @param ordered true to write the answers of each job in task order
+	 * @param reorderBufferBytes the memory held by the reorder buffer of a job before it spills
+	 * @param reorderGapMillis how long the reorder buffer of a job waits for a missing task
+	 * @param log where the errors of the background compression and the skipped gaps are reported
+	 */
+	public AnswerStore(Path directory, long maxFileSize, boolean compress, boolean ordered, long reorderBufferBytes,
+	        long reorderGapMillis, Consumer<String> log) {
+		if (ordered && reorderBufferBytes <= 0) {
+			throw new IllegalArgumentException("reorderBufferBytes must be positive: " + reorderBufferBytes);
+		}
+		if (ordered && reorderGapMillis <= 0) {
+			throw new IllegalArgumentException("reorderGapMillis must be positive: " + reorderGapMillis);
+		}
+		this.directory = Objects.requireNonNull(directory);
+		this.maxFileSize = compress ? Math.max(maxFileSize, SegmentCompressor.BLOCK_SIZE) : maxFileSize;
+		this.compressor = compress ? new SegmentCompressor(Objects.requireNonNull(log)) : null;
+		this.ordered = ordered;
+		this.reorderBufferBytes = reorderBufferBytes;
+		this.reorderGapMillis = reorderGapMillis;
+		this.log = Objects.requireNonNull(log);
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	public boolean isOrdered() {
+		return ordered;
+	}
+
+	/**
+	 * Returns the number of answers held by the reorder buffers, waiting for an earlier task
+	 * 
+	 * @return
+	 */
+	public int getReorderedCount() {
+		lock.lock();
+		try {
+			int count = 0;
+			for (ReorderBuffer buffer : reorderBuffers.values()) {
+				count += buffer.size();
+			}
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the path of the spill file of the reorder buffer of a job
+	 * 
+	 * @param directory
+	 * @param jobId
+	 * @return
+	 */
+	public static Path reorderPath(Path directory, long jobId) {
+		return directory.resolve(jobId + ".reorder");
+	}
+
+	/**
+	 * Appends an answer to the current segment of its job. In ordered mode, the answer is held
+	 * until the answers of all the previous tasks are written, an answer to a task already held is
+	 * dropped and an answer to a task the buffer went past is appended to the late answers.
+	 * 
+	 * @param jobId
+	 * @param task
+	 * @param answer a JSON answer, on a single line
+	 * @throws IOException
+	 */
+	public void save(long jobId, long task, String answer) throws IOException {
+		ByteBuffer bb = charsetUTF8.encode(answer + '\n');
+		lock.lock();
+		try {
+			if (!ordered) {
+				append(jobId, bb);
+				return;
+			}
+			ReorderBuffer buffer = reorderBuffer(jobId);
+			if (task < buffer.getNext()) {
+				appendLate(jobId, bb);
+				return;
+			}
+			byte[] record = new byte[bb.remaining()];
+			bb.get(record);
+			if (buffer.add(task, record)) {
+				release(jobId, buffer);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private ReorderBuffer reorderBuffer(long jobId) throws IOException {
+		ReorderBuffer buffer = reorderBuffers.get(jobId);
+		if (buffer == null) {
+			buffer = new ReorderBuffer(reorderPath(directory, jobId), SortedSegments.lastTask(directory, jobId) + 1,
+			        reorderBufferBytes);
+			reorderBuffers.put(jobId, buffer);
+		}
+		return buffer;
+	}
+
+	private void release(long jobId, ReorderBuffer buffer) throws IOException {
+		byte[] record;
+		while ((record = buffer.pollNext()) != null) {
+			append(jobId, ByteBuffer.wrap(record));
+		}
+	}
+
+	/**
+	 * Declares that the tasks of a range of a job will not be answered here, because they belong
+	 * to another shard, so that the answers of the next tasks are not held for them. Does nothing
+	 * unless the answers are ordered.
+	 * 
+	 * @param jobId
+	 * @param from
+	 * @param to exclusive
+	 * @throws IOException
+	 */
+	public void skip(long jobId, long from, long to) throws IOException {
+		lock.lock();
+		try {
+			if (!ordered) {
+				return;
+			}
+			ReorderBuffer buffer = reorderBuffer(jobId);
+			buffer.skip(from, to);
+			release(jobId, buffer);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Declares that the tasks of a range of a job are answered here after all, because they were
+	 * stolen from another shard. Does nothing unless the answers are ordered.
+	 * 
+	 * @param jobId
+	 * @param from
+	 * @param to exclusive
+	 * @throws IOException
+	 */
+	public void expect(long jobId, long from, long to) throws IOException {
+		lock.lock();
+		try {
+			if (ordered) {
+				reorderBuffer(jobId).expect(from, to);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Skips the gaps the reorder buffers waited for longer than reorderGapMillis, and writes the
+	 * answers held behind them. Must be called regularly.
+	 * 
+	 * @param now
+	 * @throws IOException
+	 */
+	public void skipGaps(long now) throws IOException {
+		lock.lock();
+		try {
+			for (Map.Entry<Long, ReorderBuffer> entry : reorderBuffers.entrySet()) {
+				long skipped = entry.getValue().skipGap(now, reorderGapMillis);
+				if (skipped > 0) {
+					log.accept("Skipped " + skipped + " tasks of job " + entry.getKey() + " missing for "
+					        + reorderGapMillis / 1000 + " seconds, their answers go to " + Segments.latePath(directory,
+					                entry.getKey()));
+					release(entry.getKey(), entry.getValue());
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Forces the answers saved to the disk, the ones held by the reorder buffers included, so that
+	 * a checkpoint saved after can count them
+	 * 
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		lock.lock();
+		try {
+			for (ReorderBuffer buffer : reorderBuffers.values()) {
+				buffer.sync();
+			}
+			for (OpenSegment segment : openSegments.values()) {
+				segment.channel.force(false);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Appends the answer of a task the reorder buffer of its job went past. There are few of them,
+	 * so the file is opened and forced for each one.
+	 */
+	private void appendLate(long jobId, ByteBuffer bb) throws IOException {
+		try (FileChannel late = FileChannel.open(Segments.latePath(directory, jobId), StandardOpenOption.CREATE,
+		        StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			while (bb.hasRemaining()) {
+				late.write(bb);
+			}
+			late.force(false);
+		}
+	}
+
+	private void append(long jobId, ByteBuffer bb) throws IOException {
+		OpenSegment segment = openSegments.get(jobId);
+		if (segment == null) {
+			segment = openSegment(jobId);
+			openSegments.put(jobId, segment);
+		}
+		while (bb.hasRemaining()) {
+			segment.size += segment.channel.write(bb);
+		}
+		if (segment.size >= maxFileSize) {
+			segment.channel.close();
+			if (compressor != null) {
+				compressor.seal(segment.path);
+			}
+			openSegments.put(jobId, new OpenSegment(segment.number + 1, Segments.rawPath(directory, jobId,
+			        segment.number + 1)));
+		}
+	}
+
+	/**
+	 * Opens the segment to write for a job: its last segment if it is not full, a new one otherwise.
+	 * The full raw segments left by a previous run are sealed.
+	 * 
+	 * @param jobId
+	 * @return
+	 * @throws IOException
+	 */
+	private OpenSegment openSegment(long jobId) throws IOException {
+		List<Path> segments = Segments.list(directory, jobId);
+		if (segments.isEmpty()) {
+			return new OpenSegment(1, Segments.rawPath(directory, jobId, 1));
+		}
+		Path last = segments.get(segments.size() - 1);
+		int lastNumber = Segments.segmentNumber(last, jobId);
+		boolean reuseLast = Files.exists(last) && Files.size(last) < maxFileSize;
+		if (compressor != null) {
+			for (Path segment : segments) {
+				if (Files.exists(segment) && (segment != last || !reuseLast)) {
+					compressor.seal(segment);
+				}
+			}
+		}
+		if (reuseLast) {
+			return new OpenSegment(lastNumber, last);
+		}
+		return new OpenSegment(lastNumber + 1, Segments.rawPath(directory, jobId, lastNumber + 1));
+	}
+
+	/**
+	 * Closes the open segments, spills the reorder buffers and waits for the background compressions
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			for (ReorderBuffer buffer : reorderBuffers.values()) {
+				buffer.close();
+			}
+			reorderBuffers.clear();
+			for (OpenSegment segment : openSegments.values()) {
+				segment.channel.close();
+			}
+			openSegments.clear();
+			if (compressor != null) {
+				try {
+					compressor.close();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+}
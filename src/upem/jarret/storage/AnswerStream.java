@@ -0,0 +1,344 @@
+package upem.jarret.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Streams the answers of a job to a range of tasks as the chunks of an HTTP response, one JSON
+ * answer per line, in the order of the segments, then the late answers of the job if it has some.
+ * The raw segments are sent with FileChannel.transferTo, without copying their bytes in memory:
+ * whole when the range holds every task, from and to the lines found by binary search when the
+ * answers are ordered, except in the late answers. The other raw segments are filtered through a buffer, and the sealed
+ * segments are decompressed block by block, skipping the blocks whose tasks are all out of the
+ * range.
+ * A chunk is only prepared once the previous one is written, so a slow consumer holds at most one
+ * block of memory.
+ */
+public class AnswerStream implements Closeable {
+	private static final Charset charsetASCII = Charset.forName("ASCII");
+	/**
+	 * The largest chunk sent from a file, so that a chunk never takes long to write
+	 */
+	private static final long MAX_FILE_CHUNK = 1024 * 1024;
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(charsetASCII);
+
+	private final long from;
+	private final long to;
+	private final boolean ordered;
+	private final Path late;
+	private final Iterator<Path> segments;
+	private final int segmentCount;
+
+	// the segment being sent
+	private FileChannel raw;
+	private long rawPosition;
+	private long rawEnd;
+	private boolean filtering;
+	private byte[] buffer;
+	private CompressedSegment sealed;
+	private int block;
+
+	// the chunk being written
+	private final ByteBuffer head = ByteBuffer.allocate(32);
+	private FileChannel file;
+	private long filePosition;
+	private long fileRemaining;
+	private ByteBuffer data;
+	private final ByteBuffer tail = ByteBuffer.allocate(CRLF.length);
+	private boolean lastChunk;
+	private long written;
+
+	/**
+	 * @param directory the answers directory
+	 * @param jobId
+	 * @param from the first task, inclusive
+	 * @param to the last task, exclusive
+	 * @param ordered true if the answers of the job are written in task order
+	 * @throws IOException
+	 */
+	public AnswerStream(Path directory, long jobId, long from, long to, boolean ordered) throws IOException {
+		if (from < 0 || to < from) {
+			throw new IllegalArgumentException("Invalid task range: " + from + " to " + to);
+		}
+		this.from = from;
+		this.to = to;
+		this.ordered = ordered;
+		this.late = Segments.latePath(directory, jobId);
+		List<Path> list = Segments.listWithLate(directory, jobId);
+		this.segments = list.iterator();
+		this.segmentCount = list.size();
+		head.flip();
+		tail.flip();
+	}
+
+	/**
+	 * Returns the number of segments of the job, its late answers included
+	 *
+	 * @return
+	 */
+	public int getSegmentCount() {
+		return segmentCount;
+	}
+
+	/**
+	 * Returns the number of bytes written, chunk framing included
+	 *
+	 * @return
+	 */
+	public long getWritten() {
+		return written;
+	}
+
+	/**
+	 * Writes the stream until a chunk is completely written or the channel cannot take more bytes.
+	 * A non-blocking channel is called again once it is writable, a blocking one until the
+	 * stream is finished.
+	 *
+	 * @param channel
+	 * @return true once the last chunk is written
+	 * @throws IOException
+	 */
+	public boolean writeTo(WritableByteChannel channel) throws IOException {
+		if (!flush(channel)) {
+			return false;
+		}
+		if (lastChunk) {
+			return true;
+		}
+		if (!nextChunk()) {
+			head.clear();
+			head.put(LAST_CHUNK).flip();
+			lastChunk = true;
+		}
+		return flush(channel) && lastChunk;
+	}
+
+	/**
+	 * Writes what is left of the current chunk
+	 *
+	 * @return false if the channel cannot take more bytes
+	 */
+	private boolean flush(WritableByteChannel channel) throws IOException {
+		if (!write(channel, head)) {
+			return false;
+		}
+		while (fileRemaining > 0) {
+			long n = file.transferTo(filePosition, fileRemaining, channel);
+			if (n == 0) {
+				return false;
+			}
+			filePosition += n;
+			fileRemaining -= n;
+			written += n;
+		}
+		if (data != null) {
+			if (!write(channel, data)) {
+				return false;
+			}
+			data = null;
+		}
+		return write(channel, tail);
+	}
+
+	private boolean write(WritableByteChannel channel, ByteBuffer bb) throws IOException {
+		while (bb.hasRemaining()) {
+			int n = channel.write(bb);
+			if (n == 0) {
+				return false;
+			}
+			written += n;
+		}
+		return true;
+	}
+
+	/**
+	 * Prepares the next chunk
+	 *
+	 * @return false if there are no answers left
+	 * @throws IOException
+	 */
+	private boolean nextChunk() throws IOException {
+		while (true) {
+			if (raw != null) {
+				if (rawPosition < rawEnd) {
+					if (filtering ? filterRaw() : sendRaw()) {
+						return true;
+					}
+					continue;
+				}
+				raw.close();
+				raw = null;
+			} else if (sealed != null) {
+				if (block < sealed.getIndex().size()) {
+					if (sendBlock(block++)) {
+						return true;
+					}
+					continue;
+				}
+				sealed.close();
+				sealed = null;
+			} else if (segments.hasNext()) {
+				open(segments.next());
+			} else {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Opens a segment and finds the bytes of a raw segment to send
+	 */
+	private void open(Path segment) throws IOException {
+		if (Segments.isSealed(segment)) {
+			sealed = new CompressedSegment(segment);
+			block = 0;
+			return;
+		}
+		try {
+			raw = FileChannel.open(segment, StandardOpenOption.READ);
+		} catch (NoSuchFileException e) {
+			if (!Segments.isSealed(segment)) {
+				throw e;
+			}
+			// sealed by the compressor in the meantime
+			open(segment);
+			return;
+		}
+		// the last segment may be being written, its last line is sent only once complete
+		long end = SortedSegments.previousNewLine(raw, raw.size()) + 1;
+		filtering = false;
+		if (from == 0 && to == Long.MAX_VALUE) {
+			rawPosition = 0;
+			rawEnd = end;
+		} else if (ordered && !segment.equals(late)) {
+			rawPosition = SortedSegments.lowerBound(raw, end, from);
+			rawEnd = to == Long.MAX_VALUE ? end : SortedSegments.lowerBound(raw, end, to);
+		} else {
+			rawPosition = 0;
+			rawEnd = end;
+			filtering = true;
+		}
+	}
+
+	private boolean sendRaw() {
+		long count = Math.min(rawEnd - rawPosition, MAX_FILE_CHUNK);
+		file = raw;
+		filePosition = rawPosition;
+		fileRemaining = count;
+		rawPosition += count;
+		frame(count);
+		return true;
+	}
+
+	/**
+	 * Reads the next lines of a raw segment and keeps the ones of the range
+	 *
+	 * @return false if none of the lines read is in the range
+	 */
+	private boolean filterRaw() throws IOException {
+		if (buffer == null) {
+			buffer = new byte[SegmentCompressor.BLOCK_SIZE];
+		}
+		ByteBuffer bb = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, rawEnd - rawPosition));
+		while (bb.hasRemaining()) {
+			if (raw.read(bb, rawPosition + bb.position()) == -1) {
+				throw new IOException("Segment truncated while it is read");
+			}
+		}
+		int end = bb.position();
+		while (end > 0 && buffer[end - 1] != '\n') {
+			end--;
+		}
+		if (end == 0) {
+			// a line longer than the buffer
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			return false;
+		}
+		rawPosition += end;
+		int kept = filter(buffer, end);
+		if (kept == 0) {
+			return false;
+		}
+		data = ByteBuffer.wrap(buffer, 0, kept);
+		frame(kept);
+		return true;
+	}
+
+	/**
+	 * Decompresses a block of a sealed segment if it holds tasks of the range
+	 *
+	 * @return false if none of the answers of the block is in the range
+	 */
+	private boolean sendBlock(int block) throws IOException {
+		BlockIndex index = sealed.getIndex();
+		long minTask = index.getMinTask(block);
+		long maxTask = index.getMaxTask(block);
+		if (maxTask < from || minTask >= to) {
+			return false;
+		}
+		byte[] bytes = sealed.readBlock(block);
+		int length = index.getRawLength(block);
+		if (minTask < from || maxTask >= to) {
+			length = filter(bytes, length);
+			if (length == 0) {
+				return false;
+			}
+		}
+		data = ByteBuffer.wrap(bytes, 0, length);
+		frame(length);
+		return true;
+	}
+
+	/**
+	 * Moves the lines of the range to the start of the bytes, in place
+	 *
+	 * @param bytes complete lines
+	 * @param end the end of the lines
+	 * @return the length of the lines kept
+	 */
+	private int filter(byte[] bytes, int end) {
+		int kept = 0;
+		int start = 0;
+		for (int i = 0; i < end; i++) {
+			if (bytes[i] == '\n') {
+				long task = Segments.taskOf(bytes, start, i);
+				if (i > start && task >= from && task < to) {
+					System.arraycopy(bytes, start, bytes, kept, i + 1 - start);
+					kept += i + 1 - start;
+				}
+				start = i + 1;
+			}
+		}
+		return kept;
+	}
+
+	private void frame(long count) {
+		head.clear();
+		head.put(charsetASCII.encode(Long.toHexString(count))).put(CRLF).flip();
+		tail.clear();
+		tail.put(CRLF).flip();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (raw != null) {
+			raw.close();
+			raw = null;
+		}
+		if (sealed != null) {
+			sealed.close();
+			sealed = null;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package upem.jarret.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Index of the compressed blocks of a sealed segment. For each block it keeps the number of
+ * its first record in the segment, its record count, the smallest and largest task it holds,
+ * and where its compressed bytes are.
+ */
+public class BlockIndex {
+	private static final int MAGIC = 0x4A524249;
+
+	private long[] firstRecords = new long[16];
+	private int[] recordCounts = new int[16];
+	private long[] minTasks = new long[16];
+	private long[] maxTasks = new long[16];
+	private long[] offsets = new long[16];
+	private int[] compressedLengths = new int[16];
+	private int[] rawLengths = new int[16];
+	private int size;
+
+	void add(long firstRecord, int recordCount, long minTask, long maxTask, long offset, int compressedLength,
+	        int rawLength) {
+		if (size == offsets.length) {
+			int capacity = size * 2;
+			firstRecords = Arrays.copyOf(firstRecords, capacity);
+			recordCounts = Arrays.copyOf(recordCounts, capacity);
+			minTasks = Arrays.copyOf(minTasks, capacity);
+			maxTasks = Arrays.copyOf(maxTasks, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+			compressedLengths = Arrays.copyOf(compressedLengths, capacity);
+			rawLengths = Arrays.copyOf(rawLengths, capacity);
+		}
+		firstRecords[size] = firstRecord;
+		recordCounts[size] = recordCount;
+		minTasks[size] = minTask;
+		maxTasks[size] = maxTask;
+		offsets[size] = offset;
+		compressedLengths[size] = compressedLength;
+		rawLengths[size] = rawLength;
+		size++;
+	}
+
+	/**
+	 * Returns the number of blocks
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of records of the segment
+	 * 
+	 * @return
+	 */
+	public long getRecordCount() {
+		return size == 0 ? 0 : firstRecords[size - 1] + recordCounts[size - 1];
+	}
+
+	public long getFirstRecord(int block) {
+		return firstRecords[checkBlock(block)];
+	}
+
+	public int getRecordCount(int block) {
+		return recordCounts[checkBlock(block)];
+	}
+
+	public long getMinTask(int block) {
+		return minTasks[checkBlock(block)];
+	}
+
+	public long getMaxTask(int block) {
+		return maxTasks[checkBlock(block)];
+	}
+
+	public long getOffset(int block) {
+		return offsets[checkBlock(block)];
+	}
+
+	public int getCompressedLength(int block) {
+		return compressedLengths[checkBlock(block)];
+	}
+
+	public int getRawLength(int block) {
+		return rawLengths[checkBlock(block)];
+	}
+
+	/**
+	 * Returns the block holding a record
+	 * 
+	 * @param record the number of the record in the segment
+	 * @return the block, or -1 if the segment has no such record
+	 */
+	public int blockOf(long record) {
+		if (record < 0 || record >= getRecordCount()) {
+			return -1;
+		}
+		int index = Arrays.binarySearch(firstRecords, 0, size, record);
+		return index >= 0 ? index : -index - 2;
+	}
+
+	/**
+	 * Writes the index in a file
+	 * 
+	 * @param path
+	 * @throws IOException
+	 */
+	void write(Path path) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(size);
+			for (int i = 0; i < size; i++) {
+				out.writeLong(firstRecords[i]);
+				out.writeInt(recordCounts[i]);
+				out.writeLong(minTasks[i]);
+				out.writeLong(maxTasks[i]);
+				out.writeLong(offsets[i]);
+				out.writeInt(compressedLengths[i]);
+				out.writeInt(rawLengths[i]);
+			}
+		}
+	}
+
+	/**
+	 * Reads an index file
+	 * 
+	 * @param path
+	 * @return
+	 * @throws IOException if the file is not a block index
+	 */
+	public static BlockIndex read(Path path) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a block index: " + path);
+			}
+			BlockIndex index = new BlockIndex();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				index.add(in.readLong(), in.readInt(), in.readLong(), in.readLong(), in.readLong(), in.readInt(),
+				        in.readInt());
+			}
+			return index;
+		}
+	}
+
+	private int checkBlock(int block) {
+		if (block < 0 || block >= size) {
+			throw new IndexOutOfBoundsException("block: " + block + ", size: " + size);
+		}
+		return block;
+	}
+}
@@ -0,0 +1,139 @@
+package upem.jarret.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A memory mapped column file of a columnar export. The file holds a header (magic, type,
+ * row count), the fixed width values, the presence bitmap of the values, and for string
+ * columns the dictionary of the strings.
+ */
+public class Column {
+	static final int MAGIC = 0x4A52434C;
+	static final int HEADER_SIZE = Integer.BYTES + 1 + Long.BYTES;
+	private static final Charset charsetUTF8 = Charset.forName("utf-8");
+
+	private final String name;
+	private final ColumnType type;
+	private final long rows;
+	private final MappedByteBuffer buffer;
+	private final int presenceOffset;
+	private final String[] dictionary;
+
+	Column(String name, Path path) throws IOException {
+		this.name = name;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Column too large to be mapped: " + path);
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a column file: " + path);
+		}
+		type = ColumnType.values()[buffer.get(Integer.BYTES)];
+		rows = buffer.getLong(Integer.BYTES + 1);
+		presenceOffset = (int) (HEADER_SIZE + rows * type.getWidth());
+		if (type == ColumnType.STRING) {
+			int position = presenceOffset + (int) ((rows + 63) / 64) * Long.BYTES;
+			ByteBuffer bb = buffer.duplicate();
+			bb.position(position);
+			dictionary = new String[bb.getInt()];
+			for (int i = 0; i < dictionary.length; i++) {
+				byte[] bytes = new byte[bb.getShort() & 0xFFFF];
+				bb.get(bytes);
+				dictionary[i] = new String(bytes, charsetUTF8);
+			}
+		} else {
+			dictionary = null;
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public ColumnType getType() {
+		return type;
+	}
+
+	public long getRowCount() {
+		return rows;
+	}
+
+	/**
+	 * Tests if the answer of a row has a value for this column
+	 * 
+	 * @param row
+	 * @return
+	 */
+	public boolean isPresent(long row) {
+		long word = buffer.getLong(presenceOffset + (int) (row >>> 6) * Long.BYTES);
+		return (word & (1L << row)) != 0;
+	}
+
+	public long getLong(long row) {
+		return buffer.getLong(HEADER_SIZE + (int) row * Long.BYTES);
+	}
+
+	public double getDouble(long row) {
+		return buffer.getDouble(HEADER_SIZE + (int) row * Long.BYTES);
+	}
+
+	public boolean getBoolean(long row) {
+		return buffer.get(HEADER_SIZE + (int) row) != 0;
+	}
+
+	/**
+	 * Returns the dictionary code of the string of a row
+	 * 
+	 * @param row
+	 * @return
+	 */
+	public int getCode(long row) {
+		return buffer.getInt(HEADER_SIZE + (int) row * Integer.BYTES);
+	}
+
+	public String getString(long row) {
+		return dictionary[getCode(row)];
+	}
+
+	/**
+	 * Returns the strings of a string column, indexed by their code
+	 * 
+	 * @return
+	 */
+	public String[] getDictionary() {
+		if (dictionary == null) {
+			throw new IllegalStateException("Column " + name + " is not a string column");
+		}
+		return dictionary.clone();
+	}
+
+	/**
+	 * Returns the value of a row as a number, booleans counting as 0 and 1
+	 * 
+	 * @param row
+	 * @return the number, or NaN for a string column or a missing value
+	 */
+	public double getNumber(long row) {
+		if (!isPresent(row)) {
+			return Double.NaN;
+		}
+		switch (type) {
+		case LONG:
+			return getLong(row);
+		case DOUBLE:
+			return getDouble(row);
+		case BOOLEAN:
+			return getBoolean(row) ? 1 : 0;
+		default:
+			return Double.NaN;
+		}
+	}
+}
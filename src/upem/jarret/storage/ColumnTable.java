@@ -0,0 +1,182 @@
+package upem.jarret.storage;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.DoublePredicate;
+import java.util.function.Predicate;
+
+/**
+ * Scans the columnar export of a job. Filters and aggregates are evaluated in parallel by
+ * fork/join tasks over ranges of rows, reading only the columns they need.
+ */
+public class ColumnTable {
+	private static final int SCAN_THRESHOLD = 1 << 16;
+
+	private final TreeMap<String, Column> columns = new TreeMap<>();
+	private final long rows;
+
+	/**
+	 * Selects rows of the table
+	 */
+	@FunctionalInterface
+	public interface RowFilter {
+		boolean test(long row);
+	}
+
+	private ColumnTable(Path directory) throws IOException {
+		long rowCount = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + ColumnarExporter.COLUMN_SUFFIX)) {
+			for (Path file : stream) {
+				String name = ColumnarExporter.columnName(file);
+				Column column = new Column(name, file);
+				columns.put(name, column);
+				rowCount = column.getRowCount();
+			}
+		}
+		this.rows = rowCount;
+	}
+
+	/**
+	 * Opens the columnar export of a job
+	 * 
+	 * @param answersDirectory
+	 * @param jobId
+	 * @return
+	 * @throws IOException if the job was not exported
+	 */
+	public static ColumnTable open(Path answersDirectory, long jobId) throws IOException {
+		return new ColumnTable(ColumnarExporter.columnsPath(answersDirectory, jobId));
+	}
+
+	public long getRowCount() {
+		return rows;
+	}
+
+	public Set<String> getColumnNames() {
+		return Collections.unmodifiableSet(columns.keySet());
+	}
+
+	/**
+	 * Returns a column
+	 * 
+	 * @param name
+	 * @return
+	 * @throws IllegalArgumentException if there is no such column
+	 */
+	public Column getColumn(String name) {
+		Column column = columns.get(name);
+		if (column == null) {
+			throw new IllegalArgumentException("Unknown column " + name);
+		}
+		return column;
+	}
+
+	/**
+	 * Creates a filter keeping the rows whose numeric value matches the predicate
+	 * 
+	 * @param column
+	 * @param predicate
+	 * @return
+	 */
+	public RowFilter filter(String column, DoublePredicate predicate) {
+		Column c = getColumn(column);
+		return row -> {
+			double value = c.getNumber(row);
+			return !Double.isNaN(value) && predicate.test(value);
+		};
+	}
+
+	/**
+	 * Creates a filter keeping the rows whose string matches the predicate. The predicate
+	 * is evaluated once per distinct string.
+	 * 
+	 * @param column a string column
+	 * @param predicate
+	 * @return
+	 */
+	public RowFilter filterStrings(String column, Predicate<String> predicate) {
+		Column c = getColumn(column);
+		String[] dictionary = c.getDictionary();
+		boolean[] matches = new boolean[dictionary.length];
+		for (int i = 0; i < dictionary.length; i++) {
+			matches[i] = predicate.test(dictionary[i]);
+		}
+		return row -> c.isPresent(row) && matches[c.getCode(row)];
+	}
+
+	/**
+	 * Counts the rows selected by a filter
+	 * 
+	 * @param filter the filter, null to count all the rows
+	 * @return
+	 */
+	public long count(RowFilter filter) {
+		return (long) ForkJoinPool.commonPool().invoke(new ScanTask(0, rows, filter, null))[0];
+	}
+
+	/**
+	 * Sums a numeric column over the rows selected by a filter. Missing values are ignored.
+	 * 
+	 * @param column
+	 * @param filter the filter, null to sum all the rows
+	 * @return
+	 */
+	public double sum(String column, RowFilter filter) {
+		return ForkJoinPool.commonPool().invoke(new ScanTask(0, rows, filter, getColumn(column)))[1];
+	}
+
+	/**
+	 * Counts the selected rows and sums a column over a range of rows
+	 */
+	private static class ScanTask extends RecursiveTask<double[]> {
+		private static final long serialVersionUID = 4461374186043150452L;
+
+		private final long from;
+		private final long to;
+		private final RowFilter filter;
+		private final Column sumColumn;
+
+		ScanTask(long from, long to, RowFilter filter, Column sumColumn) {
+			this.from = from;
+			this.to = to;
+			this.filter = filter;
+			this.sumColumn = sumColumn;
+		}
+
+		@Override
+		protected double[] compute() {
+			if (to - from <= SCAN_THRESHOLD) {
+				long count = 0;
+				double sum = 0;
+				for (long row = from; row < to; row++) {
+					if (filter != null && !filter.test(row)) {
+						continue;
+					}
+					count++;
+					if (sumColumn != null) {
+						double value = sumColumn.getNumber(row);
+						if (!Double.isNaN(value)) {
+							sum += value;
+						}
+					}
+				}
+				return new double[] { count, sum };
+			}
+			long middle = (from + to) >>> 1;
+			ScanTask left = new ScanTask(from, middle, filter, sumColumn);
+			left.fork();
+			double[] right = new ScanTask(middle, to, filter, sumColumn).compute();
+			double[] result = left.join();
+			result[0] += right[0];
+			result[1] += right[1];
+			return result;
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package upem.jarret.storage;
+
+/**
+ * Type of a column of the columnar export, inferred from the values of an answer field
+ */
+public enum ColumnType {
+	BOOLEAN(1), LONG(8), DOUBLE(8), STRING(4);
+
+	private final int width;
+
+	private ColumnType(int width) {
+		this.width = width;
+	}
+
+	/**
+	 * Returns the size in bytes of a value of this type in a column file. Strings are
+	 * stored as their int code in the dictionary of the column.
+	 * 
+	 * @return
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Returns the type able to store the values of both types
+	 * 
+	 * @param other
+	 * @return
+	 */
+	ColumnType merge(ColumnType other) {
+		if (other == null || other == this) {
+			return this;
+		}
+		if ((this == LONG && other == DOUBLE) || (this == DOUBLE && other == LONG)) {
+			return DOUBLE;
+		}
+		return STRING;
+	}
+}
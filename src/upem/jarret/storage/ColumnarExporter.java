@@ -0,0 +1,280 @@
+package upem.jarret.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import upem.jarret.job.TaskSet;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Converts the answer segments of a job into a columnar layout: the directory
+ * answers/[jobId].columns holds one file per field of the flat answers, plus the _Task
+ * column. The first answer of each task gives one row; error reports are left out.
+ */
+public class ColumnarExporter {
+	public static final String TASK_COLUMN = "_Task";
+	static final String COLUMN_SUFFIX = ".col";
+	private static final Charset charsetUTF8 = Charset.forName("utf-8");
+	private static final JsonFactory jf = new JsonFactory();
+
+	private ColumnarExporter() {
+	}
+
+	/**
+	 * Returns the directory of the columnar export of a job
+	 * 
+	 * @param answersDirectory
+	 * @param jobId
+	 * @return
+	 */
+	public static Path columnsPath(Path answersDirectory, long jobId) {
+		return answersDirectory.resolve(jobId + ".columns");
+	}
+
+	/**
+	 * Exports the answers of a job, replacing the previous export
+	 * 
+	 * @param answersDirectory
+	 * @param jobId
+	 * @return the number of rows exported
+	 * @throws IOException
+	 */
+	public static long export(Path answersDirectory, long jobId) throws IOException {
+		List<Path> segments = Segments.listWithLate(answersDirectory, jobId);
+
+		// first pass: infer the type of each field
+		LinkedHashMap<String, ColumnType> schema = new LinkedHashMap<>();
+		schema.put(TASK_COLUMN, ColumnType.LONG);
+		TaskSet tasks = new TaskSet();
+		long[] rows = new long[1];
+		for (Path segment : segments) {
+			Segments.forEachRecord(segment, (bytes, from, to) -> {
+				Row row = Row.parse(bytes, from, to);
+				if (row == null || !tasks.add(row.task)) {
+					return;
+				}
+				rows[0]++;
+				for (Map.Entry<String, JsonToken> field : row.types.entrySet()) {
+					schema.merge(field.getKey(), typeOf(field.getValue()), ColumnType::merge);
+				}
+			});
+		}
+		if (rows[0] > Integer.MAX_VALUE) {
+			throw new IOException("Too many answers for a columnar export: " + rows[0]);
+		}
+
+		// second pass: write the columns
+		Path target = columnsPath(answersDirectory, jobId);
+		Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+		deleteDirectory(tmp);
+		Files.createDirectory(tmp);
+		LinkedHashMap<String, ColumnWriter> writers = new LinkedHashMap<>();
+		try {
+			for (Map.Entry<String, ColumnType> column : schema.entrySet()) {
+				writers.put(column.getKey(), new ColumnWriter(tmp.resolve(fileName(column.getKey())), column
+				        .getValue(), rows[0]));
+			}
+			TaskSet written = new TaskSet();
+			long[] row = new long[1];
+			for (Path segment : segments) {
+				Segments.forEachRecord(segment, (bytes, from, to) -> {
+					Row parsed = Row.parse(bytes, from, to);
+					if (parsed == null || !tasks.contains(parsed.task) || !written.add(parsed.task)
+					        || row[0] == rows[0]) {
+						// answers appended after the first pass are left for the next export
+						return;
+					}
+					parsed.values.put(TASK_COLUMN, String.valueOf(parsed.task));
+					for (ColumnWriter writer : writers.values()) {
+						writer.write(row[0], parsed.values.get(writer.name));
+					}
+					row[0]++;
+				});
+			}
+		} finally {
+			for (ColumnWriter writer : writers.values()) {
+				writer.close();
+			}
+		}
+		deleteDirectory(target);
+		Files.move(tmp, target);
+		return rows[0];
+	}
+
+	private static ColumnType typeOf(JsonToken token) {
+		switch (token) {
+		case VALUE_TRUE:
+		case VALUE_FALSE:
+			return ColumnType.BOOLEAN;
+		case VALUE_NUMBER_INT:
+			return ColumnType.LONG;
+		case VALUE_NUMBER_FLOAT:
+			return ColumnType.DOUBLE;
+		default:
+			return ColumnType.STRING;
+		}
+	}
+
+	static String fileName(String column) throws IOException {
+		return URLEncoder.encode(column, "UTF-8") + COLUMN_SUFFIX;
+	}
+
+	static String columnName(Path file) throws IOException {
+		String name = file.getFileName().toString();
+		return URLDecoder.decode(name.substring(0, name.length() - COLUMN_SUFFIX.length()), "UTF-8");
+	}
+
+	private static void deleteDirectory(Path directory) throws IOException {
+		if (!Files.exists(directory)) {
+			return;
+		}
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path file : stream) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+
+	/**
+	 * The task and the flat fields of an answer
+	 */
+	private static class Row {
+		private long task = -1;
+		private final HashMap<String, JsonToken> types = new HashMap<>();
+		private final HashMap<String, String> values = new HashMap<>();
+
+		/**
+		 * @return the row, or null if the line is an error report or has no task
+		 */
+		static Row parse(byte[] bytes, int from, int to) throws IOException {
+			Row row = new Row();
+			boolean answered = false;
+			try (JsonParser jp = jf.createParser(bytes, from, to - from)) {
+				jp.nextToken();
+				while (jp.nextToken() == JsonToken.FIELD_NAME) {
+					String fieldName = jp.getCurrentName();
+					JsonToken token = jp.nextToken();
+					if (fieldName.equals("Task")) {
+						row.task = Long.parseLong(jp.getText());
+					} else if (fieldName.equals("Answer") && token == JsonToken.START_OBJECT) {
+						answered = true;
+						while (jp.nextToken() == JsonToken.FIELD_NAME) {
+							String name = jp.getCurrentName();
+							JsonToken value = jp.nextToken();
+							if (value.isScalarValue() && value != JsonToken.VALUE_NULL) {
+								row.types.put(name, value);
+								row.values.put(name, jp.getText());
+							} else {
+								jp.skipChildren();
+							}
+						}
+					} else {
+						jp.skipChildren();
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				// corrupted line
+				return null;
+			}
+			return answered && row.task >= 0 ? row : null;
+		}
+	}
+
+	/**
+	 * Writes one column file
+	 */
+	private static class ColumnWriter {
+		private final String name;
+		private final ColumnType type;
+		private final DataOutputStream out;
+		private final BitSet presence = new BitSet();
+		private final HashMap<String, Integer> codes = new HashMap<>();
+		private final ArrayList<String> dictionary = new ArrayList<>();
+		private final long rows;
+
+		ColumnWriter(Path path, ColumnType type, long rows) throws IOException {
+			this.name = columnName(path);
+			this.type = type;
+			this.rows = rows;
+			this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+			out.writeInt(Column.MAGIC);
+			out.writeByte(type.ordinal());
+			out.writeLong(rows);
+		}
+
+		void write(long row, String value) throws IOException {
+			long longValue = 0;
+			double doubleValue = 0;
+			try {
+				if (value != null && type == ColumnType.LONG) {
+					longValue = Long.parseLong(value);
+				} else if (value != null && type == ColumnType.DOUBLE) {
+					doubleValue = Double.parseDouble(value);
+				}
+			} catch (NumberFormatException e) {
+				// out of range, stored as a missing value
+				value = null;
+			}
+			if (value != null) {
+				presence.set((int) row);
+			}
+			switch (type) {
+			case BOOLEAN:
+				out.writeByte("true".equals(value) ? 1 : 0);
+				break;
+			case LONG:
+				out.writeLong(longValue);
+				break;
+			case DOUBLE:
+				out.writeDouble(doubleValue);
+				break;
+			case STRING:
+				out.writeInt(value == null ? 0 : code(value));
+				break;
+			}
+		}
+
+		private int code(String value) {
+			Integer code = codes.get(value);
+			if (code == null) {
+				code = dictionary.size();
+				codes.put(value, code);
+				dictionary.add(value);
+			}
+			return code;
+		}
+
+		void close() throws IOException {
+			long[] words = presence.toLongArray();
+			for (long i = 0, n = (rows + 63) / 64; i < n; i++) {
+				out.writeLong(i < words.length ? words[(int) i] : 0);
+			}
+			if (type == ColumnType.STRING) {
+				out.writeInt(dictionary.size());
+				for (String value : dictionary) {
+					byte[] bytes = value.getBytes(charsetUTF8);
+					out.writeShort(bytes.length);
+					out.write(bytes);
+				}
+			}
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package upem.jarret.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reader of a sealed segment. A record is read back by decompressing only the block holding it.
+ */
+public class CompressedSegment implements Closeable {
+	private static final Charset charsetUTF8 = Charset.forName("utf-8");
+
+	private final FileChannel channel;
+	private final BlockIndex index;
+	private final Inflater inflater = new Inflater();
+
+	/**
+	 * Opens a sealed segment
+	 * 
+	 * @param raw the path of the raw segment, which does not exist anymore
+	 * @throws IOException
+	 */
+	public CompressedSegment(Path raw) throws IOException {
+		this.index = BlockIndex.read(Segments.indexPath(raw));
+		this.channel = FileChannel.open(Segments.compressedPath(raw), StandardOpenOption.READ);
+	}
+
+	public BlockIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * Decompresses a block
+	 * 
+	 * @param block
+	 * @return the answer lines of the block, each one terminated by a new line
+	 * @throws IOException if the block is corrupted
+	 */
+	public byte[] readBlock(int block) throws IOException {
+		ByteBuffer compressed = ByteBuffer.allocate(index.getCompressedLength(block));
+		long position = index.getOffset(block);
+		while (compressed.hasRemaining()) {
+			if (channel.read(compressed, position + compressed.position()) == -1) {
+				throw new IOException("Truncated block " + block);
+			}
+		}
+		byte[] raw = new byte[index.getRawLength(block)];
+		inflater.reset();
+		inflater.setInput(compressed.array());
+		try {
+			int length = 0;
+			while (length < raw.length && !inflater.finished()) {
+				int inflated = inflater.inflate(raw, length, raw.length - length);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				length += inflated;
+			}
+			if (length != raw.length) {
+				throw new IOException("Corrupted block " + block);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupted block " + block, e);
+		}
+		return raw;
+	}
+
+	/**
+	 * Reads one record of the segment
+	 * 
+	 * @param record the number of the record in the segment
+	 * @return the JSON answer
+	 * @throws IOException
+	 */
+	public String readRecord(long record) throws IOException {
+		int block = index.blockOf(record);
+		if (block == -1) {
+			throw new IndexOutOfBoundsException("record: " + record + ", records: " + index.getRecordCount());
+		}
+		byte[] bytes = readBlock(block);
+		long skip = record - index.getFirstRecord(block);
+		int start = 0;
+		while (skip > 0) {
+			if (bytes[start++] == '\n') {
+				skip--;
+			}
+		}
+		int end = start;
+		while (bytes[end] != '\n') {
+			end++;
+		}
+		return new String(bytes, start, end - start, charsetUTF8);
+	}
+
+	@Override
+	public void close() throws IOException {
+		inflater.end();
+		channel.close();
+	}
+}
@@ -0,0 +1,338 @@
+package upem.jarret.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+import upem.jarret.job.TaskSet;
+import upem.jarret.reducer.JobResult;
+
+/**
+ * Rebuilds the results of the jobs from their answer segments at startup: the answers received
+ * after the last checkpoint, or all of them when a job has no checkpoint, are folded again so
+ * that only the missing tasks are dispatched. The segments are cut into chunks scanned in
+ * parallel, memory mapped windows for the raw segments and ranges of blocks for the sealed
+ * ones, so that the scan is bound by the disk rather than by a single thread.
+ */
+public class Recovery {
+	private static final Charset charsetUTF8 = Charset.forName("utf-8");
+	private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+	/**
+	 * The longest line read past the end of a window
+	 */
+	private static final int MAX_LINE = 1024 * 1024;
+	private static final int BLOCKS_PER_CHUNK = 256;
+	/**
+	 * Segments modified this long before the checkpoint are scanned too, for coarse file times
+	 */
+	private static final long TIME_SLACK = 2000;
+
+	private Recovery() {
+	}
+
+	/**
+	 * The recovery of one job
+	 */
+	private static class JobRecovery {
+		private final long jobId;
+		private final JobResult result;
+		private final TaskSet checkpointed;
+		private final TaskSet recovered = new TaskSet();
+		private final ConcurrentLinkedQueue<JobResult> partials = new ConcurrentLinkedQueue<>();
+		private int segments;
+		private long bytes;
+
+		JobRecovery(long jobId, JobResult result) {
+			this.jobId = jobId;
+			this.result = result;
+			this.checkpointed = result.getFoldedTasks();
+		}
+
+		/**
+		 * Claims the tasks of a batch of lines, so that each task is folded from a single line
+		 */
+		boolean[] claim(long[] tasks, int count) {
+			boolean[] claimed = new boolean[count];
+			synchronized (recovered) {
+				for (int i = 0; i < count; i++) {
+					claimed[i] = tasks[i] != -1 && !checkpointed.contains(tasks[i]) && recovered.add(tasks[i]);
+				}
+			}
+			return claimed;
+		}
+	}
+
+	/**
+	 * A part of a segment: a range of bytes of a raw segment or a range of blocks of a sealed one
+	 */
+	private static class Chunk {
+		private final JobRecovery job;
+		private final Path raw;
+		private final boolean sealed;
+		private final long from;
+		private final long to;
+
+		Chunk(JobRecovery job, Path raw, boolean sealed, long from, long to) {
+			this.job = job;
+			this.raw = raw;
+			this.sealed = sealed;
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	/**
+	 * The answer lines found in a chunk
+	 */
+	private static class Lines {
+		private long[] tasks = new long[1024];
+		private int[] starts = new int[1024];
+		private int[] ends = new int[1024];
+		private int count;
+
+		void add(long task, int start, int end) {
+			if (count == tasks.length) {
+				tasks = Arrays.copyOf(tasks, count * 2);
+				starts = Arrays.copyOf(starts, count * 2);
+				ends = Arrays.copyOf(ends, count * 2);
+			}
+			tasks[count] = task;
+			starts[count] = start;
+			ends[count] = end;
+			count++;
+		}
+	}
+
+	/**
+	 * Folds the answers of the segments of the jobs which are not folded in their result yet.
+	 * Must be called before answers are saved for these jobs.
+	 * 
+	 * @param directory the answers directory
+	 * @param results the results of the jobs by job id, restored from their checkpoint if any
+	 * @param log where the progress and the unreadable segments are reported
+	 * @return the number of answers recovered
+	 * @throws IOException if the segments cannot be listed
+	 */
+	public static long recover(Path directory, Map<Long, JobResult> results, Consumer<String> log)
+	        throws IOException {
+		if (!Files.isDirectory(directory)) {
+			return 0;
+		}
+		long start = System.nanoTime();
+		List<JobRecovery> jobs = new ArrayList<>();
+		List<Chunk> chunks = new ArrayList<>();
+		for (Map.Entry<Long, JobResult> entry : results.entrySet()) {
+			JobRecovery job = new JobRecovery(entry.getKey(), entry.getValue());
+			jobs.add(job);
+			addChunks(directory, job, chunks);
+		}
+		if (chunks.isEmpty()) {
+			return 0;
+		}
+		ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+		ForkJoinPool.commonPool().invoke(new ScanTask(chunks, 0, chunks.size(), errors));
+		errors.forEach(log);
+
+		long total = 0;
+		long bytes = 0;
+		for (JobRecovery job : jobs) {
+			long before = job.result.getFoldedTasks().size();
+			JobResult partial;
+			while ((partial = job.partials.poll()) != null) {
+				job.result.merge(partial);
+			}
+			long recovered = job.result.getFoldedTasks().size() - before;
+			if (job.segments > 0) {
+				log.accept("Recovered " + recovered + " answers of job " + job.jobId + " from " + job.segments
+				        + " segments");
+			}
+			total += recovered;
+			bytes += job.bytes;
+		}
+		long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+		log.accept("Recovery scanned " + bytes / (1024 * 1024) + " MB in " + millis + " ms ("
+		        + bytes * 1000 / millis / (1024 * 1024) + " MB/s)");
+		return total;
+	}
+
+	/**
+	 * Cuts the segments of a job to scan in chunks. With a checkpoint, only the segments modified
+	 * since it was written can hold answers it does not have.
+	 */
+	private static void addChunks(Path directory, JobRecovery job, List<Chunk> chunks) throws IOException {
+		long since = 0;
+		Path checkpoint = JobResult.checkpointPath(directory, job.jobId);
+		if (job.checkpointed.size() > 0 && Files.exists(checkpoint)) {
+			since = Files.getLastModifiedTime(checkpoint).toMillis() - TIME_SLACK;
+		}
+		for (Path raw : Segments.listWithLate(directory, job.jobId)) {
+			if (Segments.isSealed(raw)) {
+				Path compressed = Segments.compressedPath(raw);
+				if (Files.getLastModifiedTime(compressed).toMillis() < since) {
+					continue;
+				}
+				int blocks = BlockIndex.read(Segments.indexPath(raw)).size();
+				for (int block = 0; block < blocks; block += BLOCKS_PER_CHUNK) {
+					chunks.add(new Chunk(job, raw, true, block, Math.min(blocks, block + BLOCKS_PER_CHUNK)));
+				}
+				job.segments++;
+				job.bytes += Files.size(compressed);
+			} else if (Files.exists(raw)) {
+				if (Files.getLastModifiedTime(raw).toMillis() < since) {
+					continue;
+				}
+				long size = Files.size(raw);
+				for (long offset = 0; offset < size; offset += WINDOW_SIZE) {
+					chunks.add(new Chunk(job, raw, false, offset, Math.min(size, offset + WINDOW_SIZE)));
+				}
+				job.segments++;
+				job.bytes += size;
+			}
+		}
+	}
+
+	/**
+	 * Scans a range of chunks, splitting it until a single chunk is left
+	 */
+	private static class ScanTask extends RecursiveAction {
+		private static final long serialVersionUID = -2874619381705219536L;
+
+		private final List<Chunk> chunks;
+		private final int from;
+		private final int to;
+		private final ConcurrentLinkedQueue<String> errors;
+
+		ScanTask(List<Chunk> chunks, int from, int to, ConcurrentLinkedQueue<String> errors) {
+			this.chunks = chunks;
+			this.from = from;
+			this.to = to;
+			this.errors = errors;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ScanTask(chunks, from, middle, errors), new ScanTask(chunks, middle, to, errors));
+				return;
+			}
+			Chunk chunk = chunks.get(from);
+			try {
+				if (chunk.sealed) {
+					scanSealed(chunk);
+				} else {
+					scanRaw(chunk);
+				}
+			} catch (IOException e) {
+				errors.add("Cannot recover segment " + chunk.raw + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Scans the lines starting in a window of a raw segment. The line started in the previous
+	 * window is skipped, the last line is read past the end of the window.
+	 */
+	private static void scanRaw(Chunk chunk) throws IOException {
+		try (FileChannel channel = FileChannel.open(chunk.raw, StandardOpenOption.READ)) {
+			long start = Math.max(0, chunk.from - 1);
+			long end = Math.min(channel.size(), chunk.to + MAX_LINE);
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			int limit = map.limit();
+			int stop = (int) (chunk.to - start);
+			int position = 0;
+			if (chunk.from > 0) {
+				position = indexOf(map, 0, limit) + 1;
+				if (position == 0) {
+					return;
+				}
+			}
+			Lines lines = new Lines();
+			while (position < stop) {
+				int newLine = indexOf(map, position, limit);
+				if (newLine == -1) {
+					// unterminated last line
+					break;
+				}
+				if (newLine > position) {
+					lines.add(Segments.taskOf(map, position, newLine), position, newLine);
+				}
+				position = newLine + 1;
+			}
+			JobResult partial = chunk.job.result.newPartial();
+			fold(chunk.job, lines, partial, (from, to) -> {
+				byte[] bytes = new byte[to - from];
+				ByteBuffer line = map.duplicate();
+				line.position(from);
+				line.get(bytes);
+				return new String(bytes, charsetUTF8);
+			});
+			chunk.job.partials.add(partial);
+		}
+	}
+
+	private static void scanSealed(Chunk chunk) throws IOException {
+		JobResult partial = chunk.job.result.newPartial();
+		try (CompressedSegment segment = new CompressedSegment(chunk.raw)) {
+			for (int block = (int) chunk.from; block < chunk.to; block++) {
+				byte[] bytes = segment.readBlock(block);
+				Lines lines = new Lines();
+				int start = 0;
+				for (int i = 0; i < bytes.length; i++) {
+					if (bytes[i] == '\n') {
+						if (i > start) {
+							lines.add(Segments.taskOf(bytes, start, i), start, i);
+						}
+						start = i + 1;
+					}
+				}
+				fold(chunk.job, lines, partial, (from, to) -> new String(bytes, from, to - from, charsetUTF8));
+			}
+		}
+		chunk.job.partials.add(partial);
+	}
+
+	@FunctionalInterface
+	private interface LineDecoder {
+		String decode(int from, int to);
+	}
+
+	/**
+	 * Folds the lines whose task is claimed in a partial result of the job
+	 */
+	private static void fold(JobRecovery job, Lines lines, JobResult partial, LineDecoder decoder) {
+		boolean[] claimed = job.claim(lines.tasks, lines.count);
+		for (int i = 0; i < lines.count; i++) {
+			if (!claimed[i]) {
+				continue;
+			}
+			try {
+				partial.fold(lines.tasks[i], decoder.decode(lines.starts[i], lines.ends[i]));
+			} catch (IOException e) {
+				// corrupted line, the task is dispatched again
+			}
+		}
+	}
+
+	private static int indexOf(ByteBuffer bytes, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (bytes.get(i) == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,345 @@
+package upem.jarret.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Holds the answers received ahead of the next task to write, and releases them in task order.
+ * When the held answers exceed maxBytes, the ones farthest from the next task are spilled to a
+ * file, which is also where the held answers are kept between two runs of the server: sync
+ * spills all of them before a checkpoint counts them as saved.
+ * The buffer goes past the tasks which will not be answered here: the ranges declared skipped,
+ * like the tasks of the other shards, as soon as an answer follows them, and any task missing for
+ * too long.
+ */
+class ReorderBuffer implements Closeable {
+	private static final int RECORD_HEADER = Long.BYTES + Integer.BYTES;
+
+	private final Path spillPath;
+	private final long maxBytes;
+	private final TreeMap<Long, byte[]> pending = new TreeMap<>();
+	private final TreeMap<Long, long[]> spilled = new TreeMap<>();
+	// the disjoint ranges [from, to) of tasks not expected, by first task
+	private final TreeMap<Long, Long> skipped = new TreeMap<>();
+	private long pendingBytes;
+	private long spilledBytes;
+	private long next;
+	// the next task when the buffer was first seen stalled on it, and when
+	private long stalledNext = -1;
+	private long stalledSince;
+	private FileChannel spill;
+
+	/**
+	 * @param spillPath the spill file, whose records are loaded if it exists
+	 * @param next the next task to write
+	 * @param maxBytes the memory budget of the held answers
+	 * @throws IOException
+	 */
+	ReorderBuffer(Path spillPath, long next, long maxBytes) throws IOException {
+		this.spillPath = spillPath;
+		this.next = next;
+		this.maxBytes = maxBytes;
+		if (Files.exists(spillPath)) {
+			loadSpill();
+		}
+	}
+
+	/**
+	 * Returns the next task to write
+	 *
+	 * @return
+	 */
+	long getNext() {
+		return next;
+	}
+
+	/**
+	 * Returns the number of answers held
+	 *
+	 * @return
+	 */
+	int size() {
+		return pending.size() + spilled.size();
+	}
+
+	/**
+	 * Holds the answer of a task
+	 *
+	 * @param task
+	 * @param record the answer line
+	 * @return false if the task was already written or held
+	 * @throws IOException
+	 */
+	boolean add(long task, byte[] record) throws IOException {
+		if (task < next || pending.containsKey(task) || spilled.containsKey(task)) {
+			return false;
+		}
+		pending.put(task, record);
+		pendingBytes += record.length;
+		while (pendingBytes > maxBytes && pending.size() > 1) {
+			Map.Entry<Long, byte[]> last = pending.pollLastEntry();
+			pendingBytes -= last.getValue().length;
+			spill(last.getKey(), last.getValue());
+		}
+		return true;
+	}
+
+	/**
+	 * Releases the answer of the next task if it is held, going past the skipped tasks before it
+	 *
+	 * @return the answer line, or null if the next task was not received yet
+	 * @throws IOException
+	 */
+	byte[] pollNext() throws IOException {
+		long held = firstHeld(next);
+		if (held != next && held != Long.MAX_VALUE && isSkipped(next, held)) {
+			next = held;
+		}
+		byte[] record = pending.remove(next);
+		if (record != null) {
+			pendingBytes -= record.length;
+		} else {
+			long[] location = spilled.remove(next);
+			if (location == null) {
+				return null;
+			}
+			record = readSpilled(location);
+			spilledBytes -= RECORD_HEADER + location[1];
+			if (spilled.isEmpty()) {
+				spill.truncate(0);
+			}
+		}
+		next++;
+		return record;
+	}
+
+	/**
+	 * Declares that the tasks of a range will not be answered here, so that the answers of the
+	 * next tasks are not held for them
+	 *
+	 * @param from
+	 * @param to exclusive
+	 */
+	void skip(long from, long to) {
+		if (from >= to) {
+			return;
+		}
+		Map.Entry<Long, Long> before = skipped.floorEntry(from);
+		if (before != null && before.getValue() >= from) {
+			from = before.getKey();
+			to = Math.max(to, before.getValue());
+		}
+		Map.Entry<Long, Long> after;
+		while ((after = skipped.ceilingEntry(from)) != null && after.getKey() <= to) {
+			skipped.remove(after.getKey());
+			to = Math.max(to, after.getValue());
+		}
+		skipped.put(from, to);
+	}
+
+	/**
+	 * Declares that the tasks of a range are answered here after all, like a range stolen from
+	 * another shard
+	 *
+	 * @param from
+	 * @param to exclusive
+	 */
+	void expect(long from, long to) {
+		if (from >= to) {
+			return;
+		}
+		Map.Entry<Long, Long> before = skipped.lowerEntry(from);
+		if (before != null && before.getValue() > from) {
+			skipped.put(before.getKey(), from);
+			if (before.getValue() > to) {
+				skipped.put(to, before.getValue());
+			}
+		}
+		Map.Entry<Long, Long> range;
+		while ((range = skipped.ceilingEntry(from)) != null && range.getKey() < to) {
+			skipped.remove(range.getKey());
+			if (range.getValue() > to) {
+				skipped.put(to, range.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Tests if every task of a range is skipped
+	 */
+	private boolean isSkipped(long from, long to) {
+		Map.Entry<Long, Long> range = skipped.floorEntry(from);
+		return range != null && range.getValue() >= to;
+	}
+
+	/**
+	 * Returns the first task held from a task
+	 *
+	 * @param from
+	 * @return the task, or Long.MAX_VALUE if none is held
+	 */
+	private long firstHeld(long from) {
+		Long p = pending.ceilingKey(from);
+		Long s = spilled.ceilingKey(from);
+		return Math.min(p == null ? Long.MAX_VALUE : p, s == null ? Long.MAX_VALUE : s);
+	}
+
+	/**
+	 * Skips the tasks missing before the first answer held, once the next task has been missing
+	 * for gapMillis while answers are held. Called regularly, it measures the gap from the first
+	 * call which sees it.
+	 *
+	 * @param now
+	 * @param gapMillis
+	 * @return the number of tasks skipped
+	 */
+	long skipGap(long now, long gapMillis) {
+		if (size() == 0) {
+			stalledNext = -1;
+			return 0;
+		}
+		if (stalledNext != next) {
+			stalledNext = next;
+			stalledSince = now;
+			return 0;
+		}
+		if (now - stalledSince < gapMillis) {
+			return 0;
+		}
+		long first = firstHeld(next);
+		long count = first - next;
+		next = first;
+		stalledNext = -1;
+		return count;
+	}
+
+	/**
+	 * Spills the answers held in memory and forces the spill file to the disk, so that the held
+	 * answers survive a crash. The spill file is rewritten without the answers released once they
+	 * take most of it.
+	 *
+	 * @throws IOException
+	 */
+	void sync() throws IOException {
+		for (Map.Entry<Long, byte[]> entry : pending.entrySet()) {
+			spill(entry.getKey(), entry.getValue());
+		}
+		pending.clear();
+		pendingBytes = 0;
+		if (spill == null) {
+			return;
+		}
+		if (spill.size() > 2 * spilledBytes + maxBytes) {
+			compact();
+		}
+		spill.force(false);
+	}
+
+	/**
+	 * Rewrites the spill file with the answers still held only
+	 */
+	private void compact() throws IOException {
+		Path tmp = spillPath.resolveSibling(spillPath.getFileName() + ".tmp");
+		TreeMap<Long, long[]> moved = new TreeMap<>();
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+		        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			long position = 0;
+			for (Map.Entry<Long, long[]> entry : spilled.entrySet()) {
+				byte[] record = readSpilled(entry.getValue());
+				write(out, position, entry.getKey(), record);
+				moved.put(entry.getKey(), new long[] { position + RECORD_HEADER, record.length });
+				position += RECORD_HEADER + record.length;
+			}
+			out.force(false);
+		}
+		spill.close();
+		spill = null;
+		Files.move(tmp, spillPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		spilled.clear();
+		spilled.putAll(moved);
+		openSpill();
+	}
+
+	private void spill(long task, byte[] record) throws IOException {
+		openSpill();
+		long position = spill.size();
+		write(spill, position, task, record);
+		spilled.put(task, new long[] { position + RECORD_HEADER, record.length });
+		spilledBytes += RECORD_HEADER + record.length;
+	}
+
+	private static void write(FileChannel channel, long position, long task, byte[] record) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(RECORD_HEADER + record.length);
+		bb.putLong(task).putInt(record.length).put(record);
+		bb.flip();
+		while (bb.hasRemaining()) {
+			channel.write(bb, position + bb.position());
+		}
+	}
+
+	private byte[] readSpilled(long[] location) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate((int) location[1]);
+		while (bb.hasRemaining()) {
+			if (spill.read(bb, location[0] + bb.position()) == -1) {
+				throw new IOException("Truncated spill file " + spillPath);
+			}
+		}
+		return bb.array();
+	}
+
+	private void openSpill() throws IOException {
+		if (spill == null) {
+			spill = FileChannel.open(spillPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+			        StandardOpenOption.WRITE);
+		}
+	}
+
+	private void loadSpill() throws IOException {
+		openSpill();
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+		long position = 0;
+		long size = spill.size();
+		while (position + RECORD_HEADER <= size) {
+			header.clear();
+			while (header.hasRemaining()) {
+				spill.read(header, position + header.position());
+			}
+			header.flip();
+			long task = header.getLong();
+			int length = header.getInt();
+			if (position + RECORD_HEADER + length > size) {
+				// record interrupted by a crash
+				break;
+			}
+			if (task >= next && !spilled.containsKey(task)) {
+				spilled.put(task, new long[] { position + RECORD_HEADER, length });
+				spilledBytes += RECORD_HEADER + length;
+			}
+			position += RECORD_HEADER + length;
+		}
+	}
+
+	/**
+	 * Spills the answers held in memory so that they are found again by the next run, and
+	 * closes the spill file
+	 */
+	@Override
+	public void close() throws IOException {
+		sync();
+		if (spill != null) {
+			spill.close();
+			spill = null;
+		}
+		if (spilled.isEmpty()) {
+			Files.deleteIfExists(spillPath);
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package upem.jarret.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+
+/**
+ * Seals full segments on a background thread: the answer lines are compressed in blocks of
+ * about BLOCK_SIZE bytes, a block index is written next to them, then the raw segment is deleted.
+ */
+class SegmentCompressor {
+	static final int BLOCK_SIZE = 64 * 1024;
+
+	private final Consumer<String> log;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "SegmentCompressor");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	SegmentCompressor(Consumer<String> log) {
+		this.log = log;
+	}
+
+	/**
+	 * Schedules the compression of a segment which will not be written anymore
+	 * 
+	 * @param raw
+	 */
+	void seal(Path raw) {
+		executor.execute(() -> {
+			try {
+				compress(raw);
+			} catch (IOException e) {
+				log.accept("Cannot compress segment " + raw + ": " + e);
+			}
+		});
+	}
+
+	/**
+	 * Waits for the scheduled compressions
+	 * 
+	 * @throws InterruptedException
+	 */
+	void close() throws InterruptedException {
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Compresses a raw segment. The raw segment is only deleted once the compressed data and
+	 * its index are complete.
+	 * 
+	 * @param raw
+	 * @throws IOException
+	 */
+	static void compress(Path raw) throws IOException {
+		Path compressed = Segments.compressedPath(raw);
+		Path index = Segments.indexPath(raw);
+		Path compressedTmp = compressed.resolveSibling(compressed.getFileName() + ".tmp");
+		Path indexTmp = index.resolveSibling(index.getFileName() + ".tmp");
+
+		try (InputStream in = Files.newInputStream(raw);
+		        FileChannel out = FileChannel.open(compressedTmp, StandardOpenOption.CREATE,
+		                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			BlockWriter writer = new BlockWriter(out);
+			byte[] chunk = new byte[BLOCK_SIZE];
+			int n;
+			while ((n = in.read(chunk)) != -1) {
+				for (int i = 0; i < n; i++) {
+					writer.append(chunk[i]);
+				}
+			}
+			writer.finish();
+			writer.index.write(indexTmp);
+		}
+		Files.move(compressedTmp, compressed, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Files.move(indexTmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Files.delete(raw);
+	}
+
+	/**
+	 * Cuts the lines of a segment in blocks and writes them compressed
+	 */
+	private static class BlockWriter {
+		private final FileChannel out;
+		private final BlockIndex index = new BlockIndex();
+		private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		private final byte[] deflated = new byte[BLOCK_SIZE];
+		private byte[] block = new byte[2 * BLOCK_SIZE];
+		private int blockLength;
+		private int lineStart;
+		private int recordCount;
+		private long records;
+		private long minTask = Long.MAX_VALUE;
+		private long maxTask = Long.MIN_VALUE;
+		private long offset;
+
+		BlockWriter(FileChannel out) {
+			this.out = out;
+		}
+
+		void append(byte b) throws IOException {
+			if (b == '\n') {
+				endLine();
+				return;
+			}
+			put(b);
+		}
+
+		private void put(byte b) {
+			if (blockLength == block.length) {
+				block = Arrays.copyOf(block, block.length * 2);
+			}
+			block[blockLength++] = b;
+		}
+
+		private void endLine() throws IOException {
+			if (blockLength == lineStart) {
+				// blank line
+				return;
+			}
+			long task = Segments.taskOf(block, lineStart, blockLength);
+			if (task >= 0) {
+				minTask = Math.min(minTask, task);
+				maxTask = Math.max(maxTask, task);
+			}
+			put((byte) '\n');
+			lineStart = blockLength;
+			recordCount++;
+			if (blockLength >= BLOCK_SIZE) {
+				flush();
+			}
+		}
+
+		void finish() throws IOException {
+			if (blockLength > lineStart) {
+				endLine();
+			}
+			if (recordCount > 0) {
+				flush();
+			}
+			deflater.end();
+		}
+
+		private void flush() throws IOException {
+			deflater.reset();
+			deflater.setInput(block, 0, blockLength);
+			deflater.finish();
+			int compressedLength = 0;
+			while (!deflater.finished()) {
+				int n = deflater.deflate(deflated);
+				ByteBuffer bb = ByteBuffer.wrap(deflated, 0, n);
+				while (bb.hasRemaining()) {
+					out.write(bb);
+				}
+				compressedLength += n;
+			}
+			index.add(records, recordCount, minTask, maxTask, offset, compressedLength, blockLength);
+			offset += compressedLength;
+			records += recordCount;
+			recordCount = 0;
+			blockLength = 0;
+			lineStart = 0;
+			minTask = Long.MAX_VALUE;
+			maxTask = Long.MIN_VALUE;
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package upem.jarret.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Naming and parsing helpers for the answer segments. A job's answers are stored in the
+ * segments answers/[jobId]_[n], one JSON answer per line. A sealed segment is replaced by
+ * answers/[jobId]_[n].dfl, holding Deflate compressed blocks, and its index answers/[jobId]_[n].idx.
+ */
+public class Segments {
+	static final String COMPRESSED_SUFFIX = ".dfl";
+	static final String INDEX_SUFFIX = ".idx";
+	private static final byte[] TASK_FIELD = "\"Task\":\"".getBytes();
+
+	private Segments() {
+	}
+
+	/**
+	 * Receives the answer lines of a segment, without their new line
+	 */
+	@FunctionalInterface
+	public interface RecordConsumer {
+		void accept(byte[] bytes, int from, int to) throws IOException;
+	}
+
+	/**
+	 * Returns the path of a raw segment
+	 * 
+	 * @param directory
+	 * @param jobId
+	 * @param number
+	 * @return
+	 */
+	public static Path rawPath(Path directory, long jobId, int number) {
+		return directory.resolve(jobId + "_" + number);
+	}
+
+	/**
+	 * Returns the path of the late answers of a job written in task order: the answers which
+	 * arrived after the reorder buffer of the job skipped their task, one per line in the order
+	 * they arrived. The file is read after the segments.
+	 * 
+	 * @param directory
+	 * @param jobId
+	 * @return
+	 */
+	public static Path latePath(Path directory, long jobId) {
+		return directory.resolve(jobId + ".late");
+	}
+
+	/**
+	 * Returns the path of the compressed data of a sealed segment
+	 * 
+	 * @param raw the path of the raw segment
+	 * @return
+	 */
+	public static Path compressedPath(Path raw) {
+		return raw.resolveSibling(raw.getFileName() + COMPRESSED_SUFFIX);
+	}
+
+	/**
+	 * Returns the path of the block index of a sealed segment
+	 * 
+	 * @param raw the path of the raw segment
+	 * @return
+	 */
+	public static Path indexPath(Path raw) {
+		return raw.resolveSibling(raw.getFileName() + INDEX_SUFFIX);
+	}
+
+	/**
+	 * Returns the segment number of a segment file of a job
+	 * 
+	 * @param file
+	 * @param jobId
+	 * @return the number, or -1 if the file is not a segment of this job
+	 */
+	public static int segmentNumber(Path file, long jobId) {
+		String name = file.getFileName().toString();
+		String prefix = jobId + "_";
+		if (!name.startsWith(prefix)) {
+			return -1;
+		}
+		String number = name.substring(prefix.length());
+		if (number.endsWith(COMPRESSED_SUFFIX)) {
+			number = number.substring(0, number.length() - COMPRESSED_SUFFIX.length());
+		}
+		try {
+			return Integer.parseInt(number);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Lists the segments of a job, raw or sealed, in segment order. A sealed segment is
+	 * listed by the path of its raw segment.
+	 * 
+	 * @param directory
+	 * @param jobId
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Path> list(Path directory, long jobId) throws IOException {
+		List<Integer> numbers = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, jobId + "_*")) {
+			for (Path file : stream) {
+				int number = segmentNumber(file, jobId);
+				if (number >= 0 && !numbers.contains(number)) {
+					numbers.add(number);
+				}
+			}
+		}
+		Collections.sort(numbers);
+		List<Path> segments = new ArrayList<>();
+		for (int number : numbers) {
+			segments.add(rawPath(directory, jobId, number));
+		}
+		return segments;
+	}
+
+	/**
+	 * Lists the segments of a job like {@link #list}, followed by its late answers if it has some
+	 * 
+	 * @param directory
+	 * @param jobId
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Path> listWithLate(Path directory, long jobId) throws IOException {
+		List<Path> files = list(directory, jobId);
+		Path late = latePath(directory, jobId);
+		if (Files.exists(late)) {
+			files.add(late);
+		}
+		return files;
+	}
+
+	/**
+	 * Tests if a segment was sealed and compressed
+	 * 
+	 * @param raw the path of the raw segment
+	 * @return
+	 */
+	public static boolean isSealed(Path raw) {
+		return !Files.exists(raw) && Files.exists(compressedPath(raw)) && Files.exists(indexPath(raw));
+	}
+
+	/**
+	 * Reads the task number of an answer line without parsing the whole JSON object
+	 * 
+	 * @param bytes
+	 * @param from the start of the line
+	 * @param to the end of the line, exclusive
+	 * @return the task number, or -1 if the line has no Task field
+	 */
+	public static long taskOf(byte[] bytes, int from, int to) {
+		int limit = to - TASK_FIELD.length;
+		search: for (int i = from; i <= limit; i++) {
+			for (int j = 0; j < TASK_FIELD.length; j++) {
+				if (bytes[i + j] != TASK_FIELD[j]) {
+					continue search;
+				}
+			}
+			long task = 0;
+			int k = i + TASK_FIELD.length;
+			if (k >= to || bytes[k] < '0' || bytes[k] > '9') {
+				return -1;
+			}
+			while (k < to && bytes[k] >= '0' && bytes[k] <= '9') {
+				task = task * 10 + (bytes[k++] - '0');
+			}
+			return task;
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads the task number of an answer line held in a buffer, such as a mapped segment
+	 * 
+	 * @param bytes
+	 * @param from the start of the line
+	 * @param to the end of the line, exclusive
+	 * @return the task number, or -1 if the line has no Task field
+	 */
+	public static long taskOf(ByteBuffer bytes, int from, int to) {
+		int limit = to - TASK_FIELD.length;
+		search: for (int i = from; i <= limit; i++) {
+			for (int j = 0; j < TASK_FIELD.length; j++) {
+				if (bytes.get(i + j) != TASK_FIELD[j]) {
+					continue search;
+				}
+			}
+			long task = 0;
+			int k = i + TASK_FIELD.length;
+			if (k >= to || bytes.get(k) < '0' || bytes.get(k) > '9') {
+				return -1;
+			}
+			byte b;
+			while (k < to && (b = bytes.get(k)) >= '0' && b <= '9') {
+				task = task * 10 + (b - '0');
+				k++;
+			}
+			return task;
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads all the answers of a segment, raw or sealed, in the order they were written.
+	 * Blank lines and an unterminated last line, still being written, are skipped.
+	 * 
+	 * @param raw the path of the raw segment
+	 * @param consumer
+	 * @throws IOException
+	 */
+	public static void forEachRecord(Path raw, RecordConsumer consumer) throws IOException {
+		if (isSealed(raw)) {
+			try (CompressedSegment segment = new CompressedSegment(raw)) {
+				for (int block = 0; block < segment.getIndex().size(); block++) {
+					forEachLine(segment.readBlock(block), 0, segment.getIndex().getRawLength(block), consumer);
+				}
+			}
+			return;
+		}
+		InputStream in;
+		try {
+			in = Files.newInputStream(raw);
+		} catch (NoSuchFileException e) {
+			if (!isSealed(raw)) {
+				throw e;
+			}
+			// sealed by the compressor in the meantime
+			forEachRecord(raw, consumer);
+			return;
+		}
+		byte[] buffer = new byte[SegmentCompressor.BLOCK_SIZE];
+		int length = 0;
+		try {
+			int n;
+			while ((n = in.read(buffer, length, buffer.length - length)) != -1) {
+				length += n;
+				int consumed = forEachLine(buffer, 0, length, consumer);
+				System.arraycopy(buffer, consumed, buffer, 0, length - consumed);
+				length -= consumed;
+				if (length == buffer.length) {
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Hands the complete lines of a buffer to the consumer
+	 * 
+	 * @return the index following the last new line
+	 */
+	private static int forEachLine(byte[] bytes, int from, int to, RecordConsumer consumer) throws IOException {
+		int start = from;
+		for (int i = from; i < to; i++) {
+			if (bytes[i] == '\n') {
+				if (i > start) {
+					consumer.accept(bytes, start, i);
+				}
+				start = i + 1;
+			}
+		}
+		return start;
+	}
+}
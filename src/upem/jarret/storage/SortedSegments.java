@@ -0,0 +1,358 @@
+package upem.jarret.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lookups in the segments of a job written in task order, where the tasks of the answers only
+ * increase from a line to the next and from a segment to the next. They rely on binary searches
+ * over the segments, the blocks of the sealed ones and the byte offsets of the raw ones. The late
+ * answers of a job are scanned when its segments do not have the task.
+ */
+public class SortedSegments {
+	private static final Charset charsetUTF8 = Charset.forName("utf-8");
+	/**
+	 * Below this span, a raw segment is scanned instead of being split again
+	 */
+	private static final int SCAN_SIZE = 16 * 1024;
+	private static final int LINE_CHUNK = 8 * 1024;
+
+	private SortedSegments() {
+	}
+
+	/**
+	 * Finds the answer of a task
+	 * 
+	 * @param directory
+	 * @param jobId
+	 * @param task
+	 * @return the JSON answer, or null if the task has no answer
+	 * @throws IOException
+	 */
+	public static String find(Path directory, long jobId, long task) throws IOException {
+		List<Path> segments = Segments.list(directory, jobId);
+		// the last segment starting at or before task
+		int lo = 0;
+		int hi = segments.size() - 1;
+		int found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long first = firstTask(segments.get(mid));
+			if (first != -1 && first <= task) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		byte[] line = found == -1 ? null : findInSegment(segments.get(found), task);
+		if (line == null) {
+			return findLate(directory, jobId, task);
+		}
+		return new String(line, charsetUTF8);
+	}
+
+	/**
+	 * Scans the late answers of a job, which are not in task order, for the answer of a task
+	 */
+	private static String findLate(Path directory, long jobId, long task) throws IOException {
+		Path late = Segments.latePath(directory, jobId);
+		if (!Files.exists(late)) {
+			return null;
+		}
+		String[] found = new String[1];
+		Segments.forEachRecord(late, (bytes, from, to) -> {
+			if (found[0] == null && Segments.taskOf(bytes, from, to) == task) {
+				found[0] = new String(bytes, from, to - from, charsetUTF8);
+			}
+		});
+		return found[0];
+	}
+
+	/**
+	 * Returns the task of the last answer written for a job
+	 * 
+	 * @param directory
+	 * @param jobId
+	 * @return the task, or -1 if the job has no answer
+	 * @throws IOException
+	 */
+	public static long lastTask(Path directory, long jobId) throws IOException {
+		List<Path> segments = Segments.list(directory, jobId);
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			long task = lastTask(segments.get(i));
+			if (task != -1) {
+				return task;
+			}
+		}
+		return -1;
+	}
+
+	private static long firstTask(Path raw) throws IOException {
+		if (Segments.isSealed(raw)) {
+			BlockIndex index = BlockIndex.read(Segments.indexPath(raw));
+			return index.size() == 0 ? -1 : index.getMinTask(0);
+		}
+		try (FileChannel channel = FileChannel.open(raw, StandardOpenOption.READ)) {
+			byte[] line = readLine(channel, 0);
+			return line == null ? -1 : Segments.taskOf(line, 0, line.length);
+		} catch (NoSuchFileException e) {
+			if (!Segments.isSealed(raw)) {
+				throw e;
+			}
+			// sealed by the compressor in the meantime
+			return firstTask(raw);
+		}
+	}
+
+	private static long lastTask(Path raw) throws IOException {
+		if (Segments.isSealed(raw)) {
+			BlockIndex index = BlockIndex.read(Segments.indexPath(raw));
+			return index.size() == 0 ? -1 : index.getMaxTask(index.size() - 1);
+		}
+		try (FileChannel channel = FileChannel.open(raw, StandardOpenOption.READ)) {
+			long size = channel.size();
+			// the last complete line follows the last new line but one
+			long end = previousNewLine(channel, size);
+			if (end == -1) {
+				return -1;
+			}
+			long start = previousNewLine(channel, end) + 1;
+			byte[] line = readLine(channel, start);
+			return line == null ? -1 : Segments.taskOf(line, 0, line.length);
+		} catch (NoSuchFileException e) {
+			if (!Segments.isSealed(raw)) {
+				throw e;
+			}
+			return lastTask(raw);
+		}
+	}
+
+	private static byte[] findInSegment(Path raw, long task) throws IOException {
+		if (Segments.isSealed(raw)) {
+			try (CompressedSegment segment = new CompressedSegment(raw)) {
+				BlockIndex index = segment.getIndex();
+				// the last block starting at or before task
+				int lo = 0;
+				int hi = index.size() - 1;
+				int found = -1;
+				while (lo <= hi) {
+					int mid = (lo + hi) >>> 1;
+					if (index.getMinTask(mid) <= task) {
+						found = mid;
+						lo = mid + 1;
+					} else {
+						hi = mid - 1;
+					}
+				}
+				if (found == -1 || index.getMaxTask(found) < task) {
+					return null;
+				}
+				return findInLines(segment.readBlock(found), 0, index.getRawLength(found), task);
+			}
+		}
+		try (FileChannel channel = FileChannel.open(raw, StandardOpenOption.READ)) {
+			return findInRaw(channel, task);
+		} catch (NoSuchFileException e) {
+			if (!Segments.isSealed(raw)) {
+				throw e;
+			}
+			return findInSegment(raw, task);
+		}
+	}
+
+	/**
+	 * Binary search over the byte offsets of a raw segment. lo always is the start of a line
+	 * whose task is at most task, and no line starting at or after hi has task.
+	 */
+	private static byte[] findInRaw(FileChannel channel, long task) throws IOException {
+		long lo = 0;
+		long hi = channel.size();
+		while (hi - lo > SCAN_SIZE) {
+			long mid = (lo + hi) >>> 1;
+			long start = previousNewLine(channel, mid) + 1;
+			if (start <= lo) {
+				start = nextLineStart(channel, mid, hi);
+			}
+			if (start >= hi) {
+				hi = mid;
+				continue;
+			}
+			byte[] line = readLine(channel, start);
+			if (line == null) {
+				hi = start;
+				continue;
+			}
+			long found = Segments.taskOf(line, 0, line.length);
+			if (found == task) {
+				return line;
+			}
+			if (found < task) {
+				lo = start;
+			} else {
+				hi = start;
+			}
+		}
+		for (long position = lo; position < hi;) {
+			byte[] line = readLine(channel, position);
+			if (line == null) {
+				return null;
+			}
+			long found = Segments.taskOf(line, 0, line.length);
+			if (found == task) {
+				return line;
+			}
+			if (found > task) {
+				return null;
+			}
+			position += line.length + 1;
+		}
+		return null;
+	}
+
+	/**
+	 * Binary search for the first line of a raw segment whose task is at least task. Every line
+	 * starting before lo has a smaller task, and hi is the start of a line whose task is at least
+	 * task, or the end.
+	 * 
+	 * @param channel
+	 * @param end the end of the complete lines of the segment
+	 * @param task
+	 * @return the start of the line, or end if there is none
+	 * @throws IOException
+	 */
+	static long lowerBound(FileChannel channel, long end, long task) throws IOException {
+		long lo = 0;
+		long hi = end;
+		while (hi - lo > SCAN_SIZE) {
+			long mid = (lo + hi) >>> 1;
+			long start = nextLineStart(channel, mid, hi);
+			if (start >= hi) {
+				start = previousNewLine(channel, mid) + 1;
+				if (start <= lo) {
+					// a single line between lo and hi
+					break;
+				}
+			}
+			byte[] line = readLine(channel, start);
+			if (line == null) {
+				hi = start;
+			} else if (Segments.taskOf(line, 0, line.length) < task) {
+				lo = start + line.length + 1;
+			} else {
+				hi = start;
+			}
+		}
+		for (long position = lo; position < hi;) {
+			byte[] line = readLine(channel, position);
+			if (line == null || Segments.taskOf(line, 0, line.length) >= task) {
+				return position;
+			}
+			position += line.length + 1;
+		}
+		return hi;
+	}
+
+	private static byte[] findInLines(byte[] bytes, int from, int to, long task) {
+		int start = from;
+		for (int i = from; i < to; i++) {
+			if (bytes[i] == '\n') {
+				if (i > start) {
+					long found = Segments.taskOf(bytes, start, i);
+					if (found == task) {
+						return Arrays.copyOfRange(bytes, start, i);
+					}
+					if (found > task) {
+						return null;
+					}
+				}
+				start = i + 1;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the line starting at a position
+	 * 
+	 * @return the line without its new line, or null if it is not terminated
+	 */
+	private static byte[] readLine(FileChannel channel, long position) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(LINE_CHUNK);
+		while (true) {
+			int n = channel.read(bb, position + bb.position());
+			byte[] bytes = bb.array();
+			for (int i = bb.position() - Math.max(n, 0); i < bb.position(); i++) {
+				if (bytes[i] == '\n') {
+					return Arrays.copyOf(bytes, i);
+				}
+			}
+			if (n == -1) {
+				return null;
+			}
+			if (!bb.hasRemaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate(bb.capacity() * 2);
+				bb.flip();
+				bigger.put(bb);
+				bb = bigger;
+			}
+		}
+	}
+
+	/**
+	 * Returns the position of the last new line before a position, or -1 if there is none
+	 */
+	static long previousNewLine(FileChannel channel, long position) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(LINE_CHUNK);
+		long end = position;
+		while (end > 0) {
+			long start = Math.max(0, end - LINE_CHUNK);
+			bb.clear().limit((int) (end - start));
+			while (bb.hasRemaining()) {
+				if (channel.read(bb, start + bb.position()) == -1) {
+					break;
+				}
+			}
+			byte[] bytes = bb.array();
+			for (int i = bb.position() - 1; i >= 0; i--) {
+				if (bytes[i] == '\n') {
+					return start + i;
+				}
+			}
+			end = start;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the start of the first line starting at or after a position, or limit if there is none
+	 * before limit
+	 */
+	private static long nextLineStart(FileChannel channel, long position, long limit) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(LINE_CHUNK);
+		long start = position;
+		while (start < limit) {
+			bb.clear();
+			int n = channel.read(bb, start);
+			if (n == -1) {
+				break;
+			}
+			byte[] bytes = bb.array();
+			for (int i = 0; i < n; i++) {
+				if (bytes[i] == '\n') {
+					return Math.min(start + i + 1, limit);
+				}
+			}
+			start += n;
+		}
+		return limit;
+	}
+}
@@ -0,0 +1,142 @@
+package upem.jarret.worker;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reusable byte sink in which a RangeWorker writes the answers of a range of tasks.
+ * The answers are stored back to back in a single growing array, so the same sink
+ * can be cleared and reused for every range without allocating per answer.
+ */
+public class AnswerSink {
+    private static final Charset charsetUTF8 = Charset.forName("utf-8");
+
+    private byte[] bytes = new byte[4096];
+    private int[] tasks = new int[64];
+    private int[] ends = new int[64];
+    private int size = 0;
+
+    /**
+     * Adds the answer of a task
+     *
+     * @param taskNumber the task computed
+     * @param json the UTF-8 encoded JSON answer
+     * @param offset the offset of the answer in json
+     * @param length the length of the answer
+     */
+    public void put(int taskNumber, byte[] json, int offset, int length) {
+        int start = start();
+        ensureCapacity(start + length);
+        System.arraycopy(json, offset, bytes, start, length);
+        append(taskNumber, start + length);
+    }
+
+    /**
+     * Adds the answer of a task
+     *
+     * @param taskNumber the task computed
+     * @param json the JSON answer
+     */
+    public void put(int taskNumber, String json) {
+        byte[] encoded = json.getBytes(charsetUTF8);
+        put(taskNumber, encoded, 0, encoded.length);
+    }
+
+    /**
+     * @return the number of answers in the sink
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index the index of the answer, in insertion order
+     * @return the task number of the answer
+     */
+    public int getTask(int index) {
+        checkIndex(index);
+        return tasks[index];
+    }
+
+    /**
+     * @param index the index of the answer, in insertion order
+     * @return the answer decoded as a String
+     */
+    public String getAnswer(int index) {
+        checkIndex(index);
+        int start = index == 0 ? 0 : ends[index - 1];
+        return new String(bytes, start, ends[index] - start, charsetUTF8);
+    }
+
+    /**
+     * @param index the index of the answer, in insertion order
+     * @return the number of UTF-8 bytes of the answer
+     */
+    public int getAnswerLength(int index) {
+        checkIndex(index);
+        return ends[index] - (index == 0 ? 0 : ends[index - 1]);
+    }
+
+    /**
+     * Puts the length of an answer then its UTF-8 bytes in a buffer, without decoding them
+     *
+     * @param index the index of the answer, in insertion order
+     * @param out a buffer with at least Integer.BYTES + getAnswerLength(index) bytes remaining
+     */
+    public void writeAnswer(int index, ByteBuffer out) {
+        checkIndex(index);
+        int start = index == 0 ? 0 : ends[index - 1];
+        out.putInt(ends[index] - start);
+        out.put(bytes, start, ends[index] - start);
+    }
+
+    /**
+     * Writes the length of an answer then its UTF-8 bytes, without decoding them
+     *
+     * @param index the index of the answer, in insertion order
+     * @param out
+     * @throws IOException
+     */
+    void writeAnswer(int index, DataOutput out) throws IOException {
+        checkIndex(index);
+        int start = index == 0 ? 0 : ends[index - 1];
+        out.writeInt(ends[index] - start);
+        out.write(bytes, start, ends[index] - start);
+    }
+
+    /**
+     * Empties the sink and keeps the allocated storage for the next range
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    private int start() {
+        return size == 0 ? 0 : ends[size - 1];
+    }
+
+    private void append(int taskNumber, int end) {
+        if (size == tasks.length) {
+            tasks = Arrays.copyOf(tasks, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+        tasks[size] = taskNumber;
+        ends[size] = end;
+        size++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package upem.jarret.worker;
+
+public interface RangeWorker extends Worker {
+
+    // Compute the tasks from (inclusive) to to (exclusive) and write one JSON answer per task into sink
+    public void computeRange(int from, int to, AnswerSink sink);
+}
@@ -1,9 +1,12 @@
 package upem.jarret.worker;
 
+import java.lang.reflect.InvocationTargetException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 
+import upem.jarret.events.WorkerLoadEvent;
+
 
 public class WorkerFactory {
 
@@ -19,10 +22,27 @@ public class WorkerFactory {
      * @throws java.lang.ClassCastException (unchecked) if the cast to upem.jarret.worker.Worker failed
      */
     public static Worker getWorker(String url,String className) throws MalformedURLException, ClassNotFoundException, IllegalAccessException, InstantiationException {
-            URL urls[] = {new URL("jar","",url+"!/")};
-            URLClassLoader urlClassLoader = new URLClassLoader(urls,Thread.currentThread().getContextClassLoader());
-            Class theClass=Class.forName(className,true,urlClassLoader);
-            theClass.newInstance();
-            return (Worker) theClass.newInstance();
+            WorkerLoadEvent event = new WorkerLoadEvent();
+            event.begin();
+            event.failed = true;
+            try {
+                URL urls[] = {new URL("jar","",url+"!/")};
+                URLClassLoader urlClassLoader = new URLClassLoader(urls,Thread.currentThread().getContextClassLoader());
+                Class<?> theClass=Class.forName(className,true,urlClassLoader);
+                Worker worker = (Worker) theClass.getDeclaredConstructor().newInstance();
+                event.failed = false;
+                return worker;
+            } catch (NoSuchMethodException | InvocationTargetException e) {
+                InstantiationException instantiation = new InstantiationException(e.toString());
+                instantiation.initCause(e);
+                throw instantiation;
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.workerURL = url;
+                    event.workerClassName = className;
+                    event.commit();
+                }
+            }
     }
 }
@@ -0,0 +1,161 @@
+package upem.jarret.worker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.HashMap;
+
+/**
+ * Main class of the child JVMs of a WorkerPool. A child connects to the Unix domain socket its
+ * pool listens on, then loads workers and computes ranges of tasks on request, until the pool
+ * closes the socket.
+ *
+ * Requests: LOAD url className, answered by the description of the worker, and COMPUTE url
+ * className from to, answered by the answers computed, the time spent and the heap still used
+ * after the last garbage collection.
+ */
+public class WorkerHost {
+    static final byte LOAD = 1;
+    static final byte COMPUTE = 2;
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final HashMap<String, Worker> workers = new HashMap<>();
+    private final AnswerSink sink = new AnswerSink();
+
+    private WorkerHost(SocketChannel sc) {
+        this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(sc)));
+        this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(sc)));
+    }
+
+    private void serve() throws IOException {
+        while (true) {
+            byte request;
+            try {
+                request = in.readByte();
+            } catch (EOFException e) {
+                // the pool closed the socket
+                return;
+            }
+            switch (request) {
+            case LOAD:
+                load(in.readUTF(), in.readUTF());
+                break;
+            case COMPUTE:
+                compute(in.readUTF(), in.readUTF(), in.readInt(), in.readInt());
+                break;
+            default:
+                throw new IOException("Unknown request " + request);
+            }
+            out.flush();
+        }
+    }
+
+    private Worker getWorker(String url, String className) throws ReflectiveOperationException, IOException {
+        String key = url + " " + className;
+        Worker worker = workers.get(key);
+        if (worker == null) {
+            worker = WorkerFactory.getWorker(url, className);
+            workers.put(key, worker);
+        }
+        return worker;
+    }
+
+    private void load(String url, String className) throws IOException {
+        Worker worker;
+        try {
+            worker = getWorker(url, className);
+        } catch (Exception e) {
+            out.writeByte(ERROR);
+            out.writeUTF(String.valueOf(e));
+            return;
+        }
+        out.writeByte(OK);
+        out.writeLong(worker.getJobId());
+        out.writeInt(worker.getNumberOfTasks());
+        writeString(worker.getVersion());
+        writeString(worker.getJobDescription());
+    }
+
+    /**
+     * Computes a range of tasks. The tasks missing from the answers are computation errors.
+     */
+    private void compute(String url, String className, int from, int to) throws IOException {
+        long start = System.nanoTime();
+        sink.clear();
+        try {
+            Worker worker = getWorker(url, className);
+            if (worker instanceof RangeWorker) {
+                ((RangeWorker) worker).computeRange(from, to, sink);
+            } else {
+                for (int task = from; task < to; task++) {
+                    try {
+                        String answer = worker.compute(task);
+                        if (answer != null) {
+                            sink.put(task, answer);
+                        }
+                    } catch (Exception e) {
+                        // reported as a computation error
+                    }
+                }
+            }
+        } catch (Exception e) {
+            // tasks missing from the sink are reported as computation errors
+        }
+        long nanos = System.nanoTime() - start;
+        out.writeInt(sink.size());
+        for (int i = 0; i < sink.size(); i++) {
+            out.writeInt(sink.getTask(i));
+            sink.writeAnswer(i, out);
+        }
+        out.writeLong(nanos);
+        out.writeLong(liveHeap());
+    }
+
+    private void writeString(String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    /**
+     * Returns the heap used after the last garbage collection of each pool, which only grows
+     * with the data kept alive
+     */
+    private static long liveHeap() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && usage != null) {
+                used += usage.getUsed();
+            }
+        }
+        return used;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("WorkerHost socketPath");
+            return;
+        }
+        try (SocketChannel sc = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            sc.connect(UnixDomainSocketAddress.of(Paths.get(args[0])));
+            new WorkerHost(sc).serve();
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package upem.jarret.worker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the workers in long-lived child JVMs instead of the client JVM, so that a worker which
+ * leaks, spends its time in garbage collection or crashes does not take the client down with it.
+ * A range of tasks is split between the children, which compute their part in parallel, and the
+ * requests and answers go through a Unix domain socket per child.
+ *
+ * A child is replaced once the heap it still uses after a garbage collection exceeds maxHeapBytes,
+ * or once it took more than maxTaskMillis per task to compute a range. A child which dies while it
+ * computes is replaced too, the tasks it did not answer being computation errors. A child which
+ * does not answer within maxTaskMillis per task is killed by a watchdog, so that a hung worker
+ * cannot block the client.
+ */
+public class WorkerPool implements Closeable {
+    private static final long START_TIMEOUT_MILLIS = 30_000;
+    private static final long EXIT_TIMEOUT_MILLIS = 1_000;
+
+    private final List<String> javaOptions;
+    private final long maxHeapBytes;
+    private final long maxTaskMillis;
+    private final Path socketDirectory;
+    private final Child[] children;
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "worker-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private byte[] buffer = new byte[4096];
+    private long recycled;
+
+    /**
+     * A child JVM and its connection
+     */
+    private class Child {
+        private final int index;
+        private final Path socketPath;
+        private Process process;
+        private ServerSocketChannel listener;
+        private SocketChannel sc;
+        private DataInputStream in;
+        private DataOutputStream out;
+        private volatile boolean timedOut;
+
+        Child(int index) {
+            this.index = index;
+            this.socketPath = socketDirectory.resolve("worker-" + index + ".sock");
+        }
+
+        /**
+         * Launches the JVM, which connects to the socket once it started
+         */
+        void start() throws IOException {
+            timedOut = false;
+            Files.deleteIfExists(socketPath);
+            listener = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            listener.bind(UnixDomainSocketAddress.of(socketPath));
+            listener.configureBlocking(false);
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(javaOptions);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(WorkerHost.class.getName());
+            command.add(socketPath.toString());
+            process = new ProcessBuilder(command).inheritIO().start();
+        }
+
+        /**
+         * Waits for the JVM to connect, starting it if needed
+         */
+        void connect() throws IOException {
+            if (sc != null) {
+                return;
+            }
+            if (process == null) {
+                start();
+            }
+            long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+            SocketChannel accepted;
+            while ((accepted = listener.accept()) == null) {
+                if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                    stop();
+                    throw new IOException("Worker process " + index + " did not start");
+                }
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while worker process " + index + " starts");
+                }
+            }
+            sc = accepted;
+            in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(sc)));
+            out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(sc)));
+        }
+
+        /**
+         * Closes the connection, which makes the JVM exit, and kills the JVM if it does not
+         */
+        void stop() {
+            try {
+                if (sc != null) {
+                    sc.close();
+                }
+                if (listener != null) {
+                    listener.close();
+                }
+                Files.deleteIfExists(socketPath);
+            } catch (IOException e) {
+                //
+            }
+            try {
+                if (process != null && !process.waitFor(EXIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+            sc = null;
+            listener = null;
+            process = null;
+        }
+
+        /**
+         * Kills the JVM if it does not answer in time, which ends the read of its answers
+         *
+         * @param millis the time left to the JVM
+         * @return the kill, to cancel once the JVM answered
+         */
+        ScheduledFuture<?> watch(long millis) {
+            timedOut = false;
+            Process watched = process;
+            return watchdog.schedule(() -> {
+                timedOut = true;
+                watched.destroyForcibly();
+            }, millis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Replaces the JVM by a new one
+         */
+        void recycle(String reason) {
+            System.out.println("Recycling worker process " + index + ": " + reason);
+            recycled++;
+            stop();
+            try {
+                start();
+            } catch (IOException e) {
+                // started again on the next request
+                System.out.println("Cannot start worker process " + index + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * A worker running in the children
+     */
+    private class RemoteWorker implements RangeWorker {
+        private final String url;
+        private final String className;
+        private final long jobId;
+        private final int numberOfTasks;
+        private final String version;
+        private final String jobDescription;
+        private final AnswerSink sink = new AnswerSink();
+
+        RemoteWorker(String url, String className, DataInputStream in) throws IOException {
+            this.url = url;
+            this.className = className;
+            this.jobId = in.readLong();
+            this.numberOfTasks = in.readInt();
+            this.version = readString(in);
+            this.jobDescription = readString(in);
+        }
+
+        @Override
+        public String compute(int taskNumber) {
+            sink.clear();
+            computeRange(taskNumber, taskNumber + 1, sink);
+            return sink.size() == 0 ? null : sink.getAnswer(0);
+        }
+
+        @Override
+        public void computeRange(int from, int to, AnswerSink sink) {
+            WorkerPool.this.computeRange(this, from, to, sink);
+        }
+
+        @Override
+        public long getJobId() {
+            return jobId;
+        }
+
+        @Override
+        public int getNumberOfTasks() {
+            return numberOfTasks;
+        }
+
+        @Override
+        public String getVersion() {
+            return version;
+        }
+
+        @Override
+        public String getJobDescription() {
+            return jobDescription;
+        }
+    }
+
+    /**
+     * @param size the number of child JVMs
+     * @param javaOptions the options of the child JVMs, -Xmx for instance
+     * @param maxHeapBytes the largest heap a child may keep after a garbage collection, 0 for no
+     *        limit
+     * @param maxTaskMillis the longest time a child may take per task of a range, 0 for no limit
+     * @throws IOException
+     */
+    public WorkerPool(int size, List<String> javaOptions, long maxHeapBytes, long maxTaskMillis) throws IOException {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+        if (maxHeapBytes < 0 || maxTaskMillis < 0) {
+            throw new IllegalArgumentException("budgets must not be negative");
+        }
+        this.javaOptions = new ArrayList<>(Objects.requireNonNull(javaOptions));
+        this.maxHeapBytes = maxHeapBytes;
+        this.maxTaskMillis = maxTaskMillis;
+        this.socketDirectory = Files.createTempDirectory("jarret-workers");
+        this.children = new Child[size];
+        for (int i = 0; i < size; i++) {
+            children[i] = new Child(i);
+            children[i].start();
+        }
+    }
+
+    /**
+     * Loads a worker in the children
+     *
+     * @param url location of the jar
+     * @param className name of the class implementing upem.jarret.worker.Worker
+     * @return a worker computing its tasks in the children
+     * @throws ClassNotFoundException if a child cannot load the worker
+     * @throws IOException if no child can be reached
+     */
+    public Worker getWorker(String url, String className) throws ClassNotFoundException, IOException {
+        Child child = children[0];
+        ScheduledFuture<?> deadline = null;
+        try {
+            child.connect();
+            child.out.writeByte(WorkerHost.LOAD);
+            child.out.writeUTF(url);
+            child.out.writeUTF(className);
+            child.out.flush();
+            deadline = child.watch(START_TIMEOUT_MILLIS);
+            if (child.in.readByte() == WorkerHost.ERROR) {
+                throw new ClassNotFoundException(child.in.readUTF());
+            }
+            RemoteWorker worker = new RemoteWorker(url, className, child.in);
+            if (!deadline.cancel(false)) {
+                throw new IOException("killed while loading the worker");
+            }
+            return worker;
+        } catch (IOException e) {
+            child.recycle(child.timedOut ? "no answer after " + START_TIMEOUT_MILLIS + " ms to load the worker"
+                    : "connection lost: " + e);
+            throw e;
+        } finally {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of children replaced
+     *
+     * @return
+     */
+    public long getRecycled() {
+        return recycled;
+    }
+
+    /**
+     * Splits a range between the children, sends all the parts before reading the answers, then
+     * replaces the children which died, did not answer in time or exceeded a budget
+     */
+    private void computeRange(RemoteWorker worker, int from, int to, AnswerSink sink) {
+        int parts = Math.min(children.length, to - from);
+        boolean[] sent = new boolean[parts];
+        ScheduledFuture<?>[] deadlines = new ScheduledFuture<?>[parts];
+        for (int i = 0; i < parts; i++) {
+            Child child = children[i];
+            try {
+                child.connect();
+                child.out.writeByte(WorkerHost.COMPUTE);
+                child.out.writeUTF(worker.url);
+                child.out.writeUTF(worker.className);
+                child.out.writeInt(partStart(from, to, parts, i));
+                child.out.writeInt(partStart(from, to, parts, i + 1));
+                child.out.flush();
+                sent[i] = true;
+                if (maxTaskMillis > 0) {
+                    deadlines[i] = child.watch(maxTaskMillis * (partStart(from, to, parts, i + 1)
+                            - partStart(from, to, parts, i)));
+                }
+            } catch (IOException e) {
+                child.recycle("connection lost: " + e);
+            }
+        }
+        for (int i = 0; i < parts; i++) {
+            if (!sent[i]) {
+                continue;
+            }
+            Child child = children[i];
+            int tasks = partStart(from, to, parts, i + 1) - partStart(from, to, parts, i);
+            try {
+                readAnswers(child.in, sink);
+                long millis = TimeUnit.NANOSECONDS.toMillis(child.in.readLong());
+                long heap = child.in.readLong();
+                if (deadlines[i] != null && !deadlines[i].cancel(false)) {
+                    child.recycle("killed after " + maxTaskMillis * tasks + " ms for " + tasks + " tasks");
+                } else if (maxHeapBytes > 0 && heap > maxHeapBytes) {
+                    child.recycle(heap / (1024 * 1024) + " MB of heap still used after a garbage collection");
+                } else if (maxTaskMillis > 0 && millis > maxTaskMillis * tasks) {
+                    child.recycle(millis + " ms to compute " + tasks + " tasks");
+                }
+            } catch (IOException e) {
+                // the answers read before are kept, the other tasks are computation errors
+                if (deadlines[i] != null) {
+                    deadlines[i].cancel(false);
+                }
+                child.recycle(child.timedOut ? "no answer after " + maxTaskMillis * tasks + " ms for " + tasks
+                        + " tasks" : "died while computing: " + e);
+            }
+        }
+    }
+
+    private static int partStart(int from, int to, int parts, int part) {
+        return from + (int) ((long) (to - from) * part / parts);
+    }
+
+    private void readAnswers(DataInputStream in, AnswerSink sink) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int task = in.readInt();
+            int length = in.readInt();
+            if (length > buffer.length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            in.readFully(buffer, 0, length);
+            sink.put(task, buffer, 0, length);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Stops the children
+     */
+    @Override
+    public void close() throws IOException {
+        watchdog.shutdownNow();
+        for (Child child : children) {
+            child.stop();
+        }
+        Files.deleteIfExists(socketDirectory);
+    }
+}
@@ -8,6 +8,7 @@ import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 
 public class JsonTools {
+	private static final JsonFactory jf = new JsonFactory();
 
 	/**
 	 * Tests if the string is in json
@@ -51,4 +52,35 @@ public class JsonTools {
 		return false;
 	}
 
+	/**
+	 * Checks the answer of a worker in a single pass over its bytes: it must be a single JSON
+	 * object, and its values must not be objects
+	 * 
+	 * @param json the UTF-8 answer
+	 * @param offset
+	 * @param length
+	 * @return the error message, or null if the answer is valid
+	 * @throws IOException if something went wrong
+	 */
+	public static String answerError(byte[] json, int offset, int length) throws IOException {
+		try (JsonParser jp = jf.createParser(json, offset, length)) {
+			if (jp.nextToken() != JsonToken.START_OBJECT) {
+				return "Answer is not valid JSON";
+			}
+			while (jp.nextToken() != JsonToken.END_OBJECT) {
+				JsonToken value = jp.nextToken();
+				if (value == JsonToken.START_OBJECT) {
+					return "Answer is nested";
+				}
+				jp.skipChildren();
+			}
+			if (jp.nextToken() != null) {
+				return "Answer is not valid JSON";
+			}
+		} catch (JsonParseException jpe) {
+			return "Answer is not valid JSON";
+		}
+		return null;
+	}
+
 }
@@ -0,0 +1,27 @@
+package upem.jarret;
+
+/**
+ * Runs every test:
+ * 
+ * <pre>
+ * javac -cp 'lib/*' -d classes $(find src test -name '*.java')
+ * java -cp 'classes:lib/*' upem.jarret.AllTests
+ * </pre>
+ */
+public class AllTests {
+
+	public static void main(String[] args) throws Exception {
+		upem.jarret.client.AnswerSpoolTest.main(args);
+		upem.jarret.http.HTTPReaderTest.main(args);
+		upem.jarret.job.JobTest.main(args);
+		upem.jarret.job.LeaseTest.main(args);
+		upem.jarret.job.TaskSetTest.main(args);
+		upem.jarret.server.AnswerRangeTest.main(args);
+		upem.jarret.server.ConcurrentAnswersTest.main(args);
+		upem.jarret.server.SchedulerTest.main(args);
+		upem.jarret.server.ShardStealTest.main(args);
+		upem.jarret.server.TimingWheelTest.main(args);
+		upem.jarret.storage.ReorderBufferTest.main(args);
+		System.out.println("All tests passed");
+	}
+}
@@ -0,0 +1,59 @@
+package upem.jarret;
+
+import java.util.Objects;
+
+/**
+ * The checks of the tests. The tests are plain classes with a main method, run from the test
+ * directory with the classes of src and lib on the class path; a failed check throws an
+ * AssertionError which stops the run.
+ */
+public final class Assert {
+	private Assert() {
+	}
+
+	public static void assertTrue(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	public static void assertFalse(boolean condition, String message) {
+		assertTrue(!condition, message);
+	}
+
+	public static void assertEquals(long expected, long actual, String message) {
+		if (expected != actual) {
+			throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+		}
+	}
+
+	public static void assertEquals(Object expected, Object actual, String message) {
+		if (!Objects.equals(expected, actual)) {
+			throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+		}
+	}
+
+	/**
+	 * Checks that an action throws an exception of the given type
+	 *
+	 * @param type
+	 * @param action
+	 * @param message
+	 */
+	public static void assertThrows(Class<? extends Throwable> type, ThrowingRunnable action, String message) {
+		try {
+			action.run();
+		} catch (Throwable e) {
+			if (type.isInstance(e)) {
+				return;
+			}
+			throw new AssertionError(message + ": expected " + type.getSimpleName() + " but got " + e, e);
+		}
+		throw new AssertionError(message + ": expected " + type.getSimpleName());
+	}
+
+	@FunctionalInterface
+	public interface ThrowingRunnable {
+		void run() throws Exception;
+	}
+}
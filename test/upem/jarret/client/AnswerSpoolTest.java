@@ -0,0 +1,154 @@
+package upem.jarret.client;
+
+import static upem.jarret.Assert.assertEquals;
+import static upem.jarret.Assert.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+public class AnswerSpoolTest {
+
+	public static void main(String[] args) throws IOException {
+		Path directory = Files.createTempDirectory("spool");
+		try {
+			batches(directory.resolve("batches"));
+			reopen(directory.resolve("reopen"));
+			truncatedRecord(directory.resolve("truncated"));
+			acknowledgeAll(directory.resolve("all"));
+			reject(directory.resolve("reject"));
+			lock(directory.resolve("lock"));
+		} finally {
+			try (Stream<Path> paths = Files.walk(directory)) {
+				paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+			}
+		}
+		System.out.println("AnswerSpoolTest OK");
+	}
+
+	/**
+	 * The record of a lease of one task
+	 */
+	private static ByteBuffer record(long jobId, long task, String json) {
+		byte[] bytes = json.getBytes();
+		ByteBuffer record = ByteBuffer.allocate(2 * Long.BYTES + 4 * Integer.BYTES + bytes.length);
+		record.putLong(jobId).putLong(task).putInt(1).putInt(1).putInt(0).putInt(bytes.length).put(bytes).flip();
+		return record;
+	}
+
+	/**
+	 * The size of a record of the spool, with its length
+	 */
+	private static int size(String json) {
+		return Integer.BYTES + 2 * Long.BYTES + 4 * Integer.BYTES + json.length();
+	}
+
+	private static byte[] content(AnswerSpool spool, long batchEnd) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		spool.transferTo(batchEnd, Channels.newChannel(baos));
+		return baos.toByteArray();
+	}
+
+	private static void batches(Path directory) throws IOException {
+		try (AnswerSpool spool = new AnswerSpool(directory, "c")) {
+			for (int task = 0; task < 10; task++) {
+				spool.append(record(1, task, "{\"a\":\"1\"}"));
+			}
+			spool.sync();
+			assertEquals(10, spool.getPendingRecords(), "pending records");
+			int size = size("{\"a\":\"1\"}");
+			long batchEnd = spool.nextBatch(3 * size);
+			assertEquals(3 * size, spool.getBatchLength(batchEnd), "batch length");
+			assertEquals(3, spool.getBatchRecords(batchEnd), "batch records");
+			byte[] content = content(spool, batchEnd);
+			assertEquals(3 * size, content.length, "bytes sent");
+			assertEquals(size - Integer.BYTES, ByteBuffer.wrap(content).getInt(), "record length");
+			assertEquals(size, spool.getBatchLength(spool.nextBatch(0)), "a batch holds at least one record");
+			spool.acknowledge(batchEnd);
+			assertEquals(7, spool.getPendingRecords(), "pending records after acknowledge");
+			assertEquals(7 * size, spool.getBatchLength(spool.nextBatch(Long.MAX_VALUE)), "last batch");
+		}
+	}
+
+	private static void reopen(Path directory) throws IOException {
+		int size = size("{\"a\":\"1\"}");
+		try (AnswerSpool spool = new AnswerSpool(directory, "c")) {
+			for (int task = 0; task < 4; task++) {
+				spool.append(record(1, task, "{\"a\":\"1\"}"));
+			}
+			spool.acknowledge(spool.nextBatch(size));
+		}
+		try (AnswerSpool spool = new AnswerSpool(directory, "c")) {
+			assertEquals(3, spool.getPendingRecords(), "records not acknowledged before the restart");
+			long batchEnd = spool.nextBatch(Long.MAX_VALUE);
+			assertEquals(1, ByteBuffer.wrap(content(spool, batchEnd)).getLong(Integer.BYTES + Long.BYTES),
+			        "first answer not acknowledged");
+		}
+	}
+
+	/**
+	 * A record cut by a crash is dropped when the spool is opened again
+	 */
+	private static void truncatedRecord(Path directory) throws IOException {
+		try (AnswerSpool spool = new AnswerSpool(directory, "c")) {
+			spool.append(record(1, 0, "{\"a\":\"1\"}"));
+			spool.append(record(1, 1, "{\"a\":\"1\"}"));
+		}
+		Path path = directory.resolve("c.spool");
+		byte[] bytes = Files.readAllBytes(path);
+		Files.write(path, Arrays.copyOf(bytes, bytes.length - 3));
+		try (AnswerSpool spool = new AnswerSpool(directory, "c")) {
+			assertEquals(1, spool.getPendingRecords(), "records left");
+			assertEquals(size("{\"a\":\"1\"}"), Files.size(path), "spool truncated to the last whole record");
+		}
+	}
+
+	/**
+	 * Once every record is acknowledged, the spool is emptied and the saved offset is 0, so that
+	 * the records appended next are all sent after a restart
+	 */
+	private static void acknowledgeAll(Path directory) throws IOException {
+		try (AnswerSpool spool = new AnswerSpool(directory, "c")) {
+			spool.append(record(1, 0, "{\"a\":\"1\"}"));
+			spool.append(record(1, 1, "{\"a\":\"1\"}"));
+			spool.acknowledge(spool.nextBatch(Long.MAX_VALUE));
+			assertEquals(0, Files.size(directory.resolve("c.spool")), "spool size");
+			assertEquals(0, ByteBuffer.wrap(Files.readAllBytes(directory.resolve("c.ack"))).getLong(), "saved offset");
+			spool.append(record(1, 2, "{\"b\":\"2\"}"));
+			spool.sync();
+		}
+		try (AnswerSpool spool = new AnswerSpool(directory, "c")) {
+			assertEquals(1, spool.getPendingRecords(), "records appended after the truncation");
+		}
+	}
+
+	private static void reject(Path directory) throws IOException {
+		int size = size("{\"a\":\"1\"}");
+		try (AnswerSpool spool = new AnswerSpool(directory, "c")) {
+			spool.append(record(1, 0, "{\"a\":\"1\"}"));
+			spool.append(record(1, 1, "{\"a\":\"1\"}"));
+			Path rejected = spool.reject(spool.nextBatch(0));
+			assertEquals(directory.resolve("c.rejected"), rejected, "rejected file");
+			assertEquals(size, Files.size(rejected), "rejected bytes");
+			assertEquals(1, spool.getPendingRecords(), "records left");
+			spool.reject(spool.nextBatch(0));
+			assertEquals(2 * size, Files.size(rejected), "rejected records are appended");
+			assertEquals(0, spool.getPendingRecords(), "records left");
+		}
+	}
+
+	private static void lock(Path directory) throws IOException {
+		AnswerSpool spool = new AnswerSpool(directory, "c");
+		try {
+			assertThrows(IOException.class, () -> new AnswerSpool(directory, "c"), "spool used twice");
+		} finally {
+			spool.close();
+		}
+	}
+}
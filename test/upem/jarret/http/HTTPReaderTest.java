@@ -0,0 +1,100 @@
+package upem.jarret.http;
+
+import static upem.jarret.Assert.assertEquals;
+import static upem.jarret.Assert.assertThrows;
+import static upem.jarret.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+public class HTTPReaderTest {
+
+    public static void main(String[] args) throws IOException {
+        headers();
+        chunks();
+        truncatedChunk();
+        System.out.println("HTTPReaderTest OK");
+    }
+
+    /**
+     * Returns a reader of the bytes sent by a peer in small pieces, to cut the lines and chunks
+     */
+    private static HTTPReader reader(String response, int bufferSize) throws IOException {
+        ServerSocketChannel ss = ServerSocketChannel.open()
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        byte[] bytes = response.getBytes(StandardCharsets.ISO_8859_1);
+        Thread sender = new Thread(() -> {
+            try (ServerSocketChannel listener = ss; SocketChannel sc = listener.accept()) {
+                for (int i = 0; i < bytes.length; i += 1000) {
+                    sc.write(ByteBuffer.wrap(bytes, i, Math.min(1000, bytes.length - i)));
+                }
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        sender.setDaemon(true);
+        sender.start();
+        return new HTTPReader(SocketChannel.open(ss.getLocalAddress()), ByteBuffer.allocateDirect(bufferSize));
+    }
+
+    private static void headers() throws IOException {
+        HTTPReader reader = reader("HTTP/1.1 200 OK\r\nX-Long: " + "v".repeat(300) + "\r\nX-Dup: 1\r\nX-Dup: 2\r\n"
+                + "Content-Length: 5\r\n\r\nhelloHTTP/1.1 204 No Content\r\n\r\n", 64);
+        HTTPHeader header = reader.readHeader();
+        assertEquals(200, header.getCode(), "code");
+        assertEquals(300, header.getFields().get("X-Long").length(), "line longer than the buffer");
+        assertEquals("1; 2", header.getFields().get("X-Dup"), "repeated field");
+        ByteBuffer content = reader.readBytes(header.getContentLength());
+        content.flip();
+        assertEquals("hello", StandardCharsets.US_ASCII.decode(content).toString(), "content");
+        assertEquals(204, reader.readHeader().getCode(), "next response on the connection");
+    }
+
+    private static String chunked(int size, int chunkSize) {
+        StringBuilder response = new StringBuilder("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n");
+        for (int i = 0; i < size; i += chunkSize) {
+            int length = Math.min(chunkSize, size - i);
+            response.append(Integer.toHexString(length)).append("\r\n").append("x".repeat(length)).append("\r\n");
+        }
+        return response.append("0\r\n\r\n").toString();
+    }
+
+    /**
+     * Large chunks are cut into blocks of bounded size, and the blocks are reused by the next
+     * content
+     */
+    private static void chunks() throws IOException {
+        HTTPReader reader = reader(chunked(300_000, 200_000) + chunked(100_000, 7_000), 1024);
+        reader.readHeader();
+        ByteBuffer[] blocks = reader.readChunks();
+        long bytes = 0;
+        for (ByteBuffer block : blocks) {
+            assertTrue(block.capacity() <= 64 * 1024, "block of " + block.capacity() + " bytes");
+            while (block.hasRemaining()) {
+                assertEquals('x', block.get(), "byte " + bytes);
+                bytes++;
+            }
+        }
+        assertEquals(300_000, bytes, "content length");
+        ByteBuffer first = blocks[0];
+        reader.readHeader();
+        blocks = reader.readChunks();
+        assertTrue(blocks[0] == first, "blocks reused");
+        bytes = 0;
+        for (ByteBuffer block : blocks) {
+            bytes += block.remaining();
+        }
+        assertEquals(100_000, bytes, "content length");
+    }
+
+    private static void truncatedChunk() throws IOException {
+        HTTPReader reader = reader("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n10\r\nabc", 64);
+        reader.readHeader();
+        assertThrows(HTTPException.class, reader::readChunks, "connection closed inside a chunk");
+    }
+}
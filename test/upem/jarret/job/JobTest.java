@@ -0,0 +1,162 @@
+package upem.jarret.job;
+
+import static upem.jarret.Assert.assertEquals;
+import static upem.jarret.Assert.assertFalse;
+import static upem.jarret.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+
+public class JobTest {
+
+	public static void main(String[] args) throws IOException {
+		leases();
+		expiredLeases();
+		speculation();
+		speculatedTaskForgottenAtTheDeadline();
+		ownedRangesSurviveARestart();
+		ownedTasks();
+		System.out.println("JobTest OK");
+	}
+
+	static Job job(long tasks) throws IOException {
+		String json = "{\"JobId\":\"7\",\"JobTaskNumber\":\"" + tasks + "\",\"JobDescription\":\"test\","
+		        + "\"JobPriority\":\"1\",\"WorkerVersionNumber\":\"1\",\"WorkerURL\":\"file:w.jar\","
+		        + "\"WorkerClassName\":\"W\"}";
+		try (JsonParser jp = new JsonFactory().createParser(json)) {
+			jp.nextToken();
+			return Job.parseJSON(jp);
+		}
+	}
+
+	private static void answer(Job job, long task, long now) throws IOException {
+		job.acknowledge(task, now);
+		job.getResult().fold(task, "{\"a\":\"1\"}");
+	}
+
+	private static void leases() throws IOException {
+		Job job = job(10);
+		Task task = job.nextTask(4, 1000);
+		assertEquals(0, task.getTask(), "first task");
+		assertEquals(4, task.getTaskCount(), "lease size");
+		assertEquals(4, job.getOutstandingTasks(), "outstanding tasks");
+		assertTrue(job.acknowledge(1, 0), "first answer");
+		assertFalse(job.acknowledge(1, 0), "second answer");
+		assertFalse(job.acknowledge(5, 0), "task not leased");
+		assertEquals(3, job.getOutstandingTasks(), "outstanding tasks");
+		for (long t = 0; t < 4; t++) {
+			job.acknowledge(t, 0);
+		}
+		assertEquals(0, job.getOutstandingLeases(), "complete lease");
+	}
+
+	private static void expiredLeases() throws IOException {
+		Job job = job(10);
+		job.nextTask(4, 1000);
+		answer(job, 1, 0);
+		job.nextTask(6, 1000);
+		assertFalse(job.hasTask(), "every task leased");
+		assertEquals(9, job.expireLeases(1000), "tasks to dispatch again");
+		Task task = job.nextTask(10, 2000);
+		assertEquals(0, task.getTask(), "retried from the first unanswered task");
+		assertEquals(1, task.getTaskCount(), "a lease stops before an answered task");
+		assertEquals(2, job.nextTask(10, 2000).getTask(), "next retry");
+	}
+
+	private static void speculation() throws IOException {
+		Job job = job(4);
+		job.nextTask(4, 1000);
+		answer(job, 0, 0);
+		assertTrue(job.canSpeculate(), "endgame");
+		Task copy = job.nextSpeculativeTask(2);
+		assertEquals(1, copy.getTask(), "first unanswered task");
+		assertEquals(2, copy.getTaskCount(), "speculated tasks");
+		assertEquals(2, job.getSpeculativeTasks(), "speculative tasks");
+		answer(job, 1, 100);
+		answer(job, 2, 100);
+		answer(job, 3, 100);
+		assertEquals(0, job.getOutstandingLeases(), "complete lease");
+		// the slower copies, once the lease is complete
+		job.acknowledge(1, 150);
+		job.acknowledge(2, 400);
+		assertEquals(2, job.getDuplicatedAnswers(), "duplicated answers");
+		assertEquals(350, job.getTailSavedMillis(), "tail saved");
+		job.acknowledge(2, 500);
+		assertEquals(2, job.getDuplicatedAnswers(), "a third answer is not counted");
+		job.acknowledge(3, 500);
+		assertEquals(2, job.getDuplicatedAnswers(), "a task not speculated is not counted");
+	}
+
+	private static void speculatedTaskForgottenAtTheDeadline() throws IOException {
+		Job job = job(2);
+		job.nextTask(2, 1000);
+		job.nextSpeculativeTask(2);
+		answer(job, 0, 100);
+		answer(job, 1, 100);
+		job.expireLeases(1000);
+		job.acknowledge(0, 1200);
+		assertEquals(0, job.getDuplicatedAnswers(), "copy answered after the deadline of its lease");
+	}
+
+	private static String format(List<long[]> ranges) {
+		StringBuilder sb = new StringBuilder();
+		for (long[] range : ranges) {
+			sb.append("[").append(range[0]).append(", ").append(range[1]).append(")");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The ranges a shard owns after steals are saved with the checkpoint and dispatched again by
+	 * the next run
+	 */
+	private static void ownedRangesSurviveARestart() throws IOException {
+		Job job = job(100);
+		job.setSlice(1, 2);
+		assertEquals("[50, 100)", format(job.getOwnedRanges()), "slice");
+		long[] offered = job.split(16);
+		assertEquals(75, offered[0], "offered range");
+		assertEquals("[50, 75)[75, 100)", format(job.getOwnedRanges()), "an offer is still owned");
+		assertTrue(job.disown(75, 100), "offer committed");
+		assertFalse(job.disown(75, 100), "offer committed twice");
+		job.own(10, 20);
+		assertEquals("[50, 75)[10, 20)", format(job.getOwnedRanges()), "stolen range");
+
+		Path checkpoint = Files.createTempFile("job", ".checkpoint");
+		try {
+			job.getResult().saveCheckpoint(checkpoint);
+			Job restarted = job(100);
+			restarted.setSlice(1, 2);
+			restarted.getResult().loadCheckpoint(checkpoint);
+			restarted.restoreOwnedRanges(restarted.getResult().getOwnedRanges());
+			assertEquals("[50, 75)[10, 20)", format(restarted.getOwnedRanges()), "restored ranges");
+			assertEquals(35, restarted.getAvailableTasks(), "tasks to dispatch");
+			assertEquals(10, restarted.nextTask(100, 1000).getTask(), "stolen range dispatched first");
+		} finally {
+			Files.delete(checkpoint);
+		}
+	}
+
+	private static void ownedTasks() throws IOException {
+		Job whole = job(100);
+		assertTrue(whole.owns(0, 100), "every task of a job not sharded");
+		assertFalse(whole.owns(-1, 0), "negative task");
+		assertFalse(whole.owns(99, 101), "task beyond the job");
+		Job job = job(100);
+		job.setSlice(1, 2);
+		assertTrue(job.owns(50, 100), "slice");
+		assertFalse(job.owns(49, 51), "task of the other shard");
+		job.split(16);
+		assertTrue(job.owns(60, 90), "tasks across the slice and the offer split from it");
+		job.disown(75, 100);
+		assertFalse(job.owns(74, 76), "task given away");
+		job.own(10, 20);
+		assertTrue(job.owns(10, 20), "stolen range");
+		assertFalse(job.owns(20, 21), "task after the stolen range");
+	}
+}
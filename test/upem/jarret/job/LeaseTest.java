@@ -0,0 +1,76 @@
+package upem.jarret.job;
+
+import static upem.jarret.Assert.assertEquals;
+import static upem.jarret.Assert.assertFalse;
+import static upem.jarret.Assert.assertTrue;
+
+public class LeaseTest {
+
+	public static void main(String[] args) {
+		answers();
+		speculation();
+		secondAnswer();
+		System.out.println("LeaseTest OK");
+	}
+
+	private static void answers() {
+		Lease lease = new Lease(100, 4, 5000);
+		assertTrue(lease.contains(100) && lease.contains(103), "tasks of the lease");
+		assertFalse(lease.contains(99) || lease.contains(104), "tasks out of the lease");
+		assertTrue(lease.answer(101, 0), "first answer");
+		assertFalse(lease.answer(101, 0), "second answer");
+		assertEquals(3, lease.getRemaining(), "remaining");
+		assertEquals(0, lease.nextUnanswered(0), "first unanswered");
+		assertEquals(2, lease.nextUnanswered(1), "next unanswered");
+		assertEquals(1, lease.nextAnswered(0), "first answered");
+		assertEquals(4, lease.nextAnswered(2), "no answered task left");
+		lease.answer(100, 0);
+		lease.answer(102, 0);
+		lease.answer(103, 0);
+		assertTrue(lease.isComplete(), "complete");
+		assertEquals(-1, lease.nextUnanswered(0), "no unanswered task left");
+	}
+
+	/**
+	 * The unanswered tasks are handed out again run by run, each task once
+	 */
+	private static void speculation() {
+		Lease lease = new Lease(0, 10, 5000);
+		lease.answer(3, 0);
+		lease.answer(4, 0);
+		assertTrue(lease.canSpeculate(), "unanswered tasks");
+		assertEquals(0, lease.speculate(10)[0], "first run start");
+		assertEquals(5, lease.speculate(10)[0], "second run starts after the answered tasks");
+		Lease runs = new Lease(0, 10, 5000);
+		runs.answer(3, 0);
+		int[] first = runs.speculate(2);
+		assertEquals(0, first[0], "run start");
+		assertEquals(2, first[1], "run bounded by max");
+		int[] second = runs.speculate(10);
+		assertEquals(2, second[0], "next run start");
+		assertEquals(3, second[1], "run stops at an answered task");
+		int[] third = runs.speculate(10);
+		assertEquals(4, third[0], "run after the answered task");
+		assertEquals(10, third[1], "run to the end");
+		assertFalse(runs.canSpeculate(), "every unanswered task handed out");
+	}
+
+	/**
+	 * The first answer of a task handed out twice is remembered until its second answer
+	 */
+	private static void secondAnswer() {
+		Lease lease = new Lease(0, 4, 5000);
+		lease.speculate(4);
+		assertTrue(lease.hasSpeculatedTasks(), "speculated tasks");
+		assertEquals(-1, lease.takeFirstAnswer(1), "first answer of an unanswered task");
+		lease.answer(1, 1200);
+		assertFalse(lease.answer(1, 1500), "second answer");
+		assertEquals(1200, lease.takeFirstAnswer(1), "time of the first answer");
+		assertEquals(-1, lease.takeFirstAnswer(1), "a third answer is not counted");
+		for (long task = 0; task < 4; task++) {
+			lease.answer(task, 2000);
+			lease.takeFirstAnswer(task);
+		}
+		assertFalse(lease.hasSpeculatedTasks(), "every second answer received");
+	}
+}
@@ -0,0 +1,89 @@
+package upem.jarret.job;
+
+import static upem.jarret.Assert.assertEquals;
+import static upem.jarret.Assert.assertFalse;
+import static upem.jarret.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class TaskSetTest {
+	// beyond Integer.MAX_VALUE, on the last word of a page
+	private static final long FAR = (1L << 40) + 65_535;
+
+	public static void main(String[] args) throws IOException {
+		addAndContains();
+		nextAbsent();
+		nextPresent();
+		addAll();
+		writeAndRead();
+		System.out.println("TaskSetTest OK");
+	}
+
+	private static void addAndContains() {
+		TaskSet set = new TaskSet();
+		assertTrue(set.add(3), "first add");
+		assertFalse(set.add(3), "second add");
+		assertTrue(set.add(FAR), "task beyond Integer.MAX_VALUE");
+		assertTrue(set.contains(3), "contains");
+		assertTrue(set.contains(FAR), "contains beyond Integer.MAX_VALUE");
+		assertFalse(set.contains(4), "contains a task not added");
+		assertFalse(set.contains(FAR + 1), "contains the first task of the next page");
+		assertEquals(2, set.size(), "size");
+	}
+
+	private static void nextAbsent() {
+		TaskSet set = new TaskSet();
+		assertEquals(0, set.nextAbsent(0), "empty set");
+		for (long task = 0; task < 70_000; task++) {
+			set.add(task);
+		}
+		assertEquals(70_000, set.nextAbsent(0), "across a full page");
+		assertEquals(70_000, set.nextAbsent(65_536), "from the second page");
+		assertEquals(80_000, set.nextAbsent(80_000), "from an absent task");
+	}
+
+	private static void nextPresent() {
+		TaskSet set = new TaskSet();
+		assertEquals(100, set.nextPresent(0, 100), "empty set");
+		set.add(64);
+		set.add(FAR);
+		assertEquals(64, set.nextPresent(0, 100), "first word boundary");
+		assertEquals(64, set.nextPresent(64, 100), "from a present task");
+		assertEquals(100, set.nextPresent(65, 100), "after the last task");
+		assertEquals(50, set.nextPresent(0, 50), "before the task");
+		assertEquals(FAR, set.nextPresent(1000, FAR + 10), "across absent pages");
+	}
+
+	private static void addAll() {
+		TaskSet set = new TaskSet();
+		set.add(1);
+		set.add(2);
+		TaskSet other = new TaskSet();
+		other.add(2);
+		other.add(3);
+		other.add(FAR);
+		set.addAll(other);
+		assertEquals(4, set.size(), "size counts the common tasks once");
+		assertTrue(set.contains(3) && set.contains(FAR), "tasks added");
+	}
+
+	private static void writeAndRead() throws IOException {
+		TaskSet set = new TaskSet();
+		for (long task = 0; task < 1000; task += 3) {
+			set.add(task);
+		}
+		set.add(FAR);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		set.writeTo(new DataOutputStream(bytes));
+		TaskSet read = TaskSet.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		assertEquals(set.size(), read.size(), "size");
+		for (long task = 0; task < 1000; task++) {
+			assertEquals(task % 3 == 0, read.contains(task), "task " + task);
+		}
+		assertTrue(read.contains(FAR), "task beyond Integer.MAX_VALUE");
+	}
+}
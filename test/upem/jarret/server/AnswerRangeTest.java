@@ -0,0 +1,106 @@
+package upem.jarret.server;
+
+import static upem.jarret.Assert.assertEquals;
+import static upem.jarret.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Runs the first of two shards on localhost, with each engine, and checks that the answers of
+ * tasks it does not own are refused with a 400 on every answer endpoint, before anything is saved
+ */
+public class AnswerRangeTest {
+	private static final Charset charsetUTF8 = Charset.forName("utf-8");
+	private static final long JOB_ID = 1;
+	// the shard owns the tasks [0, 50)
+	private static final long TASKS = 100;
+	private static final byte[] ANSWER = "{\"a\":\"1\"}".getBytes(charsetUTF8);
+
+	private final Path directory;
+	private final int port;
+
+	private AnswerRangeTest(Path directory, String engine) throws IOException {
+		this.directory = directory;
+		this.port = ServerProcess.freePort();
+		Files.write(directory.resolve("jobs.json"), ("{\"JobId\":\"" + JOB_ID + "\",\"JobTaskNumber\":\"" + TASKS
+		        + "\",\"JobDescription\":\"test\",\"JobPriority\":\"1\",\"WorkerVersionNumber\":\"1\","
+		        + "\"WorkerURL\":\"file:w.jar\",\"WorkerClassName\":\"W\"}").getBytes(charsetUTF8));
+		Files.createDirectories(directory.resolve("a"));
+		Files.createDirectories(directory.resolve("l"));
+		Files.write(directory.resolve("s.json"), ("{\"Port\":" + port + ",\"LogDirectory\":\"l/\","
+		        + "\"AnswersDirectory\":\"a/\",\"JobsFile\":\"jobs.json\",\"Engine\":\"" + engine + "\",\"ShardIndex\":0,"
+		        + "\"Shards\":[\"localhost:" + port + "\",\"localhost:" + ServerProcess.freePort() + "\"]}")
+		        .getBytes(charsetUTF8));
+	}
+
+	public static void main(String[] args) throws Exception {
+		for (String engine : new String[] { "selector", "blocking" }) {
+			Path directory = Files.createTempDirectory("answers");
+			try {
+				new AnswerRangeTest(directory, engine).tasksNotOwnedAreRefused(engine);
+			} finally {
+				try (Stream<Path> paths = Files.walk(directory)) {
+					paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+				}
+			}
+		}
+		System.out.println("AnswerRangeTest OK");
+	}
+
+	private void tasksNotOwnedAreRefused(String engine) throws Exception {
+		Process server = ServerProcess.start(directory, "s.json", port);
+		try {
+			assertEquals(200, answer64(JOB_ID, 3), engine + ": answer of an owned task");
+			assertEquals(400, answer64(JOB_ID, 60), engine + ": answer of a task of the other shard");
+			assertEquals(400, answer64(JOB_ID, TASKS), engine + ": answer of a task beyond the job");
+			assertEquals(400, answer64(JOB_ID + 1, 3), engine + ": answer of an unknown job");
+			assertEquals(400, answer(JOB_ID, -1), engine + ": answer of a negative task");
+			assertEquals(400, answerBatch(JOB_ID, 45, 10), engine + ": batch ending in the other shard");
+			assertEquals(200, answerBatch(JOB_ID, 10, 2), engine + ": batch of owned tasks");
+			String result = ServerProcess.request(port, "GET Result/" + JOB_ID + " HTTP/1.1\r\n\r\n");
+			assertTrue(result.contains("\"Answers\":3"), engine + ": answers folded in " + result);
+		} finally {
+			ServerProcess.kill(server);
+		}
+	}
+
+	private int answer64(long jobId, long task) throws IOException {
+		ByteBuffer content = ByteBuffer.allocate(2 * Long.BYTES + ANSWER.length);
+		content.putLong(jobId).putLong(task).put(ANSWER);
+		return post("Answer64", content);
+	}
+
+	private int answer(long jobId, int task) throws IOException {
+		ByteBuffer content = ByteBuffer.allocate(Long.BYTES + Integer.BYTES + ANSWER.length);
+		content.putLong(jobId).putInt(task).put(ANSWER);
+		return post("Answer", content);
+	}
+
+	/**
+	 * Posts the record of a lease whose tasks all have an answer
+	 */
+	private int answerBatch(long jobId, long from, int count) throws IOException {
+		int length = AnswerBatch.HEADER_BYTES + count * (2 * Integer.BYTES + ANSWER.length);
+		ByteBuffer content = ByteBuffer.allocate(Integer.BYTES + length);
+		content.putInt(length).putLong(jobId).putLong(from).putInt(count).putInt(count);
+		for (int i = 0; i < count; i++) {
+			content.putInt(i).putInt(ANSWER.length).put(ANSWER);
+		}
+		return post("AnswerBatches", content);
+	}
+
+	private int post(String requested, ByteBuffer content) throws IOException {
+		content.flip();
+		ByteBuffer header = charsetUTF8.encode("POST " + requested + " HTTP/1.1\r\nContent-Type: application/json\r\n"
+		        + "Client-Id: test\r\nContent-Length: " + content.remaining() + "\r\n\r\n");
+		ByteBuffer request = ByteBuffer.allocate(header.remaining() + content.remaining());
+		request.put(header).put(content).flip();
+		return ServerProcess.code(port, request);
+	}
+}
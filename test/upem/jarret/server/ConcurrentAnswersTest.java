@@ -0,0 +1,125 @@
+package upem.jarret.server;
+
+import static upem.jarret.Assert.assertEquals;
+import static upem.jarret.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import upem.jarret.http.HTTPHeader;
+import upem.jarret.http.HTTPReader;
+
+/**
+ * Runs a server with the blocking engine, whose connections save their answers without its lock,
+ * and checks that each task answered by several clients at once is saved and folded once
+ */
+public class ConcurrentAnswersTest {
+	private static final Charset charsetUTF8 = Charset.forName("utf-8");
+	private static final long JOB_ID = 1;
+	private static final long TASKS = 200;
+	private static final int CLIENTS = 16;
+	private static final byte[] ANSWER = "{\"a\":\"1\"}".getBytes(charsetUTF8);
+
+	private final Path directory;
+	private final int port;
+
+	private ConcurrentAnswersTest(Path directory) throws IOException {
+		this.directory = directory;
+		this.port = ServerProcess.freePort();
+		Files.write(directory.resolve("jobs.json"), ("{\"JobId\":\"" + JOB_ID + "\",\"JobTaskNumber\":\"" + TASKS
+		        + "\",\"JobDescription\":\"test\",\"JobPriority\":\"1\",\"WorkerVersionNumber\":\"1\","
+		        + "\"WorkerURL\":\"file:w.jar\",\"WorkerClassName\":\"W\"}").getBytes(charsetUTF8));
+		Files.createDirectories(directory.resolve("a"));
+		Files.createDirectories(directory.resolve("l"));
+		Files.write(directory.resolve("s.json"), ("{\"Port\":" + port + ",\"LogDirectory\":\"l/\","
+		        + "\"AnswersDirectory\":\"a/\",\"JobsFile\":\"jobs.json\",\"Engine\":\"blocking\","
+		        + "\"CompressSegments\":false}").getBytes(charsetUTF8));
+	}
+
+	public static void main(String[] args) throws Exception {
+		Path directory = Files.createTempDirectory("answers");
+		try {
+			new ConcurrentAnswersTest(directory).eachTaskIsSavedOnce();
+		} finally {
+			try (Stream<Path> paths = Files.walk(directory)) {
+				paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+			}
+		}
+		System.out.println("ConcurrentAnswersTest OK");
+	}
+
+	/**
+	 * Every client answers every task, in the same order, so that the answers of a task arrive
+	 * together
+	 */
+	private void eachTaskIsSavedOnce() throws Exception {
+		Process server = ServerProcess.start(directory, "s.json", port);
+		ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+		try {
+			List<Future<?>> answered = new ArrayList<>();
+			for (int c = 0; c < CLIENTS; c++) {
+				answered.add(clients.submit(() -> {
+					for (long task = 0; task < TASKS; task++) {
+						assertEquals(200, answer64(task), "answer of task " + task);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : answered) {
+				future.get();
+			}
+			String result = ServerProcess.request(port, "GET Result/" + JOB_ID + " HTTP/1.1\r\n\r\n");
+			assertTrue(result.contains("\"Answers\":" + TASKS), "answers folded in " + result);
+			assertEquals(TASKS, savedAnswers(), "answers saved");
+		} finally {
+			clients.shutdownNow();
+			ServerProcess.kill(server);
+		}
+	}
+
+	private int answer64(long task) throws IOException {
+		ByteBuffer content = ByteBuffer.allocate(2 * Long.BYTES + ANSWER.length);
+		content.putLong(JOB_ID).putLong(task).put(ANSWER).flip();
+		ByteBuffer header = charsetUTF8.encode("POST Answer64 HTTP/1.1\r\nContent-Type: application/json\r\n"
+		        + "Content-Length: " + content.remaining() + "\r\n\r\n");
+		ByteBuffer request = ByteBuffer.allocate(header.remaining() + content.remaining());
+		request.put(header).put(content).flip();
+		return ServerProcess.code(port, request);
+	}
+
+	/**
+	 * Downloads the answers of the job and counts their lines
+	 */
+	private long savedAnswers() throws IOException {
+		try (SocketChannel sc = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+			ByteBuffer request = charsetUTF8.encode("GET Answers/" + JOB_ID + " HTTP/1.1\r\n\r\n");
+			while (request.hasRemaining()) {
+				sc.write(request);
+			}
+			HTTPReader reader = new HTTPReader(sc, ByteBuffer.allocate(1024));
+			HTTPHeader header = reader.readHeader();
+			assertEquals(200, header.getCode(), "code of the answers");
+			long[] lines = new long[1];
+			reader.readChunks(bytes -> {
+				while (bytes.hasRemaining()) {
+					if (bytes.get() == '\n') {
+						lines[0]++;
+					}
+				}
+			});
+			return lines[0];
+		}
+	}
+}
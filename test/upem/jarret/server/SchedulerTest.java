@@ -0,0 +1,175 @@
+package upem.jarret.server;
+
+import static upem.jarret.Assert.assertEquals;
+import static upem.jarret.Assert.assertFalse;
+import static upem.jarret.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+
+import upem.jarret.job.Job;
+import upem.jarret.job.Task;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+
+public class SchedulerTest {
+
+	public static void main(String[] args) throws IOException {
+		rotationFollowsThePriorities();
+		pauseResumeAndRetire();
+		addRangeToAFinishedJob();
+		endgame();
+		affinityWithTwoClients();
+		affinityWithOneClient();
+		System.out.println("SchedulerTest OK");
+	}
+
+	private static Job job(long jobId, long tasks, int priority, String worker) throws IOException {
+		String json = "{\"JobId\":\"" + jobId + "\",\"JobTaskNumber\":\"" + tasks + "\",\"JobDescription\":\"test\","
+		        + "\"JobPriority\":\"" + priority + "\",\"WorkerVersionNumber\":\"1\",\"WorkerURL\":\"file:w.jar\","
+		        + "\"WorkerClassName\":\"" + worker + "\"}";
+		try (JsonParser jp = new JsonFactory().createParser(json)) {
+			jp.nextToken();
+			return Job.parseJSON(jp);
+		}
+	}
+
+	/**
+	 * Leases one task at a time and counts them by job
+	 */
+	private static HashMap<Long, Integer> lease(Scheduler scheduler, int leases, String... clients) throws IOException {
+		HashMap<Long, Integer> byJob = new HashMap<>();
+		for (int i = 0; i < leases; i++) {
+			Task task = scheduler.nextTask(1, Long.MAX_VALUE, clients.length == 0 ? null : clients[i % clients.length]);
+			assertTrue(task != null, "no task for lease " + i);
+			byJob.merge(task.getJobId(), 1, Integer::sum);
+		}
+		return byJob;
+	}
+
+	private static void rotationFollowsThePriorities() throws IOException {
+		Scheduler scheduler = new Scheduler(0, 0);
+		scheduler.add(job(1, 1000, 1, "A"));
+		scheduler.add(job(2, 1000, 3, "B"));
+		HashMap<Long, Integer> byJob = lease(scheduler, 400);
+		assertEquals(Integer.valueOf(100), byJob.get(1L), "leases of the job of priority 1");
+		assertEquals(Integer.valueOf(300), byJob.get(2L), "leases of the job of priority 3");
+	}
+
+	private static void pauseResumeAndRetire() throws IOException {
+		Scheduler scheduler = new Scheduler(0, 0);
+		scheduler.add(job(1, 1000, 1, "A"));
+		scheduler.add(job(2, 1000, 1, "A"));
+		scheduler.pause(1);
+		assertTrue(scheduler.isPaused(1), "paused");
+		assertEquals(null, lease(scheduler, 10).get(1L), "leases of a paused job");
+		scheduler.setPriority(1, 2);
+		assertEquals(null, lease(scheduler, 10).get(1L), "leases of a paused job after a priority change");
+		scheduler.resume(1);
+		assertEquals(Integer.valueOf(20), lease(scheduler, 30).get(1L), "leases of the resumed job of priority 2");
+		scheduler.retire(2);
+		assertTrue(scheduler.isRetired(2), "retired");
+		assertEquals(null, lease(scheduler, 10).get(2L), "leases of a retired job");
+		assertTrue(scheduler.getJob(2) != null, "a retired job is still known");
+		scheduler.resume(2);
+		assertEquals(null, lease(scheduler, 10).get(2L), "leases of a retired job after a resume");
+	}
+
+	private static void addRangeToAFinishedJob() throws IOException {
+		Scheduler scheduler = new Scheduler(0, 0);
+		Job job = job(1, 100, 1, "A");
+		job.setSlice(0, 2);
+		scheduler.add(job);
+		Task task = scheduler.nextTask(100, Long.MAX_VALUE);
+		assertEquals(50, task.getTaskCount(), "the slice leased");
+		for (long t = 0; t < 50; t++) {
+			job.acknowledge(t, 0);
+			job.getResult().fold(t, "{}");
+		}
+		assertEquals(null, scheduler.nextTask(100, Long.MAX_VALUE), "task of a finished job");
+		scheduler.addRange(1, 80, 100);
+		task = scheduler.nextTask(100, Long.MAX_VALUE);
+		assertEquals(80, task.getTask(), "first task of the range added");
+		assertEquals(20, task.getTaskCount(), "tasks of the range added");
+	}
+
+	private static void endgame() throws IOException {
+		Scheduler scheduler = new Scheduler(10, 0);
+		Job job = job(1, 4, 1, "A");
+		scheduler.add(job);
+		scheduler.nextTask(4, Long.MAX_VALUE);
+		assertTrue(scheduler.hasTask(), "outstanding tasks handed out again in the endgame");
+		Task speculative = scheduler.nextTask(4, Long.MAX_VALUE);
+		assertEquals(0, speculative.getTask(), "first speculative task");
+		assertEquals(4, speculative.getTaskCount(), "speculative tasks");
+		assertFalse(scheduler.hasTask(), "every outstanding task handed out twice");
+
+		Scheduler withoutEndgame = new Scheduler(0, 0);
+		withoutEndgame.add(job(2, 4, 1, "A"));
+		withoutEndgame.nextTask(4, Long.MAX_VALUE);
+		assertFalse(withoutEndgame.hasTask(), "speculation without an endgame");
+	}
+
+	/**
+	 * Three jobs on two workers, with priorities 1, 2 and 1, leased one task at a time
+	 */
+	private static Scheduler threeJobs(int affinitySlack) throws IOException {
+		Scheduler scheduler = new Scheduler(0, affinitySlack);
+		scheduler.add(job(1, 100_000, 1, "A"));
+		scheduler.add(job(2, 100_000, 2, "B"));
+		scheduler.add(job(3, 100_000, 1, "A"));
+		return scheduler;
+	}
+
+	private static void assertShares(HashMap<Long, Integer> byJob) {
+		assertEquals(List.of(1000, 2000, 1000), List.of(byJob.get(1L), byJob.get(2L), byJob.get(3L)),
+		        "leases by job");
+	}
+
+	/**
+	 * Checks that each job got its share of the leases, give or take the leases served ahead of
+	 * their turn and not paid back yet
+	 */
+	private static void assertShares(HashMap<Long, Integer> byJob, int leases, int affinitySlack) {
+		int[] priorities = { 1, 2, 1 };
+		for (int i = 0; i < priorities.length; i++) {
+			int share = leases * priorities[i] / 4;
+			int served = byJob.get(i + 1L);
+			assertTrue(Math.abs(served - share) <= affinitySlack,
+			        "leases of job " + (i + 1) + ": " + served + " for a share of " + share);
+		}
+	}
+
+	/**
+	 * With two clients, each one can keep its worker without changing the share of the jobs
+	 */
+	private static void affinityWithTwoClients() throws IOException {
+		Scheduler rotation = threeJobs(0);
+		assertShares(lease(rotation, 4000, "c1", "c2"));
+		assertEquals(4000, rotation.getLeases(), "leases");
+		assertEquals(3998, rotation.getWorkerSwitches(), "worker switches without affinity");
+
+		Scheduler affine = threeJobs(8);
+		assertShares(lease(affine, 4000, "c1", "c2"));
+		assertEquals(0, affine.getWorkerSwitches(), "worker switches with affinity");
+	}
+
+	/**
+	 * A single client must run both workers, but switches less often, while the jobs keep their
+	 * share within the slack
+	 */
+	private static void affinityWithOneClient() throws IOException {
+		Scheduler rotation = threeJobs(0);
+		assertShares(lease(rotation, 4000, "c1"));
+		assertEquals(2000, rotation.getWorkerSwitches(), "worker switches without affinity");
+
+		Scheduler affine = threeJobs(8);
+		HashMap<Long, Integer> byJob = lease(affine, 4000, "c1");
+		assertShares(byJob, 4000, 8);
+		assertEquals(154, affine.getWorkerSwitches(), "worker switches with affinity");
+		lease(affine, 6000, "c1").forEach((jobId, leases) -> byJob.merge(jobId, leases, Integer::sum));
+		assertShares(byJob, 10000, 8);
+	}
+}
@@ -0,0 +1,118 @@
+package upem.jarret.server;
+
+import static upem.jarret.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.StringJoiner;
+
+import upem.jarret.http.HTTPHeader;
+import upem.jarret.http.HTTPReader;
+
+/**
+ * Runs a server in its own JVM, in a test directory, and sends it requests
+ */
+class ServerProcess {
+	private static final Charset charsetUTF8 = Charset.forName("utf-8");
+
+	private ServerProcess() {
+	}
+
+	static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	/**
+	 * Starts a server and waits until it answers
+	 *
+	 * @param directory the working directory of the server
+	 * @param config the configuration file, relative to directory
+	 * @param port the port of the configuration
+	 * @return
+	 * @throws IOException if the server did not start within 10 seconds
+	 * @throws InterruptedException
+	 */
+	static Process start(Path directory, String config, int port) throws IOException, InterruptedException {
+		StringJoiner classPath = new StringJoiner(File.pathSeparator);
+		for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			// the server runs in the test directory
+			classPath.add(entry.endsWith("*") ? Path.of(entry.substring(0, entry.length() - 1)).toAbsolutePath() + "/*"
+			        : Path.of(entry).toAbsolutePath().toString());
+		}
+		Process process = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(), "-cp",
+		        classPath.toString(), Server.class.getName(), config)
+		        .directory(directory.toFile()).redirectErrorStream(true)
+		        .redirectOutput(ProcessBuilder.Redirect.appendTo(directory.resolve(config + ".out").toFile()))
+		        .start();
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (true) {
+			try {
+				code(port, "GET Progress HTTP/1.1\r\n\r\n");
+				return process;
+			} catch (IOException e) {
+				if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+					kill(process);
+					throw new IOException("Server " + config + " did not start", e);
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	static void kill(Process process) throws InterruptedException {
+		process.destroyForcibly();
+		process.waitFor();
+	}
+
+	/**
+	 * Sends a request which must succeed
+	 *
+	 * @param port
+	 * @param request
+	 * @return the content of the response
+	 * @throws IOException
+	 */
+	static String request(int port, String request) throws IOException {
+		try (SocketChannel sc = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+			HTTPReader reader = send(sc, charsetUTF8.encode(request));
+			HTTPHeader header = reader.readHeader();
+			assertEquals(200, header.getCode(), "code of " + request);
+			ByteBuffer content = reader.readBytes(header.getContentLength());
+			content.flip();
+			return charsetUTF8.decode(content).toString();
+		}
+	}
+
+	static int code(int port, String request) throws IOException {
+		return code(port, charsetUTF8.encode(request));
+	}
+
+	/**
+	 * Sends a request, header and content
+	 *
+	 * @param port
+	 * @param request
+	 * @return the code of the response
+	 * @throws IOException
+	 */
+	static int code(int port, ByteBuffer request) throws IOException {
+		try (SocketChannel sc = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+			return send(sc, request).readHeader().getCode();
+		}
+	}
+
+	private static HTTPReader send(SocketChannel sc, ByteBuffer request) throws IOException {
+		while (request.hasRemaining()) {
+			sc.write(request);
+		}
+		return new HTTPReader(sc, ByteBuffer.allocate(1024));
+	}
+}
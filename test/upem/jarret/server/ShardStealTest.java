@@ -0,0 +1,153 @@
+package upem.jarret.server;
+
+import static upem.jarret.Assert.assertEquals;
+import static upem.jarret.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import upem.jarret.reducer.JobResult;
+
+/**
+ * Runs two shards on localhost, each one in its own JVM, and checks that a stolen range is owned
+ * by exactly one of them after both are killed, and that an offer not committed stays with the
+ * shard which made it
+ */
+public class ShardStealTest {
+	private static final Charset charsetUTF8 = Charset.forName("utf-8");
+	private static final long JOB_ID = 1;
+	private static final long TASKS = 1000;
+
+	private final Path directory;
+	private final int[] ports = new int[2];
+
+	private ShardStealTest(Path directory) throws IOException {
+		this.directory = directory;
+		for (int i = 0; i < ports.length; i++) {
+			ports[i] = ServerProcess.freePort();
+		}
+		Files.write(directory.resolve("jobs.json"), ("{\"JobId\":\"" + JOB_ID + "\",\"JobTaskNumber\":\"" + TASKS
+		        + "\",\"JobDescription\":\"test\",\"JobPriority\":\"1\",\"WorkerVersionNumber\":\"1\","
+		        + "\"WorkerURL\":\"file:w.jar\",\"WorkerClassName\":\"W\"}").getBytes(charsetUTF8));
+		for (int i = 0; i < ports.length; i++) {
+			Files.createDirectories(directory.resolve("a" + i));
+			Files.createDirectories(directory.resolve("l" + i));
+			Files.write(directory.resolve("s" + i + ".json"), ("{\"Port\":" + ports[i] + ",\"LogDirectory\":\"l" + i
+			        + "/\",\"AnswersDirectory\":\"a" + i + "/\",\"JobsFile\":\"jobs.json\",\"LongPollSeconds\":5,"
+			        + "\"CheckpointSeconds\":1,\"ShardIndex\":" + i + ",\"Shards\":[\"localhost:" + ports[0]
+			        + "\",\"localhost:" + ports[1] + "\"],\"MinStealTasks\":16}").getBytes(charsetUTF8));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Path directory = Files.createTempDirectory("shards");
+		try {
+			ShardStealTest test = new ShardStealTest(directory);
+			test.stolenRangeSurvivesACrash();
+			test.uncommittedOfferStaysWithItsShard();
+		} finally {
+			try (Stream<Path> paths = Files.walk(directory)) {
+				paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+			}
+		}
+		System.out.println("ShardStealTest OK");
+	}
+
+	/**
+	 * Shard 0 starts with its whole slice given away, steals the second half of the slice of
+	 * shard 1, and both are killed right after
+	 */
+	private void stolenRangeSurvivesACrash() throws Exception {
+		JobResult given = new JobResult(JOB_ID, Collections.emptyList());
+		given.setOwnedRanges(Collections.singletonList(new long[] { 0, 0 }));
+		given.saveCheckpoint(checkpoint(0));
+
+		Process shard0 = start(0);
+		Process shard1 = start(1);
+		try {
+			assertEquals(750, firstTask(0), "task of the stolen range");
+		} finally {
+			kill(shard0);
+			kill(shard1);
+		}
+		assertEquals("[0, 0)[750, 1000)", ownedRanges(0), "ranges of the thief");
+		assertEquals("[500, 750)", ownedRanges(1), "ranges of the victim");
+
+		shard0 = start(0);
+		try {
+			// shard 1 is down: the task comes from the checkpoint, not from a new steal
+			assertEquals(750, firstTask(0), "task of the stolen range after a restart");
+		} finally {
+			kill(shard0);
+		}
+	}
+
+	/**
+	 * A range offered to a thief which dies before the commit is still dispatched by the shard
+	 * which offered it, after a restart
+	 */
+	private void uncommittedOfferStaysWithItsShard() throws Exception {
+		Process shard1 = start(1);
+		try {
+			String offer = request(1, "GET Steal HTTP/1.1\r\nSteal-Jobs: " + JOB_ID + "\r\n\r\n");
+			assertTrue(offer.contains("\"From\":\"625\"") && offer.contains("\"To\":\"750\""), "offer: " + offer);
+			assertEquals(404, code(1, "GET StealCommit HTTP/1.1\r\nSteal-Offer: 1\r\n\r\n"), "unknown offer");
+			// saved by the next checkpoint
+			Thread.sleep(2000);
+		} finally {
+			kill(shard1);
+		}
+		assertEquals("[500, 625)[625, 750)", ownedRanges(1), "an offer is still owned");
+	}
+
+	private Path checkpoint(int shard) {
+		return JobResult.checkpointPath(directory.resolve("a" + shard), JOB_ID);
+	}
+
+	private String ownedRanges(int shard) throws IOException {
+		JobResult result = new JobResult(JOB_ID, Collections.emptyList());
+		result.loadCheckpoint(checkpoint(shard));
+		StringBuilder sb = new StringBuilder();
+		for (long[] range : result.getOwnedRanges()) {
+			sb.append("[").append(range[0]).append(", ").append(range[1]).append(")");
+		}
+		return sb.toString();
+	}
+
+	private Process start(int shard) throws IOException, InterruptedException {
+		return ServerProcess.start(directory, "s" + shard + ".json", ports[shard]);
+	}
+
+	private static void kill(Process process) throws InterruptedException {
+		ServerProcess.kill(process);
+	}
+
+	/**
+	 * Requests tasks until one is given
+	 */
+	private long firstTask(int shard) throws IOException, InterruptedException {
+		for (int i = 0; i < 10; i++) {
+			String task = request(shard, "GET Task HTTP/1.1\r\n\r\n");
+			int start = task.indexOf("\"Task\":\"");
+			if (start != -1) {
+				start += "\"Task\":\"".length();
+				return Long.parseLong(task.substring(start, task.indexOf('"', start)));
+			}
+			Thread.sleep(500);
+		}
+		throw new AssertionError("No task given by shard " + shard);
+	}
+
+	private String request(int shard, String request) throws IOException {
+		return ServerProcess.request(ports[shard], request);
+	}
+
+	private int code(int shard, String request) throws IOException {
+		return ServerProcess.code(ports[shard], request);
+	}
+}
@@ -0,0 +1,77 @@
+package upem.jarret.server;
+
+import static upem.jarret.Assert.assertEquals;
+import static upem.jarret.Assert.assertFalse;
+import static upem.jarret.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TimingWheelTest {
+
+	public static void main(String[] args) {
+		sweepInsideTheTickOfTheDeadline();
+		passedDeadline();
+		cancel();
+		reschedule();
+		timerFurtherThanOneTurn();
+		System.out.println("TimingWheelTest OK");
+	}
+
+	private static List<String> advance(TimingWheel<String> wheel, long now) {
+		List<String> expired = new ArrayList<>();
+		wheel.advance(now, expired::add);
+		return expired;
+	}
+
+	/**
+	 * A sweep made inside the tick of a deadline, before it, must not skip the timer until the
+	 * next turn of the wheel
+	 */
+	private static void sweepInsideTheTickOfTheDeadline() {
+		TimingWheel<String> wheel = new TimingWheel<>(100, 8, 1000);
+		TimingWheel.Timer<String> timer = new TimingWheel.Timer<>("a");
+		wheel.schedule(timer, 1150);
+		assertTrue(advance(wheel, 1120).isEmpty(), "expired before its deadline");
+		assertTrue(timer.isScheduled(), "unscheduled before its deadline");
+		assertEquals(List.of("a"), advance(wheel, 1200), "expired on the next tick");
+		assertFalse(timer.isScheduled(), "still scheduled once expired");
+		assertEquals(0, wheel.size(), "size");
+	}
+
+	private static void passedDeadline() {
+		TimingWheel<String> wheel = new TimingWheel<>(100, 8, 1000);
+		wheel.schedule(new TimingWheel.Timer<>("a"), 500);
+		assertEquals(List.of("a"), advance(wheel, 1100), "a passed deadline expires with the next tick");
+	}
+
+	private static void cancel() {
+		TimingWheel<String> wheel = new TimingWheel<>(100, 8, 1000);
+		TimingWheel.Timer<String> timer = new TimingWheel.Timer<>("a");
+		wheel.schedule(timer, 1300);
+		wheel.schedule(new TimingWheel.Timer<>("b"), 1300);
+		wheel.cancel(timer);
+		assertEquals(1, wheel.size(), "size after cancel");
+		assertEquals(List.of("b"), advance(wheel, 1300), "a cancelled timer does not expire");
+	}
+
+	private static void reschedule() {
+		TimingWheel<String> wheel = new TimingWheel<>(100, 8, 1000);
+		TimingWheel.Timer<String> timer = new TimingWheel.Timer<>("a");
+		wheel.schedule(timer, 1200);
+		wheel.schedule(timer, 1500);
+		assertEquals(1, wheel.size(), "size after reschedule");
+		assertTrue(advance(wheel, 1400).isEmpty(), "expired on its old deadline");
+		assertEquals(1500, timer.getDeadline(), "deadline");
+		assertEquals(List.of("a"), advance(wheel, 1500), "expired on its new deadline");
+	}
+
+	private static void timerFurtherThanOneTurn() {
+		TimingWheel<String> wheel = new TimingWheel<>(100, 8, 1000);
+		wheel.schedule(new TimingWheel.Timer<>("a"), 2650);
+		for (long now = 1100; now <= 2600; now += 100) {
+			assertTrue(advance(wheel, now).isEmpty(), "expired a turn early at " + now);
+		}
+		assertEquals(List.of("a"), advance(wheel, 2700), "expired on its turn");
+	}
+}
@@ -0,0 +1,145 @@
+package upem.jarret.storage;
+
+import static upem.jarret.Assert.assertEquals;
+import static upem.jarret.Assert.assertFalse;
+import static upem.jarret.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class ReorderBufferTest {
+
+	public static void main(String[] args) throws IOException {
+		Path directory = Files.createTempDirectory("reorder");
+		try {
+			inOrder(directory.resolve("order"));
+			syncSurvivesACrash(directory.resolve("crash"));
+			sliceOfAShard(directory.resolve("slice"));
+			stolenRange(directory.resolve("stolen"));
+			gapTimeout(directory.resolve("gap"));
+			compaction(directory.resolve("compaction"));
+		} finally {
+			try (Stream<Path> paths = Files.walk(directory)) {
+				paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+			}
+		}
+		System.out.println("ReorderBufferTest OK");
+	}
+
+	private static byte[] answer(long task) {
+		return ("{\"Task\":\"" + task + "\"}\n").getBytes();
+	}
+
+	/**
+	 * Adds the answer of a task and returns the tasks released
+	 */
+	private static List<Long> add(ReorderBuffer buffer, long task) throws IOException {
+		buffer.add(task, answer(task));
+		return release(buffer);
+	}
+
+	private static List<Long> release(ReorderBuffer buffer) throws IOException {
+		List<Long> released = new ArrayList<>();
+		byte[] record;
+		while ((record = buffer.pollNext()) != null) {
+			String line = new String(record);
+			released.add(Long.parseLong(line.substring(line.indexOf(":\"") + 2, line.lastIndexOf('"'))));
+		}
+		return released;
+	}
+
+	private static void inOrder(Path spill) throws IOException {
+		try (ReorderBuffer buffer = new ReorderBuffer(spill, 0, 1024)) {
+			assertTrue(add(buffer, 2).isEmpty(), "released before the gap is filled");
+			assertTrue(add(buffer, 1).isEmpty(), "released before the gap is filled");
+			assertEquals(List.of(0L, 1L, 2L), add(buffer, 0), "released in order");
+			assertFalse(buffer.add(1, answer(1)), "a task already written is held again");
+		}
+	}
+
+	/**
+	 * The answers held in memory when a checkpoint is saved are found again if the server dies
+	 * before the buffer is closed
+	 */
+	private static void syncSurvivesACrash(Path spill) throws IOException {
+		ReorderBuffer crashed = new ReorderBuffer(spill, 0, 1024 * 1024);
+		add(crashed, 1);
+		add(crashed, 2);
+		crashed.sync();
+		// no close
+		try (ReorderBuffer buffer = new ReorderBuffer(spill, 0, 1024 * 1024)) {
+			assertEquals(2, buffer.size(), "answers found again");
+			assertEquals(List.of(0L, 1L, 2L), add(buffer, 0), "released after the restart");
+		}
+	}
+
+	/**
+	 * A shard owning [500, 1000) writes its first answer without waiting for the tasks of the
+	 * other shards
+	 */
+	private static void sliceOfAShard(Path spill) throws IOException {
+		try (ReorderBuffer buffer = new ReorderBuffer(spill, 0, 1024)) {
+			buffer.skip(0, 500);
+			buffer.skip(1000, 2000);
+			assertTrue(add(buffer, 501).isEmpty(), "released before the first task of the slice");
+			assertEquals(List.of(500L, 501L), add(buffer, 500), "released from the slice start");
+			// the second half of the slice is given to another shard
+			buffer.skip(750, 1000);
+			for (long task = 502; task < 750; task++) {
+				add(buffer, task);
+			}
+			assertEquals(750, buffer.getNext(), "next task");
+			assertEquals(List.of(1500L), add(buffer, 1500), "the tasks of the other shards are skipped");
+		}
+	}
+
+	private static void stolenRange(Path spill) throws IOException {
+		try (ReorderBuffer buffer = new ReorderBuffer(spill, 0, 1024)) {
+			buffer.skip(500, 1000);
+			buffer.expect(800, 900);
+			for (long task = 0; task < 500; task++) {
+				add(buffer, task);
+			}
+			assertTrue(add(buffer, 801).isEmpty(), "a gap of the stolen range is skipped");
+			assertEquals(List.of(800L, 801L), add(buffer, 800), "released from the stolen range");
+		}
+	}
+
+	private static void gapTimeout(Path spill) throws IOException {
+		try (ReorderBuffer buffer = new ReorderBuffer(spill, 0, 1024)) {
+			add(buffer, 3);
+			assertEquals(0, buffer.skipGap(1000, 500), "skipped when first seen");
+			assertEquals(0, buffer.skipGap(1400, 500), "skipped before the timeout");
+			assertEquals(3, buffer.skipGap(1500, 500), "tasks skipped");
+			assertEquals(List.of(3L), release(buffer), "released after the gap");
+			assertFalse(buffer.add(1, answer(1)), "a skipped task is held");
+			add(buffer, 5);
+			assertEquals(0, buffer.skipGap(2000, 500), "skipped when a new gap is first seen");
+			assertEquals(List.of(4L, 5L), add(buffer, 4), "released once the gap is filled");
+			assertEquals(0, buffer.skipGap(3000, 500), "skipped without a gap");
+		}
+	}
+
+	/**
+	 * The spill file does not grow forever while the answers keep being held and released
+	 */
+	private static void compaction(Path spill) throws IOException {
+		try (ReorderBuffer buffer = new ReorderBuffer(spill, 0, 64)) {
+			add(buffer, 100_000);
+			for (long task = 0; task < 2000; task++) {
+				add(buffer, task);
+				buffer.sync();
+			}
+			assertTrue(Files.size(spill) < 1024, "spill file compacted: " + Files.size(spill));
+			assertEquals(1, buffer.size(), "answers held");
+		}
+		try (ReorderBuffer buffer = new ReorderBuffer(spill, 2000, 64)) {
+			assertEquals(1, buffer.size(), "answers found again after the compaction");
+		}
+	}
+}